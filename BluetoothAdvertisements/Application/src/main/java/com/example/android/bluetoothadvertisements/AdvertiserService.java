@@ -8,11 +8,16 @@ import android.bluetooth.BluetoothManager;
 import android.bluetooth.le.AdvertiseCallback;
 import android.bluetooth.le.AdvertiseData;
 import android.bluetooth.le.AdvertiseSettings;
+import android.bluetooth.le.AdvertisingSetParameters;
 import android.bluetooth.le.BluetoothLeAdvertiser;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.Build;
 import android.os.Handler;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.util.Log;
 import android.widget.Toast;
 
@@ -48,6 +53,23 @@ public class AdvertiserService extends Service {
 
     private AdvertiseCallback mAdvertiseCallback;
 
+    /**
+     * Runs the advertising sets on Android 8.0 and later, instead of mAdvertiseCallback.
+     */
+    private AdvertisingEngine mAdvertisingEngine;
+
+    private AdvertisingEngine.Set mBeaconSet;
+
+    private AdvertisingEngine.Set mStatusSet;
+
+    private int mStatusSequence;
+
+    private final PayloadCodec mStatusCodec = new PayloadCodec(Constants.STATUS_SCHEMA);
+
+    private final long[] mStatusValues = new long[Constants.STATUS_SCHEMA.getFieldCount()];
+
+    private boolean mExtendedAdvertisingSupported;
+
     private Handler mHandler;
 
     private Runnable timeoutRunnable;
@@ -57,6 +79,46 @@ public class AdvertiserService extends Service {
      */
     private long TIMEOUT = TimeUnit.MILLISECONDS.convert(10, TimeUnit.MINUTES);
 
+    /**
+     * How often the status set's payload is replaced. (5 seconds)
+     */
+    private static final long STATUS_UPDATE_INTERVAL = 5000;
+
+    /**
+     * Replaces the status set's payload on air, then schedules the next replacement.
+     */
+    private final Runnable mStatusRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mStatusSet != null) {
+                mStatusSet.setData(buildStatusData());
+                mHandler.postDelayed(this, STATUS_UPDATE_INTERVAL);
+            }
+        }
+    };
+
+    /**
+     * Stops the service if the main set fails, like a failure to start legacy advertising.
+     * The status set is extra, so the main set keeps running without it.
+     */
+    private final AdvertisingEngine.Listener mAdvertisingListener =
+        new AdvertisingEngine.Listener() {
+            @Override
+            public void onSetFailed(AdvertisingEngine.Set set, int status) {
+                if (set == mBeaconSet) {
+                    Log.d(TAG, "Advertising failed");
+                    sendFailureIntent(status);
+                    stopSelf();
+                } else if (set == mStatusSet) {
+                    Log.w(TAG, "Status advertising failed: " + status);
+                    mHandler.removeCallbacks(mStatusRunnable);
+                    // A refused update leaves the set on air with its old, stale payload
+                    mAdvertisingEngine.stop(set);
+                    mStatusSet = null;
+                }
+            }
+        };
+
     @Override
     public void onCreate() {
         running = true;
@@ -99,6 +161,8 @@ public class AdvertiserService extends Service {
                 BluetoothAdapter mBluetoothAdapter = mBluetoothManager.getAdapter();
                 if (mBluetoothAdapter != null) {
                     mBluetoothLeAdvertiser = mBluetoothAdapter.getBluetoothLeAdvertiser();
+                    mExtendedAdvertisingSupported = Build.VERSION.SDK_INT >= Build.VERSION_CODES.O
+                        && mBluetoothAdapter.isLeExtendedAdvertisingSupported();
                 } else {
                     Toast.makeText(this, getString(R.string.bt_null), Toast.LENGTH_LONG).show();
                 }
@@ -106,6 +170,9 @@ public class AdvertiserService extends Service {
                 Toast.makeText(this, getString(R.string.bt_null), Toast.LENGTH_LONG).show();
             }
         }
+        if (mHandler == null) {
+            mHandler = new Handler();
+        }
 
     }
 
@@ -114,7 +181,6 @@ public class AdvertiserService extends Service {
      * set amount of time.
      */
     private void setTimeout(){
-        mHandler = new Handler();
         timeoutRunnable = new Runnable() {
             @Override
             public void run() {
@@ -134,18 +200,58 @@ public class AdvertiserService extends Service {
 
         Log.d(TAG, "Service: Starting Advertising");
 
-        if (mAdvertiseCallback == null) {
+        if (mAdvertiseCallback == null && mAdvertisingEngine == null) {
+            if (mBluetoothLeAdvertiser != null
+                && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+                startAdvertisingSets();
+                return;
+            }
+
             AdvertiseSettings settings = buildAdvertiseSettings();
             AdvertiseData data = buildAdvertiseData();
+            // The status goes in the scan response, which has 31 Bytes of its own. It is not
+            // updated, since that would take restarting advertising.
+            AdvertiseData scanResponse = buildStatusData();
             mAdvertiseCallback = new SampleAdvertiseCallback();
 
             if (mBluetoothLeAdvertiser != null) {
-                mBluetoothLeAdvertiser.startAdvertising(settings, data,
+                mBluetoothLeAdvertiser.startAdvertising(settings, data, scanResponse,
                     mAdvertiseCallback);
             }
         }
     }
 
+    /**
+     * Starts two advertising sets side by side: the same advertisement legacy advertising sends,
+     * and a status set whose service data payload is replaced every few seconds without
+     * restarting it. The status set uses extended advertising where the controller supports it,
+     * which lifts the 31 Byte limit and keeps it out of the way of legacy scanners.
+     */
+    private void startAdvertisingSets() {
+        mAdvertisingEngine = new AdvertisingEngine(mBluetoothLeAdvertiser, mAdvertisingListener);
+
+        AdvertisingSetParameters beaconParameters = new AdvertisingSetParameters.Builder()
+            .setLegacyMode(true)
+            .setConnectable(true)
+            .setScannable(true)
+            .setInterval(AdvertisingSetParameters.INTERVAL_HIGH)
+            .setTxPowerLevel(AdvertisingSetParameters.TX_POWER_MEDIUM)
+            .build();
+        mBeaconSet = mAdvertisingEngine.start("beacon", beaconParameters, buildAdvertiseData(),
+            null);
+
+        AdvertisingSetParameters statusParameters = new AdvertisingSetParameters.Builder()
+            .setLegacyMode(!mExtendedAdvertisingSupported)
+            .setConnectable(false)
+            .setScannable(false)
+            .setInterval(AdvertisingSetParameters.INTERVAL_MEDIUM)
+            .setTxPowerLevel(AdvertisingSetParameters.TX_POWER_LOW)
+            .build();
+        mStatusSet = mAdvertisingEngine.start("status", statusParameters, buildStatusData(),
+            null);
+        mHandler.postDelayed(mStatusRunnable, STATUS_UPDATE_INTERVAL);
+    }
+
     /**
      * Move service to the foreground, to avoid execution limits on background processes.
      *
@@ -169,7 +275,15 @@ public class AdvertiserService extends Service {
      */
     private void stopAdvertising() {
         Log.d(TAG, "Service: Stopping Advertising");
-        if (mBluetoothLeAdvertiser != null) {
+        if (mAdvertisingEngine != null) {
+            Log.d(TAG, mAdvertisingEngine.toString());
+            mHandler.removeCallbacks(mStatusRunnable);
+            mAdvertisingEngine.stopAll();
+            mAdvertisingEngine = null;
+            mBeaconSet = null;
+            mStatusSet = null;
+        }
+        if (mBluetoothLeAdvertiser != null && mAdvertiseCallback != null) {
             mBluetoothLeAdvertiser.stopAdvertising(mAdvertiseCallback);
             mAdvertiseCallback = null;
         }
@@ -187,6 +301,8 @@ public class AdvertiserService extends Service {
          *  Attempting to send packets over this limit will result in a failure with error code
          *  AdvertiseCallback.ADVERTISE_FAILED_DATA_TOO_LARGE. Catch this error in the
          *  onStartFailure() method of an AdvertiseCallback implementation.
+         *  App data therefore goes out bit-packed, in its own advertisement or scan response;
+         *  see buildStatusData().
          */
 
         AdvertiseData.Builder dataBuilder = new AdvertiseData.Builder();
@@ -200,6 +316,34 @@ public class AdvertiserService extends Service {
         return dataBuilder.build();
     }
 
+    /**
+     * Returns an AdvertiseData object carrying the status payload as service data, encoded with
+     * {@link Constants#STATUS_SCHEMA}. Scanners get the battery level and temperature this way
+     * without having to connect.
+     */
+    private AdvertiseData buildStatusData() {
+        // A sticky broadcast, so this returns the last battery status without registering
+        Intent battery = registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        int level = 0;
+        int temperature = 0;
+        if (battery != null) {
+            int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, 100);
+            level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, 0) * 100 / Math.max(scale, 1);
+            temperature = battery.getIntExtra(BatteryManager.EXTRA_TEMPERATURE, 0);
+        }
+
+        mStatusValues[Constants.STATUS_SEQUENCE] = mStatusSequence++;
+        mStatusValues[Constants.STATUS_BATTERY] = Math.max(0, Math.min(100, level));
+        mStatusValues[Constants.STATUS_TEMPERATURE] = Math.max(-1024, Math.min(1023, temperature));
+        mStatusValues[Constants.STATUS_UPTIME] =
+            TimeUnit.MILLISECONDS.toMinutes(SystemClock.elapsedRealtime());
+        byte[] payload = mStatusCodec.encode(mStatusValues);
+
+        AdvertiseData.Builder dataBuilder = new AdvertiseData.Builder();
+        dataBuilder.addServiceData(Constants.Service_UUID, payload);
+        return dataBuilder.build();
+    }
+
     /**
      * Returns an AdvertiseSettings object set to use low power (to help preserve battery life)
      * and disable the built-in timeout since this code uses its own timeout runnable.
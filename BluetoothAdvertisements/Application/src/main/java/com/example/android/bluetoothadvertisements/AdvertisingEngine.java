@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import android.annotation.TargetApi;
+import android.bluetooth.le.AdvertiseData;
+import android.bluetooth.le.AdvertisingSet;
+import android.bluetooth.le.AdvertisingSetCallback;
+import android.bluetooth.le.AdvertisingSetParameters;
+import android.bluetooth.le.BluetoothLeAdvertiser;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs several advertising sets at once with {@link BluetoothLeAdvertiser#startAdvertisingSet},
+ * each with its own interval, TX power and payload. A set's payload can be replaced while it is
+ * on air, without stopping and restarting it.
+ *
+ * For every set the engine measures how long the controller took from the start request to the
+ * set being on air, and to take each new payload. Requires Android 8.0; use from the main
+ * thread, which is also where the callbacks arrive.
+ */
+@TargetApi(Build.VERSION_CODES.O)
+public class AdvertisingEngine {
+
+    private static final String TAG = AdvertisingEngine.class.getSimpleName();
+
+    /**
+     * Notified when a set could not be started or given its payload. A set that refused a
+     * payload keeps advertising the previous one until it is stopped.
+     */
+    public interface Listener {
+
+        /**
+         * @param status One of the {@code AdvertisingSetCallback.ADVERTISE_FAILED_} codes.
+         */
+        void onSetFailed(Set set, int status);
+    }
+
+    /**
+     * One advertising set run by the engine.
+     */
+    public class Set {
+
+        private final String mName;
+
+        private AdvertisingSet mAdvertisingSet;
+
+        /**
+         * Payload to send once the set has started or the update in flight has completed.
+         */
+        private AdvertiseData mPendingData;
+
+        private boolean mUpdating;
+
+        private boolean mStopped;
+
+        private int mTxPower;
+
+        private long mStartRequestedAt;
+
+        private long mStartLatency = -1;
+
+        private long mUpdateRequestedAt;
+
+        private long mLastUpdateLatency = -1;
+
+        private int mUpdateCount;
+
+        private final AdvertisingSetCallback mCallback = new AdvertisingSetCallback() {
+            @Override
+            public void onAdvertisingSetStarted(AdvertisingSet advertisingSet, int txPower,
+                    int status) {
+                if (mStopped) {
+                    return;
+                }
+                if (status != ADVERTISE_SUCCESS) {
+                    Log.w(TAG, "Set " + mName + " failed to start: " + status);
+                    mSets.remove(Set.this);
+                    mListener.onSetFailed(Set.this, status);
+                    return;
+                }
+                mStartLatency = SystemClock.elapsedRealtime() - mStartRequestedAt;
+                Log.d(TAG, "Set " + mName + " on air after " + mStartLatency + "ms at "
+                        + txPower + "dBm");
+                mAdvertisingSet = advertisingSet;
+                mTxPower = txPower;
+                sendPendingData();
+            }
+
+            @Override
+            public void onAdvertisingDataSet(AdvertisingSet advertisingSet, int status) {
+                mUpdating = false;
+                if (mStopped) {
+                    return;
+                }
+                if (status != ADVERTISE_SUCCESS) {
+                    Log.w(TAG, "Set " + mName + " refused its payload: " + status);
+                    mListener.onSetFailed(Set.this, status);
+                    return;
+                }
+                mLastUpdateLatency = SystemClock.elapsedRealtime() - mUpdateRequestedAt;
+                mUpdateCount++;
+                sendPendingData();
+            }
+        };
+
+        Set(String name) {
+            mName = name;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * Replace the payload on air. If a replacement is still being applied, only the newest
+         * payload queued behind it is sent.
+         */
+        public void setData(AdvertiseData data) {
+            if (mStopped) {
+                return;
+            }
+            mPendingData = data;
+            sendPendingData();
+        }
+
+        /**
+         * Return the TX power the controller chose, in dBm, once the set has started.
+         */
+        public int getTxPower() {
+            return mTxPower;
+        }
+
+        /**
+         * Return how long the set took to go on air, in milliseconds, or -1 if it has not yet.
+         */
+        public long getStartLatency() {
+            return mStartLatency;
+        }
+
+        /**
+         * Return how long the last payload replacement took, in milliseconds, or -1.
+         */
+        public long getLastUpdateLatency() {
+            return mLastUpdateLatency;
+        }
+
+        private void sendPendingData() {
+            if (mAdvertisingSet == null || mUpdating || mPendingData == null) {
+                return;
+            }
+            mUpdating = true;
+            mUpdateRequestedAt = SystemClock.elapsedRealtime();
+            mAdvertisingSet.setAdvertisingData(mPendingData);
+            mPendingData = null;
+        }
+
+        private void stop() {
+            mStopped = true;
+            mPendingData = null;
+            // Also cancels a set that is still starting
+            mAdvertiser.stopAdvertisingSet(mCallback);
+        }
+
+        @Override
+        public String toString() {
+            return mName + "{txPower=" + mTxPower + "dBm, start=" + mStartLatency
+                    + "ms, updates=" + mUpdateCount + ", last update=" + mLastUpdateLatency
+                    + "ms}";
+        }
+    }
+
+    private final BluetoothLeAdvertiser mAdvertiser;
+
+    private final Listener mListener;
+
+    private final List<Set> mSets = new ArrayList<>();
+
+    public AdvertisingEngine(BluetoothLeAdvertiser advertiser, Listener listener) {
+        mAdvertiser = advertiser;
+        mListener = listener;
+    }
+
+    /**
+     * Start a set. Its result is reported to the listener only if it fails.
+     *
+     * @param name For logging.
+     * @param parameters Interval, TX power and whether the set is legacy or extended.
+     * @param data The payload.
+     * @param scanResponse Sent to active scanners if the set is scannable, or null.
+     */
+    public Set start(String name, AdvertisingSetParameters parameters, AdvertiseData data,
+            AdvertiseData scanResponse) {
+        Set set = new Set(name);
+        mSets.add(set);
+        set.mStartRequestedAt = SystemClock.elapsedRealtime();
+        mAdvertiser.startAdvertisingSet(parameters, data, scanResponse, null, null,
+                set.mCallback);
+        return set;
+    }
+
+    /**
+     * Stop one set.
+     */
+    public void stop(Set set) {
+        if (mSets.remove(set)) {
+            set.stop();
+        }
+    }
+
+    /**
+     * Stop every set.
+     */
+    public void stopAll() {
+        for (Set set : mSets) {
+            set.stop();
+        }
+        mSets.clear();
+    }
+
+    @Override
+    public String toString() {
+        return "AdvertisingEngine" + mSets;
+    }
+}
@@ -35,4 +35,28 @@ public class Constants {
 
     public static final int REQUEST_ENABLE_BT = 1;
 
+    /**
+     * Layout of the status payload advertised as service data under {@link #Service_UUID}:
+     * a sequence number, the battery level in percent, the battery temperature in tenths of a
+     * degree Celsius and the uptime in minutes. About 9 Bytes, so it fits a legacy
+     * advertisement alongside the Service UUID.
+     */
+    public static final PayloadSchema STATUS_SCHEMA = new PayloadSchema.Builder(1)
+            .addVarint("sequence")
+            .addUnsigned("battery", 7)
+            .addSigned("temperature", 11)
+            .addVarint("uptime")
+            .build();
+
+    /**
+     * Indexes of the fields of {@link #STATUS_SCHEMA}.
+     */
+    public static final int STATUS_SEQUENCE = 0;
+
+    public static final int STATUS_BATTERY = 1;
+
+    public static final int STATUS_TEMPERATURE = 2;
+
+    public static final int STATUS_UPTIME = 3;
+
 }
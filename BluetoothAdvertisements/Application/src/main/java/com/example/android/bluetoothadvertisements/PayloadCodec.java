@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+/**
+ * Encodes and decodes service data payloads laid out by a {@link PayloadSchema}.
+ *
+ * A payload is the schema id in one byte, the fields packed bit by bit, most significant bit
+ * first, padded with zeros to a whole byte, then a CRC-8 of everything before it. The CRC
+ * catches payloads from other apps that happen to use the same service UUID, as well as
+ * corruption.
+ *
+ * Decoding does not allocate, so it can run for every scan result. A codec keeps its position
+ * in the payload between calls, so use one per thread.
+ */
+public class PayloadCodec {
+
+    /**
+     * CRC-8 with polynomial x^8 + x^2 + x + 1, one entry per byte value.
+     */
+    private static final byte[] CRC_TABLE = new byte[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x80) != 0 ? (crc << 1) ^ 0x07 : crc << 1;
+            }
+            CRC_TABLE[i] = (byte) crc;
+        }
+    }
+
+    private final PayloadSchema mSchema;
+
+    private byte[] mData;
+
+    /**
+     * Position in mData in bits, from the start of the array.
+     */
+    private int mBitPosition;
+
+    private int mBitLimit;
+
+    public PayloadCodec(PayloadSchema schema) {
+        mSchema = schema;
+    }
+
+    public PayloadSchema getSchema() {
+        return mSchema;
+    }
+
+    /**
+     * Encode a payload into a new array of exactly the right size.
+     *
+     * @param values One per field of the schema.
+     * @throws IllegalArgumentException if a value does not fit its field.
+     */
+    public byte[] encode(long[] values) {
+        byte[] buffer = new byte[mSchema.getMaxLength()];
+        int length = encode(values, buffer, 0);
+        byte[] payload = new byte[length];
+        System.arraycopy(buffer, 0, payload, 0, length);
+        return payload;
+    }
+
+    /**
+     * Encode a payload into the given array, which must have room for
+     * {@link PayloadSchema#getMaxLength()} bytes from offset.
+     *
+     * @return the number of bytes written.
+     * @throws IllegalArgumentException if a value does not fit its field.
+     */
+    public int encode(long[] values, byte[] out, int offset) {
+        if (values.length != mSchema.getFieldCount()) {
+            throw new IllegalArgumentException("Expected " + mSchema.getFieldCount()
+                    + " values, got " + values.length);
+        }
+        mData = out;
+        mBitPosition = offset * 8;
+        mBitLimit = out.length * 8;
+        write(mSchema.getId(), 8);
+        for (int i = 0; i < values.length; i++) {
+            long value = values[i];
+            switch (mSchema.getType(i)) {
+                case PayloadSchema.TYPE_UNSIGNED: {
+                    int bits = mSchema.getBits(i);
+                    if (value < 0 || value >>> bits != 0) {
+                        throw outOfRange(i, value);
+                    }
+                    write(value, bits);
+                    break;
+                }
+                case PayloadSchema.TYPE_SIGNED: {
+                    int bits = mSchema.getBits(i);
+                    if (bits < 64 && (value >> (bits - 1) != 0 && value >> (bits - 1) != -1)) {
+                        throw outOfRange(i, value);
+                    }
+                    write(value, bits);
+                    break;
+                }
+                case PayloadSchema.TYPE_VARINT:
+                    if (value < 0) {
+                        throw outOfRange(i, value);
+                    }
+                    writeVarint(value);
+                    break;
+                case PayloadSchema.TYPE_DELTA:
+                    writeVarint(zigZag(value - values[i - 1]));
+                    break;
+            }
+        }
+        // Pad to a whole byte, then append the CRC
+        int end = (mBitPosition + 7) / 8;
+        if (end >= out.length) {
+            throw new IllegalArgumentException("Payload does not fit the buffer");
+        }
+        for (int i = mBitPosition; i < end * 8; i++) {
+            clearBit(i);
+        }
+        out[end] = crc(out, offset, end - offset);
+        mData = null;
+        return end + 1 - offset;
+    }
+
+    /**
+     * Decode a payload.
+     *
+     * @param values Receives one value per field of the schema; left partly written if the
+     *               payload is not valid.
+     * @return false if the payload is not valid for this schema: wrong id, wrong CRC, too
+     * short or long, or padding that is not zero.
+     */
+    public boolean decode(byte[] data, int offset, int length, long[] values) {
+        if (length < 2 || values.length < mSchema.getFieldCount()) {
+            return false;
+        }
+        int crcIndex = offset + length - 1;
+        if (crc(data, offset, length - 1) != data[crcIndex]) {
+            return false;
+        }
+        mData = data;
+        mBitPosition = offset * 8;
+        mBitLimit = crcIndex * 8;
+        try {
+            if (read(8) != mSchema.getId()) {
+                return false;
+            }
+            for (int i = 0; i < mSchema.getFieldCount(); i++) {
+                switch (mSchema.getType(i)) {
+                    case PayloadSchema.TYPE_UNSIGNED:
+                        values[i] = read(mSchema.getBits(i));
+                        break;
+                    case PayloadSchema.TYPE_SIGNED: {
+                        int bits = mSchema.getBits(i);
+                        // Shift the sign bit to the top and back to extend it
+                        values[i] = read(bits) << (64 - bits) >> (64 - bits);
+                        break;
+                    }
+                    case PayloadSchema.TYPE_VARINT:
+                        values[i] = readVarint();
+                        break;
+                    case PayloadSchema.TYPE_DELTA:
+                        values[i] = values[i - 1] + unZigZag(readVarint());
+                        break;
+                }
+                if (mBitPosition > mBitLimit) {
+                    return false;
+                }
+            }
+            // Only padding may follow the last field, and it must be zeros as encode() writes
+            int padding = mBitLimit - mBitPosition;
+            return padding < 8 && read(padding) == 0;
+        } finally {
+            mData = null;
+        }
+    }
+
+    private static IllegalArgumentException outOfRange(int field, long value) {
+        return new IllegalArgumentException("Value " + value + " does not fit field " + field);
+    }
+
+    private void write(long value, int bits) {
+        if (mBitPosition + bits > mBitLimit) {
+            throw new IllegalArgumentException("Payload does not fit the buffer");
+        }
+        for (int i = bits - 1; i >= 0; i--) {
+            if (((value >>> i) & 1) != 0) {
+                mData[mBitPosition >> 3] |= (byte) (0x80 >>> (mBitPosition & 7));
+            } else {
+                clearBit(mBitPosition);
+            }
+            mBitPosition++;
+        }
+    }
+
+    private void clearBit(int position) {
+        mData[position >> 3] &= (byte) ~(0x80 >>> (position & 7));
+    }
+
+    /**
+     * Read a field; past the limit it reads zeros, which the caller detects from the position.
+     */
+    private long read(int bits) {
+        long value = 0;
+        for (int i = 0; i < bits; i++) {
+            int bit = 0;
+            if (mBitPosition < mBitLimit) {
+                bit = (mData[mBitPosition >> 3] >>> (7 - (mBitPosition & 7))) & 1;
+            }
+            value = (value << 1) | bit;
+            mBitPosition++;
+        }
+        return value;
+    }
+
+    /**
+     * Write 7 bits at a time, least significant group first, each behind a bit saying whether
+     * another group follows.
+     */
+    private void writeVarint(long value) {
+        do {
+            long group = value & 0x7f;
+            value >>>= 7;
+            write(value != 0 ? 1 : 0, 1);
+            write(group, 7);
+        } while (value != 0);
+    }
+
+    private long readVarint() {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            boolean more = read(1) != 0;
+            value |= read(7) << shift;
+            if (!more || mBitPosition > mBitLimit) {
+                break;
+            }
+        }
+        return value;
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static byte crc(byte[] data, int offset, int length) {
+        int crc = 0;
+        for (int i = offset; i < offset + length; i++) {
+            crc = CRC_TABLE[(crc ^ data[i]) & 0xff] & 0xff;
+        }
+        return (byte) crc;
+    }
+}
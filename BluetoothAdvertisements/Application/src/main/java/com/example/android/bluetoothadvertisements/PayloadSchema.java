@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import java.util.Arrays;
+
+/**
+ * Describes the fields of a service data payload encoded by {@link PayloadCodec}, in order.
+ *
+ * Fields are packed at bit granularity, so a percentage takes 7 bits rather than a byte:
+ * <ul>
+ * <li>unsigned and signed fields take a fixed number of bits;</li>
+ * <li>varint fields take 8 bits for every 7 bits of value, so small numbers stay small;</li>
+ * <li>delta fields hold the difference from the field before them as a signed varint, which
+ * suits series of readings that change little from one to the next.</li>
+ * </ul>
+ *
+ * Build one with {@link Builder}. Both ends must use the same schema; its id travels in the
+ * payload so a mismatch is detected.
+ */
+public final class PayloadSchema {
+
+    public static final int TYPE_UNSIGNED = 0;
+
+    public static final int TYPE_SIGNED = 1;
+
+    public static final int TYPE_VARINT = 2;
+
+    public static final int TYPE_DELTA = 3;
+
+    /**
+     * Bits a varint of up to 64 bits can take: ten groups of 7 value bits and a continuation bit.
+     */
+    static final int MAX_VARINT_BITS = 80;
+
+    private final int mId;
+
+    private final String[] mNames;
+
+    private final int[] mTypes;
+
+    private final int[] mBits;
+
+    private PayloadSchema(int id, String[] names, int[] types, int[] bits) {
+        mId = id;
+        mNames = names;
+        mTypes = types;
+        mBits = bits;
+    }
+
+    /**
+     * Return the id written at the start of every payload, 0 to 255.
+     */
+    public int getId() {
+        return mId;
+    }
+
+    public int getFieldCount() {
+        return mTypes.length;
+    }
+
+    public String getName(int field) {
+        return mNames[field];
+    }
+
+    public int getType(int field) {
+        return mTypes[field];
+    }
+
+    /**
+     * Return the width of a fixed size field, or 0 for a varint or delta field.
+     */
+    public int getBits(int field) {
+        return mBits[field];
+    }
+
+    /**
+     * Return the index of the field with the given name, or -1.
+     */
+    public int indexOf(String name) {
+        for (int i = 0; i < mNames.length; i++) {
+            if (mNames[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Return the most bytes an encoded payload can take, including the id and the CRC.
+     */
+    public int getMaxLength() {
+        int bits = 0;
+        for (int i = 0; i < mTypes.length; i++) {
+            bits += mBits[i] != 0 ? mBits[i] : MAX_VARINT_BITS;
+        }
+        return 1 + (bits + 7) / 8 + 1;
+    }
+
+    /**
+     * Builds a {@link PayloadSchema}, one field at a time.
+     */
+    public static final class Builder {
+
+        private final int mId;
+
+        private String[] mNames = new String[4];
+
+        private int[] mTypes = new int[4];
+
+        private int[] mBits = new int[4];
+
+        private int mCount;
+
+        /**
+         * @param id Identifies the schema in every payload, 0 to 255.
+         */
+        public Builder(int id) {
+            if (id < 0 || id > 0xff) {
+                throw new IllegalArgumentException("Schema id out of range: " + id);
+            }
+            mId = id;
+        }
+
+        /**
+         * Add a field holding 0 to 2^bits - 1.
+         */
+        public Builder addUnsigned(String name, int bits) {
+            if (bits < 1 || bits > 63) {
+                throw new IllegalArgumentException("Unsigned field of " + bits + " bits");
+            }
+            return add(name, TYPE_UNSIGNED, bits);
+        }
+
+        /**
+         * Add a field holding -2^(bits-1) to 2^(bits-1) - 1.
+         */
+        public Builder addSigned(String name, int bits) {
+            if (bits < 2 || bits > 64) {
+                throw new IllegalArgumentException("Signed field of " + bits + " bits");
+            }
+            return add(name, TYPE_SIGNED, bits);
+        }
+
+        /**
+         * Add a field holding any non-negative number, taking more bits the larger it is.
+         */
+        public Builder addVarint(String name) {
+            return add(name, TYPE_VARINT, 0);
+        }
+
+        /**
+         * Add a field sent as its difference from the field before it.
+         */
+        public Builder addDelta(String name) {
+            if (mCount == 0) {
+                throw new IllegalStateException("A delta field cannot come first");
+            }
+            return add(name, TYPE_DELTA, 0);
+        }
+
+        public PayloadSchema build() {
+            return new PayloadSchema(mId, Arrays.copyOf(mNames, mCount),
+                    Arrays.copyOf(mTypes, mCount), Arrays.copyOf(mBits, mCount));
+        }
+
+        private Builder add(String name, int type, int bits) {
+            if (mCount == mTypes.length) {
+                mNames = Arrays.copyOf(mNames, mCount * 2);
+                mTypes = Arrays.copyOf(mTypes, mCount * 2);
+                mBits = Arrays.copyOf(mBits, mCount * 2);
+            }
+            mNames[mCount] = name;
+            mTypes[mCount] = type;
+            mBits[mCount] = bits;
+            mCount++;
+            return this;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Measures what a {@link ProximityFilter} costs per scan result, with a crowd of simulated
+ * devices of which a few are near.
+ *
+ * <p>Each round, every device is heard once with its signal plus some noise. Readings are
+ * offered in batches, as a batched scan delivers them, and drained after each batch, so the
+ * ring buffer is part of the figure but switching to {@link ProximityTracker}'s background
+ * thread is not. A baseline can be taken on the JVM with {@link #main(String[])}.</p>
+ */
+public class ProximityBenchmark {
+
+    public static final int DEFAULT_DEVICES = 5000;
+
+    public static final int DEFAULT_NEAR_DEVICES = 100;
+
+    public static final int DEFAULT_ROUNDS = 240;
+
+    public static final int DEFAULT_RUNS = 5;
+
+    // Results per drain; well under the ring's capacity, so nothing is dropped
+    private static final int BATCH_SIZE = 64;
+
+    // Signal at one meter of every simulated device
+    private static final int MEASURED_POWER = -59;
+
+    // About 1 m and 11 m away
+    private static final int NEAR_RSSI = -59;
+    private static final int FAR_RSSI = -80;
+
+    // Readings are off by up to this many dB either way
+    private static final int NOISE = 6;
+
+    // Each device is heard about once a second
+    private static final long ROUND_MILLIS = 1000;
+
+    /**
+     * The figures for one run.
+     */
+    public static class Result {
+        public final int devices;
+        public final long results;
+        public final long dropped;
+        public final int near;
+        public final int enters;
+        public final int exits;
+        public final double nanosPerResult;
+
+        Result(int devices, long results, long dropped, int near, int enters, int exits,
+               double nanosPerResult) {
+            this.devices = devices;
+            this.results = results;
+            this.dropped = dropped;
+            this.near = near;
+            this.enters = enters;
+            this.exits = exits;
+            this.nanosPerResult = nanosPerResult;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "%6d devices x %8d results, %d dropped: %5d near (%5d enters, %5d exits)"
+                            + "  %7.1f ns per result",
+                    devices, results, dropped, near, enters, exits, nanosPerResult);
+        }
+    }
+
+    /**
+     * Counts the events of a run.
+     */
+    private static class Counter implements ProximityFilter.Listener {
+        int enters;
+        int exits;
+
+        @Override
+        public void onEnter(String address, float distance) {
+            enters++;
+        }
+
+        @Override
+        public void onExit(String address) {
+            exits++;
+        }
+    }
+
+    /**
+     * Run a fresh filter through the given number of rounds.
+     *
+     * @param nearDevices How many of the devices are near; the rest are far.
+     */
+    public static Result run(int devices, int nearDevices, int rounds) {
+        String[] addresses = new String[devices];
+        for (int i = 0; i < devices; i++) {
+            addresses[i] = String.format(Locale.US, "02:00:00:%02X:%02X:%02X",
+                    (i >> 16) & 0xff, (i >> 8) & 0xff, i & 0xff);
+        }
+        // Drawn up front so the random number generator is not timed
+        int[] noise = new int[4093];
+        Random random = new Random(0);
+        for (int i = 0; i < noise.length; i++) {
+            noise[i] = random.nextInt(2 * NOISE + 1) - NOISE;
+        }
+
+        Counter counter = new Counter();
+        ProximityFilter filter = new ProximityFilter(counter);
+        int n = 0;
+        long startNanos = System.nanoTime();
+        for (int round = 0; round < rounds; round++) {
+            long time = round * ROUND_MILLIS;
+            for (int i = 0; i < devices; i++) {
+                int rssi = (i < nearDevices ? NEAR_RSSI : FAR_RSSI) + noise[n % noise.length];
+                filter.offer(addresses[i], rssi, MEASURED_POWER, time);
+                if (++n % BATCH_SIZE == 0) {
+                    filter.drain();
+                }
+            }
+            filter.drain();
+            filter.sweep(time);
+        }
+        long elapsedNanos = System.nanoTime() - startNanos;
+        return new Result(devices, n, filter.getDropped(), filter.getNearCount(),
+                counter.enters, counter.exits, (double) elapsedNanos / n);
+    }
+
+    /**
+     * Print a baseline: several runs, so the later ones show the cost once the JIT has
+     * compiled the filter.
+     */
+    public static void main(String[] args) {
+        int devices = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_DEVICES;
+        int nearDevices = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_NEAR_DEVICES;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_ROUNDS;
+        for (int run = 0; run < DEFAULT_RUNS; run++) {
+            System.out.println(run(devices, nearDevices, rounds));
+        }
+    }
+}
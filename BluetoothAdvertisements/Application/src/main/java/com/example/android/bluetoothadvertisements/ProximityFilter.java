@@ -0,0 +1,311 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * The part of {@link ProximityTracker} that does not need Android: the ring buffer results are
+ * handed over through, and the per-device filter and distance thresholds. It has no thread of
+ * its own, so {@link ProximityBenchmark} can drive it on the JVM.
+ *
+ * Each device's readings go through a one-dimensional Kalman filter. The filtered RSSI and the
+ * signal the device should give at one meter yield a distance estimate from the log-distance
+ * path loss model. A device enters when its estimate drops below {@link #ENTER_DISTANCE} and
+ * only exits once it rises above {@link #EXIT_DISTANCE} or the device goes quiet, so it does
+ * not flap in and out at the boundary.
+ *
+ * {@link #offer} may be called from any thread. Everything else must be called from the one
+ * thread that drains, which is also where the listener is called.
+ */
+public class ProximityFilter {
+
+    /**
+     * A device is near once its estimated distance drops below this many meters...
+     */
+    public static final float ENTER_DISTANCE = 2.0f;
+
+    /**
+     * ...and stays near until it rises above this, or nothing is heard from it for
+     * {@link #EXIT_TIMEOUT} milliseconds.
+     */
+    public static final float EXIT_DISTANCE = 3.0f;
+
+    public static final long EXIT_TIMEOUT = 10000;
+
+    /**
+     * Results waiting to be drained; more are dropped.
+     */
+    public static final int RING_CAPACITY = 1024;
+
+    /**
+     * 2 in free space; higher indoors, where walls and bodies absorb more.
+     */
+    private static final float PATH_LOSS_EXPONENT = 2.0f;
+
+    /**
+     * Kalman filter noise, in dB squared: how much the true signal drifts between readings,
+     * and how much a single reading is off.
+     */
+    private static final float PROCESS_NOISE = 0.5f;
+
+    private static final float MEASUREMENT_NOISE = 16f;
+
+    /**
+     * Receives proximity changes.
+     */
+    public interface Listener {
+
+        /**
+         * @param distance Estimated distance in meters.
+         */
+        void onEnter(String address, float distance);
+
+        void onExit(String address);
+    }
+
+    private final Listener mListener;
+
+    // Ring buffer, guarded by itself
+    private final Object mRingLock = new Object();
+
+    private final String[] mRingAddresses = new String[RING_CAPACITY];
+
+    private final int[] mRingRssi = new int[RING_CAPACITY];
+
+    private final int[] mRingMeasuredPower = new int[RING_CAPACITY];
+
+    private final long[] mRingTimes = new long[RING_CAPACITY];
+
+    private int mRingHead;
+
+    private int mRingSize;
+
+    private long mDropped;
+
+    // Device state, only touched on the draining thread
+    private final HashMap<String, Integer> mSlots = new HashMap<>();
+
+    private String[] mAddresses = new String[64];
+
+    private float[] mRssi = new float[64];
+
+    private float[] mVariance = new float[64];
+
+    private float[] mDistance = new float[64];
+
+    private long[] mLastSeen = new long[64];
+
+    private boolean[] mNear = new boolean[64];
+
+    private int mDeviceCount;
+
+    private int mNearCount;
+
+    // Cost figures, only touched on the draining thread
+    private long mProcessed;
+
+    private long mProcessingNanos;
+
+    /**
+     * @param listener Called on the draining thread as devices come near and go away.
+     */
+    public ProximityFilter(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Queue a reading. Cheap enough to call for every scan result; if the ring is full, the
+     * reading is dropped rather than queued without limit.
+     *
+     * @param measuredPower Signal expected at one meter, in dBm.
+     * @param time When the reading was taken, in milliseconds.
+     * @return true if the ring was empty, so the draining thread needs to be woken.
+     */
+    public boolean offer(String address, int rssi, int measuredPower, long time) {
+        synchronized (mRingLock) {
+            if (mRingSize == RING_CAPACITY) {
+                mDropped++;
+                return false;
+            }
+            int tail = (mRingHead + mRingSize) % RING_CAPACITY;
+            mRingAddresses[tail] = address;
+            mRingRssi[tail] = rssi;
+            mRingMeasuredPower[tail] = measuredPower;
+            mRingTimes[tail] = time;
+            return mRingSize++ == 0;
+        }
+    }
+
+    /**
+     * Throw away every queued reading. Call it when nothing will drain the ring for a while.
+     */
+    public void clearQueue() {
+        synchronized (mRingLock) {
+            Arrays.fill(mRingAddresses, null);
+            mRingHead = 0;
+            mRingSize = 0;
+        }
+    }
+
+    /**
+     * Process every queued reading.
+     *
+     * @return how many there were.
+     */
+    public int drain() {
+        long startNanos = System.nanoTime();
+        int processed = 0;
+        while (true) {
+            String address;
+            int rssi;
+            int measuredPower;
+            long time;
+            synchronized (mRingLock) {
+                if (mRingSize == 0) {
+                    break;
+                }
+                address = mRingAddresses[mRingHead];
+                rssi = mRingRssi[mRingHead];
+                measuredPower = mRingMeasuredPower[mRingHead];
+                time = mRingTimes[mRingHead];
+                mRingAddresses[mRingHead] = null;
+                mRingHead = (mRingHead + 1) % RING_CAPACITY;
+                mRingSize--;
+            }
+            update(address, rssi, measuredPower, time);
+            processed++;
+        }
+        mProcessed += processed;
+        mProcessingNanos += System.nanoTime() - startNanos;
+        return processed;
+    }
+
+    /**
+     * Let go of near devices that have gone quiet.
+     *
+     * @param now In the same time base as the readings.
+     */
+    public void sweep(long now) {
+        for (int i = 0; i < mDeviceCount && mNearCount > 0; i++) {
+            if (mNear[i] && now - mLastSeen[i] > EXIT_TIMEOUT) {
+                setNear(i, false);
+            }
+        }
+    }
+
+    public int getDeviceCount() {
+        return mDeviceCount;
+    }
+
+    public int getNearCount() {
+        return mNearCount;
+    }
+
+    /**
+     * Return how many readings have been processed.
+     */
+    public long getProcessed() {
+        return mProcessed;
+    }
+
+    /**
+     * Return how long processing them took in total, in nanoseconds.
+     */
+    public long getProcessingNanos() {
+        return mProcessingNanos;
+    }
+
+    /**
+     * Return how many readings were dropped because the ring was full.
+     */
+    public long getDropped() {
+        synchronized (mRingLock) {
+            return mDropped;
+        }
+    }
+
+    /**
+     * Estimate the distance in meters at which a device whose signal at one meter is
+     * measuredPower would be received at rssi.
+     */
+    public static float estimateDistance(float rssi, int measuredPower) {
+        return (float) Math.pow(10, (measuredPower - rssi) / (10 * PATH_LOSS_EXPONENT));
+    }
+
+    @Override
+    public String toString() {
+        long processed = mProcessed;
+        return "ProximityFilter{devices=" + mDeviceCount + ", near=" + mNearCount
+                + ", processed=" + processed + ", dropped=" + getDropped() + ", "
+                + (processed > 0 ? mProcessingNanos / processed : 0) + "ns per result}";
+    }
+
+    private void update(String address, int rssi, int measuredPower, long time) {
+        Integer slot = mSlots.get(address);
+        int i;
+        if (slot == null) {
+            i = addDevice(address);
+            mRssi[i] = rssi;
+            mVariance[i] = MEASUREMENT_NOISE;
+        } else {
+            i = slot;
+            // Predict, then correct with the new reading
+            float variance = mVariance[i] + PROCESS_NOISE;
+            float gain = variance / (variance + MEASUREMENT_NOISE);
+            mRssi[i] += gain * (rssi - mRssi[i]);
+            mVariance[i] = (1 - gain) * variance;
+        }
+        mLastSeen[i] = time;
+        float distance = estimateDistance(mRssi[i], measuredPower);
+        mDistance[i] = distance;
+
+        if (!mNear[i] && distance < ENTER_DISTANCE) {
+            setNear(i, true);
+        } else if (mNear[i] && distance > EXIT_DISTANCE) {
+            setNear(i, false);
+        }
+    }
+
+    private int addDevice(String address) {
+        if (mDeviceCount == mAddresses.length) {
+            int capacity = mDeviceCount * 2;
+            mAddresses = Arrays.copyOf(mAddresses, capacity);
+            mRssi = Arrays.copyOf(mRssi, capacity);
+            mVariance = Arrays.copyOf(mVariance, capacity);
+            mDistance = Arrays.copyOf(mDistance, capacity);
+            mLastSeen = Arrays.copyOf(mLastSeen, capacity);
+            mNear = Arrays.copyOf(mNear, capacity);
+        }
+        int i = mDeviceCount++;
+        mAddresses[i] = address;
+        mSlots.put(address, i);
+        return i;
+    }
+
+    private void setNear(int i, boolean near) {
+        mNear[i] = near;
+        if (near) {
+            mNearCount++;
+            mListener.onEnter(mAddresses[i], mDistance[i]);
+        } else {
+            mNearCount--;
+            mListener.onExit(mAddresses[i]);
+        }
+    }
+}
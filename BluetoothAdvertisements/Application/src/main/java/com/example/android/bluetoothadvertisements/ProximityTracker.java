@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Follows the signal of every device seen and reports when one comes near or goes away.
+ *
+ * Raw RSSI readings jump around by several dB from one advertisement to the next, so each
+ * device's readings are filtered and turned into a distance estimate by a
+ * {@link ProximityFilter}, which also decides when a device enters and exits. The tracker feeds
+ * it the results of a scan, from the signal and the TX power the device advertises.
+ *
+ * Results are handed over through the filter's ring buffer of primitive arrays and processed on
+ * a background thread, with each device's state also kept in primitive arrays, so following
+ * thousands of devices does not allocate per result. Events are delivered on the main thread.
+ */
+public class ProximityTracker {
+
+    private static final String TAG = ProximityTracker.class.getSimpleName();
+
+    /**
+     * Signal at one meter when a device does not advertise its TX power, typical of phones.
+     */
+    private static final int DEFAULT_MEASURED_POWER = -59;
+
+    /**
+     * Loss between the antenna and one meter away, to turn an advertised TX power into the
+     * expected signal at one meter.
+     */
+    private static final int ONE_METER_LOSS = 41;
+
+    /**
+     * How often devices that are near are checked for having gone quiet.
+     */
+    private static final long SWEEP_INTERVAL = 1000;
+
+    private final ProximityFilter.Listener mListener;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private HandlerThread mThread;
+
+    private Handler mHandler;
+
+    /**
+     * Called on the background thread; passes events on to the main thread.
+     */
+    private final ProximityFilter.Listener mFilterListener = new ProximityFilter.Listener() {
+        @Override
+        public void onEnter(final String address, final float distance) {
+            Handler handler = mHandler;
+            if (mFilter.getNearCount() == 1 && handler != null) {
+                handler.postDelayed(mSweepRunnable, SWEEP_INTERVAL);
+            }
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mListener.onEnter(address, distance);
+                }
+            });
+        }
+
+        @Override
+        public void onExit(final String address) {
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mListener.onExit(address);
+                }
+            });
+        }
+    };
+
+    private final ProximityFilter mFilter = new ProximityFilter(mFilterListener);
+
+    private final Runnable mDrainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mFilter.drain();
+        }
+    };
+
+    private final Runnable mSweepRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mFilter.sweep(SystemClock.elapsedRealtime());
+            Handler handler = mHandler;
+            if (mFilter.getNearCount() > 0 && handler != null) {
+                handler.postDelayed(this, SWEEP_INTERVAL);
+            }
+        }
+    };
+
+    /**
+     * @param listener Called on the main thread as devices come near and go away.
+     */
+    public ProximityTracker(ProximityFilter.Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Start the background thread. Results passed in before are ignored.
+     */
+    public void start() {
+        if (mThread != null) {
+            return;
+        }
+        // Drop what a stopped thread left queued; only a result into an empty ring posts the
+        // drain, so leftovers would otherwise never be drained
+        mFilter.clearQueue();
+        mThread = new HandlerThread(TAG);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        // Pick up the sweep for devices that were near when stopped; it ends if there are none
+        mHandler.postDelayed(mSweepRunnable, SWEEP_INTERVAL);
+    }
+
+    /**
+     * Stop the background thread. Device state is kept for a later {@link #start()}.
+     */
+    public void stop() {
+        if (mThread == null) {
+            return;
+        }
+        Log.d(TAG, "Stopping. " + this);
+        mThread.quit();
+        mThread = null;
+        mHandler = null;
+    }
+
+    /**
+     * Queue a result for the background thread. Cheap enough to call for every result; if the
+     * thread falls behind, results are dropped rather than queued without limit.
+     */
+    public void onScanResult(ScanResult result) {
+        Handler handler = mHandler;
+        if (handler == null) {
+            return;
+        }
+        ScanRecord record = result.getScanRecord();
+        int txPower = record != null ? record.getTxPowerLevel() : Integer.MIN_VALUE;
+        int measuredPower = txPower != Integer.MIN_VALUE
+                ? txPower - ONE_METER_LOSS : DEFAULT_MEASURED_POWER;
+        if (mFilter.offer(result.getDevice().getAddress(), result.getRssi(), measuredPower,
+                SystemClock.elapsedRealtime())) {
+            handler.post(mDrainRunnable);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ProximityTracker{" + mFilter + "}";
+    }
+}
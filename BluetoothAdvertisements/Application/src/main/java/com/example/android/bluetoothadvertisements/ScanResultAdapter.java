@@ -16,34 +16,76 @@
 
 package com.example.android.bluetoothadvertisements;
 
+import android.bluetooth.le.ScanRecord;
 import android.bluetooth.le.ScanResult;
 import android.content.Context;
 import android.os.SystemClock;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
 import android.widget.BaseAdapter;
 import android.widget.TextView;
 
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
 import java.util.concurrent.TimeUnit;
 
 /**
  * Holds and displays {@link ScanResult}s, used by {@link ScannerFragment}.
+ *
+ * Devices are indexed by address and keep the position they were first seen at. Changes are
+ * collected as they arrive and shown by {@link #applyChanges(AbsListView)}, which only
+ * rebinds the rows that changed unless a device was added.
  */
 public class ScanResultAdapter extends BaseAdapter {
 
+    /**
+     * A device's row is updated at most this often; results in between are dropped.
+     */
+    private static final long MIN_UPDATE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
     private ArrayList<ScanResult> mArrayList;
 
+    /**
+     * Position of each device in mArrayList, by address.
+     */
+    private HashMap<String, Integer> mPositions;
+
+    /**
+     * Rows changed since the last {@link #applyChanges(AbsListView)}, and whether any were
+     * added.
+     */
+    private BitSet mChangedPositions;
+    private boolean mRowsAdded;
+
     private Context mContext;
 
     private LayoutInflater mInflater;
 
+    /**
+     * Decodes status payloads as rows are bound, into mStatusValues, without allocating.
+     */
+    private PayloadCodec mStatusCodec;
+
+    private long[] mStatusValues;
+
+    /**
+     * Estimated distance of the devices {@link ProximityTracker} reports as near, by address.
+     */
+    private HashMap<String, Float> mNearDistances;
+
     ScanResultAdapter(Context context, LayoutInflater inflater) {
         super();
         mContext = context;
         mInflater = inflater;
         mArrayList = new ArrayList<>();
+        mPositions = new HashMap<>();
+        mChangedPositions = new BitSet();
+        mStatusCodec = new PayloadCodec(Constants.STATUS_SCHEMA);
+        mStatusValues = new long[Constants.STATUS_SCHEMA.getFieldCount()];
+        mNearDistances = new HashMap<>();
     }
 
     @Override
@@ -72,6 +114,8 @@ public class ScanResultAdapter extends BaseAdapter {
         TextView deviceNameView = (TextView) view.findViewById(R.id.device_name);
         TextView deviceAddressView = (TextView) view.findViewById(R.id.device_address);
         TextView lastSeenView = (TextView) view.findViewById(R.id.last_seen);
+        TextView statusView = (TextView) view.findViewById(R.id.device_status);
+        TextView proximityView = (TextView) view.findViewById(R.id.device_proximity);
 
         ScanResult scanResult = mArrayList.get(position);
 
@@ -83,39 +127,129 @@ public class ScanResultAdapter extends BaseAdapter {
         deviceAddressView.setText(scanResult.getDevice().getAddress());
         lastSeenView.setText(getTimeSinceString(mContext, scanResult.getTimestampNanos()));
 
+        if (decodeStatus(scanResult)) {
+            statusView.setText(mContext.getResources().getString(R.string.device_status,
+                    mStatusValues[Constants.STATUS_BATTERY],
+                    mStatusValues[Constants.STATUS_TEMPERATURE] / 10f,
+                    mStatusValues[Constants.STATUS_UPTIME],
+                    mStatusValues[Constants.STATUS_SEQUENCE]));
+            statusView.setVisibility(View.VISIBLE);
+        } else {
+            statusView.setVisibility(View.GONE);
+        }
+
+        Float distance = mNearDistances.get(scanResult.getDevice().getAddress());
+        if (distance != null) {
+            proximityView.setText(mContext.getResources().getString(R.string.device_proximity,
+                    distance));
+            proximityView.setVisibility(View.VISIBLE);
+        } else {
+            proximityView.setVisibility(View.GONE);
+        }
+
         return view;
     }
 
     /**
-     * Search the adapter for an existing device address and return it, otherwise return -1.
+     * Decode the status payload of a result into mStatusValues, if it has a valid one.
      */
-    private int getPosition(String address) {
-        int position = -1;
-        for (int i = 0; i < mArrayList.size(); i++) {
-            if (mArrayList.get(i).getDevice().getAddress().equals(address)) {
-                position = i;
-                break;
-            }
-        }
-        return position;
+    private boolean decodeStatus(ScanResult scanResult) {
+        ScanRecord record = scanResult.getScanRecord();
+        byte[] data = record != null ? record.getServiceData(Constants.Service_UUID) : null;
+        return data != null && mStatusCodec.decode(data, 0, data.length, mStatusValues);
     }
 
+    /**
+     * Return the position of a device address in the adapter, otherwise return -1.
+     */
+    private int getPosition(String address) {
+        Integer position = mPositions.get(address);
+        return position != null ? position : -1;
+    }
 
     /**
      * Add a ScanResult item to the adapter if a result from that device isn't already present.
-     * Otherwise updates the existing position with the new ScanResult.
+     * Otherwise updates the existing position with the new ScanResult, unless the existing one
+     * is too recent to be worth redrawing. Nothing is shown until
+     * {@link #applyChanges(AbsListView)}.
+     *
+     * @return true if the adapter changed.
      */
-    public void add(ScanResult scanResult) {
-
-        int existingPosition = getPosition(scanResult.getDevice().getAddress());
+    public boolean add(ScanResult scanResult) {
+        String address = scanResult.getDevice().getAddress();
+        int existingPosition = getPosition(address);
 
         if (existingPosition >= 0) {
-            // Device is already in list, update its record.
+            // Device is already in list, update its record if the last one is old enough.
+            ScanResult existing = mArrayList.get(existingPosition);
+            if (scanResult.getTimestampNanos() - existing.getTimestampNanos()
+                    < MIN_UPDATE_INTERVAL_NANOS) {
+                return false;
+            }
             mArrayList.set(existingPosition, scanResult);
+            mChangedPositions.set(existingPosition);
         } else {
-            // Add new Device's ScanResult to list.
+            // Add new Device's ScanResult to the end of the list.
+            mPositions.put(address, mArrayList.size());
             mArrayList.add(scanResult);
+            mRowsAdded = true;
         }
+        return true;
+    }
+
+    /**
+     * Mark a device as near, at the given estimated distance in meters, or as no longer near if
+     * the distance is null. Nothing is shown until {@link #applyChanges(AbsListView)}.
+     *
+     * @return true if the adapter changed.
+     */
+    public boolean setProximity(String address, Float distance) {
+        if (distance != null) {
+            mNearDistances.put(address, distance);
+        } else if (mNearDistances.remove(address) == null) {
+            return false;
+        }
+        int position = getPosition(address);
+        if (position < 0) {
+            return false;
+        }
+        mChangedPositions.set(position);
+        return true;
+    }
+
+    /**
+     * Show the changes made since the last call. If devices were added the whole list is
+     * refreshed, otherwise only the changed rows that are on screen are bound again.
+     *
+     * @param listView The list this adapter is attached to.
+     */
+    public void applyChanges(AbsListView listView) {
+        if (mRowsAdded) {
+            notifyDataSetChanged();
+            return;
+        }
+
+        int first = listView.getFirstVisiblePosition();
+        int last = listView.getLastVisiblePosition();
+        for (int position = mChangedPositions.nextSetBit(first);
+                position >= 0 && position <= last;
+                position = mChangedPositions.nextSetBit(position + 1)) {
+            View row = listView.getChildAt(position - first);
+            if (row != null) {
+                getView(position, row, listView);
+            }
+        }
+        mChangedPositions.clear();
+    }
+
+    /**
+     * Rebinds every row, which also shows any changes not yet applied.
+     */
+    @Override
+    public void notifyDataSetChanged() {
+        mRowsAdded = false;
+        mChangedPositions.clear();
+        super.notifyDataSetChanged();
     }
 
     /**
@@ -123,6 +257,10 @@ public class ScanResultAdapter extends BaseAdapter {
      */
     public void clear() {
         mArrayList.clear();
+        mPositions.clear();
+        mChangedPositions.clear();
+        mNearDistances.clear();
+        mRowsAdded = true;
     }
 
     /**
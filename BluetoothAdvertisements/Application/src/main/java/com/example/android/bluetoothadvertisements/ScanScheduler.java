@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import android.util.Log;
+
+/**
+ * Decides when to scan so that nearby devices are noticed without scanning all the time.
+ *
+ * Scans run for a fixed window, separated by idle periods. Each window that finds no new
+ * device doubles the idle period, up to a limit; a new device brings it back down and
+ * triggers a burst of back-to-back windows. Starts are also held back so there are never
+ * more than {@link #MAX_STARTS} in {@link #START_LIMIT_WINDOW} milliseconds, since Android
+ * silently stops delivering results to apps that start scans more often than that.
+ *
+ * The scheduler has no timer of its own: it is told the time and returns how long to wait
+ * before calling {@link #onTimer(long)} again, so it can be driven by a Handler or by a
+ * fake clock.
+ */
+public class ScanScheduler {
+
+    private static final String TAG = ScanScheduler.class.getSimpleName();
+
+    /**
+     * Most scan starts Android allows in {@link #START_LIMIT_WINDOW}.
+     */
+    public static final int MAX_STARTS = 5;
+
+    public static final long START_LIMIT_WINDOW = 30000;
+
+    /**
+     * Back-to-back windows scanned after a new device appears.
+     */
+    public static final int BURST_WINDOWS = 2;
+
+    /**
+     * Starts and stops the actual scan.
+     */
+    public interface Scanner {
+
+        /**
+         * @return false if the scan could not be started.
+         */
+        boolean startScan();
+
+        void stopScan();
+    }
+
+    private final Scanner mScanner;
+
+    private final long mScanWindow;
+
+    private final long mMinIdle;
+
+    private final long mMaxIdle;
+
+    /**
+     * Times of the most recent starts, oldest at mNextStart once the array is full.
+     */
+    private final long[] mStarts = new long[MAX_STARTS];
+
+    private int mNextStart;
+
+    private int mStartCount;
+
+    private boolean mRunning;
+
+    private boolean mScanning;
+
+    private long mNextEventAt;
+
+    private long mIdle;
+
+    private int mBurstRemaining;
+
+    private boolean mFoundNew;
+
+    private long mRunningSince;
+
+    private long mScanStartedAt;
+
+    private long mScanTime;
+
+    /**
+     * @param scanner Runs the scans.
+     * @param scanWindow How long each scan lasts, in milliseconds.
+     * @param minIdle Idle period after a window that found something, in milliseconds.
+     * @param maxIdle Longest idle period, reached when nothing new turns up.
+     */
+    public ScanScheduler(Scanner scanner, long scanWindow, long minIdle, long maxIdle) {
+        mScanner = scanner;
+        mScanWindow = scanWindow;
+        mMinIdle = minIdle;
+        mMaxIdle = maxIdle;
+    }
+
+    /**
+     * Start scanning now, or as soon as the start limit allows.
+     *
+     * @return milliseconds until {@link #onTimer(long)} should be called.
+     */
+    public long start(long now) {
+        if (mRunning) {
+            return Math.max(0, mNextEventAt - now);
+        }
+        Log.d(TAG, "Starting");
+        mRunning = true;
+        mRunningSince = now;
+        mScanTime = 0;
+        mIdle = mMinIdle;
+        mBurstRemaining = 0;
+        return startWindow(now);
+    }
+
+    /**
+     * Stop scanning, including any window in progress.
+     */
+    public void stop(long now) {
+        if (!mRunning) {
+            return;
+        }
+        if (mScanning) {
+            endWindow(now);
+        }
+        mRunning = false;
+        Log.d(TAG, "Stopped. " + describe(now));
+    }
+
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    public boolean isScanning() {
+        return mScanning;
+    }
+
+    /**
+     * Report that the current window found a device not seen before.
+     */
+    public void onNewDevice() {
+        mFoundNew = true;
+    }
+
+    /**
+     * Cut the idle period short and scan a burst of windows, as soon as the start limit
+     * allows.
+     *
+     * @return milliseconds until {@link #onTimer(long)} should be called, or -1 if the
+     * scheduler is stopped.
+     */
+    public long requestBurst(long now) {
+        if (!mRunning) {
+            return -1;
+        }
+        mBurstRemaining = BURST_WINDOWS;
+        mIdle = mMinIdle;
+        if (!mScanning) {
+            mNextEventAt = now;
+        }
+        return onTimer(now);
+    }
+
+    /**
+     * Ends the current window or idle period once it is due.
+     *
+     * @return milliseconds until this should be called again, or -1 if the scheduler is
+     * stopped.
+     */
+    public long onTimer(long now) {
+        if (!mRunning) {
+            return -1;
+        }
+        if (now < mNextEventAt) {
+            return mNextEventAt - now;
+        }
+        if (!mScanning) {
+            return startWindow(now);
+        }
+        endWindow(now);
+        long idle = nextIdle();
+        if (idle == 0) {
+            return startWindow(now);
+        }
+        mNextEventAt = now + idle;
+        return idle;
+    }
+
+    /**
+     * Return the share of time spent scanning since {@link #start(long)}.
+     */
+    public float getDutyCycle(long now) {
+        long scanTime = mScanTime + (mScanning ? now - mScanStartedAt : 0);
+        long elapsed = now - mRunningSince;
+        return elapsed > 0 ? (float) scanTime / elapsed : 0;
+    }
+
+    /**
+     * Describe the scheduler's state, for logging.
+     */
+    public String describe(long now) {
+        return "ScanScheduler{scanning=" + mScanning + ", idle=" + mIdle + "ms, duty cycle="
+                + Math.round(getDutyCycle(now) * 100) + "%}";
+    }
+
+    private long startWindow(long now) {
+        // Wait for the oldest of the last MAX_STARTS starts to leave the limit window
+        if (mStartCount == MAX_STARTS) {
+            long allowedAt = mStarts[mNextStart] + START_LIMIT_WINDOW;
+            if (now < allowedAt) {
+                mNextEventAt = allowedAt;
+                return allowedAt - now;
+            }
+        }
+        mStarts[mNextStart] = now;
+        mNextStart = (mNextStart + 1) % MAX_STARTS;
+        mStartCount = Math.min(mStartCount + 1, MAX_STARTS);
+
+        if (!mScanner.startScan()) {
+            Log.w(TAG, "Scan did not start, retrying in " + mIdle + "ms");
+            mNextEventAt = now + mIdle;
+            return mIdle;
+        }
+        mScanning = true;
+        mFoundNew = false;
+        mScanStartedAt = now;
+        mNextEventAt = now + mScanWindow;
+        return mScanWindow;
+    }
+
+    private void endWindow(long now) {
+        mScanner.stopScan();
+        mScanning = false;
+        mScanTime += now - mScanStartedAt;
+    }
+
+    /**
+     * Return the idle period to follow the window just ended, and stretch the next one if
+     * the window found nothing new.
+     */
+    private long nextIdle() {
+        if (mFoundNew) {
+            mBurstRemaining = BURST_WINDOWS;
+            mIdle = mMinIdle;
+        }
+        if (mBurstRemaining > 0) {
+            mBurstRemaining--;
+            return 0;
+        }
+        long idle = mIdle;
+        mIdle = Math.min(mIdle * 2, mMaxIdle);
+        return idle;
+    }
+}
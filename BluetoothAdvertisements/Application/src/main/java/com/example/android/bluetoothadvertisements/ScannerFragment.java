@@ -22,8 +22,10 @@ import android.bluetooth.le.ScanCallback;
 import android.bluetooth.le.ScanFilter;
 import android.bluetooth.le.ScanResult;
 import android.bluetooth.le.ScanSettings;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.support.v4.app.ListFragment;
 import android.util.Log;
 import android.view.LayoutInflater;
@@ -36,21 +38,36 @@ import android.widget.Toast;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.TimeUnit;
 
 
 /**
  * Scans for Bluetooth Low Energy Advertisements matching a filter and displays them to the user.
+ * Scanning runs in short windows for as long as the fragment exists, timed by a
+ * {@link ScanScheduler} to save battery. Every result also goes to a {@link ProximityTracker},
+ * which marks the devices that come near.
  */
 public class ScannerFragment extends ListFragment {
 
     private static final String TAG = ScannerFragment.class.getSimpleName();
 
     /**
-     * Stops scanning after 5 seconds.
+     * Each scan window lasts 5 seconds.
      */
     private static final long SCAN_PERIOD = 5000;
 
+    /**
+     * Scanning pauses for 10 seconds after a window that found a new device, stretching to a
+     * minute while nothing new turns up.
+     */
+    private static final long IDLE_PERIOD = 10000;
+
+    private static final long MAX_IDLE_PERIOD = 60000;
+
+    /**
+     * Results are shown at most this often, however many arrive.
+     */
+    private static final long UPDATE_INTERVAL = 500;
+
     private BluetoothAdapter mBluetoothAdapter;
 
     private BluetoothLeScanner mBluetoothLeScanner;
@@ -61,6 +78,104 @@ public class ScannerFragment extends ListFragment {
 
     private Handler mHandler;
 
+    private ScanScheduler mScanScheduler;
+
+    private ProximityTracker mProximityTracker;
+
+    private boolean mUpdatePending;
+
+    /**
+     * Starts and stops each scan window for the scheduler.
+     */
+    private final ScanScheduler.Scanner mScanner = new ScanScheduler.Scanner() {
+        @Override
+        public boolean startScan() {
+            // With Bluetooth off there is no scanner, so the scheduler retries later.
+            if (!mBluetoothAdapter.isEnabled()) {
+                return false;
+            }
+            // The adapter hands out a new scanner each time Bluetooth comes back on.
+            mBluetoothLeScanner = mBluetoothAdapter.getBluetoothLeScanner();
+            if (mBluetoothLeScanner == null) {
+                return false;
+            }
+
+            // Kick off a new scan.
+            ScanCallback callback = new SampleScanCallback();
+            try {
+                mBluetoothLeScanner.startScan(buildScanFilters(), buildScanSettings(), callback);
+            } catch (IllegalStateException e) {
+                // Bluetooth was turned off since the check above.
+                Log.w(TAG, "Scan did not start", e);
+                return false;
+            }
+            mScanCallback = callback;
+            return true;
+        }
+
+        @Override
+        public void stopScan() {
+            // Stop the scan, wipe the callback. Turning Bluetooth off has stopped it already.
+            if (mScanCallback != null && mBluetoothAdapter.isEnabled()) {
+                try {
+                    mBluetoothLeScanner.stopScan(mScanCallback);
+                } catch (IllegalStateException e) {
+                    Log.w(TAG, "Scan already stopped", e);
+                }
+            }
+            mScanCallback = null;
+
+            // Even if no new results, update 'last seen' times. This also shows any pending ones.
+            mHandler.removeCallbacks(mUpdateRunnable);
+            mUpdatePending = false;
+            mAdapter.notifyDataSetChanged();
+        }
+    };
+
+    /**
+     * Moves the scheduler on when its current window or idle period is over.
+     */
+    private final Runnable mSchedulerRunnable = new Runnable() {
+        @Override
+        public void run() {
+            scheduleScanning(mScanScheduler.onTimer(SystemClock.elapsedRealtime()));
+        }
+    };
+
+    /**
+     * Shows the results collected since it last ran.
+     */
+    private final Runnable mUpdateRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mUpdatePending = false;
+            if (getView() != null) {
+                mAdapter.applyChanges(getListView());
+            }
+        }
+    };
+
+    /**
+     * Shows devices coming near and going away.
+     */
+    private final ProximityFilter.Listener mProximityListener = new ProximityFilter.Listener() {
+        @Override
+        public void onEnter(String address, float distance) {
+            Log.d(TAG, address + " is near, about " + distance + " m");
+            if (mAdapter.setProximity(address, distance)) {
+                scheduleUpdate();
+            }
+        }
+
+        @Override
+        public void onExit(String address) {
+            Log.d(TAG, address + " is no longer near");
+            if (mAdapter.setProximity(address, null)) {
+                scheduleUpdate();
+            }
+        }
+    };
+
     /**
      * Must be called after object creation by MainActivity.
      *
@@ -85,6 +200,9 @@ public class ScannerFragment extends ListFragment {
         mAdapter = new ScanResultAdapter(getActivity().getApplicationContext(),
                 LayoutInflater.from(getActivity()));
         mHandler = new Handler();
+        mScanScheduler = new ScanScheduler(mScanner, SCAN_PERIOD, IDLE_PERIOD, MAX_IDLE_PERIOD);
+        mProximityTracker = new ProximityTracker(mProximityListener);
+        mProximityTracker.start();
 
     }
 
@@ -113,6 +231,13 @@ public class ScannerFragment extends ListFragment {
 
     }
 
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        stopScanning();
+        mProximityTracker.stop();
+    }
+
     @Override
     public void onCreateOptionsMenu(Menu menu, MenuInflater inflater) {
         super.onCreateOptionsMenu(menu, inflater);
@@ -132,30 +257,21 @@ public class ScannerFragment extends ListFragment {
     }
 
     /**
-     * Start scanning for BLE Advertisements (& set it up to stop after a set period of time).
+     * Start scanning for BLE Advertisements in windows (& keep it up until stopped). If that is
+     * already happening, scan now rather than waiting for the next window.
      */
     public void startScanning() {
-        if (mScanCallback == null) {
+        long now = SystemClock.elapsedRealtime();
+        mHandler.removeCallbacks(mSchedulerRunnable);
+        if (!mScanScheduler.isRunning()) {
             Log.d(TAG, "Starting Scanning");
-
-            // Will stop the scanning after a set time.
-            mHandler.postDelayed(new Runnable() {
-                @Override
-                public void run() {
-                    stopScanning();
-                }
-            }, SCAN_PERIOD);
-
-            // Kick off a new scan.
-            mScanCallback = new SampleScanCallback();
-            mBluetoothLeScanner.startScan(buildScanFilters(), buildScanSettings(), mScanCallback);
-
-            String toastText = getString(R.string.scan_start_toast) + " "
-                    + TimeUnit.SECONDS.convert(SCAN_PERIOD, TimeUnit.MILLISECONDS) + " "
-                    + getString(R.string.seconds);
-            Toast.makeText(getActivity(), toastText, Toast.LENGTH_LONG).show();
-        } else {
+            scheduleScanning(mScanScheduler.start(now));
+            Toast.makeText(getActivity(), R.string.scan_start_toast, Toast.LENGTH_LONG).show();
+        } else if (mScanScheduler.isScanning()) {
+            scheduleScanning(mScanScheduler.onTimer(now));
             Toast.makeText(getActivity(), R.string.already_scanning, Toast.LENGTH_SHORT).show();
+        } else {
+            scheduleScanning(mScanScheduler.requestBurst(now));
         }
     }
 
@@ -164,13 +280,27 @@ public class ScannerFragment extends ListFragment {
      */
     public void stopScanning() {
         Log.d(TAG, "Stopping Scanning");
+        mHandler.removeCallbacks(mSchedulerRunnable);
+        mScanScheduler.stop(SystemClock.elapsedRealtime());
+    }
 
-        // Stop the scan, wipe the callback.
-        mBluetoothLeScanner.stopScan(mScanCallback);
-        mScanCallback = null;
+    /**
+     * Call the scheduler back after the given delay, unless it is stopped (-1).
+     */
+    private void scheduleScanning(long delay) {
+        if (delay >= 0) {
+            mHandler.postDelayed(mSchedulerRunnable, delay);
+        }
+    }
 
-        // Even if no new results, update 'last seen' times.
-        mAdapter.notifyDataSetChanged();
+    /**
+     * Schedule the adapter's changes to be shown, unless that is already scheduled.
+     */
+    private void scheduleUpdate() {
+        if (!mUpdatePending) {
+            mUpdatePending = true;
+            mHandler.postDelayed(mUpdateRunnable, UPDATE_INTERVAL);
+        }
     }
 
     /**
@@ -184,15 +314,26 @@ public class ScannerFragment extends ListFragment {
         builder.setServiceUuid(Constants.Service_UUID);
         scanFilters.add(builder.build());
 
+        // Status advertisements carry service data instead, starting with the schema id
+        ScanFilter.Builder statusBuilder = new ScanFilter.Builder();
+        statusBuilder.setServiceData(Constants.Service_UUID,
+                new byte[] {(byte) Constants.STATUS_SCHEMA.getId()});
+        scanFilters.add(statusBuilder.build());
+
         return scanFilters;
     }
 
     /**
-     * Return a {@link ScanSettings} object set to use low power (to preserve battery life).
+     * Return a {@link ScanSettings} object set to use low power (to preserve battery life), and to
+     * also report extended advertisements where they are supported.
      */
     private ScanSettings buildScanSettings() {
         ScanSettings.Builder builder = new ScanSettings.Builder();
         builder.setScanMode(ScanSettings.SCAN_MODE_LOW_POWER);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O
+                && mBluetoothAdapter.isLeExtendedAdvertisingSupported()) {
+            builder.setLegacy(false);
+        }
         return builder.build();
     }
 
@@ -205,18 +346,22 @@ public class ScannerFragment extends ListFragment {
         public void onBatchScanResults(List<ScanResult> results) {
             super.onBatchScanResults(results);
 
+            boolean changed = false;
             for (ScanResult result : results) {
-                mAdapter.add(result);
+                changed |= add(result);
+            }
+            if (changed) {
+                scheduleUpdate();
             }
-            mAdapter.notifyDataSetChanged();
         }
 
         @Override
         public void onScanResult(int callbackType, ScanResult result) {
             super.onScanResult(callbackType, result);
 
-            mAdapter.add(result);
-            mAdapter.notifyDataSetChanged();
+            if (add(result)) {
+                scheduleUpdate();
+            }
         }
 
         @Override
@@ -225,5 +370,23 @@ public class ScannerFragment extends ListFragment {
             Toast.makeText(getActivity(), "Scan failed with error: " + errorCode, Toast.LENGTH_LONG)
                     .show();
         }
+
+        /**
+         * Add a result to the adapter, telling the scheduler if it is from a new device. The
+         * proximity tracker gets every result, including those the adapter drops.
+         *
+         * @return true if the adapter changed.
+         */
+        private boolean add(ScanResult result) {
+            mProximityTracker.onScanResult(result);
+            int count = mAdapter.getCount();
+            if (!mAdapter.add(result)) {
+                return false;
+            }
+            if (mAdapter.getCount() > count) {
+                mScanScheduler.onNewDevice();
+            }
+            return true;
+        }
     }
 }
@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PayloadCodecTest {
+
+    @Test
+    public void roundTripsUnsignedFields() {
+        final PayloadSchema schema = new PayloadSchema.Builder(1)
+                .addUnsigned("flag", 1)
+                .addUnsigned("percent", 7)
+                .addUnsigned("counter", 63)
+                .build();
+
+        assertRoundTrip(schema, 0, 0, 0);
+        assertRoundTrip(schema, 1, 100, Long.MAX_VALUE);
+        assertRoundTrip(schema, 1, 127, 1);
+    }
+
+    @Test
+    public void roundTripsSignedFields() {
+        final PayloadSchema schema = new PayloadSchema.Builder(2)
+                .addSigned("tiny", 2)
+                .addSigned("temperature", 12)
+                .addSigned("wide", 64)
+                .build();
+
+        assertRoundTrip(schema, -2, -2048, Long.MIN_VALUE);
+        assertRoundTrip(schema, 1, 2047, Long.MAX_VALUE);
+        assertRoundTrip(schema, -1, -1, -1);
+        assertRoundTrip(schema, 0, 0, 0);
+    }
+
+    @Test
+    public void roundTripsVarintsInAsFewBytesAsTheyNeed() {
+        final PayloadSchema schema = new PayloadSchema.Builder(3).addVarint("n").build();
+        final PayloadCodec codec = new PayloadCodec(schema);
+
+        // The id, 8 bits per 7 bits of value, padding and the CRC
+        assertEquals(3, codec.encode(new long[] {0}).length);
+        assertEquals(3, codec.encode(new long[] {127}).length);
+        assertEquals(4, codec.encode(new long[] {128}).length);
+        assertEquals(11, codec.encode(new long[] {Long.MAX_VALUE}).length);
+        assertRoundTrip(schema, 0);
+        assertRoundTrip(schema, 128);
+        assertRoundTrip(schema, Long.MAX_VALUE);
+    }
+
+    @Test
+    public void roundTripsDeltasBetweenExtremes() {
+        final PayloadSchema schema = new PayloadSchema.Builder(4)
+                .addSigned("first", 64)
+                .addDelta("second")
+                .addDelta("third")
+                .build();
+
+        assertRoundTrip(schema, 20, 21, 19);
+        assertRoundTrip(schema, Long.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE);
+        assertRoundTrip(schema, Long.MAX_VALUE, Long.MIN_VALUE, 0);
+        assertRoundTrip(schema, 0, -1, Long.MAX_VALUE);
+    }
+
+    @Test
+    public void packsFieldsAtBitGranularity() {
+        final PayloadSchema schema = new PayloadSchema.Builder(0x5a)
+                .addUnsigned("flag", 1)
+                .addUnsigned("percent", 7)
+                .addUnsigned("level", 3)
+                .build();
+
+        final byte[] payload = new PayloadCodec(schema).encode(new long[] {1, 3, 5});
+
+        // 11 bits of fields take two bytes, the last five bits padding
+        assertEquals(4, payload.length);
+        assertEquals(0x5a, payload[0] & 0xff);
+        assertEquals(0x83, payload[1] & 0xff);
+        assertEquals(0xa0, payload[2] & 0xff);
+        assertEquals(schema.getMaxLength(), payload.length);
+    }
+
+    @Test
+    public void encodesAtAnOffset() {
+        final PayloadSchema schema = new PayloadSchema.Builder(5)
+                .addUnsigned("a", 8).addVarint("b").build();
+        final PayloadCodec codec = new PayloadCodec(schema);
+        final byte[] buffer = new byte[3 + schema.getMaxLength()];
+        Arrays.fill(buffer, (byte) 0xff);
+
+        final int length = codec.encode(new long[] {200, 300}, buffer, 3);
+
+        final long[] values = new long[2];
+        assertTrue(codec.decode(buffer, 3, length, values));
+        assertEquals(200, values[0]);
+        assertEquals(300, values[1]);
+        assertEquals((byte) 0xff, buffer[2]);
+    }
+
+    @Test
+    public void refusesValuesThatDoNotFit() {
+        final PayloadSchema schema = new PayloadSchema.Builder(6)
+                .addUnsigned("u", 7)
+                .addSigned("s", 8)
+                .addVarint("v")
+                .build();
+        final PayloadCodec codec = new PayloadCodec(schema);
+
+        assertRefused(codec, 128, 0, 0);
+        assertRefused(codec, -1, 0, 0);
+        assertRefused(codec, 0, 128, 0);
+        assertRefused(codec, 0, -129, 0);
+        assertRefused(codec, 0, 0, -1);
+        assertRefused(codec, 0, 0);
+    }
+
+    @Test
+    public void rejectsEverySingleBitError() {
+        final PayloadSchema schema = new PayloadSchema.Builder(7)
+                .addUnsigned("a", 12).addSigned("b", 16).addVarint("c").build();
+        final PayloadCodec codec = new PayloadCodec(schema);
+        final byte[] payload = codec.encode(new long[] {4000, -12345, 99999});
+        final long[] values = new long[3];
+
+        for (int bit = 0; bit < payload.length * 8; bit++) {
+            final byte[] corrupt = payload.clone();
+            corrupt[bit / 8] ^= (byte) (0x80 >>> (bit % 8));
+            assertFalse("Bit " + bit, codec.decode(corrupt, 0, corrupt.length, values));
+        }
+        assertTrue(codec.decode(payload, 0, payload.length, values));
+    }
+
+    @Test
+    public void rejectsAnotherSchemaId() {
+        final PayloadSchema ours = new PayloadSchema.Builder(8).addUnsigned("a", 8).build();
+        final PayloadSchema theirs = new PayloadSchema.Builder(9).addUnsigned("a", 8).build();
+        final byte[] payload = new PayloadCodec(theirs).encode(new long[] {42});
+
+        assertFalse(new PayloadCodec(ours).decode(payload, 0, payload.length, new long[1]));
+    }
+
+    @Test
+    public void rejectsTruncatedPayloads() {
+        final PayloadSchema schema = new PayloadSchema.Builder(10)
+                .addUnsigned("a", 16).addVarint("b").build();
+        final PayloadCodec codec = new PayloadCodec(schema);
+        final long[] values = new long[2];
+        // The id, 16 bits, then a varint of two bytes
+        final byte[] body = {10, 0x12, 0x34, (byte) 0x81, 0x01};
+
+        assertTrue(codec.decode(withCrc(body), 0, body.length + 1, values));
+        assertEquals(0x1234, values[0]);
+        assertEquals(129, values[1]);
+        // Cut inside the varint, and before it, with a CRC that matches what is left
+        for (int length = 1; length < body.length; length++) {
+            final byte[] truncated = withCrc(Arrays.copyOf(body, length));
+            assertFalse("Length " + length, codec.decode(truncated, 0, length + 1, values));
+        }
+        assertFalse(codec.decode(new byte[] {10}, 0, 1, values));
+        assertFalse(codec.decode(new byte[0], 0, 0, values));
+    }
+
+    @Test
+    public void rejectsOverLongPayloads() {
+        final PayloadSchema schema = new PayloadSchema.Builder(11).addUnsigned("a", 8).build();
+        final PayloadCodec codec = new PayloadCodec(schema);
+        final byte[] body = {11, 42, 0};
+
+        assertFalse(codec.decode(withCrc(body), 0, body.length + 1, new long[1]));
+    }
+
+    @Test
+    public void rejectsNonZeroPadding() {
+        final PayloadSchema schema = new PayloadSchema.Builder(12).addUnsigned("a", 3).build();
+        final PayloadCodec codec = new PayloadCodec(schema);
+        final long[] values = new long[1];
+
+        // 5 in the top three bits, then five bits of padding
+        assertTrue(codec.decode(withCrc(new byte[] {12, (byte) 0xa0}), 0, 3, values));
+        assertEquals(5, values[0]);
+        for (int bit = 3; bit < 8; bit++) {
+            final byte[] payload = withCrc(new byte[] {12, (byte) (0xa0 | 0x80 >>> bit)});
+            assertFalse("Bit " + bit, codec.decode(payload, 0, 3, values));
+        }
+    }
+
+    @Test
+    public void rejectsTooFewValues() {
+        final PayloadSchema schema = new PayloadSchema.Builder(13)
+                .addUnsigned("a", 8).addUnsigned("b", 8).build();
+        final PayloadCodec codec = new PayloadCodec(schema);
+        final byte[] payload = codec.encode(new long[] {1, 2});
+
+        assertFalse(codec.decode(payload, 0, payload.length, new long[1]));
+    }
+
+    private static void assertRoundTrip(PayloadSchema schema, long... values) {
+        final PayloadCodec codec = new PayloadCodec(schema);
+        final byte[] payload = codec.encode(values);
+        assertTrue(payload.length <= schema.getMaxLength());
+
+        final long[] decoded = new long[values.length];
+        assertTrue(codec.decode(payload, 0, payload.length, decoded));
+        for (int i = 0; i < values.length; i++) {
+            assertEquals(schema.getName(i), values[i], decoded[i]);
+        }
+        // Encoding what was decoded gives the same bytes back
+        assertArrayEquals(payload, codec.encode(decoded));
+    }
+
+    private static void assertRefused(PayloadCodec codec, long... values) {
+        try {
+            codec.encode(values);
+            fail("Encoded " + Arrays.toString(values));
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    // Appends the CRC-8 the codec uses, so a payload gets past the CRC check whatever else
+    // is wrong with it
+    private static byte[] withCrc(byte[] body) {
+        int crc = 0;
+        for (byte b : body) {
+            crc ^= b & 0xff;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x80) != 0 ? ((crc << 1) ^ 0x07) & 0xff : (crc << 1) & 0xff;
+            }
+        }
+        final byte[] payload = Arrays.copyOf(body, body.length + 1);
+        payload[body.length] = (byte) crc;
+        return payload;
+    }
+}
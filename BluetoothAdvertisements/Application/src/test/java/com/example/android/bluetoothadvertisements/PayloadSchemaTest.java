@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class PayloadSchemaTest {
+
+    @Test
+    public void describesItsFields() {
+        final PayloadSchema schema = new PayloadSchema.Builder(200)
+                .addUnsigned("a", 3)
+                .addSigned("b", 64)
+                .addVarint("c")
+                .addDelta("d")
+                .addUnsigned("e", 1)
+                .build();
+
+        assertEquals(200, schema.getId());
+        assertEquals(5, schema.getFieldCount());
+        assertEquals(PayloadSchema.TYPE_DELTA, schema.getType(3));
+        assertEquals(64, schema.getBits(1));
+        assertEquals(0, schema.getBits(2));
+        assertEquals(3, schema.indexOf("d"));
+        assertEquals(-1, schema.indexOf("f"));
+        // The id, 3 + 64 + 2 * 80 + 1 bits rounded up, and the CRC
+        assertEquals(1 + 29 + 1, schema.getMaxLength());
+    }
+
+    @Test
+    public void refusesFieldsItCannotEncode() {
+        try {
+            new PayloadSchema.Builder(256);
+            fail("Accepted id 256");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            new PayloadSchema.Builder(0).addUnsigned("a", 64);
+            fail("Accepted a 64 bit unsigned field");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            new PayloadSchema.Builder(0).addSigned("a", 1);
+            fail("Accepted a 1 bit signed field");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            new PayloadSchema.Builder(0).addDelta("a");
+            fail("Accepted a delta with nothing before it");
+        } catch (IllegalStateException expected) {
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothadvertisements;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives a {@link ScanScheduler} through a fake clock, calling it back when it asks to be,
+ * as ScannerFragment's Handler does.
+ */
+public class ScanSchedulerTest {
+
+    private static final long WINDOW = 5000;
+    private static final long MIN_IDLE = 10000;
+    private static final long MAX_IDLE = 60000;
+
+    /**
+     * Records when scans start and stop, and refuses to start while told to.
+     */
+    private class RecordingScanner implements ScanScheduler.Scanner {
+        final List<Long> starts = new ArrayList<>();
+        final List<Long> stops = new ArrayList<>();
+        int refusals;
+        boolean refuse;
+
+        @Override
+        public boolean startScan() {
+            if (refuse) {
+                refusals++;
+                return false;
+            }
+            starts.add(mNow);
+            return true;
+        }
+
+        @Override
+        public void stopScan() {
+            stops.add(mNow);
+        }
+    }
+
+    private RecordingScanner mScanner;
+    private ScanScheduler mScheduler;
+    private long mNow;
+    // When the scheduler asked to be called back, or -1
+    private long mTimerAt;
+
+    @Before
+    public void setUp() {
+        mScanner = new RecordingScanner();
+        mScheduler = new ScanScheduler(mScanner, WINDOW, MIN_IDLE, MAX_IDLE);
+        mNow = 0;
+        mTimerAt = -1;
+    }
+
+    @Test
+    public void doublesTheIdlePeriodWhileNothingNewTurnsUp() {
+        schedule(mScheduler.start(mNow));
+        advanceTo(250000);
+
+        // Idle for 10, 20 and 40 seconds, then at most a minute
+        assertEquals(Arrays.asList(0L, 15000L, 40000L, 85000L, 150000L, 215000L),
+                mScanner.starts);
+        assertEquals(Arrays.asList(5000L, 20000L, 45000L, 90000L, 155000L, 220000L),
+                mScanner.stops);
+    }
+
+    @Test
+    public void scansABurstAfterANewDevice() {
+        schedule(mScheduler.start(mNow));
+        advanceTo(2000);
+        mScheduler.onNewDevice();
+        advanceTo(60000);
+
+        // Two more windows straight after, then the shortest idle period, doubling again
+        assertEquals(Arrays.asList(0L, 5000L, 10000L, 25000L, 50000L), mScanner.starts);
+    }
+
+    @Test
+    public void newDeviceBringsTheIdlePeriodBackDown() {
+        schedule(mScheduler.start(mNow));
+        advanceTo(86000);
+        assertEquals(85000L, last(mScanner.starts));
+        mScheduler.onNewDevice();
+        advanceTo(200000);
+
+        assertEquals(Arrays.asList(0L, 15000L, 40000L, 85000L, 90000L, 95000L, 110000L,
+                135000L, 180000L), mScanner.starts);
+    }
+
+    @Test
+    public void requestedBurstCutsTheIdlePeriodShort() {
+        schedule(mScheduler.start(mNow));
+        advanceTo(7000);
+        assertFalse(mScheduler.isScanning());
+
+        schedule(mScheduler.requestBurst(mNow));
+
+        assertTrue(mScheduler.isScanning());
+        advanceTo(40000);
+        assertEquals(Arrays.asList(0L, 7000L, 12000L, 17000L, 32000L), mScanner.starts);
+    }
+
+    @Test
+    public void startLimitHoldsDuringBackToBackBursts() {
+        schedule(mScheduler.start(mNow));
+        // Something new in every window, and a burst asked for whenever it is idle
+        for (long time = 1000; time < 300000; time += 1000) {
+            advanceTo(time);
+            if (mScheduler.isScanning()) {
+                mScheduler.onNewDevice();
+            } else {
+                schedule(mScheduler.requestBurst(mNow));
+            }
+        }
+
+        final List<Long> starts = mScanner.starts;
+        for (int i = ScanScheduler.MAX_STARTS; i < starts.size(); i++) {
+            assertTrue("Start " + i + " at " + starts.get(i) + " too soon",
+                    starts.get(i) - starts.get(i - ScanScheduler.MAX_STARTS)
+                            >= ScanScheduler.START_LIMIT_WINDOW);
+        }
+        // Five back-to-back windows, then a wait for the first start to leave the limit
+        assertEquals(Arrays.asList(0L, 5000L, 10000L, 15000L, 20000L, 30000L),
+                starts.subList(0, 6));
+        // As many as the limit allows in five minutes, so nothing waited longer than it had to
+        assertEquals(ScanScheduler.MAX_STARTS * 10, starts.size());
+    }
+
+    @Test
+    public void retriesAScanThatCannotStart() {
+        mScanner.refuse = true;
+        schedule(mScheduler.start(mNow));
+        advanceTo(9000);
+        assertEquals(1, mScanner.refusals);
+        assertFalse(mScheduler.isScanning());
+
+        mScanner.refuse = false;
+        advanceTo(11000);
+
+        assertEquals(Arrays.asList(10000L), mScanner.starts);
+        assertTrue(mScheduler.isScanning());
+        // Nothing was stopped that had not started
+        assertTrue(mScanner.stops.isEmpty());
+    }
+
+    @Test
+    public void stopEndsTheWindowInProgress() {
+        schedule(mScheduler.start(mNow));
+        advanceTo(2000);
+
+        mScheduler.stop(mNow);
+
+        assertEquals(Arrays.asList(2000L), mScanner.stops);
+        assertFalse(mScheduler.isRunning());
+        assertEquals(-1, mScheduler.onTimer(WINDOW));
+        assertEquals(-1, mScheduler.requestBurst(WINDOW));
+        assertEquals(1, mScanner.starts.size());
+    }
+
+    // Remembers when the scheduler wants to be called back
+    private void schedule(long delay) {
+        mTimerAt = delay < 0 ? -1 : mNow + delay;
+    }
+
+    // Moves the clock forward, calling the scheduler back on time along the way
+    private void advanceTo(long time) {
+        while (mTimerAt >= 0 && mTimerAt <= time) {
+            mNow = mTimerAt;
+            schedule(mScheduler.onTimer(mNow));
+        }
+        mNow = time;
+    }
+
+    private static long last(List<Long> times) {
+        return times.get(times.size() - 1);
+    }
+}
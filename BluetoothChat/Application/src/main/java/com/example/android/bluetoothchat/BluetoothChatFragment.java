@@ -21,9 +21,13 @@ import android.app.Activity;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.content.Intent;
+import android.database.Cursor;
+import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
+import android.os.ParcelFileDescriptor;
+import android.provider.OpenableColumns;
 import android.view.KeyEvent;
 import android.view.LayoutInflater;
 import android.view.Menu;
@@ -32,10 +36,8 @@ import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
 import android.view.inputmethod.EditorInfo;
-import android.widget.ArrayAdapter;
 import android.widget.Button;
 import android.widget.EditText;
-import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
@@ -43,9 +45,17 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.fragment.app.Fragment;
 import androidx.fragment.app.FragmentActivity;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
 
 import com.example.android.common.logger.Log;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
 /**
  * This fragment controls Bluetooth to communicate with other devices.
  */
@@ -57,9 +67,10 @@ public class BluetoothChatFragment extends Fragment {
     private static final int REQUEST_CONNECT_DEVICE_SECURE = 1;
     private static final int REQUEST_CONNECT_DEVICE_INSECURE = 2;
     private static final int REQUEST_ENABLE_BT = 3;
+    private static final int REQUEST_SEND_FILE = 4;
 
     // Layout Views
-    private ListView mConversationView;
+    private RecyclerView mConversationView;
     private EditText mOutEditText;
     private Button mSendButton;
 
@@ -69,15 +80,21 @@ public class BluetoothChatFragment extends Fragment {
     private String mConnectedDeviceName = null;
 
     /**
-     * Array adapter for the conversation thread
+     * Adapter for the conversation thread
      */
-    private ArrayAdapter<String> mConversationArrayAdapter;
+    private ConversationAdapter mConversationAdapter;
 
     /**
      * String buffer for outgoing messages
      */
     private StringBuffer mOutStringBuffer;
 
+    /**
+     * Sequence number of the last state change shown, see
+     * {@link ConnectionStateMachine.Transition#sequence}
+     */
+    private int mLastStateSequence = 0;
+
     /**
      * Local Bluetooth adapter
      */
@@ -126,6 +143,11 @@ public class BluetoothChatFragment extends Fragment {
         if (mChatService != null) {
             mChatService.stop();
         }
+        // Messages the service sent before it stopped would otherwise reach a closed adapter
+        mHandler.removeCallbacksAndMessages(null);
+        if (mConversationAdapter != null) {
+            mConversationAdapter.close();
+        }
     }
 
     @Override
@@ -163,14 +185,18 @@ public class BluetoothChatFragment extends Fragment {
     private void setupChat() {
         Log.d(TAG, "setupChat()");
 
-        // Initialize the array adapter for the conversation thread
+        // Initialize the adapter for the conversation thread, newest messages at the bottom
         FragmentActivity activity = getActivity();
         if (activity == null) {
             return;
         }
-        mConversationArrayAdapter = new ArrayAdapter<>(activity, R.layout.message);
+        mConversationAdapter = new ConversationAdapter(activity,
+                new File(activity.getCacheDir(), "conversation.log"));
 
-        mConversationView.setAdapter(mConversationArrayAdapter);
+        LinearLayoutManager layoutManager = new LinearLayoutManager(activity);
+        layoutManager.setStackFromEnd(true);
+        mConversationView.setLayoutManager(layoutManager);
+        mConversationView.setAdapter(mConversationAdapter);
 
         // Initialize the compose field with a listener for the return key
         mOutEditText.setOnEditorActionListener(mWriteListener);
@@ -190,6 +216,7 @@ public class BluetoothChatFragment extends Fragment {
 
         // Initialize the BluetoothChatService to perform bluetooth connections
         mChatService = new BluetoothChatService(activity, mHandler);
+        mLastStateSequence = 0;
 
         // Initialize the buffer for outgoing messages
         mOutStringBuffer = new StringBuffer();
@@ -221,9 +248,13 @@ public class BluetoothChatFragment extends Fragment {
 
         // Check that there's actually something to send
         if (message.length() > 0) {
-            // Get the message bytes and tell the BluetoothChatService to write
+            // Get the message bytes and tell the BluetoothChatService to write. This only
+            // queues the message, so it never blocks the UI thread on the socket.
             byte[] send = message.getBytes();
-            mChatService.write(send);
+            if (!mChatService.write(send)) {
+                Toast.makeText(getActivity(), R.string.message_not_sent, Toast.LENGTH_SHORT).show();
+                return;
+            }
 
             // Reset out string buffer to zero and clear the edit text field
             mOutStringBuffer.setLength(0);
@@ -289,10 +320,15 @@ public class BluetoothChatFragment extends Fragment {
             FragmentActivity activity = getActivity();
             switch (msg.what) {
                 case Constants.MESSAGE_STATE_CHANGE:
+                    // State changes can be posted from several threads; skip stale ones
+                    if (msg.arg2 <= mLastStateSequence) {
+                        break;
+                    }
+                    mLastStateSequence = msg.arg2;
                     switch (msg.arg1) {
                         case BluetoothChatService.STATE_CONNECTED:
                             setStatus(getString(R.string.title_connected_to, mConnectedDeviceName));
-                            mConversationArrayAdapter.clear();
+                            mConversationAdapter.clear();
                             break;
                         case BluetoothChatService.STATE_CONNECTING:
                             setStatus(R.string.title_connecting);
@@ -307,13 +343,19 @@ public class BluetoothChatFragment extends Fragment {
                     byte[] writeBuf = (byte[]) msg.obj;
                     // construct a string from the buffer
                     String writeMessage = new String(writeBuf);
-                    mConversationArrayAdapter.add("Me:  " + writeMessage);
+                    mConversationAdapter.add("Me", writeMessage);
                     break;
                 case Constants.MESSAGE_READ:
                     byte[] readBuf = (byte[]) msg.obj;
-                    // construct a string from the valid bytes in the buffer
+                    // construct a string from the valid bytes in the buffer, then give the
+                    // buffer back so the service can reuse it
                     String readMessage = new String(readBuf, 0, msg.arg1);
-                    mConversationArrayAdapter.add(mConnectedDeviceName + ":  " + readMessage);
+                    if (mChatService != null) {
+                        mChatService.releaseBuffer(readBuf);
+                    }
+                    // several devices may be connected, so name the sender of each message
+                    String senderName = msg.getData().getString(Constants.DEVICE_NAME);
+                    mConversationAdapter.add(senderName, readMessage);
                     break;
                 case Constants.MESSAGE_DEVICE_NAME:
                     // save the connected device's name
@@ -323,6 +365,26 @@ public class BluetoothChatFragment extends Fragment {
                                 + mConnectedDeviceName, Toast.LENGTH_SHORT).show();
                     }
                     break;
+                case Constants.MESSAGE_FILE_PROGRESS:
+                    // arg2 is the transfer rate in bytes per second
+                    setStatus(getString(R.string.file_progress,
+                            msg.getData().getString(Constants.FILE_NAME), msg.arg1,
+                            msg.arg2 / 1024));
+                    break;
+                case Constants.MESSAGE_FILE_DONE:
+                    Bundle transfer = msg.getData();
+                    int doneId;
+                    if (msg.arg1 == 0) {
+                        doneId = R.string.file_failed;
+                    } else if (transfer.getBoolean(Constants.FILE_INCOMING)) {
+                        doneId = R.string.file_received;
+                    } else {
+                        doneId = R.string.file_sent;
+                    }
+                    mConversationAdapter.add(null, getString(doneId,
+                            transfer.getString(Constants.FILE_NAME)));
+                    setStatus(getString(R.string.title_connected_to, mConnectedDeviceName));
+                    break;
                 case Constants.MESSAGE_TOAST:
                     if (null != activity) {
                         Toast.makeText(activity, msg.getData().getString(Constants.TOAST),
@@ -362,6 +424,73 @@ public class BluetoothChatFragment extends Fragment {
                         activity.finish();
                     }
                 }
+                break;
+            case REQUEST_SEND_FILE:
+                // When the user has picked a file to send
+                if (resultCode == Activity.RESULT_OK && data != null && data.getData() != null) {
+                    sendFile(data.getData());
+                }
+                break;
+        }
+    }
+
+    /**
+     * Stream a file to the first connected device.
+     *
+     * @param uri A content Uri for the file, as returned by {@link Intent#ACTION_GET_CONTENT}
+     */
+    private void sendFile(Uri uri) {
+        List<String> addresses = mChatService == null
+                ? Collections.<String>emptyList() : mChatService.getConnectedAddresses();
+        FragmentActivity activity = getActivity();
+        if (addresses.isEmpty() || activity == null) {
+            return;
+        }
+
+        // The name shown to the user, which is also what the other device saves it as
+        String name = uri.getLastPathSegment();
+        Cursor cursor = activity.getContentResolver().query(uri,
+                new String[]{OpenableColumns.DISPLAY_NAME}, null, null, null);
+        if (cursor != null) {
+            try {
+                if (cursor.moveToFirst() && !cursor.isNull(0)) {
+                    name = cursor.getString(0);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        // The file is read in chunks at given positions, so it has to be a real file
+        // with a known size rather than a pipe
+        FileInputStream in = null;
+        try {
+            ParcelFileDescriptor pfd = activity.getContentResolver().openFileDescriptor(uri, "r");
+            if (pfd == null) {
+                throw new IOException("No file descriptor for " + uri);
+            }
+            in = new ParcelFileDescriptor.AutoCloseInputStream(pfd);
+            long size = pfd.getStatSize();
+            if (size < 0) {
+                throw new IOException("Unknown size of " + uri);
+            }
+            if (mChatService.sendFile(addresses.get(0), in.getChannel(), name, size)) {
+                // The service closes the file when the transfer ends
+                in = null;
+            } else {
+                Toast.makeText(activity, R.string.file_not_sent, Toast.LENGTH_SHORT).show();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot send " + uri, e);
+            Toast.makeText(activity, R.string.file_not_sent, Toast.LENGTH_SHORT).show();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "close() of " + uri + " failed", e);
+                }
+            }
         }
     }
 
@@ -409,6 +538,29 @@ public class BluetoothChatFragment extends Fragment {
                 ensureDiscoverable();
                 return true;
             }
+            case R.id.benchmark: {
+                // Measure the link to the first connected device
+                List<String> addresses = mChatService == null
+                        ? Collections.<String>emptyList() : mChatService.getConnectedAddresses();
+                if (addresses.isEmpty()) {
+                    Toast.makeText(getActivity(), R.string.not_connected, Toast.LENGTH_SHORT).show();
+                } else if (mChatService.startBenchmark(addresses.get(0))) {
+                    Toast.makeText(getActivity(), R.string.benchmark_started, Toast.LENGTH_SHORT).show();
+                }
+                return true;
+            }
+            case R.id.send_file: {
+                // Pick a file to stream to the first connected device
+                if (mChatService == null || mChatService.getConnectedAddresses().isEmpty()) {
+                    Toast.makeText(getActivity(), R.string.not_connected, Toast.LENGTH_SHORT).show();
+                    return true;
+                }
+                Intent intent = new Intent(Intent.ACTION_GET_CONTENT);
+                intent.addCategory(Intent.CATEGORY_OPENABLE);
+                intent.setType("*/*");
+                startActivityForResult(intent, REQUEST_SEND_FILE);
+                return true;
+            }
         }
         return false;
     }
@@ -27,16 +27,25 @@ import android.os.Message;
 
 import com.example.android.common.logger.Log;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * This class does all the work for setting up and managing Bluetooth
  * connections with other devices. It has a thread that listens for
  * incoming connections, a thread for connecting with a device, and a
- * thread for performing data transmissions when connected.
+ * {@link ConnectedThread} for performing data transmissions with each
+ * connected device.
  */
 public class BluetoothChatService {
     // Debugging
@@ -52,21 +61,57 @@ public class BluetoothChatService {
     private static final UUID MY_UUID_INSECURE =
             UUID.fromString("8ce255c0-200a-11e0-ac64-0800200c9a66");
 
+    // A piconet has at most seven active peripherals
+    public static final int MAX_CONNECTIONS = 7;
+
+    // Receive buffers kept for reuse; larger messages are allocated each time
+    private static final int MAX_POOLED_BUFFER_LENGTH = 64 * 1024;
+    private static final int POOLED_BUFFERS_PER_SIZE = 16;
+
+    // Pings per payload size when benchmarking a real link
+    private static final int BENCHMARK_MESSAGES = 100;
+
     // Member fields
     private final BluetoothAdapter mAdapter;
     private final Handler mHandler;
-    private AcceptThread mSecureAcceptThread;
-    private AcceptThread mInsecureAcceptThread;
-    private ConnectThread mConnectThread;
-    private ConnectedThread mConnectedThread;
-    private int mState;
-    private int mNewState;
+    private final ConnectionTable mConnections;
+    private final BufferPool mReceivePool =
+            new BufferPool(MAX_POOLED_BUFFER_LENGTH, POOLED_BUFFERS_PER_SIZE);
+    private final CompressionStats mCompressionStats = new CompressionStats();
+    private final Reconnector mReconnector =
+            new Reconnector(new ReconnectPolicy(), Clock.SYSTEM);
+    private final ConnectionStateMachine mStateMachine =
+            new ConnectionStateMachine(STATE_NONE, Clock.SYSTEM);
+
+    // Threads are swapped atomically and cancelled after they are swapped out, so no
+    // socket is ever closed while a lock is held
+    private final AtomicReference<AcceptThread> mSecureAcceptThread =
+            new AtomicReference<>();
+    private final AtomicReference<AcceptThread> mInsecureAcceptThread =
+            new AtomicReference<>();
+    private final AtomicReference<ConnectThread> mConnectThread = new AtomicReference<>();
+
+    // The thread last started by connect(), whose device is reconnected if lost
+    private volatile ConnectThread mLastConnect;
+    private volatile boolean mAutoReconnect = true;
+    // Set before the reconnected device's reader starts, so its first frame is never missed
+    private volatile String mReconnectedAddress;
+
+    // The benchmark in progress, if any
+    private final AtomicReference<TransportBenchmark> mBenchmark = new AtomicReference<>();
+    private volatile ConnectedThread mBenchmarkConnection;
+
+    // Files being sent, at most one per device address, and files being received
+    private final ConcurrentHashMap<String, FileSender> mFileSenders =
+            new ConcurrentHashMap<>();
+    private final FileReceiver mFileReceiver;
+    private final Random mRandom = new Random();
 
     // Constants that indicate the current connection state
     public static final int STATE_NONE = 0;       // we're doing nothing
     public static final int STATE_LISTEN = 1;     // now listening for incoming connections
     public static final int STATE_CONNECTING = 2; // now initiating an outgoing connection
-    public static final int STATE_CONNECTED = 3;  // now connected to a remote device
+    public static final int STATE_CONNECTED = 3;  // now connected to at least one remote device
 
     /**
      * Constructor. Prepares a new BluetoothChat session.
@@ -76,235 +121,684 @@ public class BluetoothChatService {
      */
     public BluetoothChatService(Context context, Handler handler) {
         mAdapter = BluetoothAdapter.getDefaultAdapter();
-        mState = STATE_NONE;
-        mNewState = mState;
         mHandler = handler;
+        mConnections = new ConnectionTable(MAX_CONNECTIONS, mConnectionListener);
+        mConnections.setCompression(mCompressionStats);
+        File directory = context.getExternalFilesDir(null);
+        if (directory == null) {
+            directory = context.getFilesDir();
+        }
+        mFileReceiver = new FileReceiver(new File(directory, "received"), mTransferListener);
+        mStateMachine.addListener(new ConnectionStateMachine.Listener() {
+            @Override
+            public void onStateChanged(ConnectionStateMachine.Transition transition) {
+                Log.d(TAG, "state " + transition);
+
+                // Give the new state to the Handler so the UI Activity can update. The
+                // sequence number lets it drop changes that were posted out of order.
+                mHandler.obtainMessage(Constants.MESSAGE_STATE_CHANGE, transition.to,
+                        (int) transition.sequence).sendToTarget();
+            }
+        });
     }
 
     /**
      * Update UI title according to the current state of the chat connection
      */
-    private synchronized void updateUserInterfaceTitle() {
-        mState = getState();
-        Log.d(TAG, "updateUserInterfaceTitle() " + mNewState + " -> " + mState);
-        mNewState = mState;
+    private void updateUserInterfaceTitle() {
+        // The parts are read without a lock, so check again after moving in case one of
+        // them changed meanwhile
+        int state;
+        do {
+            state = computeState();
+            mStateMachine.moveTo(state);
+        } while (state != computeState());
+    }
 
-        // Give the new state to the Handler so the UI Activity can update
-        mHandler.obtainMessage(Constants.MESSAGE_STATE_CHANGE, mNewState, -1).sendToTarget();
+    /**
+     * Return the state that the running threads and open connections amount to.
+     */
+    private int computeState() {
+        if (mConnections.size() > 0) {
+            return STATE_CONNECTED;
+        } else if (mConnectThread.get() != null || mReconnector.isRunning()) {
+            return STATE_CONNECTING;
+        } else if (mSecureAcceptThread.get() != null || mInsecureAcceptThread.get() != null) {
+            return STATE_LISTEN;
+        }
+        return STATE_NONE;
     }
 
     /**
      * Return the current connection state.
      */
-    public synchronized int getState() {
-        return mState;
+    public int getState() {
+        return mStateMachine.getState();
+    }
+
+    /**
+     * Register for state changes, called on the thread that caused the change.
+     */
+    public void addStateListener(ConnectionStateMachine.Listener listener) {
+        mStateMachine.addListener(listener);
+    }
+
+    public void removeStateListener(ConnectionStateMachine.Listener listener) {
+        mStateMachine.removeListener(listener);
+    }
+
+    /**
+     * Return the latest state transitions with how long each state lasted, oldest first.
+     */
+    public List<ConnectionStateMachine.Transition> getStateHistory() {
+        return mStateMachine.getHistory();
+    }
+
+    /**
+     * Give back the buffer of a {@link Constants#MESSAGE_READ} message once its content
+     * has been consumed, so it can be reused for a later message.
+     *
+     * @param buffer The message's {@code obj}
+     */
+    public void releaseBuffer(byte[] buffer) {
+        mReceivePool.release(buffer);
+    }
+
+    /**
+     * Return the pool that MESSAGE_READ buffers come from, for its hit and miss counters.
+     */
+    public BufferPool getReceiveBufferPool() {
+        return mReceivePool;
+    }
+
+    /**
+     * Set whether text messages are compressed for devices that support it. Takes effect
+     * on the next connection. On by default.
+     */
+    public void setCompressionEnabled(boolean enabled) {
+        mConnections.setCompression(enabled ? mCompressionStats : null);
+    }
+
+    /**
+     * Return the bytes saved and time spent by compression, for every connection.
+     */
+    public CompressionStats getCompressionStats() {
+        return mCompressionStats;
+    }
+
+    /**
+     * Return the Reconnector, for its reconnect latency figures.
+     */
+    public Reconnector getReconnector() {
+        return mReconnector;
+    }
+
+    /**
+     * Set whether a lost or failed connection to the device last passed to
+     * {@link #connect(BluetoothDevice, boolean)} is retried automatically.
+     */
+    public void setAutoReconnect(boolean autoReconnect) {
+        mAutoReconnect = autoReconnect;
+        if (!autoReconnect) {
+            mReconnector.cancel();
+        }
+    }
+
+    /**
+     * Return the addresses of all connected devices.
+     */
+    public List<String> getConnectedAddresses() {
+        return mConnections.getAddresses();
     }
 
     /**
      * Start the chat service. Specifically start AcceptThread to begin a
      * session in listening (server) mode. Called by the Activity onResume()
      */
-    public synchronized void start() {
+    public void start() {
         Log.d(TAG, "start");
 
         // Cancel any thread attempting to make a connection
-        if (mConnectThread != null) {
-            mConnectThread.cancel();
-            mConnectThread = null;
-        }
+        cancel(mConnectThread.getAndSet(null));
+        mReconnector.cancel();
 
-        // Cancel any thread currently running a connection
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
-        }
+        // Close every connection
+        mConnections.closeAll();
 
-        // Start the thread to listen on a BluetoothServerSocket
-        if (mSecureAcceptThread == null) {
-            mSecureAcceptThread = new AcceptThread(true);
-            mSecureAcceptThread.start();
-        }
-        if (mInsecureAcceptThread == null) {
-            mInsecureAcceptThread = new AcceptThread(false);
-            mInsecureAcceptThread.start();
-        }
+        // Start the threads to listen on a BluetoothServerSocket
+        startAcceptThreads();
         // Update UI title
         updateUserInterfaceTitle();
     }
 
+    /**
+     * Start the AcceptThreads unless they are already running. They keep
+     * running while devices are connected, so more devices can join.
+     */
+    private void startAcceptThreads() {
+        startAcceptThread(mSecureAcceptThread, true);
+        startAcceptThread(mInsecureAcceptThread, false);
+    }
+
+    private void startAcceptThread(AtomicReference<AcceptThread> slot, boolean secure) {
+        if (slot.get() != null) {
+            return;
+        }
+        AcceptThread thread = new AcceptThread(slot, secure);
+        if (slot.compareAndSet(null, thread)) {
+            thread.start();
+        } else {
+            // Another caller started one first
+            thread.cancel();
+        }
+    }
+
     /**
      * Start the ConnectThread to initiate a connection to a remote device.
+     * Devices that are already connected stay connected.
      *
      * @param device The BluetoothDevice to connect
      * @param secure Socket Security type - Secure (true) , Insecure (false)
      */
-    public synchronized void connect(BluetoothDevice device, boolean secure) {
+    public void connect(BluetoothDevice device, boolean secure) {
         Log.d(TAG, "connect to: " + device);
 
-        // Cancel any thread attempting to make a connection
-        if (mState == STATE_CONNECTING) {
-            if (mConnectThread != null) {
-                mConnectThread.cancel();
-                mConnectThread = null;
-            }
-        }
-
-        // Cancel any thread currently running a connection
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
-        }
+        // Start the thread to connect with the given device, cancelling any thread
+        // attempting to make a connection
+        ConnectThread thread = new ConnectThread(device, secure);
+        mReconnector.cancel();
+        cancel(mConnectThread.getAndSet(thread));
 
-        // Start the thread to connect with the given device
-        mConnectThread = new ConnectThread(device, secure);
-        mConnectThread.start();
+        // Remember the device, to reconnect if the connection drops
+        mLastConnect = thread;
+        thread.start();
         // Update UI title
         updateUserInterfaceTitle();
     }
 
     /**
-     * Start the ConnectedThread to begin managing a Bluetooth connection
+     * Start a ConnectedThread to begin managing a Bluetooth connection
      *
      * @param socket The BluetoothSocket on which the connection was made
      * @param device The BluetoothDevice that has been connected
      */
-    public synchronized void connected(BluetoothSocket socket, BluetoothDevice
+    public void connected(BluetoothSocket socket, BluetoothDevice
             device, final String socketType) {
         Log.d(TAG, "connected, Socket Type:" + socketType);
+        connected(new BluetoothPeerSocket(socket, device));
+    }
 
-        // Cancel the thread that completed the connection
-        if (mConnectThread != null) {
-            mConnectThread.cancel();
-            mConnectThread = null;
+    /**
+     * Start a ConnectedThread for a connected socket and tell the UI Activity.
+     *
+     * @return the new connection, or null if it could not be added
+     */
+    private ConnectedThread connected(PeerSocket socket) {
+        // Identifies the device to the UI Activity. The same Bundle is attached to every
+        // message read from this device, so receiving does not allocate one each time.
+        Bundle bundle = new Bundle();
+        bundle.putString(Constants.DEVICE_NAME, socket.getName());
+        bundle.putString(Constants.DEVICE_ADDRESS, socket.getAddress());
+
+        // Start the thread to manage the connection and perform transmissions. A
+        // previous connection to the same device is replaced.
+        ConnectedThread connection;
+        try {
+            connection = mConnections.add(socket, bundle);
+        } catch (IOException e) {
+            Log.e(TAG, "temp sockets not created", e);
+            try {
+                socket.close();
+            } catch (IOException e2) {
+                Log.e(TAG, "unable to close() socket", e2);
+            }
+            return null;
         }
-
-        // Cancel any thread currently running a connection
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
+        if (connection == null) {
+            return null;
         }
 
-        // Cancel the accept thread because we only want to connect to one device
-        if (mSecureAcceptThread != null) {
-            mSecureAcceptThread.cancel();
-            mSecureAcceptThread = null;
-        }
-        if (mInsecureAcceptThread != null) {
-            mInsecureAcceptThread.cancel();
-            mInsecureAcceptThread = null;
+        // Pick up an interrupted file transfer to this device where it stopped
+        FileSender sender = mFileSenders.get(socket.getAddress());
+        if (sender != null) {
+            sender.attach(connection);
         }
 
-        // Start the thread to manage the connection and perform transmissions
-        mConnectedThread = new ConnectedThread(socket, socketType);
-        mConnectedThread.start();
-
         // Send the name of the connected device back to the UI Activity
         Message msg = mHandler.obtainMessage(Constants.MESSAGE_DEVICE_NAME);
-        Bundle bundle = new Bundle();
-        bundle.putString(Constants.DEVICE_NAME, device.getName());
         msg.setData(bundle);
         mHandler.sendMessage(msg);
         // Update UI title
         updateUserInterfaceTitle();
+        return connection;
+    }
+
+    /**
+     * Close the connection to one device.
+     *
+     * @param address The address of the device
+     */
+    public void disconnect(String address) {
+        if (mConnections.remove(address)) {
+            updateUserInterfaceTitle();
+        }
     }
 
     /**
      * Stop all threads
      */
-    public synchronized void stop() {
-        Log.d(TAG, "stop");
+    public void stop() {
+        Log.d(TAG, "stop, receive buffers: " + mReceivePool + ", compression: "
+                + mCompressionStats);
 
-        if (mConnectThread != null) {
-            mConnectThread.cancel();
-            mConnectThread = null;
-        }
+        cancel(mConnectThread.getAndSet(null));
+        mReconnector.cancel();
 
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
-        }
+        mConnections.closeAll();
 
-        if (mSecureAcceptThread != null) {
-            mSecureAcceptThread.cancel();
-            mSecureAcceptThread = null;
+        for (FileSender sender : mFileSenders.values()) {
+            sender.cancel();
         }
+        mFileReceiver.closeAll();
 
-        if (mInsecureAcceptThread != null) {
-            mInsecureAcceptThread.cancel();
-            mInsecureAcceptThread = null;
+        AcceptThread acceptThread = mSecureAcceptThread.getAndSet(null);
+        if (acceptThread != null) {
+            acceptThread.cancel();
+        }
+        acceptThread = mInsecureAcceptThread.getAndSet(null);
+        if (acceptThread != null) {
+            acceptThread.cancel();
         }
-        mState = STATE_NONE;
         // Update UI title
         updateUserInterfaceTitle();
     }
 
+    private static void cancel(ConnectThread thread) {
+        if (thread != null) {
+            thread.cancel();
+        }
+    }
+
     /**
-     * Write to the ConnectedThread in an unsynchronized manner
+     * Set how much outgoing data may be queued per device and what to do with writes
+     * beyond that. Takes effect on the next connection.
+     *
+     * @param highWaterMark Most payload bytes waiting to be sent at once
+     * @param policy        One of {@link WriteQueue#POLICY_BLOCK},
+     *                      {@link WriteQueue#POLICY_DROP} or {@link WriteQueue#POLICY_FAIL}
+     */
+    public void setWriteQueueLimits(int highWaterMark, int policy) {
+        mConnections.setWriteQueueLimits(highWaterMark, policy);
+    }
+
+    /**
+     * Send a message to every connected device.
      *
      * @param out The bytes to write
-     * @see ConnectedThread#write(byte[])
+     * @return true if at least one device queued the message
+     */
+    public boolean write(byte[] out) {
+        return write(out, null);
+    }
+
+    /**
+     * Send a message to every connected device. The call returns without waiting for
+     * the sockets; the callback runs once all devices have sent or dropped the message.
+     *
+     * @param out      The bytes to write
+     * @param callback Notified once the message was written or dropped, may be null
+     * @return true if at least one device queued the message
+     */
+    public boolean write(byte[] out, WriteQueue.Callback callback) {
+        return mConnections.broadcast(FrameCodec.TYPE_TEXT, out,
+                new WriteEchoCallback(callback)) > 0;
+    }
+
+    /**
+     * Send a message to one connected device.
+     *
+     * @param address  The address of the device
+     * @param out      The bytes to write
+     * @param callback Notified once the message was written or dropped, may be null
+     * @return true if the message was queued
+     */
+    public boolean write(String address, byte[] out, WriteQueue.Callback callback) {
+        return mConnections.write(address, FrameCodec.TYPE_TEXT, out,
+                new WriteEchoCallback(callback));
+    }
+
+    /**
+     * Measure the link to a connected device with a {@link TransportBenchmark} on a
+     * background thread. The other device answers automatically. Results are logged and
+     * a toast is shown when done.
+     *
+     * @param address The address of the device
+     * @return false if the device is not connected or a benchmark is already running
      */
-    public void write(byte[] out) {
-        // Create temporary object
-        ConnectedThread r;
-        // Synchronize a copy of the ConnectedThread
-        synchronized (this) {
-            if (mState != STATE_CONNECTED) return;
-            r = mConnectedThread;
+    public boolean startBenchmark(String address) {
+        final ConnectedThread connection = mConnections.get(address);
+        final TransportBenchmark benchmark = new TransportBenchmark();
+        if (connection == null || !mBenchmark.compareAndSet(null, benchmark)) {
+            return false;
         }
-        // Perform the write unsynchronized
-        r.write(out);
+        mBenchmarkConnection = connection;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Log.i(TAG, "benchmark of " + connection.getAddress() + " started");
+                try {
+                    List<TransportBenchmark.Result> results = benchmark.run(connection,
+                            TransportBenchmark.DEFAULT_PAYLOAD_SIZES, BENCHMARK_MESSAGES);
+                    for (TransportBenchmark.Result result : results) {
+                        Log.i(TAG, "benchmark " + result);
+                    }
+                    sendToast("Benchmark finished, see the log for results");
+                } catch (IOException | InterruptedException e) {
+                    Log.e(TAG, "benchmark failed", e);
+                    sendToast("Benchmark failed");
+                } finally {
+                    mBenchmarkConnection = null;
+                    mBenchmark.set(null);
+                }
+            }
+        }, "BenchmarkThread").start();
+        return true;
     }
 
     /**
-     * Indicate that the connection attempt failed and notify the UI Activity.
+     * Stream a file to a connected device. Progress and the outcome are sent to the UI
+     * Activity as {@link Constants#MESSAGE_FILE_PROGRESS} and
+     * {@link Constants#MESSAGE_FILE_DONE}. If the connection drops and comes back, the
+     * transfer resumes from the last byte the other device saved.
+     *
+     * @param address The address of the device
+     * @param channel The file to send, read from position 0. It is closed when the
+     *                transfer ends.
+     * @param name    The name the other device should save the file under
+     * @param size    Number of bytes to send
+     * @return false if the device is not connected or a file is already being sent to it
      */
-    private void connectionFailed() {
-        // Send a failure message back to the Activity
+    public boolean sendFile(String address, FileChannel channel, String name, long size) {
+        ConnectedThread connection = mConnections.get(address);
+        if (connection == null) {
+            return false;
+        }
+        FileSender sender = new FileSender(mRandom.nextLong(), name, size, channel,
+                mTransferListener);
+        if (mFileSenders.putIfAbsent(address, sender) != null) {
+            return false;
+        }
+        sender.start();
+        sender.attach(connection);
+        return true;
+    }
+
+    /**
+     * Shares each sent message back to the UI Activity before notifying the caller.
+     */
+    private class WriteEchoCallback implements WriteQueue.Callback {
+        private final WriteQueue.Callback mCallback;
+
+        WriteEchoCallback(WriteQueue.Callback callback) {
+            mCallback = callback;
+        }
+
+        @Override
+        public void onWriteComplete(byte[] payload, boolean success) {
+            if (success) {
+                // Share the sent message back to the UI Activity
+                mHandler.obtainMessage(Constants.MESSAGE_WRITE, -1, -1, payload)
+                        .sendToTarget();
+            }
+            if (mCallback != null) {
+                mCallback.onWriteComplete(payload, success);
+            }
+        }
+    }
+
+    /**
+     * Receives incoming messages and connection loss from every ConnectedThread.
+     */
+    private final ConnectedThread.Listener mConnectionListener = new ConnectedThread.Listener() {
+        @Override
+        public void onFirstFrame(ConnectedThread connection) {
+            // Usually the peer's HELLO, which never reaches onFrameReceived
+            String reconnected = mReconnectedAddress;
+            if (reconnected != null && reconnected.equals(connection.getAddress())) {
+                mReconnectedAddress = null;
+                mReconnector.onFirstByte();
+            }
+        }
+
+        @Override
+        public void onFrameReceived(ConnectedThread connection, int type, byte[] payload,
+                                    int length) {
+            switch (type) {
+                case FrameCodec.TYPE_TEXT:
+                    break;
+                case FrameCodec.TYPE_PING:
+                    // Answer with the same payload, for the peer's TransportBenchmark
+                    connection.write(FrameCodec.TYPE_PONG, Arrays.copyOf(payload, length), null);
+                    return;
+                case FrameCodec.TYPE_PONG:
+                    TransportBenchmark benchmark = mBenchmark.get();
+                    if (benchmark != null && connection == mBenchmarkConnection) {
+                        benchmark.onPong(payload, length);
+                    }
+                    return;
+                case FrameCodec.TYPE_FILE_OFFER:
+                    mFileReceiver.onOffer(connection, payload, length);
+                    return;
+                case FrameCodec.TYPE_FILE_CHUNK:
+                    mFileReceiver.onChunk(connection, payload, length);
+                    return;
+                case FrameCodec.TYPE_FILE_ACK:
+                    FileSender sender = mFileSenders.get(connection.getAddress());
+                    if (sender != null && length == FileTransfer.HEADER_LENGTH
+                            && FileTransfer.getLong(payload, 0) == sender.getId()) {
+                        sender.onAck(connection, FileTransfer.getLong(payload, 8));
+                    }
+                    return;
+                default:
+                    Log.w(TAG, "Ignoring frame of unknown type " + type);
+                    return;
+            }
+
+            // The reader reuses its payload array, so hand the UI Activity a pooled copy
+            // that it gives back through releaseBuffer()
+            byte[] buffer = mReceivePool.acquire(length);
+            System.arraycopy(payload, 0, buffer, 0, length);
+
+            // Send the obtained message to the UI Activity
+            Message msg = mHandler.obtainMessage(Constants.MESSAGE_READ, length, type, buffer);
+            msg.setData((Bundle) connection.getTag());
+            mHandler.sendMessage(msg);
+        }
+
+        @Override
+        public void onConnectionLost(ConnectedThread connection, IOException e) {
+            FileSender sender = mFileSenders.get(connection.getAddress());
+            if (sender != null) {
+                sender.detach(connection);
+            }
+            connectionLost(connection.getAddress());
+        }
+    };
+
+    /**
+     * Passes file transfer progress in both directions on to the UI Activity.
+     */
+    private final FileTransfer.Listener mTransferListener = new FileTransfer.Listener() {
+        @Override
+        public void onTransferProgress(long id, String name, boolean incoming,
+                                       long transferred, long size, long bytesPerSecond) {
+            int percent = size > 0 ? (int) (transferred * 100 / size) : 100;
+            Message msg = mHandler.obtainMessage(Constants.MESSAGE_FILE_PROGRESS, percent,
+                    (int) Math.min(bytesPerSecond, Integer.MAX_VALUE));
+            msg.setData(transferBundle(name, incoming, null));
+            mHandler.sendMessage(msg);
+        }
+
+        @Override
+        public void onTransferComplete(long id, String name, boolean incoming, File file) {
+            finished(id, incoming);
+            Message msg = mHandler.obtainMessage(Constants.MESSAGE_FILE_DONE, 1, 0);
+            msg.setData(transferBundle(name, incoming, file));
+            mHandler.sendMessage(msg);
+        }
+
+        @Override
+        public void onTransferFailed(long id, String name, boolean incoming, IOException e) {
+            finished(id, incoming);
+            Message msg = mHandler.obtainMessage(Constants.MESSAGE_FILE_DONE, 0, 0);
+            msg.setData(transferBundle(name, incoming, null));
+            mHandler.sendMessage(msg);
+        }
+
+        private void finished(long id, boolean incoming) {
+            if (incoming) {
+                return;
+            }
+            for (Map.Entry<String, FileSender> entry : mFileSenders.entrySet()) {
+                if (entry.getValue().getId() == id) {
+                    mFileSenders.remove(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+
+        private Bundle transferBundle(String name, boolean incoming, File file) {
+            Bundle bundle = new Bundle();
+            bundle.putString(Constants.FILE_NAME, name);
+            bundle.putBoolean(Constants.FILE_INCOMING, incoming);
+            if (file != null) {
+                bundle.putString(Constants.FILE_PATH, file.getPath());
+            }
+            return bundle;
+        }
+    };
+
+    /**
+     * Hears back from the Reconnector.
+     */
+    private final Reconnector.Listener mReconnectListener = new Reconnector.Listener() {
+        @Override
+        public void onReconnected(PeerSocket socket, int attempts) {
+            Log.i(TAG, "reconnected to " + socket.getAddress() + " after " + attempts
+                    + " attempts");
+            mReconnectedAddress = socket.getAddress();
+            if (connected(socket) == null) {
+                mReconnectedAddress = null;
+            }
+        }
+
+        @Override
+        public void onGaveUp(int attempts) {
+            sendToast("Unable to reconnect device");
+            // Update UI title
+            updateUserInterfaceTitle();
+        }
+    };
+
+    /**
+     * Start reconnecting to the device last passed to connect(), if the given address is
+     * that device and automatic reconnection is on.
+     *
+     * @return true if reconnecting started
+     */
+    private boolean reconnect(String address) {
+        ConnectThread last = mLastConnect;
+        if (!mAutoReconnect || last == null || !last.mmDevice.getAddress().equals(address)) {
+            return false;
+        }
+        boolean bonded = last.mmDevice.getBondState() == BluetoothDevice.BOND_BONDED;
+        mReconnector.start(address, bonded, last.mmSecure,
+                new BluetoothSocketFactory(last.mmDevice), mReconnectListener);
+        return true;
+    }
+
+    /**
+     * Send a short text to be shown to the user.
+     */
+    private void sendToast(String text) {
         Message msg = mHandler.obtainMessage(Constants.MESSAGE_TOAST);
         Bundle bundle = new Bundle();
-        bundle.putString(Constants.TOAST, "Unable to connect device");
+        bundle.putString(Constants.TOAST, text);
         msg.setData(bundle);
         mHandler.sendMessage(msg);
+    }
 
-        mState = STATE_NONE;
+    /**
+     * Indicate that the connection attempt failed and notify the UI Activity,
+     * then retry in the background.
+     *
+     * @param thread The ConnectThread that failed
+     */
+    private void connectionFailed(ConnectThread thread) {
+        // Send a failure message back to the Activity
+        sendToast("Unable to connect device");
+
+        if (!mConnectThread.compareAndSet(thread, null)) {
+            // Cancelled in favour of another connection
+            return;
+        }
+        reconnect(thread.mmDevice.getAddress());
+
+        // Keep listening for incoming connections
+        startAcceptThreads();
         // Update UI title
         updateUserInterfaceTitle();
-
-        // Start the service over to restart listening mode
-        BluetoothChatService.this.start();
     }
 
     /**
-     * Indicate that the connection was lost and notify the UI Activity.
+     * Indicate that a connection was lost and notify the UI Activity, then try
+     * to get it back if it was to the last device we connected to.
+     *
+     * @param address The address of the device that was lost
      */
-    private void connectionLost() {
+    private void connectionLost(String address) {
         // Send a failure message back to the Activity
-        Message msg = mHandler.obtainMessage(Constants.MESSAGE_TOAST);
-        Bundle bundle = new Bundle();
-        bundle.putString(Constants.TOAST, "Device connection was lost");
-        msg.setData(bundle);
-        mHandler.sendMessage(msg);
+        sendToast("Device connection was lost");
 
-        mState = STATE_NONE;
+        reconnect(address);
         // Update UI title
         updateUserInterfaceTitle();
+    }
 
-        // Start the service over to restart listening mode
-        BluetoothChatService.this.start();
+    /**
+     * Called by an AcceptThread that stopped without being cancelled. A thread that had
+     * been accepting connections is replaced; one that never got going is reported, since
+     * a replacement would most likely fail the same way.
+     *
+     * @param slot     Where the thread was kept
+     * @param secure   Socket Security type of the thread
+     * @param accepted Whether the thread accepted any connection before it stopped
+     */
+    private void acceptFailed(AtomicReference<AcceptThread> slot, boolean secure,
+                              boolean accepted) {
+        if (accepted) {
+            startAcceptThread(slot, secure);
+        } else {
+            sendToast("Unable to listen for incoming connections");
+        }
+        // Update UI title
+        updateUserInterfaceTitle();
     }
 
     /**
      * This thread runs while listening for incoming connections. It behaves
-     * like a server-side client. It runs until a connection is accepted
-     * (or until cancelled).
+     * like a server-side client. It keeps accepting connections until
+     * cancelled, and clears its slot if it stops on its own.
      */
     private class AcceptThread extends Thread {
         // The local server socket
         private final BluetoothServerSocket mmServerSocket;
+        private final AtomicReference<AcceptThread> mmSlot;
+        private final boolean mmSecure;
         private String mSocketType;
 
-        public AcceptThread(boolean secure) {
+        public AcceptThread(AtomicReference<AcceptThread> slot, boolean secure) {
+            mmSlot = slot;
+            mmSecure = secure;
             BluetoothServerSocket tmp = null;
             mSocketType = secure ? "Secure" : "Insecure";
 
@@ -321,7 +815,6 @@ public class BluetoothChatService {
                 Log.e(TAG, "Socket Type: " + mSocketType + "listen() failed", e);
             }
             mmServerSocket = tmp;
-            mState = STATE_LISTEN;
         }
 
         public void run() {
@@ -330,9 +823,10 @@ public class BluetoothChatService {
             setName("AcceptThread" + mSocketType);
 
             BluetoothSocket socket;
+            boolean accepted = false;
 
-            // Listen to the server socket if we're not connected
-            while (mState != STATE_CONNECTED) {
+            // Listen to the server socket until cancelled
+            while (mmServerSocket != null) {
                 try {
                     // This is a blocking call and will only return on a
                     // successful connection or an exception
@@ -344,33 +838,35 @@ public class BluetoothChatService {
 
                 // If a connection was accepted
                 if (socket != null) {
-                    synchronized (BluetoothChatService.this) {
-                        switch (mState) {
-                            case STATE_LISTEN:
-                            case STATE_CONNECTING:
-                                // Situation normal. Start the connected thread.
-                                connected(socket, socket.getRemoteDevice(),
-                                        mSocketType);
-                                break;
-                            case STATE_NONE:
-                            case STATE_CONNECTED:
-                                // Either not ready or already connected. Terminate new socket.
-                                try {
-                                    socket.close();
-                                } catch (IOException e) {
-                                    Log.e(TAG, "Could not close unwanted socket", e);
-                                }
-                                break;
+                    accepted = true;
+                    if (BluetoothChatService.this.getState() != STATE_NONE) {
+                        // Situation normal. Start a connected thread; the table
+                        // closes the socket if it is full.
+                        connected(socket, socket.getRemoteDevice(), mSocketType);
+                    } else {
+                        // Not ready. Terminate new socket.
+                        try {
+                            socket.close();
+                        } catch (IOException e) {
+                            Log.e(TAG, "Could not close unwanted socket", e);
                         }
                     }
                 }
             }
             Log.i(TAG, "END mAcceptThread, socket Type: " + mSocketType);
 
+            // Still in the slot means nobody cancelled us; don't leave it looking like
+            // we are listening
+            if (mmSlot.compareAndSet(this, null)) {
+                acceptFailed(mmSlot, mmSecure, accepted);
+            }
         }
 
         public void cancel() {
             Log.d(TAG, "Socket Type" + mSocketType + "cancel " + this);
+            if (mmServerSocket == null) {
+                return;
+            }
             try {
                 mmServerSocket.close();
             } catch (IOException e) {
@@ -388,10 +884,12 @@ public class BluetoothChatService {
     private class ConnectThread extends Thread {
         private final BluetoothSocket mmSocket;
         private final BluetoothDevice mmDevice;
+        private final boolean mmSecure;
         private String mSocketType;
 
         public ConnectThread(BluetoothDevice device, boolean secure) {
             mmDevice = device;
+            mmSecure = secure;
             BluetoothSocket tmp = null;
             mSocketType = secure ? "Secure" : "Insecure";
 
@@ -409,7 +907,6 @@ public class BluetoothChatService {
                 Log.e(TAG, "Socket Type: " + mSocketType + "create() failed", e);
             }
             mmSocket = tmp;
-            mState = STATE_CONNECTING;
         }
 
         public void run() {
@@ -432,14 +929,12 @@ public class BluetoothChatService {
                     Log.e(TAG, "unable to close() " + mSocketType +
                             " socket during connection failure", e2);
                 }
-                connectionFailed();
+                connectionFailed(this);
                 return;
             }
 
             // Reset the ConnectThread because we're done
-            synchronized (BluetoothChatService.this) {
-                mConnectThread = null;
-            }
+            mConnectThread.compareAndSet(this, null);
 
             // Start the connected thread
             connected(mmSocket, mmDevice, mSocketType);
@@ -455,78 +950,73 @@ public class BluetoothChatService {
     }
 
     /**
-     * This thread runs during a connection with a remote device.
-     * It handles all incoming and outgoing transmissions.
+     * Opens RFCOMM sockets to one device for the Reconnector.
      */
-    private class ConnectedThread extends Thread {
-        private final BluetoothSocket mmSocket;
-        private final InputStream mmInStream;
-        private final OutputStream mmOutStream;
+    private class BluetoothSocketFactory implements Reconnector.SocketFactory {
+        private final BluetoothDevice mmDevice;
 
-        public ConnectedThread(BluetoothSocket socket, String socketType) {
-            Log.d(TAG, "create ConnectedThread: " + socketType);
-            mmSocket = socket;
-            InputStream tmpIn = null;
-            OutputStream tmpOut = null;
+        BluetoothSocketFactory(BluetoothDevice device) {
+            mmDevice = device;
+        }
+
+        @Override
+        public PeerSocket connect(boolean secure) throws IOException {
+            BluetoothSocket socket = secure
+                    ? mmDevice.createRfcommSocketToServiceRecord(MY_UUID_SECURE)
+                    : mmDevice.createInsecureRfcommSocketToServiceRecord(MY_UUID_INSECURE);
 
-            // Get the BluetoothSocket input and output streams
+            // Always cancel discovery because it will slow down a connection
+            mAdapter.cancelDiscovery();
             try {
-                tmpIn = socket.getInputStream();
-                tmpOut = socket.getOutputStream();
+                socket.connect();
             } catch (IOException e) {
-                Log.e(TAG, "temp sockets not created", e);
+                try {
+                    socket.close();
+                } catch (IOException e2) {
+                    Log.e(TAG, "unable to close() socket during connection failure", e2);
+                }
+                throw e;
             }
-
-            mmInStream = tmpIn;
-            mmOutStream = tmpOut;
-            mState = STATE_CONNECTED;
+            return new BluetoothPeerSocket(socket, mmDevice);
         }
+    }
 
-        public void run() {
-            Log.i(TAG, "BEGIN mConnectedThread");
-            byte[] buffer = new byte[1024];
-            int bytes;
+    /**
+     * Adapts a connected BluetoothSocket to the {@link PeerSocket} used by the
+     * ConnectionTable.
+     */
+    private static class BluetoothPeerSocket implements PeerSocket {
+        private final BluetoothSocket mmSocket;
+        private final BluetoothDevice mmDevice;
 
-            // Keep listening to the InputStream while connected
-            while (mState == STATE_CONNECTED) {
-                try {
-                    // Read from the InputStream
-                    bytes = mmInStream.read(buffer);
+        BluetoothPeerSocket(BluetoothSocket socket, BluetoothDevice device) {
+            mmSocket = socket;
+            mmDevice = device;
+        }
 
-                    // Send the obtained bytes to the UI Activity
-                    mHandler.obtainMessage(Constants.MESSAGE_READ, bytes, -1, buffer)
-                            .sendToTarget();
-                } catch (IOException e) {
-                    Log.e(TAG, "disconnected", e);
-                    connectionLost();
-                    break;
-                }
-            }
+        @Override
+        public String getAddress() {
+            return mmDevice.getAddress();
         }
 
-        /**
-         * Write to the connected OutStream.
-         *
-         * @param buffer The bytes to write
-         */
-        public void write(byte[] buffer) {
-            try {
-                mmOutStream.write(buffer);
+        @Override
+        public String getName() {
+            return mmDevice.getName();
+        }
 
-                // Share the sent message back to the UI Activity
-                mHandler.obtainMessage(Constants.MESSAGE_WRITE, -1, -1, buffer)
-                        .sendToTarget();
-            } catch (IOException e) {
-                Log.e(TAG, "Exception during write", e);
-            }
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return mmSocket.getInputStream();
         }
 
-        public void cancel() {
-            try {
-                mmSocket.close();
-            } catch (IOException e) {
-                Log.e(TAG, "close() of connect socket failed", e);
-            }
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return mmSocket.getOutputStream();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mmSocket.close();
         }
     }
 }
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+/**
+ * A pool of reusable byte arrays, so that handing received data to another thread does
+ * not cost an allocation per message.
+ *
+ * <p>Arrays are kept in size classes of powers of two. {@link #acquire(int)} returns an
+ * array at least as long as requested; the consumer hands it back with
+ * {@link #release(byte[])} once it is done with the content. Once every size class in
+ * use holds enough arrays, acquiring and releasing allocate nothing.</p>
+ *
+ * <p>This class is thread safe.</p>
+ */
+public class BufferPool {
+
+    // Smallest size class is 2^MIN_SHIFT bytes
+    private static final int MIN_SHIFT = 6;
+
+    private final int mMaxPooledLength;
+    private final byte[][][] mFree;
+    private final int[] mFreeCount;
+
+    // Counters
+    private long mHits;
+    private long mMisses;
+    private long mDiscarded;
+
+    /**
+     * @param maxPooledLength Arrays longer than this, rounded up to a power of two, are
+     *                        allocated and dropped rather than pooled
+     * @param maxPerClass     Most arrays kept per size class
+     */
+    public BufferPool(int maxPooledLength, int maxPerClass) {
+        int classes = sizeClass(maxPooledLength) + 1;
+        mMaxPooledLength = 1 << (classes - 1 + MIN_SHIFT);
+        mFree = new byte[classes][maxPerClass][];
+        mFreeCount = new int[classes];
+    }
+
+    /**
+     * Return an array of at least the given length. Its content is undefined.
+     */
+    public byte[] acquire(int minLength) {
+        if (minLength > mMaxPooledLength) {
+            synchronized (this) {
+                mMisses++;
+            }
+            return new byte[minLength];
+        }
+        int sizeClass = sizeClass(minLength);
+        synchronized (this) {
+            int count = mFreeCount[sizeClass];
+            if (count > 0) {
+                mHits++;
+                byte[] buffer = mFree[sizeClass][--count];
+                mFree[sizeClass][count] = null;
+                mFreeCount[sizeClass] = count;
+                return buffer;
+            }
+            mMisses++;
+        }
+        return new byte[1 << (sizeClass + MIN_SHIFT)];
+    }
+
+    /**
+     * Give an array back to the pool. The caller must not touch it afterwards.
+     * Arrays that did not come from {@link #acquire(int)} are ignored.
+     */
+    public void release(byte[] buffer) {
+        int length = buffer.length;
+        if (length > mMaxPooledLength || Integer.bitCount(length) != 1
+                || length < (1 << MIN_SHIFT)) {
+            return;
+        }
+        int sizeClass = sizeClass(length);
+        synchronized (this) {
+            int count = mFreeCount[sizeClass];
+            if (count == mFree[sizeClass].length) {
+                mDiscarded++;
+                return;
+            }
+            mFree[sizeClass][count] = buffer;
+            mFreeCount[sizeClass] = count + 1;
+        }
+    }
+
+    /**
+     * Return how many acquisitions were served from the pool.
+     */
+    public synchronized long getHits() {
+        return mHits;
+    }
+
+    /**
+     * Return how many acquisitions had to allocate a new array.
+     */
+    public synchronized long getMisses() {
+        return mMisses;
+    }
+
+    /**
+     * Return how many released arrays were dropped because their size class was full.
+     */
+    public synchronized long getDiscarded() {
+        return mDiscarded;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BufferPool{hits=" + mHits + ", misses=" + mMisses
+                + ", discarded=" + mDiscarded + "}";
+    }
+
+    /**
+     * Return the index of the smallest size class that holds the given length.
+     */
+    private static int sizeClass(int length) {
+        if (length <= (1 << MIN_SHIFT)) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(length - 1) - MIN_SHIFT;
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters for {@link MessageCompressor}, shared by every connection of a service.
+ */
+public class CompressionStats {
+
+    private final AtomicLong mCompressedMessages = new AtomicLong();
+    private final AtomicLong mSkippedMessages = new AtomicLong();
+    private final AtomicLong mOriginalBytes = new AtomicLong();
+    private final AtomicLong mCompressedBytes = new AtomicLong();
+    private final AtomicLong mDeflateNanos = new AtomicLong();
+    private final AtomicLong mInflateNanos = new AtomicLong();
+
+    void onCompressed(int originalLength, int compressedLength, long nanos) {
+        mCompressedMessages.incrementAndGet();
+        mOriginalBytes.addAndGet(originalLength);
+        mCompressedBytes.addAndGet(compressedLength);
+        mDeflateNanos.addAndGet(nanos);
+    }
+
+    void onSkipped(long nanos) {
+        mSkippedMessages.incrementAndGet();
+        mDeflateNanos.addAndGet(nanos);
+    }
+
+    void onInflated(long nanos) {
+        mInflateNanos.addAndGet(nanos);
+    }
+
+    /**
+     * Return the number of messages sent compressed.
+     */
+    public long getCompressedMessages() {
+        return mCompressedMessages.get();
+    }
+
+    /**
+     * Return the number of messages sent as they were because they were too short or
+     * did not compress well.
+     */
+    public long getSkippedMessages() {
+        return mSkippedMessages.get();
+    }
+
+    /**
+     * Return how many fewer bytes went over the air thanks to compression.
+     */
+    public long getBytesSaved() {
+        return mOriginalBytes.get() - mCompressedBytes.get();
+    }
+
+    /**
+     * Return the time spent compressing, including attempts that were thrown away.
+     */
+    public long getDeflateMillis() {
+        return mDeflateNanos.get() / 1000000L;
+    }
+
+    /**
+     * Return the time spent decompressing received messages.
+     */
+    public long getInflateMillis() {
+        return mInflateNanos.get() / 1000000L;
+    }
+
+    @Override
+    public String toString() {
+        return "compressed=" + getCompressedMessages() + " skipped=" + getSkippedMessages()
+                + " saved=" + getBytesSaved() + "B deflate=" + getDeflateMillis()
+                + "ms inflate=" + getInflateMillis() + "ms";
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import com.example.android.common.logger.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+/**
+ * This thread runs during a connection with a remote device.
+ * It reads incoming frames and owns the {@link WriteQueue} for outgoing ones.
+ */
+public class ConnectedThread extends Thread {
+    // Debugging
+    private static final String TAG = "ConnectedThread";
+
+    /**
+     * Receives everything that happens on one connection. Called on the connection's
+     * own thread.
+     */
+    public interface Listener {
+        /**
+         * The first frame arrived on this connection, whatever its type. Called before
+         * that frame is handled, including {@link FrameCodec#TYPE_HELLO}, which is not
+         * passed to {@link #onFrameReceived}.
+         *
+         * @param connection The connection the frame arrived on
+         */
+        void onFirstFrame(ConnectedThread connection);
+
+        /**
+         * A whole frame arrived.
+         *
+         * @param connection The connection the frame arrived on
+         * @param type       The frame type
+         * @param payload    Array holding the payload; only valid during this call
+         * @param length     Number of valid bytes in payload
+         */
+        void onFrameReceived(ConnectedThread connection, int type, byte[] payload, int length);
+
+        /**
+         * The connection failed or the remote device closed it. Not called after
+         * {@link #cancel()}.
+         */
+        void onConnectionLost(ConnectedThread connection, IOException e);
+    }
+
+    private final PeerSocket mSocket;
+    private final Listener mListener;
+    private final FrameReader mFrameReader;
+    private final WriteQueue mWriteQueue;
+    private final MessageCompressor mCompressor;
+    private volatile boolean mCancelled;
+    private volatile Object mTag;
+
+    /**
+     * @param socket        The connected socket
+     * @param highWaterMark Most payload bytes waiting to be sent at once
+     * @param writePolicy   What to do with writes beyond the high-water mark, see
+     *                      {@link WriteQueue}
+     * @param listener      Receives incoming frames and connection loss
+     */
+    public ConnectedThread(PeerSocket socket, int highWaterMark, int writePolicy,
+                           Listener listener) throws IOException {
+        this(socket, highWaterMark, writePolicy, null, listener);
+    }
+
+    /**
+     * @param compressor Compresses text frames once the remote device says it can
+     *                   inflate them, or null to never compress
+     * @see #ConnectedThread(PeerSocket, int, int, Listener)
+     */
+    public ConnectedThread(PeerSocket socket, int highWaterMark, int writePolicy,
+                           MessageCompressor compressor, Listener listener)
+            throws IOException {
+        Log.d(TAG, "create ConnectedThread: " + socket.getAddress());
+        mSocket = socket;
+        mListener = listener;
+        mCompressor = compressor;
+        mFrameReader = new FrameReader(socket.getInputStream());
+        mFrameReader.setCompressor(compressor);
+        FrameWriter writer =
+                new FrameWriter(new BufferedOutputStream(socket.getOutputStream()));
+        writer.setCompressor(compressor);
+        mWriteQueue = new WriteQueue(writer, highWaterMark, writePolicy);
+        setName("ConnectedThread-" + socket.getAddress());
+    }
+
+    /**
+     * Return the address of the remote device.
+     */
+    public String getAddress() {
+        return mSocket.getAddress();
+    }
+
+    /**
+     * Return the name of the remote device.
+     */
+    public String getDeviceName() {
+        return mSocket.getName();
+    }
+
+    /**
+     * Attach an object of the owner's choosing to this connection.
+     */
+    public void setTag(Object tag) {
+        mTag = tag;
+    }
+
+    /**
+     * Return the object set with {@link #setTag(Object)}, or null.
+     */
+    public Object getTag() {
+        return mTag;
+    }
+
+    public void run() {
+        Log.i(TAG, "BEGIN mConnectedThread " + getAddress());
+        mWriteQueue.start();
+        if (mCompressor != null) {
+            // Tell the remote device what it may send us. Devices that do not know
+            // this frame type ignore it and keep sending plain text.
+            mWriteQueue.enqueue(FrameCodec.TYPE_HELLO,
+                    new byte[]{(byte) FrameCodec.FEATURE_DEFLATE}, null);
+        }
+
+        // Keep listening to the InputStream while connected
+        boolean first = true;
+        while (!mCancelled) {
+            try {
+                // Read one whole frame from the InputStream
+                if (!mFrameReader.readFrame()) {
+                    throw new EOFException("Remote device closed the stream");
+                }
+                if (first) {
+                    first = false;
+                    mListener.onFirstFrame(this);
+                }
+                if (mFrameReader.getType() == FrameCodec.TYPE_HELLO) {
+                    onHello(mFrameReader.getPayload(), mFrameReader.getPayloadLength());
+                    continue;
+                }
+                mListener.onFrameReceived(this, mFrameReader.getType(),
+                        mFrameReader.getPayload(), mFrameReader.getPayloadLength());
+            } catch (IOException e) {
+                if (!mCancelled) {
+                    Log.e(TAG, "disconnected", e);
+                    cancel();
+                    mListener.onConnectionLost(this, e);
+                }
+                break;
+            }
+        }
+        if (mCompressor != null) {
+            mCompressor.end();
+        }
+    }
+
+    private void onHello(byte[] payload, int length) {
+        int features = length > 0 ? payload[0] & 0xFF : 0;
+        Log.d(TAG, getAddress() + " features " + features);
+        if (mCompressor != null) {
+            mCompressor.setPeerInflates((features & FrameCodec.FEATURE_DEFLATE) != 0);
+        }
+    }
+
+    /**
+     * Queue a frame for the writer thread.
+     *
+     * @param type     The frame type
+     * @param buffer   The bytes to write
+     * @param callback Notified once the frame was written or dropped, may be null
+     * @return true if the frame was queued
+     */
+    public boolean write(int type, byte[] buffer, WriteQueue.Callback callback) {
+        return mWriteQueue.enqueue(type, buffer, callback);
+    }
+
+    /**
+     * Queue the first length bytes of buffer as one frame.
+     *
+     * @see #write(int, byte[], WriteQueue.Callback)
+     */
+    public boolean write(int type, byte[] buffer, int length, WriteQueue.Callback callback) {
+        return mWriteQueue.enqueue(type, buffer, length, callback);
+    }
+
+    /**
+     * Close the connection. Pending writes are reported as failed.
+     */
+    public void cancel() {
+        mCancelled = true;
+        mWriteQueue.close();
+        try {
+            mSocket.close();
+        } catch (IOException e) {
+            Log.e(TAG, "close() of connect socket failed", e);
+        }
+    }
+}
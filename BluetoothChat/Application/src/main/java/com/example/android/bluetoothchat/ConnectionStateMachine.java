@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Holds the connection state and moves it with compare-and-set, so that reading or
+ * changing it never waits on a lock, least of all one held across socket calls.
+ *
+ * <p>Every change is recorded as a {@link Transition}, which says how long the previous
+ * state lasted; the last {@link #HISTORY_SIZE} of them are kept for diagnosis. Listeners
+ * are called on the thread that made the change, after it took effect.</p>
+ */
+public class ConnectionStateMachine {
+
+    /**
+     * Number of transitions kept by {@link #getHistory()}.
+     */
+    public static final int HISTORY_SIZE = 32;
+
+    /**
+     * Notified of every state change.
+     */
+    public interface Listener {
+        void onStateChanged(Transition transition);
+    }
+
+    /**
+     * One state change. Immutable.
+     */
+    public static final class Transition {
+        /**
+         * Increases by one with every transition, so listeners called on different
+         * threads can tell which change is the latest.
+         */
+        public final long sequence;
+        public final int from;
+        public final int to;
+        /**
+         * When the transition happened, from {@link Clock#elapsedRealtime()}.
+         */
+        public final long timestampMillis;
+        /**
+         * How long the machine stayed in {@link #from}.
+         */
+        public final long previousStateMillis;
+
+        Transition(long sequence, int from, int to, long timestampMillis,
+                   long previousStateMillis) {
+            this.sequence = sequence;
+            this.from = from;
+            this.to = to;
+            this.timestampMillis = timestampMillis;
+            this.previousStateMillis = previousStateMillis;
+        }
+
+        @Override
+        public String toString() {
+            return "#" + sequence + " " + from + " -> " + to + " at " + timestampMillis
+                    + " ms after " + previousStateMillis + " ms";
+        }
+    }
+
+    private final Clock mClock;
+    private final AtomicReference<Transition> mCurrent;
+    private final AtomicReferenceArray<Transition> mHistory =
+            new AtomicReferenceArray<>(HISTORY_SIZE);
+    private final List<Listener> mListeners = new CopyOnWriteArrayList<>();
+
+    // Time spent in listeners, to spot a slow one holding up connection threads
+    private final AtomicLong mMaxDispatchNanos = new AtomicLong();
+
+    public ConnectionStateMachine(int initialState, Clock clock) {
+        mClock = clock;
+        mCurrent = new AtomicReference<>(
+                new Transition(0, initialState, initialState, clock.elapsedRealtime(), 0));
+    }
+
+    public void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Return the current state.
+     */
+    public int getState() {
+        return mCurrent.get().to;
+    }
+
+    /**
+     * Move to the next state, but only from the expected one.
+     *
+     * @return true if the state was expected and is now next
+     */
+    public boolean transition(int expected, int next) {
+        while (true) {
+            Transition current = mCurrent.get();
+            if (current.to != expected) {
+                return false;
+            }
+            if (current.to == next) {
+                return true;
+            }
+            if (tryMove(current, next)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Move to the given state from whatever the state is now.
+     *
+     * @return true if the state changed
+     */
+    public boolean moveTo(int next) {
+        while (true) {
+            Transition current = mCurrent.get();
+            if (current.to == next) {
+                return false;
+            }
+            if (tryMove(current, next)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Return the most recent transitions, oldest first.
+     */
+    public List<Transition> getHistory() {
+        long last = mCurrent.get().sequence;
+        List<Transition> history = new ArrayList<>(HISTORY_SIZE);
+        for (long sequence = Math.max(1, last - HISTORY_SIZE + 1); sequence <= last;
+             sequence++) {
+            Transition transition = mHistory.get((int) (sequence % HISTORY_SIZE));
+            // Skip slots already overwritten by a newer transition
+            if (transition != null && transition.sequence == sequence) {
+                history.add(transition);
+            }
+        }
+        return history;
+    }
+
+    /**
+     * Return the longest time the listeners took to handle one transition.
+     */
+    public long getMaxDispatchNanos() {
+        return mMaxDispatchNanos.get();
+    }
+
+    private boolean tryMove(Transition current, int next) {
+        long now = mClock.elapsedRealtime();
+        Transition transition = new Transition(current.sequence + 1, current.to, next, now,
+                now - current.timestampMillis);
+        if (!mCurrent.compareAndSet(current, transition)) {
+            return false;
+        }
+        mHistory.set((int) (transition.sequence % HISTORY_SIZE), transition);
+
+        long start = System.nanoTime();
+        for (Listener listener : mListeners) {
+            listener.onStateChanged(transition);
+        }
+        long elapsed = System.nanoTime() - start;
+        long max;
+        while (elapsed > (max = mMaxDispatchNanos.get())
+                && !mMaxDispatchNanos.compareAndSet(max, elapsed)) {
+            // Another thread raised the maximum meanwhile; try again
+        }
+        return true;
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import com.example.android.common.logger.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The set of open connections, keyed by remote address. Each connection has its own
+ * {@link ConnectedThread}, so one slow peer never holds up the others.
+ *
+ * <p>The table only knows about {@link PeerSocket}s, so it can be exercised with
+ * in-memory sockets.</p>
+ */
+public class ConnectionTable {
+    // Debugging
+    private static final String TAG = "ConnectionTable";
+
+    private final Map<String, ConnectedThread> mConnections = new LinkedHashMap<>();
+    private final ConnectedThread.Listener mListener;
+    private final int mMaxConnections;
+    private int mWriteHighWaterMark = WriteQueue.DEFAULT_HIGH_WATER_MARK;
+    private int mWritePolicy = WriteQueue.POLICY_DROP;
+    private CompressionStats mCompressionStats;
+
+    /**
+     * Connections removed from the table once they are lost, before the outer listener
+     * hears about it.
+     */
+    private final ConnectedThread.Listener mTableListener = new ConnectedThread.Listener() {
+        @Override
+        public void onFirstFrame(ConnectedThread connection) {
+            mListener.onFirstFrame(connection);
+        }
+
+        @Override
+        public void onFrameReceived(ConnectedThread connection, int type, byte[] payload,
+                                    int length) {
+            mListener.onFrameReceived(connection, type, payload, length);
+        }
+
+        @Override
+        public void onConnectionLost(ConnectedThread connection, IOException e) {
+            synchronized (ConnectionTable.this) {
+                if (mConnections.get(connection.getAddress()) == connection) {
+                    mConnections.remove(connection.getAddress());
+                }
+            }
+            mListener.onConnectionLost(connection, e);
+        }
+    };
+
+    /**
+     * @param maxConnections Most connections open at once
+     * @param listener       Receives frames and connection loss from every connection
+     */
+    public ConnectionTable(int maxConnections, ConnectedThread.Listener listener) {
+        mMaxConnections = maxConnections;
+        mListener = listener;
+    }
+
+    /**
+     * Set the write queue limits for connections added from now on.
+     *
+     * @see WriteQueue#WriteQueue(FrameWriter, int, int)
+     */
+    public synchronized void setWriteQueueLimits(int highWaterMark, int policy) {
+        mWriteHighWaterMark = highWaterMark;
+        mWritePolicy = policy;
+    }
+
+    /**
+     * Offer compressed text to connections added from now on.
+     *
+     * @param stats Counters shared by those connections, or null to stop compressing
+     */
+    public synchronized void setCompression(CompressionStats stats) {
+        mCompressionStats = stats;
+    }
+
+    /**
+     * Start managing a newly connected socket. An existing connection to the same
+     * address is closed and replaced.
+     *
+     * @param socket The connected socket
+     * @param tag    Attached to the connection before it starts reading, see
+     *               {@link ConnectedThread#setTag(Object)}
+     * @return the new connection, or null if the table is full and the socket was closed
+     */
+    public ConnectedThread add(PeerSocket socket, Object tag) throws IOException {
+        ConnectedThread connection;
+        ConnectedThread previous;
+        synchronized (this) {
+            previous = mConnections.get(socket.getAddress());
+            if (previous == null && mConnections.size() >= mMaxConnections) {
+                connection = null;
+            } else {
+                MessageCompressor compressor = mCompressionStats != null
+                        ? new MessageCompressor(mCompressionStats) : null;
+                connection = new ConnectedThread(socket, mWriteHighWaterMark, mWritePolicy,
+                        compressor, mTableListener);
+                connection.setTag(tag);
+                mConnections.put(socket.getAddress(), connection);
+            }
+        }
+        if (connection == null) {
+            // Closed outside the lock, like every other socket
+            Log.w(TAG, "Connection table full, refusing " + socket.getAddress());
+            socket.close();
+            return null;
+        }
+        if (previous != null) {
+            previous.cancel();
+        }
+        connection.start();
+        return connection;
+    }
+
+    /**
+     * Close and forget the connection to the given address.
+     *
+     * @return true if there was such a connection
+     */
+    public boolean remove(String address) {
+        ConnectedThread connection;
+        synchronized (this) {
+            connection = mConnections.remove(address);
+        }
+        if (connection == null) {
+            return false;
+        }
+        connection.cancel();
+        return true;
+    }
+
+    /**
+     * Close every connection.
+     */
+    public void closeAll() {
+        List<ConnectedThread> connections;
+        synchronized (this) {
+            connections = new ArrayList<>(mConnections.values());
+            mConnections.clear();
+        }
+        for (ConnectedThread connection : connections) {
+            connection.cancel();
+        }
+    }
+
+    /**
+     * Return the connection to the given address, or null.
+     */
+    public synchronized ConnectedThread get(String address) {
+        return mConnections.get(address);
+    }
+
+    /**
+     * Return the number of open connections.
+     */
+    public synchronized int size() {
+        return mConnections.size();
+    }
+
+    /**
+     * Return the addresses of the open connections, oldest first.
+     */
+    public synchronized List<String> getAddresses() {
+        return new ArrayList<>(mConnections.keySet());
+    }
+
+    /**
+     * Queue a frame for one connection.
+     *
+     * @return false if there is no connection to that address or the frame was dropped
+     */
+    public boolean write(String address, int type, byte[] payload,
+                         WriteQueue.Callback callback) {
+        ConnectedThread connection = get(address);
+        if (connection == null) {
+            if (callback != null) {
+                callback.onWriteComplete(payload, false);
+            }
+            return false;
+        }
+        return connection.write(type, payload, callback);
+    }
+
+    /**
+     * Queue a frame for every connection. The callback runs once, after every
+     * connection has written or dropped the frame, and reports success if at least
+     * one of them sent it. A connection whose queue refuses the frame, including one with
+     * {@link WriteQueue#POLICY_FAIL} that is full, counts as having dropped it.
+     *
+     * @return the number of connections that queued the frame
+     */
+    public int broadcast(int type, byte[] payload, WriteQueue.Callback callback) {
+        List<ConnectedThread> connections;
+        synchronized (this) {
+            connections = new ArrayList<>(mConnections.values());
+        }
+        if (connections.isEmpty()) {
+            if (callback != null) {
+                callback.onWriteComplete(payload, false);
+            }
+            return 0;
+        }
+        FanOutCallback fanOut = callback != null
+                ? new FanOutCallback(connections.size(), callback) : null;
+        int queued = 0;
+        for (ConnectedThread connection : connections) {
+            boolean written;
+            try {
+                written = connection.write(type, payload, fanOut);
+            } catch (IllegalStateException e) {
+                // A full queue that fails fast; don't let it hold up the other peers
+                Log.w(TAG, "Broadcast dropped by a full connection", e);
+                if (fanOut != null) {
+                    fanOut.onWriteComplete(payload, false);
+                }
+                written = false;
+            }
+            if (written) {
+                queued++;
+            }
+        }
+        return queued;
+    }
+
+    /**
+     * Collapses the completions of one broadcast into a single callback.
+     */
+    private static class FanOutCallback implements WriteQueue.Callback {
+        private final WriteQueue.Callback mCallback;
+        private int mPending;
+        private boolean mAnySuccess;
+
+        FanOutCallback(int pending, WriteQueue.Callback callback) {
+            mPending = pending;
+            mCallback = callback;
+        }
+
+        @Override
+        public void onWriteComplete(byte[] payload, boolean success) {
+            boolean done;
+            synchronized (this) {
+                mAnySuccess |= success;
+                done = --mPending == 0;
+            }
+            if (done) {
+                mCallback.onWriteComplete(payload, mAnySuccess);
+            }
+        }
+    }
+}
@@ -27,9 +27,15 @@ public interface Constants {
     int MESSAGE_WRITE = 3;
     int MESSAGE_DEVICE_NAME = 4;
     int MESSAGE_TOAST = 5;
+    int MESSAGE_FILE_PROGRESS = 6; // arg1 is the percentage done, arg2 the bytes per second
+    int MESSAGE_FILE_DONE = 7;     // arg1 is 1 if the transfer succeeded, 0 if it failed
 
     // Key names received from the BluetoothChatService Handler
     String DEVICE_NAME = "device_name";
+    String DEVICE_ADDRESS = "device_address";
     String TOAST = "toast";
+    String FILE_NAME = "file_name";
+    String FILE_INCOMING = "file_incoming";
+    String FILE_PATH = "file_path";
 
 }
@@ -0,0 +1,333 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import androidx.annotation.NonNull;
+import androidx.core.view.ViewCompat;
+import androidx.recyclerview.widget.RecyclerView;
+
+import com.example.android.common.logger.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Shows the conversation in a {@link RecyclerView} while keeping a bounded number of
+ * entries in memory.
+ *
+ * <p>Every entry is written to a {@link ConversationLog} on a background thread. The
+ * newest {@link #TAIL_SIZE} entries stay in memory; older ones are read back from the log
+ * a page at a time when they are scrolled into view.</p>
+ *
+ * <p>Entries added between two frames are shown together, with one insertion, on the
+ * next frame.</p>
+ */
+public class ConversationAdapter extends RecyclerView.Adapter<ConversationAdapter.ViewHolder> {
+    // Debugging
+    private static final String TAG = "ConversationAdapter";
+
+    /**
+     * Number of newest entries kept in memory.
+     */
+    public static final int TAIL_SIZE = 200;
+
+    /**
+     * Number of older entries read back from the log at once.
+     */
+    public static final int PAGE_SIZE = 100;
+
+    static class ViewHolder extends RecyclerView.ViewHolder {
+        final TextView mmTextView;
+        final StringBuilder mmBuilder = new StringBuilder();
+
+        ViewHolder(TextView textView) {
+            super(textView);
+            mmTextView = textView;
+        }
+    }
+
+    private final LayoutInflater mInflater;
+    private final File mLogFile;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private RecyclerView mRecyclerView;
+
+    // Only touched on the executor thread
+    private ConversationLog mLog;
+
+    // The newest entries, in a ring indexed by position
+    private final ConversationLog.Entry[] mTail = new ConversationLog.Entry[TAIL_SIZE];
+    private int mCount;
+
+    // Older entries read back from the log
+    private List<ConversationLog.Entry> mPage = Collections.emptyList();
+    private int mPageStart;
+    private int mLoadingStart = -1;
+
+    // Bumped by clear(), so pages read before it are thrown away
+    private int mGeneration;
+
+    // Entries added since the last frame
+    private final ArrayList<ConversationLog.Entry> mPending = new ArrayList<>();
+    private boolean mFlushScheduled;
+
+    // Set by close(); the executor is shut down, so nothing more may be handed to it
+    private boolean mClosed;
+
+    /**
+     * @param context Used to inflate the rows
+     * @param logFile Where entries that leave memory are kept; overwritten
+     */
+    public ConversationAdapter(Context context, File logFile) {
+        mInflater = LayoutInflater.from(context);
+        mLogFile = logFile;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mLog = new ConversationLog(mLogFile);
+                } catch (IOException e) {
+                    Log.e(TAG, "Cannot open " + mLogFile, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Add an entry. It is shown on the next frame. Ignored once the adapter is closed.
+     *
+     * @param sender Who wrote it, or null for a notice
+     * @param text   The entry itself
+     */
+    public void add(String sender, String text) {
+        if (mClosed) {
+            return;
+        }
+        mPending.add(new ConversationLog.Entry(sender, text));
+        if (!mFlushScheduled) {
+            mFlushScheduled = true;
+            if (mRecyclerView != null) {
+                ViewCompat.postOnAnimation(mRecyclerView, mFlush);
+            } else {
+                mHandler.post(mFlush);
+            }
+        }
+    }
+
+    /**
+     * Remove every entry. Ignored once the adapter is closed.
+     */
+    public void clear() {
+        if (mClosed) {
+            return;
+        }
+        mGeneration++;
+        mCount = 0;
+        mPending.clear();
+        Arrays.fill(mTail, null);
+        mPage = Collections.emptyList();
+        mLoadingStart = -1;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mLog == null) {
+                    return;
+                }
+                try {
+                    mLog.clear();
+                } catch (IOException e) {
+                    Log.e(TAG, "Cannot clear " + mLogFile, e);
+                }
+            }
+        });
+        notifyDataSetChanged();
+    }
+
+    /**
+     * Close the log once every entry shown so far has been written. Entries added or
+     * cleared afterwards are ignored.
+     */
+    public void close() {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        mHandler.removeCallbacks(mFlush);
+        if (mRecyclerView != null) {
+            mRecyclerView.removeCallbacks(mFlush);
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mLog == null) {
+                    return;
+                }
+                try {
+                    mLog.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "close() of " + mLogFile + " failed", e);
+                }
+            }
+        });
+        mExecutor.shutdown();
+    }
+
+    @Override
+    public void onAttachedToRecyclerView(@NonNull RecyclerView recyclerView) {
+        mRecyclerView = recyclerView;
+    }
+
+    @Override
+    public void onDetachedFromRecyclerView(@NonNull RecyclerView recyclerView) {
+        mRecyclerView = null;
+    }
+
+    @Override
+    public int getItemCount() {
+        return mCount;
+    }
+
+    @NonNull
+    @Override
+    public ViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        return new ViewHolder((TextView) mInflater.inflate(R.layout.message, parent, false));
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull ViewHolder holder, int position) {
+        ConversationLog.Entry entry = getEntry(position);
+        StringBuilder builder = holder.mmBuilder;
+        builder.setLength(0);
+        if (entry == null) {
+            // Still being read back from the log
+            builder.append("...");
+        } else {
+            if (entry.sender != null) {
+                builder.append(entry.sender).append(":  ");
+            }
+            builder.append(entry.text);
+        }
+        holder.mmTextView.setText(builder);
+    }
+
+    /**
+     * Return the entry at the given position, or null if it has to be read back first.
+     */
+    private ConversationLog.Entry getEntry(int position) {
+        if (position >= mCount - TAIL_SIZE) {
+            return mTail[position % TAIL_SIZE];
+        }
+        if (position >= mPageStart && position < mPageStart + mPage.size()) {
+            return mPage.get(position - mPageStart);
+        }
+        loadPage(position);
+        return null;
+    }
+
+    /**
+     * Read back a page holding the given position, mostly made of the entries above it
+     * since the user is scrolling up.
+     */
+    private void loadPage(int position) {
+        final int start = Math.max(0, position - PAGE_SIZE * 3 / 4);
+        if (mClosed || start == mLoadingStart) {
+            return;
+        }
+        mLoadingStart = start;
+        final int generation = mGeneration;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final List<ConversationLog.Entry> page;
+                try {
+                    page = mLog == null ? null : mLog.read(start, PAGE_SIZE);
+                } catch (IOException e) {
+                    Log.e(TAG, "Cannot read " + mLogFile, e);
+                    return;
+                }
+                if (page == null) {
+                    return;
+                }
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mClosed || generation != mGeneration) {
+                            return;
+                        }
+                        mPage = page;
+                        mPageStart = start;
+                        mLoadingStart = -1;
+                        notifyItemRangeChanged(start, page.size());
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Shows every pending entry with a single insertion and hands them to the log.
+     */
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            mFlushScheduled = false;
+            if (mClosed || mPending.isEmpty()) {
+                return;
+            }
+            int start = mCount;
+            for (ConversationLog.Entry entry : mPending) {
+                mTail[mCount % TAIL_SIZE] = entry;
+                mCount++;
+            }
+            final List<ConversationLog.Entry> batch = new ArrayList<>(mPending);
+            mPending.clear();
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (mLog == null) {
+                        return;
+                    }
+                    try {
+                        mLog.append(batch);
+                    } catch (IOException e) {
+                        Log.e(TAG, "Cannot write " + mLogFile, e);
+                    }
+                }
+            });
+
+            notifyItemRangeInserted(start, batch.size());
+            if (mRecyclerView != null) {
+                // Like the transcript mode of the ListView this replaces
+                mRecyclerView.scrollToPosition(mCount - 1);
+            }
+        }
+    };
+}
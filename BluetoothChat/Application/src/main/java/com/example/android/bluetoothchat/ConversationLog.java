@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An append-only file of conversation entries that can be read back by position.
+ *
+ * <p>Each entry is stored as a sender and a text, both UTF-8 and prefixed with a varint
+ * length; a sender length of 0 means there is no sender. The file offset of every entry
+ * is kept in memory, so a page of entries is read back with one seek and one read.</p>
+ *
+ * <p>This class does not depend on the Android framework and is not thread safe.</p>
+ */
+public class ConversationLog {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * One line of the conversation.
+     */
+    public static class Entry {
+        /**
+         * Who wrote it, or null for notices such as finished file transfers.
+         */
+        public final String sender;
+        public final String text;
+
+        public Entry(String sender, String text) {
+            this.sender = sender;
+            this.text = text;
+        }
+    }
+
+    private final RandomAccessFile mFile;
+    private long[] mOffsets = new long[256];
+    private int mCount;
+    private long mLength;
+    private byte[] mBuffer = new byte[4096];
+    private int mReadPosition;
+
+    /**
+     * Open the log, discarding whatever the file held before.
+     */
+    public ConversationLog(File file) throws IOException {
+        mFile = new RandomAccessFile(file, "rw");
+        mFile.setLength(0);
+    }
+
+    /**
+     * Return the number of entries in the log.
+     */
+    public int size() {
+        return mCount;
+    }
+
+    /**
+     * Add entries to the end of the log with a single write.
+     */
+    public void append(List<Entry> entries) throws IOException {
+        int length = 0;
+        for (Entry entry : entries) {
+            if (mCount == mOffsets.length) {
+                mOffsets = Arrays.copyOf(mOffsets, mCount * 2);
+            }
+            mOffsets[mCount++] = mLength + length;
+            length = put(entry.sender, length);
+            length = put(entry.text, length);
+        }
+        mFile.seek(mLength);
+        mFile.write(mBuffer, 0, length);
+        mLength += length;
+    }
+
+    /**
+     * Read entries back.
+     *
+     * @param start Position of the first entry to read
+     * @param count Number of entries to read, cut short at the end of the log
+     */
+    public List<Entry> read(int start, int count) throws IOException {
+        int end = Math.min(start + count, mCount);
+        List<Entry> entries = new ArrayList<>(Math.max(end - start, 0));
+        if (start >= end) {
+            return entries;
+        }
+        long from = mOffsets[start];
+        long to = end < mCount ? mOffsets[end] : mLength;
+        int length = (int) (to - from);
+        ensureCapacity(length);
+        mFile.seek(from);
+        mFile.readFully(mBuffer, 0, length);
+
+        mReadPosition = 0;
+        for (int i = start; i < end; i++) {
+            String sender = get();
+            String text = get();
+            entries.add(new Entry(sender, text == null ? "" : text));
+        }
+        return entries;
+    }
+
+    /**
+     * Remove every entry.
+     */
+    public void clear() throws IOException {
+        mFile.setLength(0);
+        mCount = 0;
+        mLength = 0;
+    }
+
+    public void close() throws IOException {
+        mFile.close();
+    }
+
+    private int put(String value, int position) {
+        byte[] bytes = value == null ? null : value.getBytes(UTF_8);
+        // 0 stands for null, so every length is stored plus one
+        int stored = bytes == null ? 0 : bytes.length + 1;
+        ensureCapacity(position + FrameCodec.MAX_VARINT_LENGTH + stored);
+        position = FrameCodec.writeVarint(stored, mBuffer, position);
+        if (bytes != null) {
+            System.arraycopy(bytes, 0, mBuffer, position, bytes.length);
+            position += bytes.length;
+        }
+        return position;
+    }
+
+    private String get() throws IOException {
+        int stored = 0;
+        int shift = 0;
+        int b;
+        do {
+            if (shift >= 7 * FrameCodec.MAX_VARINT_LENGTH) {
+                throw new IOException("Corrupt conversation log");
+            }
+            b = mBuffer[mReadPosition++];
+            stored |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        if (stored == 0) {
+            return null;
+        }
+        String value = new String(mBuffer, mReadPosition, stored - 1, UTF_8);
+        mReadPosition += stored - 1;
+        return value;
+    }
+
+    private void ensureCapacity(int length) {
+        if (mBuffer.length < length) {
+            mBuffer = Arrays.copyOf(mBuffer, Math.max(length, mBuffer.length * 2));
+        }
+    }
+}
@@ -0,0 +1,326 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Devices seen by discovery, keyed by address, so the device list can be shown before a
+ * new discovery has found anything.
+ *
+ * <p>Entries that have not been seen for longer than the time to live are dropped, except
+ * bonded devices, which stay for as long as they are bonded. The cache can be saved to a
+ * file and loaded back on the next launch.</p>
+ *
+ * <p>This class does not depend on the Android framework and is not thread safe.</p>
+ */
+public class DeviceCache {
+
+    /**
+     * Default time after which a device that was not seen again is dropped.
+     */
+    public static final long DEFAULT_TTL_MILLIS = 30 * 60 * 1000L;
+
+    /**
+     * Default number of devices kept. The least recently seen go first.
+     */
+    public static final int DEFAULT_MAX_ENTRIES = 64;
+
+    /**
+     * Signal strength of a device that was never measured.
+     */
+    public static final short RSSI_UNKNOWN = Short.MIN_VALUE;
+
+    // Bumped whenever the file layout changes; older files are ignored
+    private static final int FILE_VERSION = 1;
+
+    /**
+     * What is known about one device. Entries are immutable, so a list of them can be
+     * compared with an older list to find what changed.
+     */
+    public static final class Entry {
+        public final String address;
+        public final String name;
+        public final short rssi;
+        /**
+         * When discovery last found the device, from {@link System#currentTimeMillis()}, or
+         * 0 if it never did.
+         */
+        public final long lastSeen;
+        public final boolean bonded;
+
+        public Entry(String address, String name, short rssi, long lastSeen, boolean bonded) {
+            this.address = address;
+            this.name = name;
+            this.rssi = rssi;
+            this.lastSeen = lastSeen;
+            this.bonded = bonded;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Entry)) {
+                return false;
+            }
+            Entry other = (Entry) o;
+            return address.equals(other.address)
+                    && (name == null ? other.name == null : name.equals(other.name))
+                    && rssi == other.rssi && lastSeen == other.lastSeen
+                    && bonded == other.bonded;
+        }
+
+        @Override
+        public int hashCode() {
+            return address.hashCode();
+        }
+    }
+
+    /**
+     * Strongest signal first, then most recently seen.
+     */
+    private static final Comparator<Entry> BY_SIGNAL = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            if (a.rssi != b.rssi) {
+                return a.rssi > b.rssi ? -1 : 1;
+            }
+            return a.lastSeen == b.lastSeen ? 0 : a.lastSeen > b.lastSeen ? -1 : 1;
+        }
+    };
+
+    private final long mTtlMillis;
+    private final int mMaxEntries;
+    // In the order the devices were last seen, oldest first
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<>();
+
+    public DeviceCache() {
+        this(DEFAULT_TTL_MILLIS, DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * @param ttlMillis  Devices not seen for this long are dropped
+     * @param maxEntries Most devices kept
+     */
+    public DeviceCache(long ttlMillis, int maxEntries) {
+        mTtlMillis = ttlMillis;
+        mMaxEntries = maxEntries;
+    }
+
+    /**
+     * Record that discovery found a device.
+     *
+     * @param name The device name, or null to keep the one already known
+     * @param rssi The signal strength, or {@link #RSSI_UNKNOWN}
+     * @param now  The current time, from {@link System#currentTimeMillis()}
+     * @return the updated entry
+     */
+    public Entry found(String address, String name, short rssi, boolean bonded, long now) {
+        Entry old = mEntries.remove(address);
+        if (old != null) {
+            if (name == null) {
+                name = old.name;
+            }
+            if (rssi == RSSI_UNKNOWN) {
+                rssi = old.rssi;
+            }
+        }
+        Entry entry = new Entry(address, name, rssi, now, bonded);
+        mEntries.put(address, entry);
+        trim();
+        return entry;
+    }
+
+    /**
+     * Bring the bonded flags in line with the devices currently bonded, without touching
+     * when they were last seen.
+     *
+     * @param bonded The name of each bonded device, by address
+     */
+    public void setBonded(Map<String, String> bonded) {
+        List<Entry> changed = new ArrayList<>();
+        for (Entry entry : mEntries.values()) {
+            if (entry.bonded != bonded.containsKey(entry.address)) {
+                changed.add(entry);
+            }
+        }
+        for (Entry entry : changed) {
+            mEntries.put(entry.address, new Entry(entry.address, entry.name, entry.rssi,
+                    entry.lastSeen, !entry.bonded));
+        }
+        for (Map.Entry<String, String> device : bonded.entrySet()) {
+            Entry entry = mEntries.get(device.getKey());
+            if (entry == null) {
+                // Never seen, so it goes with the oldest entries
+                mEntries.put(device.getKey(), new Entry(device.getKey(), device.getValue(),
+                        RSSI_UNKNOWN, 0, true));
+            } else if (device.getValue() != null && !device.getValue().equals(entry.name)) {
+                mEntries.put(entry.address, new Entry(entry.address, device.getValue(),
+                        entry.rssi, entry.lastSeen, true));
+            }
+        }
+    }
+
+    /**
+     * Drop the devices that were not seen within the time to live.
+     *
+     * @param now The current time, from {@link System#currentTimeMillis()}
+     * @return the number of devices dropped
+     */
+    public int evictExpired(long now) {
+        int evicted = 0;
+        Iterator<Entry> it = mEntries.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (!entry.bonded && now - entry.lastSeen > mTtlMillis) {
+                it.remove();
+                evicted++;
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * Return the bonded or the other devices, strongest signal first.
+     */
+    public List<Entry> getEntries(boolean bonded) {
+        List<Entry> entries = new ArrayList<>();
+        for (Entry entry : mEntries.values()) {
+            if (entry.bonded == bonded) {
+                entries.add(entry);
+            }
+        }
+        Collections.sort(entries, BY_SIGNAL);
+        return entries;
+    }
+
+    public int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * Add the devices of another cache that this one does not know yet, as seen before
+     * any of its own. Used to merge a cache loaded in the background into one that
+     * discovery has been filling meanwhile.
+     */
+    public void addOlder(DeviceCache older) {
+        List<Entry> newer = new ArrayList<>(mEntries.values());
+        mEntries.clear();
+        for (Entry entry : older.mEntries.values()) {
+            mEntries.put(entry.address, entry);
+        }
+        for (Entry entry : newer) {
+            mEntries.remove(entry.address);
+            mEntries.put(entry.address, entry);
+        }
+        trim();
+    }
+
+    /**
+     * Return a copy of the cache, for example to save it on another thread.
+     */
+    public DeviceCache copy() {
+        DeviceCache copy = new DeviceCache(mTtlMillis, mMaxEntries);
+        copy.mEntries.putAll(mEntries);
+        return copy;
+    }
+
+    /**
+     * Replace the content of the cache with what was saved in a file. A missing or
+     * unreadable file leaves the cache empty.
+     */
+    public void load(File file) throws IOException {
+        mEntries.clear();
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        } catch (FileNotFoundException e) {
+            return;
+        }
+        try {
+            if (in.readInt() != FILE_VERSION) {
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String address = in.readUTF();
+                String name = in.readBoolean() ? in.readUTF() : null;
+                short rssi = in.readShort();
+                long lastSeen = in.readLong();
+                boolean bonded = in.readBoolean();
+                mEntries.put(address, new Entry(address, name, rssi, lastSeen, bonded));
+            }
+        } catch (IOException e) {
+            mEntries.clear();
+            throw e;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Save the cache. The file is replaced in one step, so a crash never leaves half of
+     * it behind.
+     */
+    public void save(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            out.writeInt(FILE_VERSION);
+            out.writeInt(mEntries.size());
+            for (Entry entry : mEntries.values()) {
+                out.writeUTF(entry.address);
+                out.writeBoolean(entry.name != null);
+                if (entry.name != null) {
+                    out.writeUTF(entry.name);
+                }
+                out.writeShort(entry.rssi);
+                out.writeLong(entry.lastSeen);
+                out.writeBoolean(entry.bonded);
+            }
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Cannot replace " + file);
+        }
+    }
+
+    private void trim() {
+        Iterator<Entry> it = mEntries.values().iterator();
+        while (mEntries.size() > mMaxEntries && it.hasNext()) {
+            if (!it.next().bonded) {
+                it.remove();
+            }
+        }
+    }
+}
@@ -26,21 +26,31 @@ import android.content.IntentFilter;
 import android.os.Bundle;
 import android.view.View;
 import android.view.Window;
-import android.widget.AdapterView;
-import android.widget.ArrayAdapter;
 import android.widget.Button;
-import android.widget.ListView;
 import android.widget.TextView;
 
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
+
 import com.example.android.common.logger.Log;
 
-import java.util.Set;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * This Activity appears as a dialog. It lists any paired devices and
  * devices detected in the area after discovery. When a device is chosen
  * by the user, the MAC address of the device is sent back to the parent
  * Activity in the result Intent.
+ *
+ * <p>Devices found by earlier discoveries are kept in a {@link DeviceCache}, so the list
+ * shows them as soon as the file is read, in the background, while a new discovery
+ * refreshes it.</p>
  */
 public class DeviceListActivity extends Activity {
 
@@ -54,15 +64,32 @@ public class DeviceListActivity extends Activity {
      */
     public static String EXTRA_DEVICE_ADDRESS = "device_address";
 
+    /**
+     * Name of the file the device cache is saved in
+     */
+    private static final String CACHE_FILE = "device_cache";
+
     /**
      * Member fields
      */
     private BluetoothAdapter mBtAdapter;
 
     /**
-     * Newly discovered devices
+     * Devices seen before and during this discovery, and the file they are saved in
      */
-    private ArrayAdapter<String> mNewDevicesArrayAdapter;
+    private final DeviceCache mCache = new DeviceCache();
+    private File mCacheFile;
+    // Loads the file, then saves it; one thread, so a save never overtakes the load
+    private final ExecutorService mDiskExecutor = Executors.newSingleThreadExecutor();
+    // Nothing is saved until the file was read, or the devices in it would be lost
+    private boolean mCacheLoaded;
+    private boolean mDestroyed;
+
+    /**
+     * Paired and other devices
+     */
+    private DeviceListAdapter mPairedDevicesAdapter;
+    private DeviceListAdapter mNewDevicesAdapter;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -80,25 +107,23 @@ public class DeviceListActivity extends Activity {
         scanButton.setOnClickListener(new View.OnClickListener() {
             public void onClick(View v) {
                 doDiscovery();
-                v.setVisibility(View.GONE);
             }
         });
 
-        // Initialize array adapters. One for already paired devices and
+        // Initialize adapters. One for already paired devices and
         // one for newly discovered devices
-        ArrayAdapter<String> pairedDevicesArrayAdapter =
-                new ArrayAdapter<>(this, R.layout.device_name);
-        mNewDevicesArrayAdapter = new ArrayAdapter<>(this, R.layout.device_name);
+        mPairedDevicesAdapter = new DeviceListAdapter(mDeviceClickListener);
+        mNewDevicesAdapter = new DeviceListAdapter(mDeviceClickListener);
 
-        // Find and set up the ListView for paired devices
-        ListView pairedListView = findViewById(R.id.paired_devices);
-        pairedListView.setAdapter(pairedDevicesArrayAdapter);
-        pairedListView.setOnItemClickListener(mDeviceClickListener);
+        // Find and set up the RecyclerView for paired devices
+        RecyclerView pairedListView = findViewById(R.id.paired_devices);
+        pairedListView.setLayoutManager(new LinearLayoutManager(this));
+        pairedListView.setAdapter(mPairedDevicesAdapter);
 
-        // Find and set up the ListView for newly discovered devices
-        ListView newDevicesListView = findViewById(R.id.new_devices);
-        newDevicesListView.setAdapter(mNewDevicesArrayAdapter);
-        newDevicesListView.setOnItemClickListener(mDeviceClickListener);
+        // Find and set up the RecyclerView for newly discovered devices
+        RecyclerView newDevicesListView = findViewById(R.id.new_devices);
+        newDevicesListView.setLayoutManager(new LinearLayoutManager(this));
+        newDevicesListView.setAdapter(mNewDevicesAdapter);
 
         // Register for broadcasts when a device is discovered
         IntentFilter filter = new IntentFilter(BluetoothDevice.ACTION_FOUND);
@@ -111,19 +136,14 @@ public class DeviceListActivity extends Activity {
         // Get the local Bluetooth adapter
         mBtAdapter = BluetoothAdapter.getDefaultAdapter();
 
-        // Get a set of currently paired devices
-        Set<BluetoothDevice> pairedDevices = mBtAdapter.getBondedDevices();
+        // Show the paired devices now, and what earlier discoveries found once it is read
+        markBonded();
+        showDevices();
+        mCacheFile = new File(getFilesDir(), CACHE_FILE);
+        loadCache();
 
-        // If there are paired devices, add each one to the ArrayAdapter
-        if (pairedDevices.size() > 0) {
-            findViewById(R.id.title_paired_devices).setVisibility(View.VISIBLE);
-            for (BluetoothDevice device : pairedDevices) {
-                pairedDevicesArrayAdapter.add(device.getName() + "\n" + device.getAddress());
-            }
-        } else {
-            String noDevices = getResources().getText(R.string.none_paired).toString();
-            pairedDevicesArrayAdapter.add(noDevices);
-        }
+        // Refresh the list straight away
+        doDiscovery();
     }
 
     @Override
@@ -137,6 +157,10 @@ public class DeviceListActivity extends Activity {
 
         // Unregister broadcast listeners
         this.unregisterReceiver(mReceiver);
+
+        mDestroyed = true;
+        saveCache();
+        mDiskExecutor.shutdown();
     }
 
     /**
@@ -148,9 +172,7 @@ public class DeviceListActivity extends Activity {
         // Indicate scanning in the title
         setProgressBarIndeterminateVisibility(true);
         setTitle(R.string.scanning);
-
-        // Turn on sub-title for new devices
-        findViewById(R.id.title_new_devices).setVisibility(View.VISIBLE);
+        findViewById(R.id.button_scan).setVisibility(View.GONE);
 
         // If we're already discovering, stop it
         if (mBtAdapter.isDiscovering()) {
@@ -162,21 +184,101 @@ public class DeviceListActivity extends Activity {
     }
 
     /**
-     * The on-click listener for all devices in the ListViews
+     * Hand the cached devices to the adapters, which work out what changed
+     */
+    private void showDevices() {
+        List<DeviceCache.Entry> paired = mCache.getEntries(true);
+        List<DeviceCache.Entry> others = mCache.getEntries(false);
+        mPairedDevicesAdapter.submitList(paired);
+        mNewDevicesAdapter.submitList(others);
+
+        TextView pairedTitle = findViewById(R.id.title_paired_devices);
+        pairedTitle.setText(paired.isEmpty()
+                ? R.string.none_paired : R.string.title_paired_devices);
+        pairedTitle.setVisibility(View.VISIBLE);
+        TextView newTitle = findViewById(R.id.title_new_devices);
+        if (!others.isEmpty()) {
+            newTitle.setText(R.string.title_other_devices);
+        }
+        newTitle.setVisibility(View.VISIBLE);
+    }
+
+    /**
+     * Mark the currently paired devices in the cache
+     */
+    private void markBonded() {
+        Map<String, String> pairedDevices = new HashMap<>();
+        for (BluetoothDevice device : mBtAdapter.getBondedDevices()) {
+            pairedDevices.put(device.getAddress(), device.getName());
+        }
+        mCache.setBonded(pairedDevices);
+    }
+
+    /**
+     * Read the cache file on a background thread, then merge it with what discovery
+     * found meanwhile
+     */
+    private void loadCache() {
+        final File file = mCacheFile;
+        mDiskExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final DeviceCache loaded = new DeviceCache();
+                try {
+                    loaded.load(file);
+                } catch (IOException e) {
+                    Log.e(TAG, "Cannot read " + file, e);
+                }
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        mCacheLoaded = true;
+                        if (mDestroyed) {
+                            return;
+                        }
+                        mCache.addOlder(loaded);
+                        mCache.evictExpired(System.currentTimeMillis());
+                        markBonded();
+                        showDevices();
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Save the cache on a background thread
      */
-    private AdapterView.OnItemClickListener mDeviceClickListener
-            = new AdapterView.OnItemClickListener() {
-        public void onItemClick(AdapterView<?> av, View v, int arg2, long arg3) {
+    private void saveCache() {
+        if (!mCacheLoaded) {
+            return;
+        }
+        final DeviceCache snapshot = mCache.copy();
+        final File file = mCacheFile;
+        mDiskExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    snapshot.save(file);
+                } catch (IOException e) {
+                    Log.e(TAG, "Cannot write " + file, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * The on-click listener for all devices in the lists
+     */
+    private DeviceListAdapter.OnDeviceClickListener mDeviceClickListener
+            = new DeviceListAdapter.OnDeviceClickListener() {
+        public void onDeviceClick(DeviceCache.Entry entry) {
             // Cancel discovery because it's costly and we're about to connect
             mBtAdapter.cancelDiscovery();
 
-            // Get the device MAC address, which is the last 17 chars in the View
-            String info = ((TextView) v).getText().toString();
-            String address = info.substring(info.length() - 17);
-
             // Create the result Intent and include the MAC address
             Intent intent = new Intent();
-            intent.putExtra(EXTRA_DEVICE_ADDRESS, address);
+            intent.putExtra(EXTRA_DEVICE_ADDRESS, entry.address);
 
             // Set result and finish this Activity
             setResult(Activity.RESULT_OK, intent);
@@ -197,18 +299,25 @@ public class DeviceListActivity extends Activity {
             if (BluetoothDevice.ACTION_FOUND.equals(action)) {
                 // Get the BluetoothDevice object from the Intent
                 BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-                // If it's already paired, skip it, because it's been listed already
-                if (device != null && device.getBondState() != BluetoothDevice.BOND_BONDED) {
-                    mNewDevicesArrayAdapter.add(device.getName() + "\n" + device.getAddress());
+                if (device != null) {
+                    // Devices are reported several times per discovery; the cache keeps
+                    // one entry for each and the adapter only redraws what changed
+                    short rssi = intent.getShortExtra(BluetoothDevice.EXTRA_RSSI,
+                            DeviceCache.RSSI_UNKNOWN);
+                    mCache.found(device.getAddress(), device.getName(), rssi,
+                            device.getBondState() == BluetoothDevice.BOND_BONDED,
+                            System.currentTimeMillis());
+                    showDevices();
                 }
                 // When discovery is finished, change the Activity title
             } else if (BluetoothAdapter.ACTION_DISCOVERY_FINISHED.equals(action)) {
                 setProgressBarIndeterminateVisibility(false);
                 setTitle(R.string.select_device);
-                if (mNewDevicesArrayAdapter.getCount() == 0) {
-                    String noDevices = getResources().getText(R.string.none_found).toString();
-                    mNewDevicesArrayAdapter.add(noDevices);
+                findViewById(R.id.button_scan).setVisibility(View.VISIBLE);
+                if (mCache.getEntries(false).isEmpty()) {
+                    ((TextView) findViewById(R.id.title_new_devices)).setText(R.string.none_found);
                 }
+                saveCache();
             }
         }
     };
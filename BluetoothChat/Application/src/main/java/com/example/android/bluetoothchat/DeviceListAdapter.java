@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.DiffUtil;
+import androidx.recyclerview.widget.ListAdapter;
+import androidx.recyclerview.widget.RecyclerView;
+
+/**
+ * Shows {@link DeviceCache} entries. New lists are compared with the one on screen on a
+ * background thread, so only the rows that changed are redrawn.
+ */
+public class DeviceListAdapter
+        extends ListAdapter<DeviceCache.Entry, DeviceListAdapter.ViewHolder> {
+
+    /**
+     * Told which device the user picked.
+     */
+    public interface OnDeviceClickListener {
+        void onDeviceClick(DeviceCache.Entry entry);
+    }
+
+    private static final DiffUtil.ItemCallback<DeviceCache.Entry> DIFF_CALLBACK =
+            new DiffUtil.ItemCallback<DeviceCache.Entry>() {
+                @Override
+                public boolean areItemsTheSame(@NonNull DeviceCache.Entry oldItem,
+                                               @NonNull DeviceCache.Entry newItem) {
+                    return oldItem.address.equals(newItem.address);
+                }
+
+                @Override
+                public boolean areContentsTheSame(@NonNull DeviceCache.Entry oldItem,
+                                                  @NonNull DeviceCache.Entry newItem) {
+                    return oldItem.equals(newItem);
+                }
+            };
+
+    class ViewHolder extends RecyclerView.ViewHolder implements View.OnClickListener {
+        final TextView mmTextView;
+        final StringBuilder mmBuilder = new StringBuilder();
+
+        ViewHolder(TextView textView) {
+            super(textView);
+            mmTextView = textView;
+            textView.setOnClickListener(this);
+        }
+
+        @Override
+        public void onClick(View v) {
+            int position = getAdapterPosition();
+            if (position != RecyclerView.NO_POSITION) {
+                mListener.onDeviceClick(getItem(position));
+            }
+        }
+    }
+
+    private final OnDeviceClickListener mListener;
+
+    public DeviceListAdapter(OnDeviceClickListener listener) {
+        super(DIFF_CALLBACK);
+        mListener = listener;
+    }
+
+    @NonNull
+    @Override
+    public ViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        return new ViewHolder((TextView) LayoutInflater.from(parent.getContext())
+                .inflate(R.layout.device_name, parent, false));
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull ViewHolder holder, int position) {
+        DeviceCache.Entry entry = getItem(position);
+        StringBuilder builder = holder.mmBuilder;
+        builder.setLength(0);
+        builder.append(entry.name != null ? entry.name : entry.address).append('\n')
+                .append(entry.address);
+        if (entry.rssi != DeviceCache.RSSI_UNKNOWN) {
+            builder.append("  ").append(entry.rssi).append(" dBm");
+        }
+        holder.mmTextView.setText(builder);
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import com.example.android.common.logger.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Receives the files peers send with {@link FileSender}.
+ *
+ * <p>Chunks are written with positional writes straight from the frame reader's payload
+ * array into a <code>.part</code> file named after the transfer id, which is renamed once
+ * the last byte has arrived. Because the partial file survives a dropped connection, a
+ * repeated offer for the same id resumes where the previous connection stopped.</p>
+ *
+ * <p>Each method is called on the reader thread of the connection the frame came in on.</p>
+ */
+public class FileReceiver {
+    // Debugging
+    private static final String TAG = "FileReceiver";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static class Incoming {
+        final long id;
+        final String name;
+        final long size;
+        final File partFile;
+        final FileChannel channel;
+        long written;
+        long acked;
+        long resumeOffset;
+        long resumeTime;
+        ByteBuffer wrapper; // wraps the payload array of the reader that delivers chunks
+
+        Incoming(long id, String name, long size, File partFile, FileChannel channel) {
+            this.id = id;
+            this.name = name;
+            this.size = size;
+            this.partFile = partFile;
+            this.channel = channel;
+        }
+    }
+
+    private final File mDirectory;
+    private final FileTransfer.Listener mListener;
+    private final Clock mClock;
+    private final ConcurrentHashMap<Long, Incoming> mIncoming = new ConcurrentHashMap<>();
+
+    /**
+     * @param directory Where received files are saved
+     * @param listener  Notified of progress and of the outcome
+     */
+    public FileReceiver(File directory, FileTransfer.Listener listener) {
+        this(directory, listener, Clock.SYSTEM);
+    }
+
+    FileReceiver(File directory, FileTransfer.Listener listener, Clock clock) {
+        mDirectory = directory;
+        mListener = listener;
+        mClock = clock;
+    }
+
+    /**
+     * Handle a {@link FrameCodec#TYPE_FILE_OFFER} frame by answering with the number of
+     * bytes already held for it.
+     */
+    public void onOffer(ConnectedThread connection, byte[] payload, int length) {
+        if (length < FileTransfer.HEADER_LENGTH) {
+            Log.w(TAG, "Ignoring short offer of " + length + " bytes");
+            return;
+        }
+        long id = FileTransfer.getLong(payload, 0);
+        long size = FileTransfer.getLong(payload, 8);
+        String name = new String(payload, FileTransfer.HEADER_LENGTH,
+                length - FileTransfer.HEADER_LENGTH, UTF_8);
+
+        Incoming incoming = mIncoming.get(id);
+        if (incoming == null) {
+            try {
+                incoming = open(id, name, size);
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot receive " + name, e);
+                mListener.onTransferFailed(id, name, true, e);
+                return;
+            }
+            Incoming existing = mIncoming.putIfAbsent(id, incoming);
+            if (existing != null) {
+                closeQuietly(incoming);
+                incoming = existing;
+            }
+        }
+        synchronized (incoming) {
+            incoming.resumeOffset = incoming.written;
+            incoming.resumeTime = mClock.elapsedRealtime();
+            if (incoming.written == incoming.size) {
+                finish(connection, incoming);
+            } else {
+                acknowledge(connection, incoming);
+            }
+        }
+    }
+
+    /**
+     * Handle a {@link FrameCodec#TYPE_FILE_CHUNK} frame.
+     */
+    public void onChunk(ConnectedThread connection, byte[] payload, int length) {
+        if (length < FileTransfer.HEADER_LENGTH) {
+            Log.w(TAG, "Ignoring short chunk of " + length + " bytes");
+            return;
+        }
+        Incoming incoming = mIncoming.get(FileTransfer.getLong(payload, 0));
+        if (incoming == null) {
+            return;
+        }
+        long offset = FileTransfer.getLong(payload, 8);
+        synchronized (incoming) {
+            long end = offset + length - FileTransfer.HEADER_LENGTH;
+            // Chunks past a gap are dropped; the sender goes back and fills it first
+            if (offset > incoming.written || end <= incoming.written
+                    || end > incoming.size) {
+                return;
+            }
+            ByteBuffer buffer = incoming.wrapper;
+            if (buffer == null || buffer.array() != payload) {
+                buffer = ByteBuffer.wrap(payload);
+                incoming.wrapper = buffer;
+            }
+            // Skip whatever part of a resent chunk is already on disk
+            buffer.limit(length);
+            buffer.position(FileTransfer.HEADER_LENGTH
+                    + (int) (incoming.written - offset));
+            try {
+                while (buffer.hasRemaining()) {
+                    incoming.written += incoming.channel.write(buffer, incoming.written);
+                }
+            } catch (IOException e) {
+                fail(incoming, e);
+                return;
+            }
+            if (incoming.written == incoming.size) {
+                finish(connection, incoming);
+            } else if (incoming.written - incoming.acked >= FileTransfer.ACK_INTERVAL) {
+                acknowledge(connection, incoming);
+            }
+        }
+    }
+
+    /**
+     * Close every partial file. They are kept, so the transfers can still resume later.
+     */
+    public void closeAll() {
+        for (Incoming incoming : new ArrayList<>(mIncoming.values())) {
+            synchronized (incoming) {
+                mIncoming.remove(incoming.id, incoming);
+                closeQuietly(incoming);
+            }
+        }
+    }
+
+    private Incoming open(long id, String name, long size) throws IOException {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Cannot create " + mDirectory);
+        }
+        File partFile = new File(mDirectory, Long.toHexString(id) + ".part");
+        FileChannel channel = new RandomAccessFile(partFile, "rw").getChannel();
+        Incoming incoming = new Incoming(id, name, size, partFile, channel);
+        try {
+            incoming.written = channel.size();
+            if (incoming.written > size) {
+                channel.truncate(0);
+                incoming.written = 0;
+            }
+        } catch (IOException e) {
+            closeQuietly(incoming);
+            throw e;
+        }
+        return incoming;
+    }
+
+    private void acknowledge(ConnectedThread connection, Incoming incoming) {
+        byte[] ack = new byte[FileTransfer.HEADER_LENGTH];
+        FileTransfer.writeHeader(ack, incoming.id, incoming.written);
+        connection.write(FrameCodec.TYPE_FILE_ACK, ack, null);
+        incoming.acked = incoming.written;
+
+        long elapsed = mClock.elapsedRealtime() - incoming.resumeTime;
+        long bytesPerSecond = elapsed > 0
+                ? (incoming.written - incoming.resumeOffset) * 1000 / elapsed : 0;
+        mListener.onTransferProgress(incoming.id, incoming.name, true, incoming.written,
+                incoming.size, bytesPerSecond);
+    }
+
+    private void finish(ConnectedThread connection, Incoming incoming) {
+        mIncoming.remove(incoming.id, incoming);
+        File file;
+        try {
+            incoming.channel.close();
+            file = uniqueFile(incoming.name);
+            if (!incoming.partFile.renameTo(file)) {
+                throw new IOException("Cannot rename " + incoming.partFile + " to " + file);
+            }
+        } catch (IOException e) {
+            fail(incoming, e);
+            return;
+        }
+        acknowledge(connection, incoming);
+        mListener.onTransferComplete(incoming.id, incoming.name, true, file);
+    }
+
+    private void fail(Incoming incoming, IOException e) {
+        Log.e(TAG, "Receiving " + incoming.name + " failed", e);
+        mIncoming.remove(incoming.id, incoming);
+        closeQuietly(incoming);
+        mListener.onTransferFailed(incoming.id, incoming.name, true, e);
+    }
+
+    /**
+     * Return a file in the destination directory for the given name that does not exist
+     * yet. The name comes from the peer, so anything that could leave the directory is
+     * stripped from it.
+     */
+    private File uniqueFile(String name) {
+        String base = name.replaceAll("[/\\\\:\\x00-\\x1f]", "_");
+        if (base.isEmpty() || base.startsWith(".")) {
+            base = "received" + base;
+        }
+        File file = new File(mDirectory, base);
+        int dot = base.lastIndexOf('.');
+        String stem = dot > 0 ? base.substring(0, dot) : base;
+        String extension = dot > 0 ? base.substring(dot) : "";
+        for (int i = 1; file.exists(); i++) {
+            file = new File(mDirectory, stem + "-" + i + extension);
+        }
+        return file;
+    }
+
+    private static void closeQuietly(Incoming incoming) {
+        try {
+            incoming.channel.close();
+        } catch (IOException e) {
+            Log.e(TAG, "close() of " + incoming.partFile + " failed", e);
+        }
+    }
+}
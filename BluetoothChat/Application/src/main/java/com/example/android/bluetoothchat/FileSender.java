@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import com.example.android.common.logger.Log;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Streams one file to a peer over whichever {@link ConnectedThread} it is attached to.
+ *
+ * <p>Chunks are read with positional reads from a {@link FileChannel} into a few buffers
+ * that are reused for the whole transfer, and at most {@link FileTransfer#WINDOW_SIZE}
+ * bytes are unacknowledged at any time. When the connection is lost the sender waits;
+ * attaching it to a new connection offers the file again and the transfer resumes from
+ * the last byte the receiver wrote.</p>
+ */
+public class FileSender {
+    // Debugging
+    private static final String TAG = "FileSender";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final long mId;
+    private final String mName;
+    private final long mSize;
+    private final FileChannel mChannel;
+    private final FileTransfer.Listener mListener;
+    private final Clock mClock;
+    private final Thread mThread;
+
+    // One buffer per chunk that fits in the window, each holding a header and a chunk
+    private final ByteBuffer[] mBuffers;
+    private int mFreeBuffers;
+
+    // Guarded by this
+    private ConnectedThread mConnection;
+    private long mAcked = -1; // -1 until the receiver answers the offer
+    private long mSent;
+    private long mLastAckTime;
+    private long mResumeOffset;
+    private long mResumeTime;
+    private boolean mCancelled;
+
+    /**
+     * @param id       Identifies the transfer; must not be reused for another file
+     * @param name     The name the receiver should save the file under
+     * @param size     Number of bytes to send, starting at position 0 of the channel
+     * @param channel  The file to send. It is closed when the transfer ends.
+     * @param listener Notified of progress and of the outcome
+     */
+    public FileSender(long id, String name, long size, FileChannel channel,
+                      FileTransfer.Listener listener) {
+        this(id, name, size, channel, listener, Clock.SYSTEM);
+    }
+
+    FileSender(long id, String name, long size, FileChannel channel,
+               FileTransfer.Listener listener, Clock clock) {
+        mId = id;
+        mName = name;
+        mSize = size;
+        mChannel = channel;
+        mListener = listener;
+        mClock = clock;
+        mBuffers = new ByteBuffer[FileTransfer.WINDOW_SIZE / FileTransfer.CHUNK_SIZE];
+        for (int i = 0; i < mBuffers.length; i++) {
+            mBuffers[i] = ByteBuffer.allocate(
+                    FileTransfer.HEADER_LENGTH + FileTransfer.CHUNK_SIZE);
+        }
+        mFreeBuffers = mBuffers.length;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                send();
+            }
+        }, "FileSendThread");
+    }
+
+    public long getId() {
+        return mId;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Start the sending thread. Nothing is sent until a connection is attached.
+     */
+    public void start() {
+        mThread.start();
+    }
+
+    /**
+     * Send over the given connection from now on, offering the file first. Replaces any
+     * connection attached before.
+     */
+    public void attach(ConnectedThread connection) {
+        synchronized (this) {
+            if (mCancelled) {
+                return;
+            }
+            mConnection = connection;
+            mAcked = -1;
+            notifyAll();
+        }
+        byte[] name = mName.getBytes(UTF_8);
+        byte[] offer = new byte[FileTransfer.HEADER_LENGTH + name.length];
+        FileTransfer.writeHeader(offer, mId, mSize);
+        System.arraycopy(name, 0, offer, FileTransfer.HEADER_LENGTH, name.length);
+        connection.write(FrameCodec.TYPE_FILE_OFFER, offer, null);
+    }
+
+    /**
+     * Stop sending over the given connection, if it is still the attached one. The
+     * transfer waits for {@link #attach}.
+     */
+    public synchronized void detach(ConnectedThread connection) {
+        if (mConnection == connection) {
+            mConnection = null;
+            mAcked = -1;
+        }
+    }
+
+    /**
+     * Handle a {@link FrameCodec#TYPE_FILE_ACK} payload meant for this transfer.
+     */
+    public void onAck(ConnectedThread connection, long offset) {
+        long transferred;
+        long bytesPerSecond;
+        synchronized (this) {
+            if (connection != mConnection || offset > mSize) {
+                return;
+            }
+            long now = mClock.elapsedRealtime();
+            if (mAcked < 0) {
+                // The answer to an offer: start, or resume, from what the receiver has
+                mSent = offset;
+                mResumeOffset = offset;
+                mResumeTime = now;
+            } else if (offset <= mAcked) {
+                return;
+            }
+            mAcked = offset;
+            mLastAckTime = now;
+            transferred = mAcked;
+            long elapsed = now - mResumeTime;
+            bytesPerSecond = elapsed > 0 ? (mAcked - mResumeOffset) * 1000 / elapsed : 0;
+            notifyAll();
+        }
+        mListener.onTransferProgress(mId, mName, false, transferred, mSize, bytesPerSecond);
+    }
+
+    /**
+     * Abandon the transfer. The listener is told it failed.
+     */
+    public synchronized void cancel() {
+        mCancelled = true;
+        notifyAll();
+    }
+
+    private void send() {
+        IOException failure = null;
+        try {
+            while (true) {
+                ByteBuffer buffer;
+                ConnectedThread connection;
+                long offset;
+                int length;
+                synchronized (this) {
+                    if (!awaitWindow()) {
+                        break;
+                    }
+                    buffer = mBuffers[--mFreeBuffers];
+                    connection = mConnection;
+                    offset = mSent;
+                    length = (int) Math.min(FileTransfer.CHUNK_SIZE, mSize - offset);
+                    mSent += length;
+                }
+                readChunk(buffer, offset, length);
+                connection.write(FrameCodec.TYPE_FILE_CHUNK, buffer.array(),
+                        FileTransfer.HEADER_LENGTH + length, mChunkCallback);
+            }
+        } catch (IOException e) {
+            failure = e;
+        } catch (InterruptedException e) {
+            failure = new IOException("Interrupted");
+        }
+
+        try {
+            mChannel.close();
+        } catch (IOException e) {
+            Log.e(TAG, "close() of file failed", e);
+        }
+        synchronized (this) {
+            if (failure == null && mAcked < mSize) {
+                failure = new IOException("Cancelled");
+            }
+        }
+        if (failure == null) {
+            mListener.onTransferComplete(mId, mName, false, null);
+        } else {
+            Log.e(TAG, "Transfer of " + mName + " failed", failure);
+            mListener.onTransferFailed(mId, mName, false, failure);
+        }
+    }
+
+    /**
+     * Wait until a chunk may be sent, going back to the last acknowledged byte if the
+     * receiver has gone quiet.
+     *
+     * @return false once the transfer is finished or cancelled
+     */
+    private boolean awaitWindow() throws InterruptedException {
+        while (!mCancelled && mAcked < mSize) {
+            if (mConnection != null && mAcked >= 0) {
+                if (mSent < mSize && mSent - mAcked < FileTransfer.WINDOW_SIZE
+                        && mFreeBuffers > 0) {
+                    return true;
+                }
+                long quiet = mClock.elapsedRealtime() - mLastAckTime;
+                if (mSent > mAcked && quiet >= FileTransfer.ACK_TIMEOUT_MILLIS) {
+                    Log.w(TAG, "No acknowledgement for " + quiet + "ms, resending from "
+                            + mAcked);
+                    mSent = mAcked;
+                    mLastAckTime += quiet;
+                    continue;
+                }
+                wait(FileTransfer.ACK_TIMEOUT_MILLIS);
+            } else {
+                wait();
+            }
+        }
+        return false;
+    }
+
+    private void readChunk(ByteBuffer buffer, long offset, int length) throws IOException {
+        FileTransfer.writeHeader(buffer.array(), mId, offset);
+        buffer.limit(FileTransfer.HEADER_LENGTH + length);
+        buffer.position(FileTransfer.HEADER_LENGTH);
+        while (buffer.hasRemaining()) {
+            int n = mChannel.read(buffer, offset + buffer.position()
+                    - FileTransfer.HEADER_LENGTH);
+            if (n < 0) {
+                throw new EOFException("File ended at " + (offset + buffer.position()
+                        - FileTransfer.HEADER_LENGTH) + " of " + mSize + " bytes");
+            }
+        }
+    }
+
+    /**
+     * Hands buffers back once the write queue is done with them. A chunk that could not
+     * be written makes the sender go back to the last acknowledged byte.
+     */
+    private final WriteQueue.Callback mChunkCallback = new WriteQueue.Callback() {
+        @Override
+        public void onWriteComplete(byte[] payload, boolean success) {
+            synchronized (FileSender.this) {
+                for (int i = mFreeBuffers; i < mBuffers.length; i++) {
+                    if (mBuffers[i].array() == payload) {
+                        ByteBuffer buffer = mBuffers[i];
+                        mBuffers[i] = mBuffers[mFreeBuffers];
+                        mBuffers[mFreeBuffers++] = buffer;
+                        break;
+                    }
+                }
+                if (!success && mAcked >= 0) {
+                    mSent = mAcked;
+                }
+                FileSender.this.notifyAll();
+            }
+        }
+    };
+}
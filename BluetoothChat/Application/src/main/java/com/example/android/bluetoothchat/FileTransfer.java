@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * The file transfer protocol spoken by {@link FileSender} and {@link FileReceiver}.
+ *
+ * <p>A transfer is identified by a 64-bit id chosen by the sender. All numbers are big
+ * endian.</p>
+ *
+ * <pre>
+ * TYPE_FILE_OFFER  id (8) | size (8) | name (UTF-8)   sender to receiver
+ * TYPE_FILE_ACK    id (8) | offset (8)                receiver to sender
+ * TYPE_FILE_CHUNK  id (8) | offset (8) | data         sender to receiver
+ * </pre>
+ *
+ * <p>The receiver answers every offer with the number of bytes it already holds for that
+ * id, which is zero for a new transfer, and the sender streams chunks from there. When a
+ * connection drops and comes back, the sender offers the file again and picks up from
+ * the last byte the receiver wrote. Acknowledgements also limit how much data is in
+ * flight.</p>
+ */
+public final class FileTransfer {
+
+    /**
+     * Size of the header that starts every message.
+     */
+    public static final int HEADER_LENGTH = 16;
+
+    /**
+     * Bytes of file data per chunk.
+     */
+    public static final int CHUNK_SIZE = 16 * 1024;
+
+    /**
+     * The receiver acknowledges at least every this many bytes.
+     */
+    public static final int ACK_INTERVAL = 32 * 1024;
+
+    /**
+     * Most unacknowledged bytes a sender keeps in flight. Larger than
+     * {@link #ACK_INTERVAL} so the sender never stalls waiting for an acknowledgement
+     * that is not due yet, and smaller than {@link WriteQueue#DEFAULT_HIGH_WATER_MARK} so a
+     * whole window fits in the write queue.
+     */
+    public static final int WINDOW_SIZE = ACK_INTERVAL + CHUNK_SIZE;
+
+    /**
+     * A sender that hears nothing for this long sends everything after the last
+     * acknowledged byte again.
+     */
+    public static final long ACK_TIMEOUT_MILLIS = 5000;
+
+    /**
+     * Reports the progress of transfers in both directions. Called on connection
+     * threads.
+     */
+    public interface Listener {
+        /**
+         * @param incoming       Whether this device is receiving the file
+         * @param transferred    Bytes the receiver holds so far
+         * @param size           Size of the file
+         * @param bytesPerSecond Average rate since the transfer, or its resumption, began
+         */
+        void onTransferProgress(long id, String name, boolean incoming, long transferred,
+                                long size, long bytesPerSecond);
+
+        /**
+         * @param file The received file, or null when sending
+         */
+        void onTransferComplete(long id, String name, boolean incoming, File file);
+
+        void onTransferFailed(long id, String name, boolean incoming, IOException e);
+    }
+
+    private FileTransfer() {
+    }
+
+    /**
+     * Write the id and offset header at the start of a message.
+     */
+    public static void writeHeader(byte[] buffer, long id, long offset) {
+        putLong(buffer, 0, id);
+        putLong(buffer, 8, offset);
+    }
+
+    public static void putLong(byte[] buffer, int index, long value) {
+        for (int i = 7; i >= 0; i--) {
+            buffer[index + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    public static long getLong(byte[] buffer, int index) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (buffer[index + i] & 0xFF);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+/**
+ * Wire format shared by {@link FrameReader} and {@link FrameWriter}.
+ *
+ * <p>RFCOMM is a byte stream, so message boundaries are not preserved between the
+ * two ends. Every message is therefore sent as a frame:</p>
+ *
+ * <pre>
+ * +-----------------+-----------+------------------------+
+ * | length (varint) | type (u8) | payload (length bytes) |
+ * +-----------------+-----------+------------------------+
+ * </pre>
+ *
+ * <p>The length is an unsigned LEB128 varint holding the payload size only.</p>
+ */
+public final class FrameCodec {
+
+    // Frame types
+    public static final int TYPE_TEXT = 1;
+    public static final int TYPE_PING = 2; // the receiver answers with TYPE_PONG
+    public static final int TYPE_PONG = 3; // carries the payload of the TYPE_PING it answers
+    public static final int TYPE_FILE_OFFER = 4; // see FileTransfer for these three
+    public static final int TYPE_FILE_ACK = 5;
+    public static final int TYPE_FILE_CHUNK = 6;
+    public static final int TYPE_HELLO = 7; // one byte of FEATURE_ flags, sent on connecting
+    public static final int TYPE_TEXT_DEFLATE = 8; // a TYPE_TEXT, see MessageCompressor
+
+    // Features announced in TYPE_HELLO
+    public static final int FEATURE_DEFLATE = 1; // can read TYPE_TEXT_DEFLATE
+
+    /**
+     * Largest payload accepted by default. Anything bigger is treated as a corrupt stream.
+     */
+    public static final int DEFAULT_MAX_PAYLOAD_LENGTH = 4 * 1024 * 1024;
+
+    /**
+     * A varint holding a 32-bit value never needs more than five bytes.
+     */
+    public static final int MAX_VARINT_LENGTH = 5;
+
+    /**
+     * Length of the largest possible frame header.
+     */
+    public static final int MAX_HEADER_LENGTH = MAX_VARINT_LENGTH + 1;
+
+    private FrameCodec() {
+    }
+
+    /**
+     * Return whether frames of the given type keep the protocol going rather than carry
+     * data: they are small, often sent from the reader thread, and the other end waits
+     * for them, so {@link WriteQueue} never holds them back.
+     */
+    public static boolean isControl(int type) {
+        return type == TYPE_HELLO || type == TYPE_PONG || type == TYPE_FILE_OFFER
+                || type == TYPE_FILE_ACK;
+    }
+
+    /**
+     * Return the number of bytes needed to encode the given value as a varint.
+     */
+    public static int varintLength(int value) {
+        int length = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            length++;
+        }
+        return length;
+    }
+
+    /**
+     * Encode a value as an unsigned varint.
+     *
+     * @param value  The value to encode
+     * @param dst    Destination array
+     * @param offset Position in dst to start writing at
+     * @return The position in dst just past the encoded value
+     */
+    public static int writeVarint(int value, byte[] dst, int offset) {
+        while ((value & ~0x7F) != 0) {
+            dst[offset++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        dst[offset++] = (byte) value;
+        return offset;
+    }
+
+    /**
+     * Encode a frame header.
+     *
+     * @param type          The frame type
+     * @param payloadLength The number of payload bytes that follow the header
+     * @param dst           Destination array, at least {@link #MAX_HEADER_LENGTH} long
+     * @param offset        Position in dst to start writing at
+     * @return The position in dst just past the header
+     */
+    public static int writeHeader(int type, int payloadLength, byte[] dst, int offset) {
+        offset = writeVarint(payloadLength, dst, offset);
+        dst[offset++] = (byte) type;
+        return offset;
+    }
+}
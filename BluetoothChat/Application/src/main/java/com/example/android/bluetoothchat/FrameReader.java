@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Rebuilds whole {@link FrameCodec} frames from a byte stream.
+ *
+ * <p>Bytes are read from the stream into a fixed ring buffer and payloads are copied
+ * out of it into a payload array that is reused from frame to frame, so no memory is
+ * allocated per read once the payload array has grown to the largest frame seen.
+ * Payloads bigger than the ring are read straight into the payload array.</p>
+ *
+ * <p>This class does not depend on the Android framework, so it works on any
+ * {@link InputStream}. It is not thread safe; it is meant to be owned by one reader
+ * thread.</p>
+ */
+public class FrameReader {
+
+    /**
+     * Default ring size. RFCOMM rarely delivers more than this in one read.
+     */
+    public static final int DEFAULT_RING_SIZE = 4096;
+
+    private final InputStream mInStream;
+    private final int mMaxPayloadLength;
+
+    // The ring buffer; its length is a power of two so positions wrap with a mask
+    private final byte[] mRing;
+    private final int mMask;
+    private int mReadPos;
+    private int mCount;
+
+    // The most recently completed frame, which mFrame points at unless it was inflated
+    private byte[] mPayload;
+    private byte[] mFrame;
+    private int mPayloadLength;
+    private int mType;
+    private MessageCompressor mCompressor;
+
+    public FrameReader(InputStream in) {
+        this(in, DEFAULT_RING_SIZE, FrameCodec.DEFAULT_MAX_PAYLOAD_LENGTH);
+    }
+
+    /**
+     * @param in               The stream to read frames from
+     * @param ringSize         Size of the ring buffer, rounded up to a power of two
+     * @param maxPayloadLength Frames announcing a bigger payload are rejected
+     */
+    public FrameReader(InputStream in, int ringSize, int maxPayloadLength) {
+        if (ringSize < FrameCodec.MAX_HEADER_LENGTH) {
+            throw new IllegalArgumentException("ringSize too small: " + ringSize);
+        }
+        int capacity = Integer.highestOneBit(ringSize);
+        if (capacity < ringSize) {
+            capacity <<= 1;
+        }
+        mInStream = in;
+        mMaxPayloadLength = maxPayloadLength;
+        mRing = new byte[capacity];
+        mMask = capacity - 1;
+        mPayload = new byte[Math.min(capacity, maxPayloadLength)];
+        mFrame = mPayload;
+    }
+
+    /**
+     * Inflate {@link FrameCodec#TYPE_TEXT_DEFLATE} frames and return them as
+     * {@link FrameCodec#TYPE_TEXT}.
+     *
+     * @param compressor The compressor to use, or null to return such frames as they are
+     */
+    public void setCompressor(MessageCompressor compressor) {
+        mCompressor = compressor;
+    }
+
+    /**
+     * Block until the next whole frame has been read.
+     *
+     * @return true if a frame is available through {@link #getType()} and
+     * {@link #getPayload()}, or false if the stream ended cleanly between two frames
+     * @throws EOFException if the stream ended in the middle of a frame
+     * @throws IOException  if the stream failed or the frame header is corrupt
+     */
+    public boolean readFrame() throws IOException {
+        // The payload length is a varint; an end of stream before its first byte is clean
+        if (mCount == 0 && !fill()) {
+            return false;
+        }
+        int length = 0;
+        int shift = 0;
+        int b;
+        do {
+            if (shift >= 7 * FrameCodec.MAX_VARINT_LENGTH) {
+                throw new IOException("Malformed frame length");
+            }
+            b = readByte();
+            length |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+
+        if (length < 0 || length > mMaxPayloadLength) {
+            throw new IOException("Frame too large: " + (length & 0xFFFFFFFFL));
+        }
+        mType = readByte();
+
+        if (mPayload.length < length) {
+            mPayload = new byte[Math.min(Math.max(length, mPayload.length * 2),
+                    mMaxPayloadLength)];
+        }
+        readPayload(length);
+        mFrame = mPayload;
+        mPayloadLength = length;
+
+        if (mType == FrameCodec.TYPE_TEXT_DEFLATE && mCompressor != null) {
+            mPayloadLength = mCompressor.inflate(mPayload, length, mMaxPayloadLength);
+            mFrame = mCompressor.getInflated();
+            mType = FrameCodec.TYPE_TEXT;
+        }
+        return true;
+    }
+
+    /**
+     * Return the type of the most recently read frame.
+     */
+    public int getType() {
+        return mType;
+    }
+
+    /**
+     * Return the array holding the most recently read payload. The array is reused,
+     * so its content is only valid until the next call to {@link #readFrame()}.
+     */
+    public byte[] getPayload() {
+        return mFrame;
+    }
+
+    /**
+     * Return the number of valid bytes in {@link #getPayload()}.
+     */
+    public int getPayloadLength() {
+        return mPayloadLength;
+    }
+
+    private void readPayload(int length) throws IOException {
+        int offset = 0;
+        while (offset < length) {
+            int remaining = length - offset;
+            if (mCount == 0) {
+                if (remaining >= mRing.length) {
+                    // Large payload: bypass the ring and read straight into place
+                    int n = mInStream.read(mPayload, offset, remaining);
+                    if (n < 0) {
+                        throw new EOFException("Stream ended inside a frame payload");
+                    }
+                    offset += n;
+                    continue;
+                }
+                if (!fill()) {
+                    throw new EOFException("Stream ended inside a frame payload");
+                }
+            }
+            int chunk = Math.min(Math.min(mCount, remaining), mRing.length - mReadPos);
+            System.arraycopy(mRing, mReadPos, mPayload, offset, chunk);
+            mReadPos = (mReadPos + chunk) & mMask;
+            mCount -= chunk;
+            offset += chunk;
+        }
+    }
+
+    private int readByte() throws IOException {
+        if (mCount == 0 && !fill()) {
+            throw new EOFException("Stream ended inside a frame header");
+        }
+        int b = mRing[mReadPos] & 0xFF;
+        mReadPos = (mReadPos + 1) & mMask;
+        mCount--;
+        return b;
+    }
+
+    /**
+     * Read as much as the stream has available into the free, contiguous part of the
+     * ring. Blocks until at least one byte is read.
+     *
+     * @return false at the end of the stream
+     */
+    private boolean fill() throws IOException {
+        int writePos = (mReadPos + mCount) & mMask;
+        int free = Math.min(mRing.length - mCount, mRing.length - writePos);
+        int n;
+        do {
+            n = mInStream.read(mRing, writePos, free);
+        } while (n == 0);
+        if (n < 0) {
+            return false;
+        }
+        mCount += n;
+        return true;
+    }
+}
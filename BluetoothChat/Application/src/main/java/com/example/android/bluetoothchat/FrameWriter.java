@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes {@link FrameCodec} frames to a byte stream.
+ *
+ * <p>Small frames are assembled in a reused buffer so that the header and payload go
+ * out in a single write; larger frames are written as a header followed by the payload,
+ * without copying it.</p>
+ *
+ * <p>This class does not depend on the Android framework and is not thread safe.</p>
+ */
+public class FrameWriter {
+
+    /**
+     * Frames up to this size are copied and written in one call.
+     */
+    public static final int DEFAULT_COALESCE_SIZE = 1024;
+
+    private final OutputStream mOutStream;
+    private final int mMaxPayloadLength;
+    private final byte[] mBuffer;
+    private MessageCompressor mCompressor;
+
+    public FrameWriter(OutputStream out) {
+        this(out, DEFAULT_COALESCE_SIZE, FrameCodec.DEFAULT_MAX_PAYLOAD_LENGTH);
+    }
+
+    /**
+     * @param out              The stream to write frames to
+     * @param coalesceSize     Frames up to this size are written in one call
+     * @param maxPayloadLength Bigger payloads are refused
+     */
+    public FrameWriter(OutputStream out, int coalesceSize, int maxPayloadLength) {
+        mOutStream = out;
+        mMaxPayloadLength = maxPayloadLength;
+        mBuffer = new byte[Math.max(coalesceSize, FrameCodec.MAX_HEADER_LENGTH)];
+    }
+
+    /**
+     * Send {@link FrameCodec#TYPE_TEXT} frames compressed where the compressor finds it
+     * worthwhile.
+     *
+     * @param compressor The compressor to use, or null to send everything as it is
+     */
+    public void setCompressor(MessageCompressor compressor) {
+        mCompressor = compressor;
+    }
+
+    /**
+     * Write one frame.
+     *
+     * @param type    The frame type
+     * @param payload Array holding the payload
+     * @param offset  Start of the payload in the array
+     * @param length  Number of payload bytes
+     */
+    public void writeFrame(int type, byte[] payload, int offset, int length)
+            throws IOException {
+        if (type == FrameCodec.TYPE_TEXT && mCompressor != null) {
+            int compressedLength = mCompressor.compress(payload, offset, length);
+            if (compressedLength >= 0) {
+                type = FrameCodec.TYPE_TEXT_DEFLATE;
+                payload = mCompressor.getCompressed();
+                offset = 0;
+                length = compressedLength;
+            }
+        }
+        if (length < 0 || length > mMaxPayloadLength) {
+            throw new IOException("Frame too large: " + length);
+        }
+        int headerLength = FrameCodec.writeHeader(type, length, mBuffer, 0);
+        if (headerLength + length <= mBuffer.length) {
+            System.arraycopy(payload, offset, mBuffer, headerLength, length);
+            mOutStream.write(mBuffer, 0, headerLength + length);
+        } else {
+            mOutStream.write(mBuffer, 0, headerLength);
+            mOutStream.write(payload, offset, length);
+        }
+    }
+
+    /**
+     * Flush the underlying stream.
+     */
+    public void flush() throws IOException {
+        mOutStream.flush();
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+
+/**
+ * Two {@link PeerSocket}s joined by in-memory pipes: whatever is written to one is read
+ * from the other. Stands in for an RFCOMM link where there is no radio, such as on the
+ * JVM.
+ */
+public class LoopbackSocketPair {
+
+    private static final int PIPE_SIZE = 64 * 1024;
+
+    private final LoopbackSocket mFirst;
+    private final LoopbackSocket mSecond;
+
+    public LoopbackSocketPair() throws IOException {
+        this("00:00:00:00:00:01", "00:00:00:00:00:02");
+    }
+
+    /**
+     * @param firstAddress  What {@link #getFirst()} reports as its address
+     * @param secondAddress What {@link #getSecond()} reports as its address
+     */
+    public LoopbackSocketPair(String firstAddress, String secondAddress) throws IOException {
+        PipedInputStream firstIn = new PipedInputStream(PIPE_SIZE);
+        PipedInputStream secondIn = new PipedInputStream(PIPE_SIZE);
+        PipedOutputStream firstOut = new PipedOutputStream(secondIn);
+        PipedOutputStream secondOut = new PipedOutputStream(firstIn);
+        mFirst = new LoopbackSocket(firstAddress, firstIn, firstOut, secondOut);
+        mSecond = new LoopbackSocket(secondAddress, secondIn, secondOut, firstOut);
+    }
+
+    public PeerSocket getFirst() {
+        return mFirst;
+    }
+
+    public PeerSocket getSecond() {
+        return mSecond;
+    }
+
+    private static class LoopbackSocket implements PeerSocket {
+        private final String mAddress;
+        private final PipedInputStream mIn;
+        private final PipedOutputStream mOut;
+        // The other socket's output, which feeds mIn
+        private final PipedOutputStream mPeerOut;
+
+        LoopbackSocket(String address, PipedInputStream in, PipedOutputStream out,
+                       PipedOutputStream peerOut) {
+            mAddress = address;
+            mIn = in;
+            mOut = out;
+            mPeerOut = peerOut;
+        }
+
+        @Override
+        public String getAddress() {
+            return mAddress;
+        }
+
+        @Override
+        public String getName() {
+            return "Loopback " + mAddress;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return mIn;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return mOut;
+        }
+
+        @Override
+        public void close() throws IOException {
+            // Like a real socket, closing ends both directions. Closing the stream that
+            // feeds mIn is what wakes a read blocked on it; closing mIn alone does not.
+            mOut.close();
+            mPeerOut.close();
+            mIn.close();
+        }
+    }
+}
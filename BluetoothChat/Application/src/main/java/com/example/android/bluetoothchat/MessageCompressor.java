@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses {@link FrameCodec#TYPE_TEXT} payloads for one connection.
+ *
+ * <p>Every message is compressed on its own, as raw deflate data primed with a preset
+ * dictionary of common chat text, so short messages still shrink and a dropped message
+ * never breaks the ones after it. The {@link Deflater} and {@link Inflater} are reset
+ * rather than recreated, so their native state is allocated once per connection.</p>
+ *
+ * <pre>
+ * TYPE_TEXT_DEFLATE  original length (varint) | raw deflate data
+ * </pre>
+ *
+ * <p>Compression is only used once the peer has said it can inflate, and it is skipped
+ * for short messages and for a while after a message fails to shrink enough, since such
+ * data is usually already compressed.</p>
+ *
+ * <p>{@link #compress} is meant to be called on the writer thread and {@link #inflate}
+ * on the reader thread of the connection.</p>
+ */
+public class MessageCompressor {
+
+    /**
+     * Messages shorter than this are sent as they are.
+     */
+    public static final int MIN_COMPRESS_LENGTH = 64;
+
+    /**
+     * A compressed message is only sent if it is at most this fraction of the original,
+     * in eighths.
+     */
+    private static final int MAX_RATIO_EIGHTHS = 7;
+
+    /**
+     * Messages skipped after one that did not compress well.
+     */
+    private static final int SKIP_AFTER_POOR_RATIO = 8;
+
+    /**
+     * Both ends must use the same dictionary, so changing it requires a new
+     * {@link FrameCodec#FEATURE_DEFLATE} bit. The most common strings come last, where
+     * they are cheapest to refer to.
+     */
+    private static final byte[] DICTIONARY = (" https://www. .com .jpg .png file "
+            + "tomorrow tonight today morning meeting minutes later please thanks "
+            + "thank you what where when how why who which would could should "
+            + "there their they have this that with from about just know like "
+            + "think want going good great sorry okay yes no not the and for you "
+            + "are was is it to of in on at be me my I'm I'll don't can't it's "
+            + "that's what's ? ! . , ")
+            .getBytes(Charset.forName("UTF-8"));
+
+    private final CompressionStats mStats;
+    private volatile boolean mPeerInflates;
+
+    // Used on the writer thread
+    private final Deflater mDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private byte[] mCompressed = new byte[0];
+    private int mSkip;
+
+    // Used on the reader thread
+    private final Inflater mInflater = new Inflater(true);
+    private byte[] mInflated = new byte[0];
+
+    private boolean mEnded;
+
+    /**
+     * @param stats Counters to add to, may be shared with other connections
+     */
+    public MessageCompressor(CompressionStats stats) {
+        mStats = stats;
+    }
+
+    /**
+     * Record whether the other end can inflate, from its {@link FrameCodec#TYPE_HELLO}.
+     */
+    public void setPeerInflates(boolean peerInflates) {
+        mPeerInflates = peerInflates;
+    }
+
+    /**
+     * Compress a message if that is worthwhile.
+     *
+     * @return the length of the compressed message in {@link #getCompressed()}, or -1 to
+     * send the message as it is
+     */
+    public int compress(byte[] payload, int offset, int length) {
+        if (!mPeerInflates || length < MIN_COMPRESS_LENGTH) {
+            return -1;
+        }
+        if (mSkip > 0) {
+            mSkip--;
+            mStats.onSkipped(0);
+            return -1;
+        }
+        long start = System.nanoTime();
+        // Give up as soon as the output grows past the largest size worth sending
+        int limit = (int) ((long) length * MAX_RATIO_EIGHTHS / 8);
+        if (mCompressed.length < limit) {
+            mCompressed = new byte[limit];
+        }
+        int position = FrameCodec.writeVarint(length, mCompressed, 0);
+        boolean finished;
+        synchronized (mDeflater) {
+            if (mEnded) {
+                return -1;
+            }
+            mDeflater.reset();
+            mDeflater.setDictionary(DICTIONARY);
+            mDeflater.setInput(payload, offset, length);
+            mDeflater.finish();
+            while (!mDeflater.finished() && position < limit) {
+                position += mDeflater.deflate(mCompressed, position, limit - position);
+            }
+            finished = mDeflater.finished();
+        }
+        long nanos = System.nanoTime() - start;
+        if (!finished) {
+            mSkip = SKIP_AFTER_POOR_RATIO;
+            mStats.onSkipped(nanos);
+            return -1;
+        }
+        mStats.onCompressed(length, position, nanos);
+        return position;
+    }
+
+    /**
+     * Return the array holding the output of the last {@link #compress} call.
+     */
+    public byte[] getCompressed() {
+        return mCompressed;
+    }
+
+    /**
+     * Restore a {@link FrameCodec#TYPE_TEXT_DEFLATE} payload.
+     *
+     * @param maxLength Largest original length accepted
+     * @return the length of the original message in {@link #getInflated()}
+     * @throws IOException if the payload is corrupt
+     */
+    public int inflate(byte[] payload, int length, int maxLength) throws IOException {
+        long start = System.nanoTime();
+        int originalLength = 0;
+        int position = 0;
+        int shift = 0;
+        int b;
+        do {
+            if (position >= length || shift >= 7 * FrameCodec.MAX_VARINT_LENGTH) {
+                throw new IOException("Malformed compressed message");
+            }
+            b = payload[position++];
+            originalLength |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        if (originalLength < 0 || originalLength > maxLength) {
+            throw new IOException("Compressed message too large: " + originalLength);
+        }
+        if (mInflated.length < originalLength) {
+            mInflated = new byte[Math.min(Math.max(originalLength, mInflated.length * 2),
+                    maxLength)];
+        }
+
+        synchronized (mInflater) {
+            if (mEnded) {
+                throw new IOException("Connection closed");
+            }
+            mInflater.reset();
+            mInflater.setDictionary(DICTIONARY);
+            mInflater.setInput(payload, position, length - position);
+            int inflated = 0;
+            try {
+                while (inflated < originalLength) {
+                    int n = mInflater.inflate(mInflated, inflated, originalLength - inflated);
+                    if (n == 0 && (mInflater.needsInput() || mInflater.needsDictionary()
+                            || mInflater.finished())) {
+                        throw new IOException("Compressed message truncated");
+                    }
+                    inflated += n;
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt compressed message", e);
+            }
+        }
+        mStats.onInflated(System.nanoTime() - start);
+        return originalLength;
+    }
+
+    /**
+     * Return the array holding the output of the last {@link #inflate} call.
+     */
+    public byte[] getInflated() {
+        return mInflated;
+    }
+
+    /**
+     * Release the native state. Later calls send and refuse everything uncompressed.
+     */
+    public void end() {
+        synchronized (mDeflater) {
+            synchronized (mInflater) {
+                if (!mEnded) {
+                    mEnded = true;
+                    mDeflater.end();
+                    mInflater.end();
+                }
+            }
+        }
+    }
+}
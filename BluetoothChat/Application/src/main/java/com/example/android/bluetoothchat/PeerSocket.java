@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The parts of a connected socket that {@link ConnectedThread} needs. On a device this
+ * wraps a {@link android.bluetooth.BluetoothSocket}; anywhere else it can be backed by
+ * piped streams.
+ */
+public interface PeerSocket {
+
+    /**
+     * Return the address that identifies the remote end, such as a Bluetooth MAC address.
+     */
+    String getAddress();
+
+    /**
+     * Return a human readable name for the remote end.
+     */
+    String getName();
+
+    InputStream getInputStream() throws IOException;
+
+    OutputStream getOutputStream() throws IOException;
+
+    /**
+     * Close the socket. Blocked reads and writes on its streams fail with an IOException.
+     */
+    void close() throws IOException;
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import java.util.Random;
+
+/**
+ * Decides how long to wait before each attempt to re-establish a lost connection.
+ *
+ * <p>The first attempt is made right away, since most drops are brief. After that the
+ * delay grows exponentially up to a cap, and every delay is spread by a random jitter so
+ * that several devices that lost the same link do not retry in lock step.</p>
+ */
+public class ReconnectPolicy {
+
+    public static final long DEFAULT_INITIAL_DELAY_MILLIS = 500;
+    public static final long DEFAULT_MAX_DELAY_MILLIS = 30 * 1000;
+    public static final double DEFAULT_MULTIPLIER = 2.0;
+    public static final double DEFAULT_JITTER = 0.2;
+    public static final int DEFAULT_MAX_ATTEMPTS = 10;
+
+    private final long mInitialDelayMillis;
+    private final long mMaxDelayMillis;
+    private final double mMultiplier;
+    private final double mJitter;
+    private final int mMaxAttempts;
+    private final Random mRandom;
+
+    public ReconnectPolicy() {
+        this(DEFAULT_INITIAL_DELAY_MILLIS, DEFAULT_MAX_DELAY_MILLIS, DEFAULT_MULTIPLIER,
+                DEFAULT_JITTER, DEFAULT_MAX_ATTEMPTS, new Random());
+    }
+
+    /**
+     * @param initialDelayMillis Delay before the second attempt
+     * @param maxDelayMillis     No delay is longer than this, jitter included
+     * @param multiplier         Growth of the delay from one attempt to the next
+     * @param jitter             Fraction, between 0 and 1, by which each delay is randomly
+     *                           lengthened or shortened
+     * @param maxAttempts        Attempts made before giving up
+     * @param random             Source of the jitter
+     */
+    public ReconnectPolicy(long initialDelayMillis, long maxDelayMillis, double multiplier,
+                           double jitter, int maxAttempts, Random random) {
+        if (jitter < 0 || jitter > 1) {
+            throw new IllegalArgumentException("jitter must be between 0 and 1: " + jitter);
+        }
+        mInitialDelayMillis = initialDelayMillis;
+        mMaxDelayMillis = maxDelayMillis;
+        mMultiplier = multiplier;
+        mJitter = jitter;
+        mMaxAttempts = maxAttempts;
+        mRandom = random;
+    }
+
+    /**
+     * Return the number of attempts made before giving up.
+     */
+    public int getMaxAttempts() {
+        return mMaxAttempts;
+    }
+
+    /**
+     * Return how long to wait before the given attempt.
+     *
+     * @param attempt Zero for the first attempt after the connection was lost
+     */
+    public long getDelayMillis(int attempt) {
+        if (attempt <= 0) {
+            return 0;
+        }
+        double delay = mInitialDelayMillis * Math.pow(mMultiplier, attempt - 1);
+        delay = Math.min(delay, mMaxDelayMillis);
+        double spread;
+        synchronized (mRandom) {
+            spread = mRandom.nextDouble() * 2 - 1;
+        }
+        delay *= 1 + mJitter * spread;
+        return Math.max(0, Math.min((long) delay, mMaxDelayMillis));
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import com.example.android.common.logger.Log;
+
+import java.io.IOException;
+
+/**
+ * Re-establishes a lost connection to one device on a background thread, following a
+ * {@link ReconnectPolicy}.
+ *
+ * <p>When the device was bonded, each attempt first tries an insecure socket, which
+ * skips the authentication round trip, and falls back to a secure one. Otherwise it
+ * uses the socket type of the original connection.</p>
+ *
+ * <p>The time from the loss of the connection to the first byte received on the new one
+ * is recorded. The Android specifics sit behind {@link SocketFactory} and {@link Clock},
+ * so the whole sequence can be run with fakes.</p>
+ */
+public class Reconnector {
+    // Debugging
+    private static final String TAG = "Reconnector";
+
+    /**
+     * Opens a new connection to the device being reconnected.
+     */
+    public interface SocketFactory {
+        /**
+         * Connect, blocking until the socket is connected.
+         *
+         * @param secure Whether to use an authenticated, encrypted socket
+         */
+        PeerSocket connect(boolean secure) throws IOException;
+    }
+
+    /**
+     * Told how a reconnection ended. Called on the reconnect thread.
+     */
+    public interface Listener {
+        /**
+         * A new connection is up. The listener now owns the socket.
+         *
+         * @param attempts Number of attempts it took
+         */
+        void onReconnected(PeerSocket socket, int attempts);
+
+        /**
+         * Every attempt failed.
+         */
+        void onGaveUp(int attempts);
+    }
+
+    private final ReconnectPolicy mPolicy;
+    private final Clock mClock;
+    private ReconnectThread mThread;
+
+    // Latency of the current reconnection and statistics over all of them
+    private long mLostAt = -1;
+    private boolean mAwaitingFirstByte;
+    private long mLastLatencyMillis = -1;
+    private long mTotalLatencyMillis;
+    private int mReconnectCount;
+
+    public Reconnector(ReconnectPolicy policy, Clock clock) {
+        mPolicy = policy;
+        mClock = clock;
+    }
+
+    /**
+     * Start reconnecting, replacing any reconnection already in progress.
+     *
+     * @param address  Address of the device, for logging
+     * @param bonded   Whether the device is bonded, in which case insecure is tried first
+     * @param secure   Socket type of the lost connection
+     * @param factory  Opens the sockets
+     * @param listener Told how it ended
+     */
+    public synchronized void start(String address, boolean bonded, boolean secure,
+                                   SocketFactory factory, Listener listener) {
+        cancel();
+        Log.d(TAG, "reconnect to " + address);
+        mLostAt = mClock.elapsedRealtime();
+        mAwaitingFirstByte = false;
+        boolean[] order = bonded ? new boolean[]{false, true} : new boolean[]{secure};
+        mThread = new ReconnectThread(address, order, factory, listener);
+        mThread.start();
+    }
+
+    /**
+     * Stop reconnecting. A socket that connects after this is closed right away.
+     */
+    public synchronized void cancel() {
+        if (mThread != null) {
+            mThread.cancel();
+            mThread = null;
+        }
+        mAwaitingFirstByte = false;
+    }
+
+    /**
+     * Return whether a reconnection is in progress.
+     */
+    public synchronized boolean isRunning() {
+        return mThread != null;
+    }
+
+    /**
+     * Report that data arrived on the new connection, which completes the latency
+     * measurement. Only the first call after a reconnection counts.
+     */
+    public synchronized void onFirstByte() {
+        if (!mAwaitingFirstByte) {
+            return;
+        }
+        mAwaitingFirstByte = false;
+        mLastLatencyMillis = mClock.elapsedRealtime() - mLostAt;
+        mTotalLatencyMillis += mLastLatencyMillis;
+        mReconnectCount++;
+        Log.i(TAG, "reconnected, loss to first byte: " + mLastLatencyMillis + " ms");
+    }
+
+    /**
+     * Return whether a reconnection succeeded and no data has arrived on it yet.
+     */
+    public synchronized boolean isAwaitingFirstByte() {
+        return mAwaitingFirstByte;
+    }
+
+    /**
+     * Return the time from loss to first byte of the last reconnection, or -1.
+     */
+    public synchronized long getLastLatencyMillis() {
+        return mLastLatencyMillis;
+    }
+
+    /**
+     * Return the average time from loss to first byte, or -1 if none completed yet.
+     */
+    public synchronized long getAverageLatencyMillis() {
+        return mReconnectCount == 0 ? -1 : mTotalLatencyMillis / mReconnectCount;
+    }
+
+    /**
+     * Return the number of reconnections that delivered data.
+     */
+    public synchronized int getReconnectCount() {
+        return mReconnectCount;
+    }
+
+    /**
+     * Called by a thread that is done. Returns false if it was cancelled meanwhile.
+     */
+    private synchronized boolean finish(ReconnectThread thread, boolean connected) {
+        if (mThread != thread) {
+            return false;
+        }
+        mThread = null;
+        mAwaitingFirstByte = connected;
+        return true;
+    }
+
+    /**
+     * This thread makes the attempts, sleeping between them as the policy says.
+     */
+    private class ReconnectThread extends Thread {
+        private final String mmAddress;
+        private final boolean[] mmOrder;
+        private final SocketFactory mmFactory;
+        private final Listener mmListener;
+        private volatile boolean mmCancelled;
+
+        ReconnectThread(String address, boolean[] order, SocketFactory factory,
+                        Listener listener) {
+            mmAddress = address;
+            mmOrder = order;
+            mmFactory = factory;
+            mmListener = listener;
+            setName("ReconnectThread-" + address);
+        }
+
+        public void run() {
+            int attempt = 0;
+            while (!mmCancelled && attempt < mPolicy.getMaxAttempts()) {
+                long delay = mPolicy.getDelayMillis(attempt);
+                attempt++;
+                try {
+                    if (delay > 0) {
+                        mClock.sleep(delay);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (boolean secure : mmOrder) {
+                    if (mmCancelled) {
+                        return;
+                    }
+                    PeerSocket socket;
+                    try {
+                        socket = mmFactory.connect(secure);
+                    } catch (IOException e) {
+                        Log.d(TAG, "attempt " + attempt + (secure ? " secure" : " insecure")
+                                + " to " + mmAddress + " failed");
+                        continue;
+                    }
+                    if (finish(this, true)) {
+                        mmListener.onReconnected(socket, attempt);
+                    } else {
+                        closeQuietly(socket);
+                    }
+                    return;
+                }
+            }
+            if (!mmCancelled && finish(this, false)) {
+                mmListener.onGaveUp(attempt);
+            }
+        }
+
+        void cancel() {
+            mmCancelled = true;
+            interrupt();
+        }
+    }
+
+    private static void closeQuietly(PeerSocket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            Log.e(TAG, "close() of unwanted socket failed", e);
+        }
+    }
+}
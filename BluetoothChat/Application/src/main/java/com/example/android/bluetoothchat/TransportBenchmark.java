@@ -0,0 +1,294 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Measures a chat transport by sending {@link FrameCodec#TYPE_PING} frames through a
+ * {@link ConnectedThread} and timing the {@link FrameCodec#TYPE_PONG} answers.
+ *
+ * <p>For each payload size, two runs are made. In the first, one ping is in flight at a
+ * time, which gives the round-trip time percentiles. In the second, several pings are
+ * kept in flight, which gives messages per second and MB/s.</p>
+ *
+ * <p>The far end must answer pings. {@link BluetoothChatService} does so for real
+ * devices; {@link #runLoopback(int[], int)} sets up an answering end over a
+ * {@link LoopbackSocketPair}, so a baseline can be taken on the JVM with
+ * {@link #main(String[])}.</p>
+ */
+public class TransportBenchmark {
+
+    /**
+     * Payload sizes measured by default, from 16 B to 1 MB.
+     */
+    public static final int[] DEFAULT_PAYLOAD_SIZES =
+            {16, 256, 4 * 1024, 64 * 1024, 1024 * 1024};
+
+    public static final int DEFAULT_MESSAGES_PER_SIZE = 1000;
+
+    // A ping starts with its sequence number
+    private static final int MIN_PAYLOAD_SIZE = 16;
+
+    // Keeps large payload sizes from running for minutes
+    private static final int MAX_BYTES_PER_SIZE = 32 * 1024 * 1024;
+    private static final int MIN_MESSAGES_PER_SIZE = 8;
+
+    // In-flight pings in the throughput run; kept under the default write queue mark
+    private static final int WINDOW_BYTES = 32 * 1024;
+    private static final int MAX_WINDOW = 16;
+
+    private static final long PONG_TIMEOUT_MILLIS = 10 * 1000;
+
+    /**
+     * The figures for one payload size.
+     */
+    public static class Result {
+        public final int payloadSize;
+        public final int messages;
+        public final double messagesPerSecond;
+        public final double megabytesPerSecond;
+        public final long p50Micros;
+        public final long p99Micros;
+
+        Result(int payloadSize, int messages, double messagesPerSecond,
+               double megabytesPerSecond, long p50Micros, long p99Micros) {
+            this.payloadSize = payloadSize;
+            this.messages = messages;
+            this.messagesPerSecond = messagesPerSecond;
+            this.megabytesPerSecond = megabytesPerSecond;
+            this.p50Micros = p50Micros;
+            this.p99Micros = p99Micros;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "%8d B x %5d: %9.0f msg/s %8.2f MB/s  rtt p50 %7d us p99 %7d us",
+                    payloadSize, messages, messagesPerSecond, megabytesPerSecond,
+                    p50Micros, p99Micros);
+        }
+    }
+
+    // State of the run in progress, guarded by mLock
+    private final Object mLock = new Object();
+    private long[] mSentAt;
+    private long[] mRoundTrips;
+    private int mReceived;
+
+    /**
+     * Report a {@link FrameCodec#TYPE_PONG} frame that arrived on the connection being
+     * measured. Call it from the connection's listener.
+     */
+    public void onPong(byte[] payload, int length) {
+        long now = System.nanoTime();
+        if (length < 4) {
+            return;
+        }
+        int sequence = readInt(payload);
+        synchronized (mLock) {
+            if (mSentAt == null || sequence < 0 || sequence >= mSentAt.length
+                    || mSentAt[sequence] == 0) {
+                return;
+            }
+            mRoundTrips[mReceived++] = now - mSentAt[sequence];
+            mSentAt[sequence] = 0;
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Measure every payload size. Blocks until done.
+     *
+     * @param connection      A started connection whose far end answers pings and whose
+     *                        listener passes pongs to {@link #onPong(byte[], int)}
+     * @param payloadSizes    Sizes to measure, in bytes
+     * @param messagesPerSize Pings per size and run; lowered for large sizes
+     */
+    public List<Result> run(ConnectedThread connection, int[] payloadSizes,
+                            int messagesPerSize) throws IOException, InterruptedException {
+        List<Result> results = new ArrayList<>();
+        for (int size : payloadSizes) {
+            results.add(run(connection, Math.max(size, MIN_PAYLOAD_SIZE), messagesPerSize));
+        }
+        return results;
+    }
+
+    private Result run(ConnectedThread connection, int size, int messages)
+            throws IOException, InterruptedException {
+        messages = Math.min(messages,
+                Math.max(MIN_MESSAGES_PER_SIZE, MAX_BYTES_PER_SIZE / size));
+        int window = Math.max(1, Math.min(MAX_WINDOW, WINDOW_BYTES / size));
+        byte[][] payloads = new byte[window][size];
+
+        // Latency: one ping at a time
+        long[] roundTrips = exchange(connection, payloads, messages, 1);
+        Arrays.sort(roundTrips);
+        long p50 = roundTrips[(int) (0.50 * (roundTrips.length - 1))] / 1000;
+        long p99 = roundTrips[(int) Math.ceil(0.99 * (roundTrips.length - 1))] / 1000;
+
+        // Throughput: keep the pipe full
+        long start = System.nanoTime();
+        exchange(connection, payloads, messages, window);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        return new Result(size, messages, messages / seconds,
+                (double) messages * size / seconds / (1024 * 1024), p50, p99);
+    }
+
+    /**
+     * Send the given number of pings with at most window of them in flight, and return
+     * their round-trip times in nanoseconds.
+     */
+    private long[] exchange(ConnectedThread connection, byte[][] payloads, int messages,
+                            int window) throws IOException, InterruptedException {
+        synchronized (mLock) {
+            mSentAt = new long[messages];
+            mRoundTrips = new long[messages];
+            mReceived = 0;
+        }
+        try {
+            for (int sequence = 0; sequence < messages; sequence++) {
+                awaitReceived(sequence - window + 1);
+                // Pongs come back in order, so the slot's previous ping has been sent
+                byte[] payload = payloads[sequence % window];
+                writeInt(payload, sequence);
+                synchronized (mLock) {
+                    mSentAt[sequence] = System.nanoTime();
+                }
+                boolean queued;
+                try {
+                    queued = connection.write(FrameCodec.TYPE_PING, payload, null);
+                } catch (IllegalStateException e) {
+                    queued = false;
+                }
+                if (!queued) {
+                    throw new IOException("Ping " + sequence + " was not queued");
+                }
+            }
+            awaitReceived(messages);
+            synchronized (mLock) {
+                return mRoundTrips;
+            }
+        } finally {
+            synchronized (mLock) {
+                mSentAt = null;
+            }
+        }
+    }
+
+    private void awaitReceived(int count) throws IOException, InterruptedException {
+        synchronized (mLock) {
+            long deadline = System.nanoTime() / 1000000L + PONG_TIMEOUT_MILLIS;
+            while (mReceived < count) {
+                long remaining = deadline - System.nanoTime() / 1000000L;
+                if (remaining <= 0) {
+                    throw new InterruptedIOException("No pong after " + PONG_TIMEOUT_MILLIS
+                            + " ms, " + mReceived + " received");
+                }
+                mLock.wait(remaining);
+            }
+        }
+    }
+
+    /**
+     * Answers pings on the far end of a loopback run.
+     */
+    private static class EchoListener implements ConnectedThread.Listener {
+        @Override
+        public void onFirstFrame(ConnectedThread connection) {
+        }
+
+        @Override
+        public void onFrameReceived(ConnectedThread connection, int type, byte[] payload,
+                                    int length) {
+            if (type == FrameCodec.TYPE_PING) {
+                connection.write(FrameCodec.TYPE_PONG, Arrays.copyOf(payload, length), null);
+            }
+        }
+
+        @Override
+        public void onConnectionLost(ConnectedThread connection, IOException e) {
+        }
+    }
+
+    /**
+     * Measure the framing, queueing and threading of the transport over in-memory pipes.
+     */
+    public static List<Result> runLoopback(int[] payloadSizes, int messagesPerSize)
+            throws IOException, InterruptedException {
+        LoopbackSocketPair pair = new LoopbackSocketPair();
+        final TransportBenchmark benchmark = new TransportBenchmark();
+        ConnectedThread echo = new ConnectedThread(pair.getSecond(),
+                WriteQueue.DEFAULT_HIGH_WATER_MARK, WriteQueue.POLICY_BLOCK,
+                new EchoListener());
+        ConnectedThread client = new ConnectedThread(pair.getFirst(),
+                WriteQueue.DEFAULT_HIGH_WATER_MARK, WriteQueue.POLICY_BLOCK,
+                new ConnectedThread.Listener() {
+                    @Override
+                    public void onFirstFrame(ConnectedThread connection) {
+                    }
+
+                    @Override
+                    public void onFrameReceived(ConnectedThread connection, int type,
+                                                byte[] payload, int length) {
+                        if (type == FrameCodec.TYPE_PONG) {
+                            benchmark.onPong(payload, length);
+                        }
+                    }
+
+                    @Override
+                    public void onConnectionLost(ConnectedThread connection, IOException e) {
+                    }
+                });
+        echo.start();
+        client.start();
+        try {
+            return benchmark.run(client, payloadSizes, messagesPerSize);
+        } finally {
+            client.cancel();
+            echo.cancel();
+        }
+    }
+
+    /**
+     * Print a loopback baseline.
+     */
+    public static void main(String[] args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_MESSAGES_PER_SIZE;
+        for (Result result : runLoopback(DEFAULT_PAYLOAD_SIZES, messages)) {
+            System.out.println(result);
+        }
+    }
+
+    private static void writeInt(byte[] buffer, int value) {
+        buffer[0] = (byte) (value >>> 24);
+        buffer[1] = (byte) (value >>> 16);
+        buffer[2] = (byte) (value >>> 8);
+        buffer[3] = (byte) value;
+    }
+
+    private static int readInt(byte[] buffer) {
+        return ((buffer[0] & 0xFF) << 24) | ((buffer[1] & 0xFF) << 16)
+                | ((buffer[2] & 0xFF) << 8) | (buffer[3] & 0xFF);
+    }
+}
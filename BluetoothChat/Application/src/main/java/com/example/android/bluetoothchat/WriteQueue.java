@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import com.example.android.common.logger.Log;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+/**
+ * A bounded queue of outgoing frames drained by its own writer thread, so callers never
+ * block on the socket.
+ *
+ * <p>The writer thread takes every frame that is queued at the time it wakes up, writes
+ * them through the {@link FrameWriter} and flushes once, so bursts of small messages
+ * leave in as few socket writes as possible.</p>
+ *
+ * <p>The number of queued payload bytes is capped by a high-water mark. What happens to
+ * a write that would go past it is decided by the overflow policy. Control frames, see
+ * {@link FrameCodec#isControl}, are always queued: they are answers the other end waits
+ * for, written from the reader thread, which must neither block nor throw.</p>
+ */
+public class WriteQueue {
+    // Debugging
+    private static final String TAG = "WriteQueue";
+
+    // Overflow policies, applied when the queue is above its high-water mark
+    public static final int POLICY_BLOCK = 0; // wait until the writer thread makes room
+    public static final int POLICY_DROP = 1;  // discard the new message
+    public static final int POLICY_FAIL = 2;  // throw IllegalStateException
+
+    /**
+     * Default cap on queued payload bytes.
+     */
+    public static final int DEFAULT_HIGH_WATER_MARK = 64 * 1024;
+
+    /**
+     * A writer thread stops collecting a batch once it holds this many bytes.
+     */
+    private static final int MAX_BATCH_BYTES = 16 * 1024;
+
+    /**
+     * Notified once for every message passed to {@link #enqueue}.
+     */
+    public interface Callback {
+        /**
+         * Called on the writer thread after the message has been flushed to the stream,
+         * or on the thread that gave up on it if it could not be sent.
+         *
+         * @param payload The message as passed to {@link #enqueue}
+         * @param success Whether the message was written
+         */
+        void onWriteComplete(byte[] payload, boolean success);
+    }
+
+    private static class Entry {
+        final int type;
+        final byte[] payload;
+        final int length;
+        final Callback callback;
+
+        Entry(int type, byte[] payload, int length, Callback callback) {
+            this.type = type;
+            this.payload = payload;
+            this.length = length;
+            this.callback = callback;
+        }
+    }
+
+    private final FrameWriter mWriter;
+    private final int mHighWaterMark;
+    private final int mPolicy;
+    private final ArrayDeque<Entry> mQueue = new ArrayDeque<>();
+    private final ArrayDeque<Entry> mBatch = new ArrayDeque<>();
+    private int mQueuedBytes;
+    private boolean mClosed;
+    private Thread mThread;
+
+    /**
+     * @param writer        The writer to send frames with; it should wrap a buffered stream
+     * @param highWaterMark Most payload bytes allowed in the queue at once
+     * @param policy        One of {@link #POLICY_BLOCK}, {@link #POLICY_DROP} or
+     *                      {@link #POLICY_FAIL}
+     */
+    public WriteQueue(FrameWriter writer, int highWaterMark, int policy) {
+        mWriter = writer;
+        mHighWaterMark = highWaterMark;
+        mPolicy = policy;
+    }
+
+    /**
+     * Start the writer thread.
+     */
+    public synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "WriteThread");
+        mThread.start();
+    }
+
+    /**
+     * Queue one message. Never blocks on the stream; it only waits for room in the queue
+     * when the policy is {@link #POLICY_BLOCK}. Control frames skip the high-water mark.
+     *
+     * @param type     The frame type
+     * @param payload  The message; it must not be modified until the callback runs
+     * @param callback Notified when the message was written or dropped, may be null
+     * @return true if the message was queued, false if it was dropped
+     * @throws IllegalStateException if the queue is full, the policy is
+     *                               {@link #POLICY_FAIL} and this is not a control frame
+     */
+    public boolean enqueue(int type, byte[] payload, Callback callback) {
+        return enqueue(type, payload, payload.length, callback);
+    }
+
+    /**
+     * Queue the first length bytes of an array as one message.
+     *
+     * @see #enqueue(int, byte[], Callback)
+     */
+    public boolean enqueue(int type, byte[] payload, int length, Callback callback) {
+        boolean control = FrameCodec.isControl(type);
+        synchronized (this) {
+            // A single message bigger than the mark is still let through an empty queue
+            while (!control && !mClosed && mQueuedBytes > 0
+                    && mQueuedBytes + length > mHighWaterMark) {
+                if (mPolicy == POLICY_FAIL) {
+                    throw new IllegalStateException("Write queue full: " + mQueuedBytes
+                            + " bytes pending");
+                }
+                if (mPolicy == POLICY_DROP) {
+                    break;
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            if (!mClosed && (control || mQueuedBytes == 0
+                    || mQueuedBytes + length <= mHighWaterMark)) {
+                mQueue.addLast(new Entry(type, payload, length, callback));
+                mQueuedBytes += length;
+                notifyAll();
+                return true;
+            }
+        }
+        // Dropped, because of the policy or because the queue was closed
+        if (callback != null) {
+            callback.onWriteComplete(payload, false);
+        }
+        return false;
+    }
+
+    /**
+     * Return the number of payload bytes waiting to be written.
+     */
+    public synchronized int getQueuedBytes() {
+        return mQueuedBytes;
+    }
+
+    /**
+     * Stop the writer thread. Messages still queued are reported as failed.
+     */
+    public void close() {
+        ArrayDeque<Entry> pending;
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            pending = new ArrayDeque<>(mQueue);
+            mQueue.clear();
+            mQueuedBytes = 0;
+            notifyAll();
+        }
+        failAll(pending);
+    }
+
+    private void drain() {
+        while (true) {
+            synchronized (this) {
+                while (!mClosed && mQueue.isEmpty()) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        mClosed = true;
+                    }
+                }
+                if (mClosed) {
+                    return;
+                }
+                // Take everything queued so far, up to one batch
+                int batchBytes = 0;
+                while (!mQueue.isEmpty() && batchBytes < MAX_BATCH_BYTES) {
+                    Entry entry = mQueue.pollFirst();
+                    batchBytes += entry.length;
+                    mBatch.addLast(entry);
+                }
+                mQueuedBytes -= batchBytes;
+                notifyAll();
+            }
+
+            try {
+                for (Entry entry : mBatch) {
+                    mWriter.writeFrame(entry.type, entry.payload, 0, entry.length);
+                }
+                mWriter.flush();
+            } catch (IOException e) {
+                Log.e(TAG, "Exception during write", e);
+                failAll(mBatch);
+                close();
+                return;
+            }
+
+            Entry entry;
+            while ((entry = mBatch.pollFirst()) != null) {
+                if (entry.callback != null) {
+                    entry.callback.onWriteComplete(entry.payload, true);
+                }
+            }
+        }
+    }
+
+    private static void failAll(ArrayDeque<Entry> entries) {
+        Entry entry;
+        while ((entry = entries.pollFirst()) != null) {
+            if (entry.callback != null) {
+                entry.callback.onWriteComplete(entry.payload, false);
+            }
+        }
+    }
+}
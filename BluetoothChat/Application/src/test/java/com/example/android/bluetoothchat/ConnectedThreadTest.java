@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs two connections against each other over a {@link LoopbackSocketPair}.
+ */
+public class ConnectedThreadTest {
+
+    private static final long TIMEOUT_SECONDS = 5;
+
+    private final List<ConnectedThread> mConnections = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        for (ConnectedThread connection : mConnections) {
+            connection.cancel();
+        }
+    }
+
+    @Test
+    public void reportsHelloAsFirstFrame() throws Exception {
+        LoopbackSocketPair pair = new LoopbackSocketPair();
+        Recorder recorder = new Recorder();
+        // Both ends compress, so each starts by sending HELLO
+        ConnectedThread first = connect(pair.getFirst(), new Recorder(), true);
+        connect(pair.getSecond(), recorder, true);
+
+        recorder.awaitEvents(1);
+        first.write(FrameCodec.TYPE_TEXT, "hi".getBytes(Charset.forName("UTF-8")), null);
+        recorder.awaitEvents(2);
+
+        // HELLO itself is consumed by the connection
+        List<String> events = recorder.getEvents();
+        assertEquals("first", events.get(0));
+        assertEquals("frame " + FrameCodec.TYPE_TEXT, events.get(1));
+        assertEquals(2, events.size());
+    }
+
+    @Test
+    public void reportsFirstFrameOnceBeforeItIsHandled() throws Exception {
+        LoopbackSocketPair pair = new LoopbackSocketPair();
+        Recorder recorder = new Recorder();
+        ConnectedThread sender = connect(pair.getFirst(), new Recorder(), false);
+        connect(pair.getSecond(), recorder, false);
+
+        sender.write(FrameCodec.TYPE_TEXT, new byte[]{1}, null);
+        sender.write(FrameCodec.TYPE_TEXT, new byte[]{2}, null);
+        recorder.awaitEvents(3);
+
+        List<String> events = recorder.getEvents();
+        assertEquals("first", events.get(0));
+        assertEquals("frame " + FrameCodec.TYPE_TEXT, events.get(1));
+        assertEquals("frame " + FrameCodec.TYPE_TEXT, events.get(2));
+        assertEquals(3, events.size());
+    }
+
+    private ConnectedThread connect(PeerSocket socket, Recorder recorder, boolean compress)
+            throws IOException {
+        MessageCompressor compressor = compress
+                ? new MessageCompressor(new CompressionStats()) : null;
+        ConnectedThread connection = new ConnectedThread(socket,
+                WriteQueue.DEFAULT_HIGH_WATER_MARK, WriteQueue.POLICY_BLOCK, compressor,
+                recorder);
+        mConnections.add(connection);
+        connection.start();
+        return connection;
+    }
+
+    /**
+     * Records what a connection reports, in order.
+     */
+    private static class Recorder implements ConnectedThread.Listener {
+        private final List<String> mEvents = new ArrayList<>();
+
+        @Override
+        public void onFirstFrame(ConnectedThread connection) {
+            record("first");
+        }
+
+        @Override
+        public void onFrameReceived(ConnectedThread connection, int type, byte[] payload,
+                                    int length) {
+            record("frame " + type);
+        }
+
+        @Override
+        public void onConnectionLost(ConnectedThread connection, IOException e) {
+        }
+
+        synchronized List<String> getEvents() {
+            return new ArrayList<>(mEvents);
+        }
+
+        synchronized void awaitEvents(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + TIMEOUT_SECONDS * 1000;
+            while (mEvents.size() < count) {
+                long remaining = deadline - System.currentTimeMillis();
+                assertTrue("Only " + mEvents, remaining > 0);
+                wait(remaining);
+            }
+        }
+
+        private synchronized void record(String event) {
+            mEvents.add(event);
+            notifyAll();
+        }
+    }
+}
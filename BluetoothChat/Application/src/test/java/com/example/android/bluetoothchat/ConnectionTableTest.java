@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs a table over {@link LoopbackSocketPair}s. The table holds the first socket of each
+ * pair; the test plays the remote devices on the second.
+ */
+public class ConnectionTableTest {
+
+    private static final long TIMEOUT_SECONDS = 5;
+
+    private static final byte[] MESSAGE = "hello".getBytes(Charset.forName("UTF-8"));
+
+    private final LinkedBlockingQueue<ConnectedThread> mLost = new LinkedBlockingQueue<>();
+
+    private final ConnectedThread.Listener mListener = new ConnectedThread.Listener() {
+        @Override
+        public void onFirstFrame(ConnectedThread connection) {
+        }
+
+        @Override
+        public void onFrameReceived(ConnectedThread connection, int type, byte[] payload,
+                                    int length) {
+        }
+
+        @Override
+        public void onConnectionLost(ConnectedThread connection, IOException e) {
+            mLost.add(connection);
+        }
+    };
+
+    private final List<PeerSocket> mRemotes = new ArrayList<>();
+
+    private ConnectionTable mTable;
+
+    @Before
+    public void setUp() {
+        mTable = new ConnectionTable(2, mListener);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mTable.closeAll();
+        for (PeerSocket remote : mRemotes) {
+            remote.close();
+        }
+    }
+
+    @Test
+    public void refusesConnectionsOverCapacity() throws Exception {
+        ConnectedThread a = mTable.add(socket("00:00:00:00:00:0A"), "a");
+        ConnectedThread b = mTable.add(socket("00:00:00:00:00:0B"), "b");
+        PeerSocket refused = socket("00:00:00:00:00:0C");
+
+        assertNotNull(a);
+        assertNotNull(b);
+        assertEquals("a", a.getTag());
+        assertNull(mTable.add(refused, "c"));
+        assertEquals(2, mTable.size());
+        assertNull(mTable.get("00:00:00:00:00:0C"));
+        // The refused socket was closed, so its remote end sees the stream end
+        assertEquals(-1, remote(2).getInputStream().read());
+    }
+
+    @Test
+    public void replacesConnectionToSameAddress() throws Exception {
+        ConnectedThread first = mTable.add(socket("00:00:00:00:00:0A"), null);
+        mTable.add(socket("00:00:00:00:00:0B"), null);
+        // A reconnect from a known address is let in although the table is full
+        ConnectedThread second = mTable.add(socket("00:00:00:00:00:0A"), null);
+
+        assertNotNull(second);
+        assertSame(second, mTable.get("00:00:00:00:00:0A"));
+        assertEquals(2, mTable.size());
+        assertEquals(-1, remote(0).getInputStream().read());
+        first.join(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+        assertFalse(first.isAlive());
+    }
+
+    @Test
+    public void writesToOneConnection() throws Exception {
+        mTable.add(socket("00:00:00:00:00:0A"), null);
+        mTable.add(socket("00:00:00:00:00:0B"), null);
+        Completion completion = new Completion(1);
+
+        assertTrue(mTable.write("00:00:00:00:00:0B", FrameCodec.TYPE_TEXT, MESSAGE,
+                completion));
+        completion.await();
+
+        assertEquals(1, completion.successes);
+        assertMessage(remote(1));
+        assertEquals(0, remote(0).getInputStream().available());
+    }
+
+    @Test
+    public void writeToUnknownAddressFails() throws Exception {
+        Completion completion = new Completion(1);
+
+        assertFalse(mTable.write("00:00:00:00:00:0A", FrameCodec.TYPE_TEXT, MESSAGE,
+                completion));
+        completion.await();
+        assertEquals(0, completion.successes);
+    }
+
+    @Test
+    public void broadcastReachesEveryConnectionAndCompletesOnce() throws Exception {
+        mTable.add(socket("00:00:00:00:00:0A"), null);
+        mTable.add(socket("00:00:00:00:00:0B"), null);
+        Completion completion = new Completion(1);
+
+        assertEquals(2, mTable.broadcast(FrameCodec.TYPE_TEXT, MESSAGE, completion));
+        completion.await();
+
+        assertMessage(remote(0));
+        assertMessage(remote(1));
+        assertEquals(1, completion.calls);
+        assertEquals(1, completion.successes);
+    }
+
+    @Test
+    public void broadcastWithoutConnectionsFails() throws Exception {
+        Completion completion = new Completion(1);
+
+        assertEquals(0, mTable.broadcast(FrameCodec.TYPE_TEXT, MESSAGE, completion));
+        completion.await();
+        assertEquals(0, completion.successes);
+    }
+
+    @Test
+    public void removesConnectionWhenItsReaderExits() throws Exception {
+        ConnectedThread a = mTable.add(socket("00:00:00:00:00:0A"), null);
+        mTable.add(socket("00:00:00:00:00:0B"), null);
+
+        // The remote device goes away; the reader sees the stream end
+        remote(0).close();
+
+        assertSame(a, mLost.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertNull(mTable.get("00:00:00:00:00:0A"));
+        assertEquals(1, mTable.size());
+        assertNotNull(mTable.add(socket("00:00:00:00:00:0C"), null));
+    }
+
+    @Test
+    public void removeClosesConnectionWithoutReportingLoss() throws Exception {
+        ConnectedThread a = mTable.add(socket("00:00:00:00:00:0A"), null);
+
+        assertTrue(mTable.remove("00:00:00:00:00:0A"));
+        assertFalse(mTable.remove("00:00:00:00:00:0A"));
+        a.join(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+
+        assertFalse(a.isAlive());
+        assertEquals(0, mTable.size());
+        assertTrue(mLost.isEmpty());
+    }
+
+    /**
+     * Return the table's end of a new pair; the remote end is kept in {@link #mRemotes}.
+     */
+    private PeerSocket socket(String address) throws IOException {
+        LoopbackSocketPair pair = new LoopbackSocketPair(address, "00:00:00:00:00:01");
+        mRemotes.add(pair.getSecond());
+        return pair.getFirst();
+    }
+
+    private PeerSocket remote(int index) {
+        return mRemotes.get(index);
+    }
+
+    private static void assertMessage(PeerSocket remote) throws IOException {
+        FrameReader reader = new FrameReader(remote.getInputStream());
+        assertTrue(reader.readFrame());
+        assertEquals(FrameCodec.TYPE_TEXT, reader.getType());
+        assertEquals(MESSAGE.length, reader.getPayloadLength());
+        byte[] payload = new byte[MESSAGE.length];
+        System.arraycopy(reader.getPayload(), 0, payload, 0, payload.length);
+        assertArrayEquals(MESSAGE, payload);
+    }
+
+    /**
+     * Counts the completions of a write.
+     */
+    private static class Completion implements WriteQueue.Callback {
+        private final CountDownLatch mLatch;
+        volatile int calls;
+        volatile int successes;
+
+        Completion(int expected) {
+            mLatch = new CountDownLatch(expected);
+        }
+
+        @Override
+        public synchronized void onWriteComplete(byte[] payload, boolean success) {
+            calls++;
+            if (success) {
+                successes++;
+            }
+            mLatch.countDown();
+        }
+
+        void await() throws InterruptedException {
+            assertTrue(mLatch.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+public class DeviceCacheTest {
+
+    private static final short RSSI = -60;
+
+    @Test
+    public void savesAndLoads() throws Exception {
+        DeviceCache cache = new DeviceCache();
+        cache.found("00:00:00:00:00:0A", "Phone", RSSI, false, 1000);
+        cache.found("00:00:00:00:00:0B", null, DeviceCache.RSSI_UNKNOWN, true, 2000);
+        File file = File.createTempFile("device_cache", null);
+        try {
+            cache.save(file);
+            DeviceCache loaded = new DeviceCache();
+            loaded.load(file);
+
+            assertEquals(2, loaded.size());
+            assertEquals(cache.getEntries(false), loaded.getEntries(false));
+            assertEquals(cache.getEntries(true), loaded.getEntries(true));
+            assertNull(loaded.getEntries(true).get(0).name);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void missingFileLeavesCacheEmpty() throws Exception {
+        File file = File.createTempFile("device_cache", null);
+        file.delete();
+        DeviceCache cache = new DeviceCache();
+        cache.found("00:00:00:00:00:0A", "Phone", RSSI, false, 1000);
+
+        cache.load(file);
+
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void addOlderKeepsNewerEntries() {
+        DeviceCache older = new DeviceCache();
+        older.found("00:00:00:00:00:0A", "Old name", (short) -90, false, 1000);
+        older.found("00:00:00:00:00:0B", "Watch", (short) -70, false, 1000);
+        DeviceCache cache = new DeviceCache();
+        cache.found("00:00:00:00:00:0A", "New name", (short) -50, false, 5000);
+
+        cache.addOlder(older);
+
+        List<DeviceCache.Entry> entries = cache.getEntries(false);
+        assertEquals(2, entries.size());
+        assertEquals("New name", entries.get(0).name);
+        assertEquals(5000, entries.get(0).lastSeen);
+        assertEquals("Watch", entries.get(1).name);
+    }
+
+    @Test
+    public void addOlderDropsOlderEntriesFirstWhenFull() {
+        DeviceCache older = new DeviceCache(DeviceCache.DEFAULT_TTL_MILLIS, 2);
+        older.found("00:00:00:00:00:0A", "A", RSSI, false, 1000);
+        older.found("00:00:00:00:00:0B", "B", RSSI, false, 1000);
+        DeviceCache cache = new DeviceCache(DeviceCache.DEFAULT_TTL_MILLIS, 2);
+        cache.found("00:00:00:00:00:0C", "C", RSSI, false, 5000);
+
+        cache.addOlder(older);
+
+        assertEquals(2, cache.size());
+        for (DeviceCache.Entry entry : cache.getEntries(false)) {
+            assertFalse("A".equals(entry.name));
+        }
+    }
+}
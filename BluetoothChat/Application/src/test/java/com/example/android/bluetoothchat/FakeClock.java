@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A {@link Clock} that only moves when told to. Sleeping moves it forward at once.
+ */
+public class FakeClock implements Clock {
+
+    private long mNow = 1000;
+    private final List<Long> mSleeps = new ArrayList<>();
+
+    @Override
+    public synchronized long elapsedRealtime() {
+        return mNow;
+    }
+
+    @Override
+    public synchronized void sleep(long millis) {
+        mSleeps.add(millis);
+        mNow += millis;
+    }
+
+    public synchronized void advance(long millis) {
+        mNow += millis;
+    }
+
+    /**
+     * Return every sleep so far, in order.
+     */
+    public synchronized List<Long> getSleeps() {
+        return new ArrayList<>(mSleeps);
+    }
+}
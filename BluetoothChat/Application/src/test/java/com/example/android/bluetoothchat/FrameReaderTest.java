@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Writes frames with a {@link FrameWriter} on one thread and reads them back with a
+ * {@link FrameReader} through a pipe.
+ */
+public class FrameReaderTest {
+
+    private static final int PIPE_SIZE = 256 * 1024;
+
+    @Test
+    public void readsFramesSplitAcrossReads() throws Exception {
+        byte[] first = bytes(10, 1);
+        byte[] second = bytes(300, 2);
+        PipedInputStream in = write(new int[]{FrameCodec.TYPE_TEXT, FrameCodec.TYPE_PING},
+                new byte[][]{first, second}, null);
+        // Every header and payload arrives a byte at a time
+        FrameReader reader = new FrameReader(new ShortReads(in, 1));
+
+        assertFrame(reader, FrameCodec.TYPE_TEXT, first);
+        assertFrame(reader, FrameCodec.TYPE_PING, second);
+        assertFalse(reader.readFrame());
+    }
+
+    @Test
+    public void readsVarintLengthsAtEachBoundary() throws Exception {
+        int[] lengths = {0, 1, 127, 128, 16383, 16384, 70000};
+        int[] types = new int[lengths.length];
+        byte[][] payloads = new byte[lengths.length][];
+        for (int i = 0; i < lengths.length; i++) {
+            types[i] = FrameCodec.TYPE_TEXT;
+            payloads[i] = bytes(lengths[i], i);
+        }
+        assertEquals(1, FrameCodec.varintLength(127));
+        assertEquals(2, FrameCodec.varintLength(128));
+        assertEquals(2, FrameCodec.varintLength(16383));
+        assertEquals(3, FrameCodec.varintLength(16384));
+
+        FrameReader reader = new FrameReader(new ShortReads(write(types, payloads, null), 100));
+        for (byte[] payload : payloads) {
+            assertFrame(reader, FrameCodec.TYPE_TEXT, payload);
+        }
+        assertFalse(reader.readFrame());
+    }
+
+    @Test
+    public void readsPayloadLargerThanRing() throws Exception {
+        byte[] small = bytes(20, 3);
+        byte[] large = bytes(5000, 4);
+        PipedInputStream in = write(
+                new int[]{FrameCodec.TYPE_TEXT, FrameCodec.TYPE_FILE_CHUNK, FrameCodec.TYPE_TEXT},
+                new byte[][]{small, large, small}, null);
+        // The ring holds part of the large payload when it starts, then is bypassed
+        FrameReader reader = new FrameReader(new ShortReads(in, 37), 64,
+                FrameCodec.DEFAULT_MAX_PAYLOAD_LENGTH);
+
+        assertFrame(reader, FrameCodec.TYPE_TEXT, small);
+        assertFrame(reader, FrameCodec.TYPE_FILE_CHUNK, large);
+        assertFrame(reader, FrameCodec.TYPE_TEXT, small);
+        assertFalse(reader.readFrame());
+    }
+
+    @Test
+    public void inflatesDeflateFrame() throws Exception {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            text.append("what time is the meeting tomorrow morning? ");
+        }
+        byte[] message = text.toString().getBytes(Charset.forName("UTF-8"));
+        CompressionStats writerStats = new CompressionStats();
+        MessageCompressor writerCompressor = new MessageCompressor(writerStats);
+        writerCompressor.setPeerInflates(true);
+
+        PipedInputStream in = write(new int[]{FrameCodec.TYPE_TEXT},
+                new byte[][]{message}, writerCompressor);
+        FrameReader reader = new FrameReader(new ShortReads(in, 16));
+        reader.setCompressor(new MessageCompressor(new CompressionStats()));
+
+        assertFrame(reader, FrameCodec.TYPE_TEXT, message);
+        assertFalse(reader.readFrame());
+        assertEquals(1, writerStats.getCompressedMessages());
+        assertTrue(writerStats.getBytesSaved() > 0);
+    }
+
+    @Test
+    public void returnsDeflateFrameAsItIsWithoutCompressor() throws Exception {
+        byte[] message = bytes(200, 0);
+        Arrays.fill(message, (byte) 'a');
+        MessageCompressor writerCompressor = new MessageCompressor(new CompressionStats());
+        writerCompressor.setPeerInflates(true);
+
+        FrameReader reader = new FrameReader(write(new int[]{FrameCodec.TYPE_TEXT},
+                new byte[][]{message}, writerCompressor));
+
+        assertTrue(reader.readFrame());
+        assertEquals(FrameCodec.TYPE_TEXT_DEFLATE, reader.getType());
+        assertTrue(reader.getPayloadLength() < message.length);
+    }
+
+    @Test
+    public void throwsWhenStreamEndsInsideFrame() throws Exception {
+        byte[] frame = new byte[FrameCodec.MAX_HEADER_LENGTH + 10];
+        int headerLength = FrameCodec.writeHeader(FrameCodec.TYPE_TEXT, 10, frame, 0);
+        // Cut off the last payload byte
+        FrameReader reader = new FrameReader(
+                new ByteArrayInputStream(frame, 0, headerLength + 9));
+        try {
+            reader.readFrame();
+            fail("Truncated frame was read");
+        } catch (EOFException expected) {
+        }
+    }
+
+    @Test
+    public void rejectsFrameOverMaximumLength() throws Exception {
+        byte[] header = new byte[FrameCodec.MAX_HEADER_LENGTH];
+        int headerLength = FrameCodec.writeHeader(FrameCodec.TYPE_TEXT, 1000, header, 0);
+        FrameReader reader = new FrameReader(new ByteArrayInputStream(header, 0, headerLength),
+                FrameReader.DEFAULT_RING_SIZE, 999);
+        try {
+            reader.readFrame();
+            fail("Oversized frame was read");
+        } catch (EOFException e) {
+            fail("Length was not checked before the payload");
+        } catch (IOException expected) {
+        }
+    }
+
+    private static void assertFrame(FrameReader reader, int type, byte[] payload)
+            throws IOException {
+        assertTrue(reader.readFrame());
+        assertEquals(type, reader.getType());
+        assertEquals(payload.length, reader.getPayloadLength());
+        assertArrayEquals(payload, Arrays.copyOf(reader.getPayload(), payload.length));
+    }
+
+    private static byte[] bytes(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * Write the frames on another thread, then close the pipe.
+     *
+     * @return the end to read them from.
+     */
+    private static PipedInputStream write(final int[] types, final byte[][] payloads,
+            MessageCompressor compressor) throws IOException {
+        PipedInputStream in = new PipedInputStream(PIPE_SIZE);
+        final PipedOutputStream out = new PipedOutputStream(in);
+        final FrameWriter writer = new FrameWriter(out);
+        writer.setCompressor(compressor);
+        new Thread("FrameWriter") {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < types.length; i++) {
+                        writer.writeFrame(types[i], payloads[i], 0, payloads[i].length);
+                    }
+                    writer.flush();
+                    out.close();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }.start();
+        return in;
+    }
+
+    /**
+     * Returns at most a few bytes from each read, as RFCOMM may.
+     */
+    private static class ShortReads extends FilterInputStream {
+        private final int mMaxRead;
+
+        ShortReads(InputStream in, int maxRead) {
+            super(in);
+            mMaxRead = maxRead;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return super.read(b, off, Math.min(len, mMaxRead));
+        }
+    }
+}
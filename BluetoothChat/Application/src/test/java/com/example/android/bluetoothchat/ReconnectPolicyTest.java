@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ReconnectPolicyTest {
+
+    @Test
+    public void firstAttemptIsImmediate() {
+        ReconnectPolicy policy = new ReconnectPolicy(500, 30000, 2.0, 0.2, 10, new Random(1));
+
+        assertEquals(0, policy.getDelayMillis(0));
+    }
+
+    @Test
+    public void delayGrowsExponentiallyUpToMaximum() {
+        ReconnectPolicy policy = new ReconnectPolicy(500, 5000, 2.0, 0, 10, new Random(1));
+
+        assertEquals(500, policy.getDelayMillis(1));
+        assertEquals(1000, policy.getDelayMillis(2));
+        assertEquals(2000, policy.getDelayMillis(3));
+        assertEquals(4000, policy.getDelayMillis(4));
+        assertEquals(5000, policy.getDelayMillis(5));
+        assertEquals(5000, policy.getDelayMillis(40));
+    }
+
+    @Test
+    public void jitterSpreadsDelaysWithinBoundsAndCap() {
+        ReconnectPolicy policy = new ReconnectPolicy(500, 5000, 2.0, 0.2, 10, new Random(1));
+
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (int i = 0; i < 1000; i++) {
+            long delay = policy.getDelayMillis(1);
+            assertTrue("delay " + delay, delay >= 400 && delay <= 600);
+            min = Math.min(min, delay);
+            max = Math.max(max, delay);
+        }
+        // Spread over most of the range rather than stuck at one value
+        assertTrue(min < 450);
+        assertTrue(max > 550);
+
+        for (int i = 0; i < 1000; i++) {
+            long delay = policy.getDelayMillis(10);
+            assertTrue("capped delay " + delay, delay >= 4000 && delay <= 5000);
+        }
+    }
+
+    @Test
+    public void rejectsJitterOutsideZeroToOne() {
+        try {
+            new ReconnectPolicy(500, 5000, 2.0, 1.5, 10, new Random(1));
+            fail("Jitter of 1.5 accepted");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives a {@link Reconnector} with a {@link FakeClock} and a socket factory that fails a
+ * given number of times before connecting.
+ */
+public class ReconnectorTest {
+
+    private static final long TIMEOUT_SECONDS = 5;
+
+    private static final String ADDRESS = "00:00:00:00:00:0A";
+
+    private FakeClock mClock;
+    private FakeFactory mFactory;
+    private Outcome mOutcome;
+
+    @Before
+    public void setUp() {
+        mClock = new FakeClock();
+        mFactory = new FakeFactory();
+        mOutcome = new Outcome();
+    }
+
+    @Test
+    public void firstAttemptIsImmediate() throws Exception {
+        Reconnector reconnector = reconnector(100, 1000, 5);
+
+        reconnector.start(ADDRESS, false, true, mFactory, mOutcome);
+        mOutcome.await();
+
+        assertNotNull(mOutcome.socket);
+        assertEquals(1, mOutcome.attempts);
+        assertTrue(mClock.getSleeps().isEmpty());
+        assertFalse(reconnector.isRunning());
+    }
+
+    @Test
+    public void waitsExponentiallyLongerUpToMaximum() throws Exception {
+        Reconnector reconnector = reconnector(100, 300, 10);
+        mFactory.failures = 4;
+
+        reconnector.start(ADDRESS, false, true, mFactory, mOutcome);
+        mOutcome.await();
+
+        assertEquals(5, mOutcome.attempts);
+        assertEquals(Arrays.asList(100L, 200L, 300L, 300L), mClock.getSleeps());
+    }
+
+    @Test
+    public void jitteredDelaysStayUnderMaximum() throws Exception {
+        ReconnectPolicy policy = new ReconnectPolicy(100, 300, 2.0, 0.5, 8, new Random(7));
+        Reconnector reconnector = new Reconnector(policy, mClock);
+        mFactory.failures = Integer.MAX_VALUE;
+
+        reconnector.start(ADDRESS, false, true, mFactory, mOutcome);
+        mOutcome.await();
+
+        assertEquals(8, mOutcome.gaveUpAfter);
+        List<Long> sleeps = mClock.getSleeps();
+        assertEquals(7, sleeps.size());
+        assertTrue(sleeps.get(0) >= 50 && sleeps.get(0) <= 150);
+        for (long sleep : sleeps) {
+            assertTrue("sleep " + sleep, sleep > 0 && sleep <= 300);
+        }
+    }
+
+    @Test
+    public void bondedPeerTriesInsecureFirst() throws Exception {
+        Reconnector reconnector = reconnector(100, 1000, 2);
+        mFactory.failures = Integer.MAX_VALUE;
+
+        reconnector.start(ADDRESS, true, true, mFactory, mOutcome);
+        mOutcome.await();
+
+        assertEquals(2, mOutcome.gaveUpAfter);
+        assertEquals(Arrays.asList(false, true, false, true), mFactory.getRequests());
+    }
+
+    @Test
+    public void bondedPeerFallsBackToSecure() throws Exception {
+        Reconnector reconnector = reconnector(100, 1000, 2);
+        mFactory.failures = 1;
+
+        reconnector.start(ADDRESS, true, false, mFactory, mOutcome);
+        mOutcome.await();
+
+        assertEquals(1, mOutcome.attempts);
+        assertEquals(Arrays.asList(false, true), mFactory.getRequests());
+    }
+
+    @Test
+    public void unbondedPeerKeepsOriginalSocketType() throws Exception {
+        Reconnector reconnector = reconnector(100, 1000, 3);
+        mFactory.failures = Integer.MAX_VALUE;
+
+        reconnector.start(ADDRESS, false, false, mFactory, mOutcome);
+        mOutcome.await();
+
+        assertEquals(Arrays.asList(false, false, false), mFactory.getRequests());
+    }
+
+    @Test
+    public void measuresLatencyFromLossToFirstByte() throws Exception {
+        Reconnector reconnector = reconnector(100, 1000, 5);
+        mFactory.failures = 2;
+
+        reconnector.start(ADDRESS, false, true, mFactory, mOutcome);
+        mOutcome.await();
+        assertTrue(reconnector.isAwaitingFirstByte());
+        assertEquals(-1, reconnector.getLastLatencyMillis());
+
+        mClock.advance(50);
+        reconnector.onFirstByte();
+        // Only the first byte after the reconnection counts
+        mClock.advance(1000);
+        reconnector.onFirstByte();
+
+        assertFalse(reconnector.isAwaitingFirstByte());
+        assertEquals(100 + 200 + 50, reconnector.getLastLatencyMillis());
+        assertEquals(100 + 200 + 50, reconnector.getAverageLatencyMillis());
+        assertEquals(1, reconnector.getReconnectCount());
+    }
+
+    @Test
+    public void firstByteWithoutReconnectionIsIgnored() {
+        Reconnector reconnector = reconnector(100, 1000, 5);
+
+        reconnector.onFirstByte();
+
+        assertEquals(-1, reconnector.getLastLatencyMillis());
+        assertEquals(-1, reconnector.getAverageLatencyMillis());
+        assertEquals(0, reconnector.getReconnectCount());
+    }
+
+    private Reconnector reconnector(long initialDelay, long maxDelay, int maxAttempts) {
+        return new Reconnector(
+                new ReconnectPolicy(initialDelay, maxDelay, 2.0, 0, maxAttempts, new Random(1)),
+                mClock);
+    }
+
+    /**
+     * Fails the first {@link #failures} connects, then hands out one end of a loopback pair.
+     */
+    private static class FakeFactory implements Reconnector.SocketFactory {
+        volatile int failures;
+        private final List<Boolean> mRequests = new ArrayList<>();
+
+        @Override
+        public PeerSocket connect(boolean secure) throws IOException {
+            synchronized (this) {
+                mRequests.add(secure);
+                if (mRequests.size() <= failures) {
+                    throw new IOException("Connection refused");
+                }
+            }
+            return new LoopbackSocketPair().getFirst();
+        }
+
+        synchronized List<Boolean> getRequests() {
+            return new ArrayList<>(mRequests);
+        }
+    }
+
+    /**
+     * Records how the reconnection ended.
+     */
+    private static class Outcome implements Reconnector.Listener {
+        private final CountDownLatch mLatch = new CountDownLatch(1);
+        volatile PeerSocket socket;
+        volatile int attempts;
+        volatile int gaveUpAfter;
+
+        @Override
+        public void onReconnected(PeerSocket socket, int attempts) {
+            this.socket = socket;
+            this.attempts = attempts;
+            mLatch.countDown();
+        }
+
+        @Override
+        public void onGaveUp(int attempts) {
+            gaveUpAfter = attempts;
+            mLatch.countDown();
+        }
+
+        void await() throws InterruptedException {
+            assertTrue(mLatch.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothchat;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Fills a queue whose writer thread is never started, so nothing leaves it.
+ */
+public class WriteQueueTest {
+
+    private static final int HIGH_WATER_MARK = 10;
+
+    private final FrameWriter mWriter = new FrameWriter(new ByteArrayOutputStream());
+
+    @Test
+    public void failPolicyThrowsForDataFrames() {
+        WriteQueue queue = new WriteQueue(mWriter, HIGH_WATER_MARK, WriteQueue.POLICY_FAIL);
+        assertTrue(queue.enqueue(FrameCodec.TYPE_TEXT, new byte[8], null));
+        try {
+            queue.enqueue(FrameCodec.TYPE_TEXT, new byte[8], null);
+            fail("Full queue took a data frame");
+        } catch (IllegalStateException expected) {
+        }
+        assertEquals(8, queue.getQueuedBytes());
+    }
+
+    @Test
+    public void controlFramesSkipHighWaterMark() {
+        WriteQueue queue = new WriteQueue(mWriter, HIGH_WATER_MARK, WriteQueue.POLICY_FAIL);
+        assertTrue(queue.enqueue(FrameCodec.TYPE_TEXT, new byte[8], null));
+
+        // Would throw, or block the reader thread under POLICY_BLOCK, if they were held back
+        assertTrue(queue.enqueue(FrameCodec.TYPE_PONG, new byte[8], null));
+        assertTrue(queue.enqueue(FrameCodec.TYPE_FILE_ACK, new byte[12], null));
+        assertTrue(queue.enqueue(FrameCodec.TYPE_FILE_OFFER, new byte[20], null));
+        assertTrue(queue.enqueue(FrameCodec.TYPE_HELLO, new byte[1], null));
+        assertEquals(49, queue.getQueuedBytes());
+
+        WriteQueue blocking =
+                new WriteQueue(mWriter, HIGH_WATER_MARK, WriteQueue.POLICY_BLOCK);
+        assertTrue(blocking.enqueue(FrameCodec.TYPE_TEXT, new byte[8], null));
+        assertTrue(blocking.enqueue(FrameCodec.TYPE_PONG, new byte[8], null));
+    }
+
+    @Test
+    public void closedQueueRefusesControlFrames() {
+        WriteQueue queue = new WriteQueue(mWriter, HIGH_WATER_MARK, WriteQueue.POLICY_FAIL);
+        queue.close();
+        assertFalse(queue.enqueue(FrameCodec.TYPE_FILE_ACK, new byte[12], null));
+    }
+}
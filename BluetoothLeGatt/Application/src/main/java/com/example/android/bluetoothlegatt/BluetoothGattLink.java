@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.content.Context;
+import android.os.Build;
+
+import java.util.List;
+
+/**
+ * A {@link GattLink} over a real {@code BluetoothGatt} connection.
+ */
+public class BluetoothGattLink implements GattLink {
+
+    private final Context mContext;
+    private final BluetoothDevice mDevice;
+    private final GattSession mSession;
+    private volatile BluetoothGatt mGatt;
+    private volatile boolean mClosed;
+
+    // Hands every event to the session, along with this link.
+    private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
+        @Override
+        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+            // This can arrive before connectGatt() has returned
+            if (!mClosed) {
+                mGatt = gatt;
+            }
+            mSession.onConnectionStateChange(BluetoothGattLink.this, status, newState);
+        }
+
+        @Override
+        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+            mSession.onServicesDiscovered(BluetoothGattLink.this, status);
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+            mSession.onMtuChanged(BluetoothGattLink.this, mtu, status);
+        }
+
+        @Override
+        public void onCharacteristicRead(BluetoothGatt gatt,
+                                         BluetoothGattCharacteristic characteristic,
+                                         int status) {
+            mSession.onCharacteristicRead(BluetoothGattLink.this, characteristic, status);
+        }
+
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt gatt,
+                                          BluetoothGattCharacteristic characteristic,
+                                          int status) {
+            mSession.onCharacteristicWrite(BluetoothGattLink.this, characteristic, status);
+        }
+
+        @Override
+        public void onDescriptorRead(BluetoothGatt gatt, BluetoothGattDescriptor descriptor,
+                                     int status) {
+            mSession.onDescriptorRead(BluetoothGattLink.this, descriptor, status);
+        }
+
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor,
+                                      int status) {
+            mSession.onDescriptorWrite(BluetoothGattLink.this, descriptor, status);
+        }
+
+        @Override
+        public void onCharacteristicChanged(BluetoothGatt gatt,
+                                            BluetoothGattCharacteristic characteristic) {
+            mSession.onCharacteristicChanged(BluetoothGattLink.this, characteristic);
+        }
+    };
+
+    public BluetoothGattLink(Context context, BluetoothDevice device, GattSession session) {
+        mContext = context;
+        mDevice = device;
+        mSession = session;
+    }
+
+    /**
+     * Returns a factory for links to devices known to the given adapter.
+     */
+    public static Factory factory(final Context context, final BluetoothAdapter adapter) {
+        return new Factory() {
+            @Override
+            public GattLink create(String address, GattSession session) {
+                final BluetoothDevice device;
+                try {
+                    device = adapter.getRemoteDevice(address);
+                } catch (IllegalArgumentException e) {
+                    return null;
+                }
+                return device != null ? new BluetoothGattLink(context, device, session) : null;
+            }
+        };
+    }
+
+    @Override
+    public boolean connect() {
+        // We want to directly connect to the device, so we are setting the autoConnect
+        // parameter to false.
+        final BluetoothGatt gatt = mDevice.connectGatt(mContext, false, mGattCallback);
+        if (gatt == null) {
+            return false;
+        }
+        mGatt = gatt;
+        return true;
+    }
+
+    @Override
+    public void disconnect() {
+        final BluetoothGatt gatt = mGatt;
+        if (gatt != null) {
+            gatt.disconnect();
+        }
+    }
+
+    @Override
+    public void close() {
+        mClosed = true;
+        final BluetoothGatt gatt = mGatt;
+        mGatt = null;
+        if (gatt != null) {
+            gatt.close();
+        }
+    }
+
+    @Override
+    public boolean discoverServices() {
+        final BluetoothGatt gatt = mGatt;
+        return gatt != null && gatt.discoverServices();
+    }
+
+    @Override
+    public List<BluetoothGattService> getServices() {
+        final BluetoothGatt gatt = mGatt;
+        return gatt != null ? gatt.getServices() : null;
+    }
+
+    @Override
+    public boolean requestConnectionPriority(int priority) {
+        final BluetoothGatt gatt = mGatt;
+        return gatt != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP
+                && gatt.requestConnectionPriority(priority);
+    }
+
+    @Override
+    public boolean readCharacteristic(BluetoothGattCharacteristic characteristic) {
+        final BluetoothGatt gatt = mGatt;
+        return gatt != null && gatt.readCharacteristic(characteristic);
+    }
+
+    @Override
+    public boolean writeCharacteristic(BluetoothGattCharacteristic characteristic) {
+        final BluetoothGatt gatt = mGatt;
+        return gatt != null && gatt.writeCharacteristic(characteristic);
+    }
+
+    @Override
+    public boolean readDescriptor(BluetoothGattDescriptor descriptor) {
+        final BluetoothGatt gatt = mGatt;
+        return gatt != null && gatt.readDescriptor(descriptor);
+    }
+
+    @Override
+    public boolean writeDescriptor(BluetoothGattDescriptor descriptor) {
+        final BluetoothGatt gatt = mGatt;
+        return gatt != null && gatt.writeDescriptor(descriptor);
+    }
+
+    @Override
+    public boolean setCharacteristicNotification(BluetoothGattCharacteristic characteristic,
+                                                 boolean enable) {
+        final BluetoothGatt gatt = mGatt;
+        return gatt != null && gatt.setCharacteristicNotification(characteristic, enable);
+    }
+
+    @Override
+    public boolean requestMtu(int mtu) {
+        final BluetoothGatt gatt = mGatt;
+        return gatt != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP
+                && gatt.requestMtu(mtu);
+    }
+}
@@ -18,26 +18,28 @@ package com.example.android.bluetoothlegatt;
 
 import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCallback;
 import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothManager;
-import android.bluetooth.BluetoothProfile;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Binder;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.util.Log;
 
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
- * Service for managing connection and data communication with a GATT server hosted on a
- * given Bluetooth LE device.
+ * Service for managing connections and data communication with GATT servers hosted on
+ * Bluetooth LE devices. Several devices can be connected at once; the methods without an
+ * address act on the device most recently passed to {@link #connect(String)}.
  */
 public class BluetoothLeService extends Service {
     private final static String TAG = BluetoothLeService.class.getSimpleName();
@@ -45,12 +47,12 @@ public class BluetoothLeService extends Service {
     private BluetoothManager mBluetoothManager;
     private BluetoothAdapter mBluetoothAdapter;
     private String mBluetoothDeviceAddress;
-    private BluetoothGatt mBluetoothGatt;
-    private int mConnectionState = STATE_DISCONNECTED;
+    private GattConnectionManager mConnectionManager;
 
-    private static final int STATE_DISCONNECTED = 0;
-    private static final int STATE_CONNECTING = 1;
-    private static final int STATE_CONNECTED = 2;
+    // Android allows only a few LE connections at once, shared by every app.
+    private static final int MAX_CONNECTIONS = 4;
+
+    private static final String SERVICE_CACHE_DIRECTORY = "gatt_services";
 
     public final static String ACTION_GATT_CONNECTED =
             "com.example.bluetooth.le.ACTION_GATT_CONNECTED";
@@ -62,92 +64,78 @@ public class BluetoothLeService extends Service {
             "com.example.bluetooth.le.ACTION_DATA_AVAILABLE";
     public final static String EXTRA_DATA =
             "com.example.bluetooth.le.EXTRA_DATA";
+    public final static String EXTRA_ADDRESS =
+            "com.example.bluetooth.le.EXTRA_ADDRESS";
 
     public final static UUID UUID_HEART_RATE_MEASUREMENT =
             UUID.fromString(SampleGattAttributes.HEART_RATE_MEASUREMENT);
 
-    // Implements callback methods for GATT events that the app cares about.  For example,
-    // connection change and services discovered.
-    private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
-        @Override
-        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-            String intentAction;
-            if (newState == BluetoothProfile.STATE_CONNECTED) {
-                intentAction = ACTION_GATT_CONNECTED;
-                mConnectionState = STATE_CONNECTED;
-                broadcastUpdate(intentAction);
-                Log.i(TAG, "Connected to GATT server.");
-                // Attempts to discover services after successful connection.
-                Log.i(TAG, "Attempting to start service discovery:" +
-                        mBluetoothGatt.discoverServices());
-
-            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-                intentAction = ACTION_GATT_DISCONNECTED;
-                mConnectionState = STATE_DISCONNECTED;
-                Log.i(TAG, "Disconnected from GATT server.");
-                broadcastUpdate(intentAction);
-            }
-        }
+    private final ConcurrentHashMap<UUID, CharacteristicDecoder> mDecoders =
+            new ConcurrentHashMap<UUID, CharacteristicDecoder>();
+    private final CharacteristicValue mValue = new CharacteristicValue();
+
+    // Values read or notified go to in-process observers through this stream.
+    private final NotificationStream mNotificationStream = new NotificationStream();
 
+    {
+        mDecoders.put(UUID_HEART_RATE_MEASUREMENT, CharacteristicDecoder.HEART_RATE_MEASUREMENT);
+    }
+
+    // Turns the events of every device into broadcasts and published values.
+    private final GattSession.Listener mSessionListener = new GattSession.Listener() {
         @Override
-        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                broadcastUpdate(ACTION_GATT_SERVICES_DISCOVERED);
-            } else {
-                Log.w(TAG, "onServicesDiscovered received: " + status);
+        public void onStateChanged(GattSession session, int oldState, int newState) {
+            if (newState == GattSession.STATE_CONNECTED) {
+                broadcastUpdate(ACTION_GATT_CONNECTED, session.getAddress());
+            } else if (oldState == GattSession.STATE_CONNECTED
+                    || newState == GattSession.STATE_DISCONNECTED) {
+                // Also sent when a lost connection is about to be retried
+                broadcastUpdate(ACTION_GATT_DISCONNECTED, session.getAddress());
             }
         }
 
         @Override
-        public void onCharacteristicRead(BluetoothGatt gatt,
-                                         BluetoothGattCharacteristic characteristic,
-                                         int status) {
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
-            }
+        public void onServicesDiscovered(GattSession session) {
+            broadcastUpdate(ACTION_GATT_SERVICES_DISCOVERED, session.getAddress());
         }
 
         @Override
-        public void onCharacteristicChanged(BluetoothGatt gatt,
-                                            BluetoothGattCharacteristic characteristic) {
-            broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
+        public void onValue(GattSession session, BluetoothGattCharacteristic characteristic,
+                            boolean notification) {
+            deliverValue(session.getAddress(), characteristic, notification);
         }
     };
 
-    private void broadcastUpdate(final String action) {
+    private void broadcastUpdate(final String action, final String address) {
         final Intent intent = new Intent(action);
+        intent.putExtra(EXTRA_ADDRESS, address);
         sendBroadcast(intent);
     }
 
-    private void broadcastUpdate(final String action,
-                                 final BluetoothGattCharacteristic characteristic) {
-        final Intent intent = new Intent(action);
-
-        // This is special handling for the Heart Rate Measurement profile.  Data parsing is
-        // carried out as per profile specifications:
-        // http://developer.bluetooth.org/gatt/characteristics/Pages/CharacteristicViewer.aspx?u=org.bluetooth.characteristic.heart_rate_measurement.xml
-        if (UUID_HEART_RATE_MEASUREMENT.equals(characteristic.getUuid())) {
-            int flag = characteristic.getProperties();
-            int format = -1;
-            if ((flag & 0x01) != 0) {
-                format = BluetoothGattCharacteristic.FORMAT_UINT16;
-                Log.d(TAG, "Heart rate format UINT16.");
-            } else {
-                format = BluetoothGattCharacteristic.FORMAT_UINT8;
-                Log.d(TAG, "Heart rate format UINT8.");
-            }
-            final int heartRate = characteristic.getIntValue(format, 1);
-            Log.d(TAG, String.format("Received heart rate: %d", heartRate));
-            intent.putExtra(EXTRA_DATA, String.valueOf(heartRate));
-        } else {
-            // For all other profiles, writes the data formatted in HEX.
+    // Decodes a value and publishes it to the stream. Notifications can arrive many times a
+    // second, so nothing here allocates unless nobody subscribed to the value and it has to
+    // be broadcast instead.
+    private void deliverValue(final String address,
+                              final BluetoothGattCharacteristic characteristic,
+                              final boolean notification) {
+        final String text;
+        synchronized (mValue) {
             final byte[] data = characteristic.getValue();
-            if (data != null && data.length > 0) {
-                final StringBuilder stringBuilder = new StringBuilder(data.length);
-                for(byte byteChar : data)
-                    stringBuilder.append(String.format("%02X ", byteChar));
-                intent.putExtra(EXTRA_DATA, new String(data) + "\n" + stringBuilder.toString());
+            mValue.reset(address, characteristic.getUuid(), notification, data);
+            final CharacteristicDecoder decoder = mDecoders.get(characteristic.getUuid());
+            if (decoder != null && data != null && data.length > 0
+                    && !decoder.decode(data, mValue)) {
+                Log.w(TAG, "Malformed value for " + characteristic.getUuid());
+            }
+            if (mNotificationStream.publish(mValue)) {
+                return;
             }
+            text = mValue.toString();
+        }
+        final Intent intent = new Intent(ACTION_DATA_AVAILABLE);
+        intent.putExtra(EXTRA_ADDRESS, address);
+        if (!text.isEmpty()) {
+            intent.putExtra(EXTRA_DATA, text);
         }
         sendBroadcast(intent);
     }
@@ -167,7 +155,7 @@ public class BluetoothLeService extends Service {
     public boolean onUnbind(Intent intent) {
         // After using a given device, you should make sure that BluetoothGatt.close() is called
         // such that resources are cleaned up properly.  In this particular example, close() is
-        // invoked when the UI is disconnected from the Service.
+        // invoked when the UI is disconnected from the Service, closing every connection.
         close();
         return super.onUnbind(intent);
     }
@@ -196,75 +184,104 @@ public class BluetoothLeService extends Service {
             return false;
         }
 
+        if (mConnectionManager == null) {
+            mConnectionManager = new GattConnectionManager(
+                    BluetoothGattLink.factory(this, mBluetoothAdapter),
+                    new HandlerScheduler(new Handler(Looper.getMainLooper())), MAX_CONNECTIONS,
+                    mSessionListener);
+            mConnectionManager.setServiceCache(
+                    new GattServiceCache(new File(getCacheDir(), SERVICE_CACHE_DIRECTORY)));
+        }
         return true;
     }
 
     /**
-     * Connects to the GATT server hosted on the Bluetooth LE device.
+     * Connects to the GATT server hosted on the Bluetooth LE device. Devices connected
+     * earlier stay connected, up to a limit.
      *
      * @param address The device address of the destination device.
      *
      * @return Return true if the connection is initiated successfully. The connection result
-     *         is reported asynchronously through the
-     *         {@code BluetoothGattCallback#onConnectionStateChange(android.bluetooth.BluetoothGatt, int, int)}
-     *         callback.
+     *         is reported asynchronously through the {@link #ACTION_GATT_CONNECTED} broadcast,
+     *         with the address in {@link #EXTRA_ADDRESS}.
      */
     public boolean connect(final String address) {
-        if (mBluetoothAdapter == null || address == null) {
+        if (mConnectionManager == null || address == null) {
             Log.w(TAG, "BluetoothAdapter not initialized or unspecified address.");
             return false;
         }
 
-        // Previously connected device.  Try to reconnect.
-        if (mBluetoothDeviceAddress != null && address.equals(mBluetoothDeviceAddress)
-                && mBluetoothGatt != null) {
-            Log.d(TAG, "Trying to use an existing mBluetoothGatt for connection.");
-            if (mBluetoothGatt.connect()) {
-                mConnectionState = STATE_CONNECTING;
-                return true;
-            } else {
-                return false;
-            }
-        }
-
-        final BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
-        if (device == null) {
-            Log.w(TAG, "Device not found.  Unable to connect.");
+        // A device connected before keeps its session, which reconnects if it has to.
+        if (mConnectionManager.connect(address) == null) {
             return false;
         }
-        // We want to directly connect to the device, so we are setting the autoConnect
-        // parameter to false.
-        mBluetoothGatt = device.connectGatt(this, false, mGattCallback);
-        Log.d(TAG, "Trying to create a new connection.");
         mBluetoothDeviceAddress = address;
-        mConnectionState = STATE_CONNECTING;
         return true;
     }
 
     /**
-     * Disconnects an existing connection or cancel a pending connection. The disconnection result
-     * is reported asynchronously through the
-     * {@code BluetoothGattCallback#onConnectionStateChange(android.bluetooth.BluetoothGatt, int, int)}
-     * callback.
+     * Disconnects the current device, or cancels a pending connection. The disconnection
+     * result is reported asynchronously through the {@link #ACTION_GATT_DISCONNECTED}
+     * broadcast.
      */
     public void disconnect() {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+        disconnect(mBluetoothDeviceAddress);
+    }
+
+    /**
+     * Disconnects one device without reconnecting it.
+     */
+    public void disconnect(String address) {
+        if (mConnectionManager == null || address == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
-        mBluetoothGatt.disconnect();
+        mConnectionManager.disconnect(address);
     }
 
     /**
-     * After using a given BLE device, the app must call this method to ensure resources are
-     * released properly.
+     * After using BLE devices, the app must call this method to ensure resources are
+     * released properly. Every device is disconnected.
      */
     public void close() {
-        if (mBluetoothGatt == null) {
+        if (mConnectionManager == null) {
+            return;
+        }
+        Log.i(TAG, "Closing. " + mConnectionManager + " " + mNotificationStream);
+        mConnectionManager.closeAll();
+        mBluetoothDeviceAddress = null;
+    }
+
+    /**
+     * Returns the manager of every device connection, for per-device access and throughput
+     * figures.
+     */
+    public GattConnectionManager getConnectionManager() {
+        return mConnectionManager;
+    }
+
+    /**
+     * Queue a GATT request for the current device. It is sent once every request queued
+     * before it with the same or a higher priority has completed.
+     *
+     * @param operation The request.
+     */
+    public void enqueue(GattOperation operation) {
+        final GattSession session = getCurrentSession();
+        if (session == null) {
+            Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
-        mBluetoothGatt.close();
-        mBluetoothGatt = null;
+        session.enqueue(operation);
+    }
+
+    /**
+     * Returns the queue of GATT requests for the current device, for its depth and latency
+     * figures, or null if there is none.
+     */
+    public GattOperationQueue getGattQueue() {
+        final GattSession session = getCurrentSession();
+        return session != null ? session.getQueue() : null;
     }
 
     /**
@@ -275,34 +292,83 @@ public class BluetoothLeService extends Service {
      * @param characteristic The characteristic to read from.
      */
     public void readCharacteristic(BluetoothGattCharacteristic characteristic) {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
-            Log.w(TAG, "BluetoothAdapter not initialized");
-            return;
-        }
-        mBluetoothGatt.readCharacteristic(characteristic);
+        enqueue(GattOperation.readCharacteristic(characteristic, GattOperation.PRIORITY_NORMAL,
+                null));
     }
 
     /**
-     * Enables or disables notification on a give characteristic.
+     * Enables or disables notification on a give characteristic. The Client Characteristic
+     * Configuration descriptor is written ahead of any queued reads.
      *
      * @param characteristic Characteristic to act on.
      * @param enabled If true, enable notification.  False otherwise.
      */
     public void setCharacteristicNotification(BluetoothGattCharacteristic characteristic,
                                               boolean enabled) {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+        final GattSession session = getCurrentSession();
+        if (session == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
-        mBluetoothGatt.setCharacteristicNotification(characteristic, enabled);
-
-        // This is specific to Heart Rate Measurement.
-        if (UUID_HEART_RATE_MEASUREMENT.equals(characteristic.getUuid())) {
-            BluetoothGattDescriptor descriptor = characteristic.getDescriptor(
-                    UUID.fromString(SampleGattAttributes.CLIENT_CHARACTERISTIC_CONFIG));
-            descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-            mBluetoothGatt.writeDescriptor(descriptor);
+        session.setCharacteristicNotification(characteristic, enabled);
+    }
+
+    /**
+     * Writes a payload longer than one packet, such as a firmware image, to a characteristic
+     * of the current device. See {@link GattSession#write} for the details.
+     *
+     * @return the transfer, or null if there is no current device.
+     */
+    public CharacteristicTransfer writeCharacteristicStream(
+            BluetoothGattCharacteristic characteristic, InputStream input, long length,
+            int writeType, CharacteristicTransfer.Listener listener) {
+        final GattSession session = getCurrentSession();
+        if (session == null) {
+            Log.w(TAG, "BluetoothAdapter not initialized");
+            return null;
         }
+        return session.write(characteristic, input, length, writeType, listener);
+    }
+
+    /**
+     * Receives a payload longer than one packet that the current device notifies on a
+     * characteristic. See {@link GattSession#read} for the details.
+     *
+     * @return the transfer, or null if there is no current device.
+     */
+    public CharacteristicTransfer readCharacteristicStream(
+            BluetoothGattCharacteristic characteristic, OutputStream output,
+            CharacteristicTransfer.Listener listener) {
+        final GattSession session = getCurrentSession();
+        if (session == null) {
+            Log.w(TAG, "BluetoothAdapter not initialized");
+            return null;
+        }
+        return session.read(characteristic, output, listener);
+    }
+
+    /**
+     * Decodes values of the given characteristic with a decoder, replacing any registered
+     * before. Characteristics without a decoder are delivered as raw bytes.
+     */
+    public void registerDecoder(UUID uuid, CharacteristicDecoder decoder) {
+        mDecoders.put(uuid, decoder);
+    }
+
+    /**
+     * Returns the stream of characteristic values. Values with a subscriber are delivered
+     * through it instead of an {@link #ACTION_DATA_AVAILABLE} broadcast.
+     */
+    public NotificationStream getNotificationStream() {
+        return mNotificationStream;
+    }
+
+    /**
+     * Returns the services discovered on each device before, kept across connections and
+     * restarts, or null before {@link #initialize()}.
+     */
+    public GattServiceCache getServiceCache() {
+        return mConnectionManager != null ? mConnectionManager.getServiceCache() : null;
     }
 
     /**
@@ -312,8 +378,16 @@ public class BluetoothLeService extends Service {
      * @return A {@code List} of supported services.
      */
     public List<BluetoothGattService> getSupportedGattServices() {
-        if (mBluetoothGatt == null) return null;
+        final GattSession session = getCurrentSession();
+        if (session == null) return null;
+
+        return session.getServices();
+    }
 
-        return mBluetoothGatt.getServices();
+    private GattSession getCurrentSession() {
+        if (mConnectionManager == null || mBluetoothDeviceAddress == null) {
+            return null;
+        }
+        return mConnectionManager.getSession(mBluetoothDeviceAddress);
     }
 }
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+
+/**
+ * Turns the raw bytes of one kind of characteristic into a number. Decoders are registered
+ * with {@link BluetoothLeService#registerDecoder} and run on the binder thread for every
+ * value received, so they should not allocate.
+ */
+public abstract class CharacteristicDecoder {
+
+    /**
+     * Decodes a value.
+     *
+     * @param data The raw value, never empty.
+     * @param out  Holds the raw value already; call {@code setInt} or {@code setFloat} on it.
+     * @return false if the value is malformed, in which case only the raw bytes are delivered.
+     */
+    public abstract boolean decode(byte[] data, CharacteristicValue out);
+
+    /**
+     * Returns a decoder for a value of one of the {@code BluetoothGattCharacteristic.FORMAT_}
+     * formats at the given offset.
+     */
+    public static CharacteristicDecoder forFormat(final int format, final int offset) {
+        // The low nibble of each format constant is its size in bytes
+        final int size = format & 0x0F;
+        return new CharacteristicDecoder() {
+            @Override
+            public boolean decode(byte[] data, CharacteristicValue out) {
+                if (data.length < offset + size) {
+                    return false;
+                }
+                switch (format) {
+                    case BluetoothGattCharacteristic.FORMAT_UINT8:
+                        out.setInt(GattFormats.uint8(data, offset));
+                        return true;
+                    case BluetoothGattCharacteristic.FORMAT_SINT8:
+                        out.setInt(GattFormats.sint8(data, offset));
+                        return true;
+                    case BluetoothGattCharacteristic.FORMAT_UINT16:
+                        out.setInt(GattFormats.uint16(data, offset));
+                        return true;
+                    case BluetoothGattCharacteristic.FORMAT_SINT16:
+                        out.setInt(GattFormats.sint16(data, offset));
+                        return true;
+                    case BluetoothGattCharacteristic.FORMAT_UINT32:
+                        out.setInt(GattFormats.uint32(data, offset));
+                        return true;
+                    case BluetoothGattCharacteristic.FORMAT_SINT32:
+                        out.setInt(GattFormats.sint32(data, offset));
+                        return true;
+                    case BluetoothGattCharacteristic.FORMAT_SFLOAT:
+                        out.setFloat(GattFormats.sfloat(data, offset));
+                        return true;
+                    case BluetoothGattCharacteristic.FORMAT_FLOAT:
+                        out.setFloat(GattFormats.float32(data, offset));
+                        return true;
+                    default:
+                        return false;
+                }
+            }
+        };
+    }
+
+    /**
+     * Decoder for the Heart Rate Measurement profile. Data parsing is carried out as per
+     * profile specifications:
+     * http://developer.bluetooth.org/gatt/characteristics/Pages/CharacteristicViewer.aspx?u=org.bluetooth.characteristic.heart_rate_measurement.xml
+     */
+    public static final CharacteristicDecoder HEART_RATE_MEASUREMENT =
+            new CharacteristicDecoder() {
+        @Override
+        public boolean decode(byte[] data, CharacteristicValue out) {
+            // Bit 0 of the flags byte selects a UINT16 rather than a UINT8 heart rate
+            if ((data[0] & 0x01) != 0) {
+                if (data.length < 3) {
+                    return false;
+                }
+                out.setInt(GattFormats.uint16(data, 1));
+            } else {
+                if (data.length < 2) {
+                    return false;
+                }
+                out.setInt(GattFormats.uint8(data, 1));
+            }
+            return true;
+        }
+    };
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.util.Log;
+
+import java.io.IOException;
+
+/**
+ * Moves a payload longer than one ATT packet to or from a characteristic, framed as
+ * described in {@link PayloadChunker}.
+ *
+ * <p>An upload writes one chunk at a time through the session's queue, at
+ * {@link GattOperation#PRIORITY_BULK}. With {@code WRITE_TYPE_NO_RESPONSE} the stack reports
+ * each write once it has buffered it, so waiting for that report is the flow control; a
+ * write refused because the buffers are full is retried shortly after. A download enables
+ * notifications on the characteristic and reassembles the values it receives, failing if
+ * notifications cannot be enabled or the values stop coming.</p>
+ */
+public abstract class CharacteristicTransfer {
+    private final static String TAG = CharacteristicTransfer.class.getSimpleName();
+
+    /**
+     * Failure status for errors reading or writing the local stream.
+     */
+    public static final int STATUS_IO_ERROR = -10;
+
+    private static final long RETRY_DELAY_MILLIS = 10;
+    private static final int MAX_RETRIES = 100;
+
+    /**
+     * A download fails if nothing arrives for this long, from the start or since the last
+     * value.
+     */
+    public static final long DOWNLOAD_TIMEOUT_MILLIS = 5000;
+
+    /**
+     * Reports the progress of a transfer, on the thread that moved it along.
+     */
+    public interface Listener {
+        /**
+         * @param transferred Payload bytes moved so far.
+         * @param total       Payload length, or -1 if not known yet.
+         */
+        void onProgress(CharacteristicTransfer transfer, long transferred, long total);
+
+        void onComplete(CharacteristicTransfer transfer);
+
+        /**
+         * @param status A GATT status, one of the {@code GattOperation.STATUS_} values or
+         *               {@link #STATUS_IO_ERROR}.
+         */
+        void onFailed(CharacteristicTransfer transfer, int status);
+    }
+
+    final GattSession mSession;
+    final BluetoothGattCharacteristic mCharacteristic;
+    final Listener mListener;
+    private boolean mFinished;
+
+    CharacteristicTransfer(GattSession session, BluetoothGattCharacteristic characteristic,
+                           Listener listener) {
+        mSession = session;
+        mCharacteristic = characteristic;
+        mListener = listener;
+    }
+
+    public BluetoothGattCharacteristic getCharacteristic() {
+        return mCharacteristic;
+    }
+
+    /**
+     * Stops the transfer, reporting it as failed with
+     * {@link GattOperation#STATUS_CANCELLED}.
+     */
+    public void cancel() {
+        fail(GattOperation.STATUS_CANCELLED);
+    }
+
+    abstract void start();
+
+    /**
+     * Called once when the transfer ends either way.
+     */
+    void onFinished() {
+    }
+
+    void complete() {
+        synchronized (this) {
+            if (mFinished) {
+                return;
+            }
+            mFinished = true;
+        }
+        onFinished();
+        mSession.onTransferFinished(this);
+        mListener.onComplete(this);
+    }
+
+    void fail(int status) {
+        synchronized (this) {
+            if (mFinished) {
+                return;
+            }
+            mFinished = true;
+        }
+        Log.w(TAG, "Transfer on " + mCharacteristic.getUuid() + " failed: " + status);
+        onFinished();
+        mSession.onTransferFinished(this);
+        mListener.onFailed(this, status);
+    }
+
+    synchronized boolean isFinished() {
+        return mFinished;
+    }
+
+    /**
+     * Writes a payload as a series of chunks.
+     */
+    static class Upload extends CharacteristicTransfer implements GattOperation.Callback {
+        private final PayloadChunker mChunker;
+        private final int mWriteType;
+        private final Scheduler mScheduler;
+        private byte[] mChunk;
+        private int mRetries;
+
+        private final Runnable mRetry = new Runnable() {
+            @Override
+            public void run() {
+                send();
+            }
+        };
+
+        Upload(GattSession session, BluetoothGattCharacteristic characteristic,
+               PayloadChunker chunker, int writeType, Scheduler scheduler, Listener listener) {
+            super(session, characteristic, listener);
+            mChunker = chunker;
+            mWriteType = writeType;
+            mScheduler = scheduler;
+        }
+
+        @Override
+        void start() {
+            next();
+        }
+
+        @Override
+        public void onComplete(GattOperation operation, int status, byte[] value) {
+            if (status == GattOperation.STATUS_NOT_STARTED && mRetries < MAX_RETRIES) {
+                // The stack's buffers are full; try the same chunk again shortly
+                mRetries++;
+                mScheduler.postDelayed(mRetry, RETRY_DELAY_MILLIS);
+                return;
+            }
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                fail(status);
+                return;
+            }
+            mRetries = 0;
+            mListener.onProgress(this, mChunker.getSent(), mChunker.getLength());
+            next();
+        }
+
+        @Override
+        void onFinished() {
+            mScheduler.removeCallbacks(mRetry);
+        }
+
+        private void next() {
+            if (isFinished()) {
+                return;
+            }
+            try {
+                mChunk = mChunker.next(mSession.getMtu() - PayloadChunker.ATT_OVERHEAD);
+            } catch (IOException e) {
+                Log.w(TAG, "Reading the payload failed", e);
+                fail(STATUS_IO_ERROR);
+                return;
+            }
+            if (mChunk == null) {
+                complete();
+                return;
+            }
+            send();
+        }
+
+        private void send() {
+            if (isFinished()) {
+                return;
+            }
+            // One chunk at a time keeps them in order, even when one has to be retried
+            mSession.enqueue(GattOperation.writeCharacteristic(mCharacteristic, mChunk,
+                    mWriteType, GattOperation.PRIORITY_BULK, this));
+        }
+    }
+
+    /**
+     * Reassembles a payload sent as a series of notifications.
+     */
+    static class Download extends CharacteristicTransfer implements GattOperation.Callback {
+        private final PayloadReassembler mReassembler;
+        private final Scheduler mScheduler;
+
+        private final Runnable mTimeout = new Runnable() {
+            @Override
+            public void run() {
+                fail(GattOperation.STATUS_TIMEOUT);
+            }
+        };
+
+        Download(GattSession session, BluetoothGattCharacteristic characteristic,
+                 PayloadReassembler reassembler, Scheduler scheduler, Listener listener) {
+            super(session, characteristic, listener);
+            mReassembler = reassembler;
+            mScheduler = scheduler;
+        }
+
+        @Override
+        void start() {
+            // Posted first, since a refused descriptor write fails the transfer straight away
+            mScheduler.postDelayed(mTimeout, DOWNLOAD_TIMEOUT_MILLIS);
+            mSession.setCharacteristicNotification(mCharacteristic, true, this);
+        }
+
+        /**
+         * Called once notifications are enabled, or could not be.
+         */
+        @Override
+        public void onComplete(GattOperation operation, int status, byte[] value) {
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                fail(status);
+            }
+        }
+
+        @Override
+        void onFinished() {
+            mScheduler.removeCallbacks(mTimeout);
+        }
+
+        /**
+         * Takes one notified value.
+         */
+        void onValue(byte[] value) {
+            if (isFinished() || value == null) {
+                return;
+            }
+            final boolean done;
+            try {
+                done = mReassembler.append(value);
+            } catch (IOException e) {
+                Log.w(TAG, "Writing the payload failed", e);
+                fail(STATUS_IO_ERROR);
+                return;
+            }
+            mListener.onProgress(this, mReassembler.getReceived(), mReassembler.getLength());
+            if (done) {
+                complete();
+                return;
+            }
+            mScheduler.removeCallbacks(mTimeout);
+            if (!isFinished()) {
+                mScheduler.postDelayed(mTimeout, DOWNLOAD_TIMEOUT_MILLIS);
+            }
+        }
+    }
+}
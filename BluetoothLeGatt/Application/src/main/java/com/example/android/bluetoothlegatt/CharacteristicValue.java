@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.os.SystemClock;
+
+import java.util.UUID;
+
+/**
+ * A decoded characteristic value. Instances are reused for later values, so an observer must
+ * copy out whatever it wants to keep before returning.
+ */
+public final class CharacteristicValue {
+
+    // What the value holds
+    public static final int KIND_NONE = 0;  // nothing decoded yet
+    public static final int KIND_INT = 1;   // see getInt()
+    public static final int KIND_FLOAT = 2; // see getFloat()
+    public static final int KIND_BYTES = 3; // only the raw bytes, see getBytes()
+
+    private String mAddress;
+    private UUID mUuid;
+    private long mTimestampNanos;
+    private boolean mNotification;
+    private int mKind = KIND_NONE;
+    private long mInt;
+    private float mFloat;
+    private byte[] mBytes;
+
+    void reset(String address, UUID uuid, boolean notification, byte[] bytes) {
+        mAddress = address;
+        mUuid = uuid;
+        mTimestampNanos = SystemClock.elapsedRealtimeNanos();
+        mNotification = notification;
+        mBytes = bytes;
+        mKind = KIND_BYTES;
+        mInt = 0;
+        mFloat = 0;
+    }
+
+    // Copies another value, keeping the bytes in an array of our own. The array is only
+    // replaced when the length changes, which for most characteristics is never.
+    void copyFrom(CharacteristicValue other) {
+        mAddress = other.mAddress;
+        mUuid = other.mUuid;
+        mTimestampNanos = other.mTimestampNanos;
+        mNotification = other.mNotification;
+        mKind = other.mKind;
+        mInt = other.mInt;
+        mFloat = other.mFloat;
+        if (other.mBytes == null) {
+            mBytes = null;
+        } else {
+            if (mBytes == null || mBytes.length != other.mBytes.length) {
+                mBytes = new byte[other.mBytes.length];
+            }
+            System.arraycopy(other.mBytes, 0, mBytes, 0, mBytes.length);
+        }
+    }
+
+    public void setInt(long value) {
+        mKind = KIND_INT;
+        mInt = value;
+    }
+
+    public void setFloat(float value) {
+        mKind = KIND_FLOAT;
+        mFloat = value;
+    }
+
+    /**
+     * Returns the address of the device the value came from.
+     */
+    public String getAddress() {
+        return mAddress;
+    }
+
+    public UUID getUuid() {
+        return mUuid;
+    }
+
+    /**
+     * Returns when the value arrived, in {@code SystemClock.elapsedRealtimeNanos()} time.
+     */
+    public long getTimestampNanos() {
+        return mTimestampNanos;
+    }
+
+    /**
+     * Returns true for a notification, false for the result of a read.
+     */
+    public boolean isNotification() {
+        return mNotification;
+    }
+
+    public int getKind() {
+        return mKind;
+    }
+
+    public long getInt() {
+        return mInt;
+    }
+
+    public float getFloat() {
+        return mFloat;
+    }
+
+    /**
+     * Returns the raw value. Do not modify it.
+     */
+    public byte[] getBytes() {
+        return mBytes;
+    }
+
+    /**
+     * Appends the value in the form the sample displays it: the number for decoded values,
+     * otherwise the bytes as text followed by a line of hex.
+     */
+    public StringBuilder appendTo(StringBuilder out) {
+        switch (mKind) {
+            case KIND_INT:
+                return out.append(mInt);
+            case KIND_FLOAT:
+                return out.append(mFloat);
+            case KIND_BYTES:
+                if (mBytes != null && mBytes.length > 0) {
+                    for (byte b : mBytes) {
+                        out.append(b >= 0x20 && b < 0x7F ? (char) b : '.');
+                    }
+                    out.append('\n');
+                    GattFormats.appendHex(out, mBytes, 0, mBytes.length);
+                }
+                return out;
+            default:
+                return out;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return appendTo(new StringBuilder()).toString();
+    }
+}
@@ -38,6 +38,8 @@ import android.widget.TextView;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * For a given BLE device, this Activity provides the user interface to connect, display data,
@@ -60,11 +62,40 @@ public class DeviceControlActivity extends Activity {
     private ArrayList<ArrayList<BluetoothGattCharacteristic>> mGattCharacteristics =
             new ArrayList<ArrayList<BluetoothGattCharacteristic>>();
     private boolean mConnected = false;
+    // Whether the list shows services, and the hash of what it shows
+    private boolean mServicesShown = false;
+    private long mShownServicesHash;
+    // Reads the service cache, which may mean reading its file
+    private final ExecutorService mDiskExecutor = Executors.newSingleThreadExecutor();
+    private boolean mDestroyed = false;
     private BluetoothGattCharacteristic mNotifyCharacteristic;
 
     private final String LIST_NAME = "NAME";
     private final String LIST_UUID = "UUID";
 
+    private NotificationStream.Subscription mDataSubscription;
+
+    // Shows the newest value of whichever characteristic of this device was read or notified
+    // last. The stream calls this at most once per frame however fast values arrive, with the
+    // newest value of each characteristic of each connected device, so this device's newest
+    // one is picked out.
+    private final NotificationStream.Observer mDataObserver = new NotificationStream.Observer() {
+        @Override
+        public void onValues(NotificationStream.Batch batch) {
+            CharacteristicValue newest = null;
+            for (int i = 0; i < batch.size(); i++) {
+                final CharacteristicValue value = batch.get(i);
+                if (value.getAddress().equals(mDeviceAddress) && (newest == null
+                        || value.getTimestampNanos() > newest.getTimestampNanos())) {
+                    newest = value;
+                }
+            }
+            if (newest != null) {
+                displayData(newest.toString());
+            }
+        }
+    };
+
     // Code to manage Service lifecycle.
     private final ServiceConnection mServiceConnection = new ServiceConnection() {
 
@@ -75,6 +106,8 @@ public class DeviceControlActivity extends Activity {
                 Log.e(TAG, "Unable to initialize Bluetooth");
                 finish();
             }
+            mDataSubscription = mBluetoothLeService.getNotificationStream().subscribe(null,
+                    mDataObserver);
             // Automatically connects to the device upon successful start-up initialization.
             mBluetoothLeService.connect(mDeviceAddress);
         }
@@ -88,17 +121,24 @@ public class DeviceControlActivity extends Activity {
     // Handles various events fired by the Service.
     // ACTION_GATT_CONNECTED: connected to a GATT server.
     // ACTION_GATT_DISCONNECTED: disconnected from a GATT server.
-    // ACTION_GATT_SERVICES_DISCOVERED: discovered GATT services.
-    // ACTION_DATA_AVAILABLE: received data from the device.  This can be a result of read
-    //                        or notification operations.
+    // ACTION_GATT_SERVICES_DISCOVERED: discovered GATT services, also after the device said
+    //                                  its services changed.
+    // Data received from the device, from reads or notifications, goes to mDataObserver
+    // instead.
     private final BroadcastReceiver mGattUpdateReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
             final String action = intent.getAction();
+            if (!mDeviceAddress.equals(
+                    intent.getStringExtra(BluetoothLeService.EXTRA_ADDRESS))) {
+                // An event from another device the service is connected to
+                return;
+            }
             if (BluetoothLeService.ACTION_GATT_CONNECTED.equals(action)) {
                 mConnected = true;
                 updateConnectionState(R.string.connected);
                 invalidateOptionsMenu();
+                displayCachedServices();
             } else if (BluetoothLeService.ACTION_GATT_DISCONNECTED.equals(action)) {
                 mConnected = false;
                 updateConnectionState(R.string.disconnected);
@@ -107,8 +147,6 @@ public class DeviceControlActivity extends Activity {
             } else if (BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED.equals(action)) {
                 // Show all the supported services and characteristics on the user interface.
                 displayGattServices(mBluetoothLeService.getSupportedGattServices());
-            } else if (BluetoothLeService.ACTION_DATA_AVAILABLE.equals(action)) {
-                displayData(intent.getStringExtra(BluetoothLeService.EXTRA_DATA));
             }
         }
     };
@@ -150,6 +188,7 @@ public class DeviceControlActivity extends Activity {
     private void clearUI() {
         mGattServicesList.setAdapter((SimpleExpandableListAdapter) null);
         mDataField.setText(R.string.no_data);
+        mServicesShown = false;
     }
 
     @Override
@@ -193,8 +232,14 @@ public class DeviceControlActivity extends Activity {
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        if (mDataSubscription != null) {
+            mDataSubscription.cancel();
+            mDataSubscription = null;
+        }
         unbindService(mServiceConnection);
         mBluetoothLeService = null;
+        mDestroyed = true;
+        mDiskExecutor.shutdown();
     }
 
     @Override
@@ -241,23 +286,66 @@ public class DeviceControlActivity extends Activity {
         }
     }
 
+    // Shows the services found on an earlier connection while discovery runs, which can
+    // take seconds. They can be browsed but not read until discovery has confirmed them.
+    // The cache is read in the background, since the first read of a device opens its file.
+    private void displayCachedServices() {
+        final GattServiceCache cache = mBluetoothLeService.getServiceCache();
+        if (cache == null) {
+            return;
+        }
+        final String address = mDeviceAddress;
+        mDiskExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final GattServiceCache.Entry cached = cache.get(address);
+                if (cached == null) {
+                    return;
+                }
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!mDestroyed && mConnected && !mServicesShown) {
+                            mGattCharacteristics = null;
+                            displayGattServices(cached);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
     // Demonstrates how to iterate through the supported GATT Services/Characteristics.
-    // In this sample, we populate the data structure that is bound to the ExpandableListView
-    // on the UI.
+    // In this sample, we bind the characteristics to the rows of the ExpandableListView on
+    // the UI, and only rebuild the rows if they differ from the cached ones shown.
     private void displayGattServices(List<BluetoothGattService> gattServices) {
         if (gattServices == null) return;
+        mGattCharacteristics = new ArrayList<ArrayList<BluetoothGattCharacteristic>>();
+        for (BluetoothGattService gattService : gattServices) {
+            mGattCharacteristics.add(new ArrayList<BluetoothGattCharacteristic>(
+                    gattService.getCharacteristics()));
+        }
+        final GattServiceCache.Entry discovered =
+                GattServiceCache.describe(mDeviceAddress, gattServices);
+        if (mServicesShown && mShownServicesHash == discovered.hash) {
+            return;
+        }
+        displayGattServices(discovered);
+    }
+
+    // Populates the data structure that is bound to the ExpandableListView on the UI.
+    private void displayGattServices(GattServiceCache.Entry entry) {
         String uuid = null;
         String unknownServiceString = getResources().getString(R.string.unknown_service);
         String unknownCharaString = getResources().getString(R.string.unknown_characteristic);
         ArrayList<HashMap<String, String>> gattServiceData = new ArrayList<HashMap<String, String>>();
         ArrayList<ArrayList<HashMap<String, String>>> gattCharacteristicData
                 = new ArrayList<ArrayList<HashMap<String, String>>>();
-        mGattCharacteristics = new ArrayList<ArrayList<BluetoothGattCharacteristic>>();
 
         // Loops through available GATT Services.
-        for (BluetoothGattService gattService : gattServices) {
+        for (GattServiceCache.Service gattService : entry.services) {
             HashMap<String, String> currentServiceData = new HashMap<String, String>();
-            uuid = gattService.getUuid().toString();
+            uuid = gattService.uuid.toString();
             currentServiceData.put(
                     LIST_NAME, SampleGattAttributes.lookup(uuid, unknownServiceString));
             currentServiceData.put(LIST_UUID, uuid);
@@ -265,22 +353,17 @@ public class DeviceControlActivity extends Activity {
 
             ArrayList<HashMap<String, String>> gattCharacteristicGroupData =
                     new ArrayList<HashMap<String, String>>();
-            List<BluetoothGattCharacteristic> gattCharacteristics =
-                    gattService.getCharacteristics();
-            ArrayList<BluetoothGattCharacteristic> charas =
-                    new ArrayList<BluetoothGattCharacteristic>();
 
             // Loops through available Characteristics.
-            for (BluetoothGattCharacteristic gattCharacteristic : gattCharacteristics) {
-                charas.add(gattCharacteristic);
+            for (GattServiceCache.Characteristic gattCharacteristic
+                    : gattService.characteristics) {
                 HashMap<String, String> currentCharaData = new HashMap<String, String>();
-                uuid = gattCharacteristic.getUuid().toString();
+                uuid = gattCharacteristic.uuid.toString();
                 currentCharaData.put(
                         LIST_NAME, SampleGattAttributes.lookup(uuid, unknownCharaString));
                 currentCharaData.put(LIST_UUID, uuid);
                 gattCharacteristicGroupData.add(currentCharaData);
             }
-            mGattCharacteristics.add(charas);
             gattCharacteristicData.add(gattCharacteristicGroupData);
         }
 
@@ -296,6 +379,8 @@ public class DeviceControlActivity extends Activity {
                 new int[] { android.R.id.text1, android.R.id.text2 }
         );
         mGattServicesList.setAdapter(gattServiceAdapter);
+        mServicesShown = true;
+        mShownServicesHash = entry.hash;
     }
 
     private static IntentFilter makeGattUpdateIntentFilter() {
@@ -303,7 +388,6 @@ public class DeviceControlActivity extends Activity {
         intentFilter.addAction(BluetoothLeService.ACTION_GATT_CONNECTED);
         intentFilter.addAction(BluetoothLeService.ACTION_GATT_DISCONNECTED);
         intentFilter.addAction(BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED);
-        intentFilter.addAction(BluetoothLeService.ACTION_DATA_AVAILABLE);
         return intentFilter;
     }
 }
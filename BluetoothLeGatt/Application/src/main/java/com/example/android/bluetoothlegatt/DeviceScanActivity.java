@@ -36,13 +36,16 @@ import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * Activity for scanning and displaying available Bluetooth LE devices.
  */
 public class DeviceScanActivity extends ListActivity {
     private LeDeviceListAdapter mLeDeviceListAdapter;
+    private ScanAggregator mScanAggregator;
+    private LeScanEngine mScanEngine;
     private BluetoothAdapter mBluetoothAdapter;
     private boolean mScanning;
     private Handler mHandler;
@@ -98,6 +101,7 @@ public class DeviceScanActivity extends ListActivity {
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {
             case R.id.menu_scan:
+                mScanAggregator.clear();
                 mLeDeviceListAdapter.clear();
                 scanLeDevice(true);
                 break;
@@ -119,9 +123,18 @@ public class DeviceScanActivity extends ListActivity {
             startActivityForResult(enableBtIntent, REQUEST_ENABLE_BT);
         }
 
-        // Initializes list view adapter.
+        // Initializes list view adapter.  Advertisements are collected off the main thread
+        // and reach the list a few times a second at most.
         mLeDeviceListAdapter = new LeDeviceListAdapter();
         setListAdapter(mLeDeviceListAdapter);
+        mScanAggregator = new ScanAggregator(mLeDeviceListAdapter);
+        mScanAggregator.start();
+
+        // Scan as fast as the radio allows while the list is on screen, but let the
+        // controller batch results no more often than the list is refreshed anyway.
+        mScanEngine = new LeScanEngine(mBluetoothAdapter, mScanAggregator);
+        mScanEngine.setMode(LeScanEngine.MODE_LOW_LATENCY);
+        mScanEngine.setReportDelay(ScanAggregator.PUBLISH_INTERVAL_MILLIS);
         scanLeDevice(true);
     }
 
@@ -139,6 +152,7 @@ public class DeviceScanActivity extends ListActivity {
     protected void onPause() {
         super.onPause();
         scanLeDevice(false);
+        mScanAggregator.stop();
         mLeDeviceListAdapter.clear();
     }
 
@@ -150,7 +164,7 @@ public class DeviceScanActivity extends ListActivity {
         intent.putExtra(DeviceControlActivity.EXTRAS_DEVICE_NAME, device.getName());
         intent.putExtra(DeviceControlActivity.EXTRAS_DEVICE_ADDRESS, device.getAddress());
         if (mScanning) {
-            mBluetoothAdapter.stopLeScan(mLeScanCallback);
+            mScanEngine.stop();
             mScanning = false;
         }
         startActivity(intent);
@@ -163,43 +177,58 @@ public class DeviceScanActivity extends ListActivity {
                 @Override
                 public void run() {
                     mScanning = false;
-                    mBluetoothAdapter.stopLeScan(mLeScanCallback);
+                    mScanEngine.stop();
                     invalidateOptionsMenu();
                 }
             }, SCAN_PERIOD);
 
             mScanning = true;
-            mBluetoothAdapter.startLeScan(mLeScanCallback);
+            mScanEngine.start();
         } else {
             mScanning = false;
-            mBluetoothAdapter.stopLeScan(mLeScanCallback);
+            mScanEngine.stop();
         }
         invalidateOptionsMenu();
     }
 
-    // Adapter for holding devices found through scanning.
-    private class LeDeviceListAdapter extends BaseAdapter {
-        private ArrayList<BluetoothDevice> mLeDevices;
+    // Adapter for holding devices found through scanning.  It shows the latest snapshot from
+    // the aggregator and only redraws the rows that changed.
+    private class LeDeviceListAdapter extends BaseAdapter implements ScanAggregator.Listener {
+        private List<ScanAggregator.Device> mLeDevices = Collections.emptyList();
         private LayoutInflater mInflator;
 
         public LeDeviceListAdapter() {
             super();
-            mLeDevices = new ArrayList<BluetoothDevice>();
             mInflator = DeviceScanActivity.this.getLayoutInflater();
         }
 
-        public void addDevice(BluetoothDevice device) {
-            if(!mLeDevices.contains(device)) {
-                mLeDevices.add(device);
+        @Override
+        public void onSnapshot(ScanAggregator.Snapshot snapshot) {
+            final boolean inserted = snapshot.getFirstInserted() < snapshot.getDevices().size()
+                    || snapshot.getDevices().size() != mLeDevices.size();
+            mLeDevices = snapshot.getDevices();
+            if (inserted) {
+                notifyDataSetChanged();
+                return;
+            }
+            // Same rows as before, so only rebind the visible ones whose RSSI moved.
+            final ListView listView = getListView();
+            final int first = listView.getFirstVisiblePosition();
+            for (int position : snapshot.getChanged()) {
+                final View view = listView.getChildAt(position - first);
+                if (view != null) {
+                    bind((ViewHolder) view.getTag(), mLeDevices.get(position));
+                }
             }
         }
 
         public BluetoothDevice getDevice(int position) {
-            return mLeDevices.get(position);
+            return mLeDevices.get(position).device;
         }
 
         public void clear() {
-            mLeDevices.clear();
+            mLeDevices = Collections.emptyList();
+            notifyDataSetChanged();
         }
 
         @Override
@@ -226,41 +255,30 @@ public class DeviceScanActivity extends ListActivity {
                 viewHolder = new ViewHolder();
                 viewHolder.deviceAddress = (TextView) view.findViewById(R.id.device_address);
                 viewHolder.deviceName = (TextView) view.findViewById(R.id.device_name);
+                viewHolder.deviceRssi = (TextView) view.findViewById(R.id.device_rssi);
                 view.setTag(viewHolder);
             } else {
                 viewHolder = (ViewHolder) view.getTag();
             }
 
-            BluetoothDevice device = mLeDevices.get(i);
-            final String deviceName = device.getName();
+            bind(viewHolder, mLeDevices.get(i));
+            return view;
+        }
+
+        private void bind(ViewHolder viewHolder, ScanAggregator.Device device) {
+            final String deviceName = device.device.getName();
             if (deviceName != null && deviceName.length() > 0)
                 viewHolder.deviceName.setText(deviceName);
             else
                 viewHolder.deviceName.setText(R.string.unknown_device);
-            viewHolder.deviceAddress.setText(device.getAddress());
-
-            return view;
+            viewHolder.deviceAddress.setText(device.address);
+            viewHolder.deviceRssi.setText(getString(R.string.device_rssi, device.rssi));
         }
     }
 
-    // Device scan callback.
-    private BluetoothAdapter.LeScanCallback mLeScanCallback =
-            new BluetoothAdapter.LeScanCallback() {
-
-        @Override
-        public void onLeScan(final BluetoothDevice device, int rssi, byte[] scanRecord) {
-            runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    mLeDeviceListAdapter.addDevice(device);
-                    mLeDeviceListAdapter.notifyDataSetChanged();
-                }
-            });
-        }
-    };
-
     static class ViewHolder {
         TextView deviceName;
         TextView deviceAddress;
+        TextView deviceRssi;
     }
 }
@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bluetoothlegatt;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps a {@link GattSession} for each of up to a fixed number of devices, all connected
+ * at once.
+ */
+public class GattConnectionManager {
+    private final static String TAG = GattConnectionManager.class.getSimpleName();
+
+    private final GattLink.Factory mFactory;
+    private final Scheduler mScheduler;
+    private final int mMaxConnections;
+    private final GattSession.Listener mListener;
+    private final Map<String, GattSession> mSessions = new LinkedHashMap<>();
+    private int mPreferredMtu = GattSession.MAX_MTU;
+    private ReconnectPolicy mReconnectPolicy =
+            ReconnectPolicy.exponential(1000, 30 * 1000, 0);
+    private GattServiceCache mServiceCache;
+
+    /**
+     * @param factory        Opens connections.
+     * @param scheduler      Runs timeouts and reconnects for every session.
+     * @param maxConnections Most sessions at once; Android allows only a handful of
+     *                       connected LE devices.
+     * @param listener       Receives the events of every session.
+     */
+    public GattConnectionManager(GattLink.Factory factory, Scheduler scheduler,
+                                 int maxConnections, GattSession.Listener listener) {
+        mFactory = factory;
+        mScheduler = scheduler;
+        mMaxConnections = maxConnections;
+        mListener = listener;
+    }
+
+    /**
+     * Sets the MTU that sessions created from now on ask for.
+     */
+    public synchronized void setPreferredMtu(int mtu) {
+        mPreferredMtu = mtu;
+    }
+
+    /**
+     * Sets how sessions created from now on reconnect.
+     */
+    public synchronized void setReconnectPolicy(ReconnectPolicy policy) {
+        mReconnectPolicy = policy;
+    }
+
+    /**
+     * Sets where sessions created from now on record the services they discover, or null
+     * to not record them.
+     */
+    public synchronized void setServiceCache(GattServiceCache cache) {
+        mServiceCache = cache;
+    }
+
+    public synchronized GattServiceCache getServiceCache() {
+        return mServiceCache;
+    }
+
+    /**
+     * Connects to a device, reusing its session if there is one.
+     *
+     * @return the session, or null if all sessions are in use or the device was not found.
+     */
+    public GattSession connect(String address) {
+        final GattSession session;
+        synchronized (this) {
+            final GattSession existing = mSessions.get(address);
+            if (existing != null) {
+                session = existing;
+            } else if (mSessions.size() >= mMaxConnections) {
+                Log.w(TAG, "Already connected to " + mSessions.size() + " devices, not "
+                        + address);
+                return null;
+            } else {
+                session = new GattSession(address, mFactory, mScheduler, mPreferredMtu,
+                        mReconnectPolicy, mServiceCache, mListener);
+                mSessions.put(address, session);
+            }
+        }
+        if (!session.connect()) {
+            close(address);
+            return null;
+        }
+        return session;
+    }
+
+    /**
+     * Disconnects from a device, keeping its session for a later {@link #connect}.
+     */
+    public void disconnect(String address) {
+        final GattSession session = getSession(address);
+        if (session != null) {
+            session.disconnect();
+        }
+    }
+
+    /**
+     * Closes and forgets the session for a device.
+     */
+    public void close(String address) {
+        final GattSession session;
+        synchronized (this) {
+            session = mSessions.remove(address);
+        }
+        if (session != null) {
+            session.close();
+        }
+    }
+
+    /**
+     * Closes every session.
+     */
+    public void closeAll() {
+        final List<GattSession> sessions;
+        synchronized (this) {
+            sessions = new ArrayList<>(mSessions.values());
+            mSessions.clear();
+        }
+        for (GattSession session : sessions) {
+            session.close();
+        }
+    }
+
+    public synchronized GattSession getSession(String address) {
+        return mSessions.get(address);
+    }
+
+    /**
+     * Returns every session, oldest first.
+     */
+    public synchronized List<GattSession> getSessions() {
+        return new ArrayList<>(mSessions.values());
+    }
+
+    public synchronized int size() {
+        return mSessions.size();
+    }
+
+    /**
+     * Returns the bytes received per second across all devices.
+     */
+    public long getReceiveRate() {
+        long rate = 0;
+        for (GattSession session : getSessions()) {
+            rate += session.getThroughput().getReceiveRate();
+        }
+        return rate;
+    }
+
+    /**
+     * Returns the bytes sent per second across all devices.
+     */
+    public long getSendRate() {
+        long rate = 0;
+        for (GattSession session : getSessions()) {
+            rate += session.getThroughput().getSendRate();
+        }
+        return rate;
+    }
+
+    public long getBytesReceived() {
+        long bytes = 0;
+        for (GattSession session : getSessions()) {
+            bytes += session.getThroughput().getBytesReceived();
+        }
+        return bytes;
+    }
+
+    public long getBytesSent() {
+        long bytes = 0;
+        for (GattSession session : getSessions()) {
+            bytes += session.getThroughput().getBytesSent();
+        }
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder("GattConnectionManager{sent=")
+                .append(getBytesSent()).append("B (").append(getSendRate())
+                .append("B/s), received=").append(getBytesReceived()).append("B (")
+                .append(getReceiveRate()).append("B/s)");
+        for (GattSession session : getSessions()) {
+            builder.append(", ").append(session);
+        }
+        return builder.append('}').toString();
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+/**
+ * Reads the standard GATT value formats straight out of a characteristic's byte array.
+ * Unlike {@code BluetoothGattCharacteristic#getIntValue} these return primitives, so decoding
+ * a notification does not box anything. All multi-byte formats are little-endian.
+ */
+public final class GattFormats {
+
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    // Two hex digits for every byte value, so formatting a byte is two array reads
+    private static final char[] HEX_TABLE = new char[256 * 2];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            HEX_TABLE[i * 2] = HEX_DIGITS[i >>> 4];
+            HEX_TABLE[i * 2 + 1] = HEX_DIGITS[i & 0x0F];
+        }
+    }
+
+    private GattFormats() {
+    }
+
+    public static int uint8(byte[] data, int offset) {
+        return data[offset] & 0xFF;
+    }
+
+    public static int sint8(byte[] data, int offset) {
+        return data[offset];
+    }
+
+    public static int uint16(byte[] data, int offset) {
+        return (data[offset] & 0xFF) | (data[offset + 1] & 0xFF) << 8;
+    }
+
+    public static int sint16(byte[] data, int offset) {
+        return (short) uint16(data, offset);
+    }
+
+    public static int uint24(byte[] data, int offset) {
+        return uint16(data, offset) | (data[offset + 2] & 0xFF) << 16;
+    }
+
+    public static long uint32(byte[] data, int offset) {
+        return sint32(data, offset) & 0xFFFFFFFFL;
+    }
+
+    public static int sint32(byte[] data, int offset) {
+        return uint24(data, offset) | data[offset + 3] << 24;
+    }
+
+    /**
+     * IEEE-11073 16-bit SFLOAT: a 4-bit signed exponent over a 12-bit signed mantissa.
+     */
+    public static float sfloat(byte[] data, int offset) {
+        int raw = uint16(data, offset);
+        int mantissa = raw & 0x0FFF;
+        int exponent = raw >> 12;
+        if (exponent == 0 && mantissa >= 0x07FE && mantissa <= 0x0802) {
+            // NaN, NRes, +INFINITY, reserved and -INFINITY
+            return mantissa == 0x07FE ? Float.POSITIVE_INFINITY
+                    : mantissa == 0x0802 ? Float.NEGATIVE_INFINITY : Float.NaN;
+        }
+        if (mantissa >= 0x0800) {
+            mantissa -= 0x1000;
+        }
+        if (exponent >= 0x08) {
+            exponent -= 0x10;
+        }
+        return (float) (mantissa * Math.pow(10, exponent));
+    }
+
+    /**
+     * IEEE-11073 32-bit FLOAT: an 8-bit signed exponent over a 24-bit signed mantissa.
+     */
+    public static float float32(byte[] data, int offset) {
+        int mantissa = uint24(data, offset);
+        int exponent = data[offset + 3];
+        if (exponent == 0 && mantissa >= 0x007FFFFE && mantissa <= 0x00800002) {
+            return mantissa == 0x007FFFFE ? Float.POSITIVE_INFINITY
+                    : mantissa == 0x00800002 ? Float.NEGATIVE_INFINITY : Float.NaN;
+        }
+        if (mantissa >= 0x00800000) {
+            mantissa -= 0x01000000;
+        }
+        return (float) (mantissa * Math.pow(10, exponent));
+    }
+
+    /**
+     * Appends bytes as space separated upper case hex pairs, "0A 1B ".
+     */
+    public static StringBuilder appendHex(StringBuilder out, byte[] data, int offset,
+                                          int length) {
+        for (int i = offset; i < offset + length; i++) {
+            int index = (data[i] & 0xFF) * 2;
+            out.append(HEX_TABLE[index]).append(HEX_TABLE[index + 1]).append(' ');
+        }
+        return out;
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothGattService;
+
+import java.util.List;
+
+/**
+ * One connection to a remote GATT server, as used by a {@link GattSession}. The app uses
+ * {@link BluetoothGattLink}; a simulated device can implement this to run sessions on a JVM.
+ *
+ * <p>A link reports what happens on the connection by calling the session's {@code on}
+ * methods, passing itself so the session can ignore links it has already replaced.</p>
+ */
+public interface GattLink extends GattTarget {
+
+    /**
+     * Creates links.
+     */
+    interface Factory {
+        /**
+         * @param address The device to connect to.
+         * @param session Receives the link's events.
+         * @return an unconnected link, or null if there is no such device.
+         */
+        GattLink create(String address, GattSession session);
+    }
+
+    /**
+     * Starts connecting. A link connects once; reconnecting uses a new link.
+     *
+     * @return false if the connection could not be started.
+     */
+    boolean connect();
+
+    void disconnect();
+
+    /**
+     * Releases the connection. No events are reported afterwards.
+     */
+    void close();
+
+    boolean discoverServices();
+
+    List<BluetoothGattService> getServices();
+
+    boolean requestConnectionPriority(int priority);
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+
+import java.util.UUID;
+
+/**
+ * One request for a {@link GattOperationQueue}. Android only allows one GATT request in
+ * flight per connection, so each operation waits in the queue until the previous one has
+ * completed.
+ */
+public class GattOperation {
+
+    // Kinds of operation, also used to match completions to the operation in flight
+    public static final int TYPE_READ_CHARACTERISTIC = 0;
+    public static final int TYPE_WRITE_CHARACTERISTIC = 1;
+    public static final int TYPE_READ_DESCRIPTOR = 2;
+    public static final int TYPE_WRITE_DESCRIPTOR = 3;
+    public static final int TYPE_REQUEST_MTU = 4;
+
+    // Priorities; lower values run first, equal priorities in the order they were queued
+    public static final int PRIORITY_HIGH = 0;   // notification setup
+    public static final int PRIORITY_NORMAL = 1; // single reads and writes
+    public static final int PRIORITY_BULK = 2;   // reads of many values at once
+
+    // Completion statuses besides the BluetoothGatt.GATT_ ones
+    public static final int STATUS_TIMEOUT = -1;     // no completion within the timeout
+    public static final int STATUS_NOT_STARTED = -2; // BluetoothGatt refused the request
+    public static final int STATUS_CANCELLED = -3;   // the queue was cleared
+
+    public static final long DEFAULT_TIMEOUT_MILLIS = 5000;
+
+    /**
+     * Notified once when the operation completes, fails or times out.
+     */
+    public interface Callback {
+        /**
+         * @param operation The operation
+         * @param status    {@code BluetoothGatt.GATT_SUCCESS}, another GATT status or one
+         *                  of the {@code STATUS_} constants
+         * @param value     The value read, or null
+         */
+        void onComplete(GattOperation operation, int status, byte[] value);
+    }
+
+    final int mType;
+    final int mPriority;
+    final BluetoothGattCharacteristic mCharacteristic;
+    final BluetoothGattDescriptor mDescriptor;
+    final byte[] mValue;
+    final Callback mCallback;
+    private long mTimeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+    private boolean mEnable; // for notification setup, whether to turn them on
+    private int mMtu;        // for MTU requests
+    private int mWriteType = -1; // for characteristic writes, -1 to leave it as it is
+
+    // Set by the queue
+    long mSequence;
+    long mQueuedAt;
+    long mStartedAt;
+    Runnable mTimeoutTask;
+
+    private GattOperation(int type, int priority, BluetoothGattCharacteristic characteristic,
+                          BluetoothGattDescriptor descriptor, byte[] value, Callback callback) {
+        mType = type;
+        mPriority = priority;
+        mCharacteristic = characteristic;
+        mDescriptor = descriptor;
+        mValue = value;
+        mCallback = callback;
+    }
+
+    public static GattOperation readCharacteristic(BluetoothGattCharacteristic characteristic,
+                                                   int priority, Callback callback) {
+        return new GattOperation(TYPE_READ_CHARACTERISTIC, priority, characteristic, null,
+                null, callback);
+    }
+
+    /**
+     * @param value Set on the characteristic just before it is written
+     */
+    public static GattOperation writeCharacteristic(BluetoothGattCharacteristic characteristic,
+                                                    byte[] value, int priority,
+                                                    Callback callback) {
+        return new GattOperation(TYPE_WRITE_CHARACTERISTIC, priority, characteristic, null,
+                value, callback);
+    }
+
+    /**
+     * @param value     Set on the characteristic just before it is written
+     * @param writeType One of the {@code BluetoothGattCharacteristic.WRITE_TYPE_} values
+     */
+    public static GattOperation writeCharacteristic(BluetoothGattCharacteristic characteristic,
+                                                    byte[] value, int writeType, int priority,
+                                                    Callback callback) {
+        GattOperation operation = writeCharacteristic(characteristic, value, priority,
+                callback);
+        operation.mWriteType = writeType;
+        return operation;
+    }
+
+    public static GattOperation readDescriptor(BluetoothGattDescriptor descriptor,
+                                               int priority, Callback callback) {
+        return new GattOperation(TYPE_READ_DESCRIPTOR, priority, null, descriptor, null,
+                callback);
+    }
+
+    /**
+     * @param value Set on the descriptor just before it is written
+     */
+    public static GattOperation writeDescriptor(BluetoothGattDescriptor descriptor,
+                                                byte[] value, int priority,
+                                                Callback callback) {
+        return new GattOperation(TYPE_WRITE_DESCRIPTOR, priority, null, descriptor, value,
+                callback);
+    }
+
+    /**
+     * Turn notifications of a characteristic on or off: enable them locally, then write
+     * its Client Characteristic Configuration descriptor. Runs at
+     * {@link #PRIORITY_HIGH}, so notifications are set up before queued reads.
+     *
+     * @return the operation, or null if the characteristic has no such descriptor
+     */
+    public static GattOperation setNotification(BluetoothGattCharacteristic characteristic,
+                                                boolean enable, Callback callback) {
+        BluetoothGattDescriptor descriptor = characteristic.getDescriptor(
+                UUID.fromString(SampleGattAttributes.CLIENT_CHARACTERISTIC_CONFIG));
+        if (descriptor == null) {
+            return null;
+        }
+        byte[] value;
+        if (!enable) {
+            value = BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE;
+        } else if ((characteristic.getProperties()
+                & BluetoothGattCharacteristic.PROPERTY_NOTIFY) != 0) {
+            value = BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE;
+        } else {
+            value = BluetoothGattDescriptor.ENABLE_INDICATION_VALUE;
+        }
+        GattOperation operation = new GattOperation(TYPE_WRITE_DESCRIPTOR, PRIORITY_HIGH,
+                characteristic, descriptor, value, callback);
+        operation.mEnable = enable;
+        return operation;
+    }
+
+    /**
+     * Ask for a larger ATT MTU. Runs at {@link #PRIORITY_HIGH}; the MTU the remote device
+     * agreed to is reported to {@code BluetoothGattCallback#onMtuChanged}.
+     */
+    public static GattOperation requestMtu(int mtu, Callback callback) {
+        GattOperation operation = new GattOperation(TYPE_REQUEST_MTU, PRIORITY_HIGH, null, null,
+                null, callback);
+        operation.mMtu = mtu;
+        return operation;
+    }
+
+    /**
+     * Set how long the operation may take once started before it is given up on.
+     *
+     * @return this operation
+     */
+    public GattOperation setTimeout(long timeoutMillis) {
+        mTimeoutMillis = timeoutMillis;
+        return this;
+    }
+
+    public long getTimeoutMillis() {
+        return mTimeoutMillis;
+    }
+
+    public int getType() {
+        return mType;
+    }
+
+    public int getPriority() {
+        return mPriority;
+    }
+
+    /**
+     * Return the UUID of the characteristic or descriptor this operation is on, or null for
+     * an MTU request.
+     */
+    public UUID getUuid() {
+        if (mDescriptor != null) {
+            return mDescriptor.getUuid();
+        }
+        return mCharacteristic != null ? mCharacteristic.getUuid() : null;
+    }
+
+    /**
+     * Issue the request.
+     *
+     * @return false if {@code BluetoothGatt} refused it
+     */
+    boolean execute(GattTarget target) {
+        switch (mType) {
+            case TYPE_READ_CHARACTERISTIC:
+                return target.readCharacteristic(mCharacteristic);
+            case TYPE_WRITE_CHARACTERISTIC:
+                if (mWriteType >= 0) {
+                    mCharacteristic.setWriteType(mWriteType);
+                }
+                mCharacteristic.setValue(mValue);
+                return target.writeCharacteristic(mCharacteristic);
+            case TYPE_READ_DESCRIPTOR:
+                return target.readDescriptor(mDescriptor);
+            case TYPE_WRITE_DESCRIPTOR:
+                // Notification setup also carries the characteristic
+                if (mCharacteristic != null
+                        && !target.setCharacteristicNotification(mCharacteristic, mEnable)) {
+                    return false;
+                }
+                mDescriptor.setValue(mValue);
+                return target.writeDescriptor(mDescriptor);
+            case TYPE_REQUEST_MTU:
+                return target.requestMtu(mMtu);
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Return whether a completion of the given kind, for the given UUID, belongs to this
+     * operation.
+     */
+    boolean matches(int type, UUID uuid) {
+        UUID own = getUuid();
+        return mType == type && (own == null ? uuid == null : own.equals(uuid));
+    }
+
+    @Override
+    public String toString() {
+        return "GattOperation{type=" + mType + ", priority=" + mPriority + ", uuid="
+                + getUuid() + "}";
+    }
+}
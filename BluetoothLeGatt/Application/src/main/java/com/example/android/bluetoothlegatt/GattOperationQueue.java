@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.UUID;
+
+/**
+ * Runs {@link GattOperation}s against a {@link GattTarget} one at a time.
+ *
+ * <p>{@code BluetoothGatt} silently drops a request made while another one is
+ * outstanding, so every request goes through this queue. The next operation starts as
+ * soon as the {@code BluetoothGattCallback} reports that the current one completed, or
+ * when it times out. Waiting operations run in order of priority, then in the order they
+ * were queued.</p>
+ *
+ * <p>The queue may be used from any thread. Callbacks run on the thread that completed
+ * the operation: a {@code BluetoothGattCallback} thread, the scheduler's thread for
+ * timeouts, or the caller of {@link #clear()}. Time and timeouts come from a
+ * {@link Scheduler}, so the queue can be driven by a fake one off the device.</p>
+ */
+public class GattOperationQueue {
+    private final static String TAG = GattOperationQueue.class.getSimpleName();
+
+    private static final Comparator<GattOperation> ORDER = new Comparator<GattOperation>() {
+        @Override
+        public int compare(GattOperation a, GattOperation b) {
+            if (a.mPriority != b.mPriority) {
+                return a.mPriority < b.mPriority ? -1 : 1;
+            }
+            return a.mSequence < b.mSequence ? -1 : a.mSequence == b.mSequence ? 0 : 1;
+        }
+    };
+
+    private final GattTarget mTarget;
+    private final Scheduler mScheduler;
+    private final PriorityQueue<GattOperation> mQueue = new PriorityQueue<>(16, ORDER);
+    private GattOperation mCurrent;
+    private long mNextSequence;
+
+    // Statistics
+    private int mMaxDepth;
+    private long mCompleted;
+    private long mTimeouts;
+    private long mTotalWaitMillis;
+    private long mTotalRunMillis;
+    private long mMaxRunMillis;
+
+    /**
+     * @param target    Where requests are sent
+     * @param scheduler Runs the timeouts and times the operations
+     */
+    public GattOperationQueue(GattTarget target, Scheduler scheduler) {
+        mTarget = target;
+        mScheduler = scheduler;
+    }
+
+    /**
+     * Queue an operation. It starts at once if nothing else is in flight.
+     */
+    public void enqueue(GattOperation operation) {
+        synchronized (this) {
+            operation.mSequence = mNextSequence++;
+            operation.mQueuedAt = mScheduler.elapsedRealtime();
+            mQueue.add(operation);
+            mMaxDepth = Math.max(mMaxDepth, mQueue.size());
+        }
+        next();
+    }
+
+    /**
+     * Report a completion from the {@code BluetoothGattCallback}. Completions that do not
+     * belong to the operation in flight, such as reads issued by someone else, are
+     * ignored.
+     *
+     * @param type   One of the {@code GattOperation.TYPE_} constants
+     * @param uuid   The characteristic or descriptor the completion is for
+     * @param status The GATT status
+     * @param value  The value read, or null
+     * @return true if the completion belonged to the operation in flight
+     */
+    public boolean onComplete(int type, UUID uuid, int status, byte[] value) {
+        GattOperation operation;
+        synchronized (this) {
+            operation = mCurrent;
+            if (operation == null || !operation.matches(type, uuid)) {
+                return false;
+            }
+        }
+        finish(operation, status, value);
+        return true;
+    }
+
+    /**
+     * Fail the operation in flight and every waiting one with
+     * {@link GattOperation#STATUS_CANCELLED}, for example after a disconnection.
+     */
+    public void clear() {
+        List<GattOperation> cancelled = new ArrayList<>();
+        synchronized (this) {
+            if (mCurrent != null) {
+                cancelled.add(mCurrent);
+                mCurrent = null;
+            }
+            GattOperation operation;
+            while ((operation = mQueue.poll()) != null) {
+                cancelled.add(operation);
+            }
+        }
+        for (GattOperation operation : cancelled) {
+            if (operation.mTimeoutTask != null) {
+                mScheduler.removeCallbacks(operation.mTimeoutTask);
+            }
+            deliver(operation, GattOperation.STATUS_CANCELLED, null);
+        }
+    }
+
+    /**
+     * Return the number of operations waiting, not counting the one in flight.
+     */
+    public synchronized int getDepth() {
+        return mQueue.size();
+    }
+
+    public synchronized int getMaxDepth() {
+        return mMaxDepth;
+    }
+
+    public synchronized long getCompletedCount() {
+        return mCompleted;
+    }
+
+    public synchronized long getTimeoutCount() {
+        return mTimeouts;
+    }
+
+    /**
+     * Return the average time operations spent waiting for the ones before them.
+     */
+    public synchronized long getAverageWaitMillis() {
+        return mCompleted == 0 ? 0 : mTotalWaitMillis / mCompleted;
+    }
+
+    /**
+     * Return the average time from starting an operation to its completion.
+     */
+    public synchronized long getAverageRunMillis() {
+        return mCompleted == 0 ? 0 : mTotalRunMillis / mCompleted;
+    }
+
+    public synchronized long getMaxRunMillis() {
+        return mMaxRunMillis;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "GattOperationQueue{depth=" + mQueue.size() + ", maxDepth=" + mMaxDepth
+                + ", completed=" + mCompleted + ", timeouts=" + mTimeouts + ", avgWait="
+                + getAverageWaitMillis() + "ms, avgRun=" + getAverageRunMillis()
+                + "ms, maxRun=" + mMaxRunMillis + "ms}";
+    }
+
+    /**
+     * Complete an operation, if it is still the one in flight, and start the next.
+     */
+    private void finish(GattOperation operation, int status, byte[] value) {
+        synchronized (this) {
+            if (mCurrent != operation) {
+                return;
+            }
+            mCurrent = null;
+            long now = mScheduler.elapsedRealtime();
+            long run = now - operation.mStartedAt;
+            mCompleted++;
+            mTotalWaitMillis += operation.mStartedAt - operation.mQueuedAt;
+            mTotalRunMillis += run;
+            mMaxRunMillis = Math.max(mMaxRunMillis, run);
+        }
+        mScheduler.removeCallbacks(operation.mTimeoutTask);
+        deliver(operation, status, value);
+        next();
+    }
+
+    private void onTimeout(GattOperation operation) {
+        synchronized (this) {
+            if (mCurrent != operation) {
+                return;
+            }
+            mTimeouts++;
+        }
+        Log.w(TAG, "Timed out: " + operation);
+        finish(operation, GattOperation.STATUS_TIMEOUT, null);
+    }
+
+    /**
+     * Start waiting operations until one is accepted by the target.
+     */
+    private void next() {
+        while (true) {
+            final GattOperation operation;
+            synchronized (this) {
+                if (mCurrent != null) {
+                    return;
+                }
+                operation = mQueue.poll();
+                if (operation == null) {
+                    return;
+                }
+                mCurrent = operation;
+                operation.mStartedAt = mScheduler.elapsedRealtime();
+                operation.mTimeoutTask = new Runnable() {
+                    @Override
+                    public void run() {
+                        onTimeout(operation);
+                    }
+                };
+            }
+            mScheduler.postDelayed(operation.mTimeoutTask, operation.getTimeoutMillis());
+            if (operation.execute(mTarget)) {
+                return;
+            }
+            Log.w(TAG, "Not started: " + operation);
+            synchronized (this) {
+                if (mCurrent == operation) {
+                    mCurrent = null;
+                }
+            }
+            mScheduler.removeCallbacks(operation.mTimeoutTask);
+            deliver(operation, GattOperation.STATUS_NOT_STARTED, null);
+        }
+    }
+
+    private static void deliver(GattOperation operation, int status, byte[] value) {
+        if (operation.mCallback != null) {
+            operation.mCallback.onComplete(operation, status, value);
+        }
+    }
+}
@@ -0,0 +1,311 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Remembers the services and characteristics discovered on each device, on disk, so the
+ * next connection can show them before discovery has finished.
+ *
+ * <p>Each device's layout is kept with a hash of it. Discovery still has to run before a
+ * characteristic can be read or written, but when it finds the same hash nothing needs to
+ * be rebuilt. A Service Changed indication from the device drops its entry.</p>
+ */
+public class GattServiceCache {
+    private final static String TAG = GattServiceCache.class.getSimpleName();
+
+    private static final int MAGIC = 0x47415454; // "GATT"
+    private static final int VERSION = 1;
+    private static final String SUFFIX = ".gatt";
+
+    // More services or characteristics than this means the file is corrupt
+    private static final int MAX_COUNT = 1024;
+
+    // FNV-1a, 64 bit
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    /**
+     * One cached characteristic.
+     */
+    public static final class Characteristic {
+        public final UUID uuid;
+        public final int instanceId;
+        public final int properties;
+
+        Characteristic(UUID uuid, int instanceId, int properties) {
+            this.uuid = uuid;
+            this.instanceId = instanceId;
+            this.properties = properties;
+        }
+    }
+
+    /**
+     * One cached service and its characteristics, in the order they were discovered.
+     */
+    public static final class Service {
+        public final UUID uuid;
+        public final int instanceId;
+        public final int type;
+        public final List<Characteristic> characteristics;
+
+        Service(UUID uuid, int instanceId, int type, List<Characteristic> characteristics) {
+            this.uuid = uuid;
+            this.instanceId = instanceId;
+            this.type = type;
+            this.characteristics = Collections.unmodifiableList(characteristics);
+        }
+    }
+
+    /**
+     * The layout of one device.
+     */
+    public static final class Entry {
+        public final String address;
+        public final long hash;
+        public final List<Service> services;
+
+        Entry(String address, List<Service> services) {
+            this.address = address;
+            this.services = Collections.unmodifiableList(services);
+            this.hash = hash(services);
+        }
+    }
+
+    private final File mDirectory;
+
+    // Entries read or written so far; a null value means there is no file to read
+    private final Map<String, Entry> mEntries = new HashMap<>();
+
+    /**
+     * @param directory Where to keep one file per device. Created when first written to.
+     */
+    public GattServiceCache(File directory) {
+        mDirectory = directory;
+    }
+
+    /**
+     * Describes discovered services the way they are cached, without caching them.
+     */
+    public static Entry describe(String address, List<BluetoothGattService> gattServices) {
+        final List<Service> services = new ArrayList<>(gattServices.size());
+        for (BluetoothGattService gattService : gattServices) {
+            final List<BluetoothGattCharacteristic> gattCharacteristics =
+                    gattService.getCharacteristics();
+            final List<Characteristic> characteristics =
+                    new ArrayList<>(gattCharacteristics.size());
+            for (BluetoothGattCharacteristic gattCharacteristic : gattCharacteristics) {
+                characteristics.add(new Characteristic(gattCharacteristic.getUuid(),
+                        gattCharacteristic.getInstanceId(), gattCharacteristic.getProperties()));
+            }
+            services.add(new Service(gattService.getUuid(), gattService.getInstanceId(),
+                    gattService.getType(), characteristics));
+        }
+        return new Entry(address, services);
+    }
+
+    /**
+     * Returns what was last discovered on a device, or null. The first call for a device
+     * reads its file.
+     */
+    public synchronized Entry get(String address) {
+        if (mEntries.containsKey(address)) {
+            return mEntries.get(address);
+        }
+        final Entry entry = read(address);
+        mEntries.put(address, entry);
+        return entry;
+    }
+
+    /**
+     * Caches what discovery found on a device. The file is only written if it changed.
+     *
+     * @return the entry for the services.
+     */
+    public synchronized Entry put(String address, List<BluetoothGattService> gattServices) {
+        final Entry entry = describe(address, gattServices);
+        final Entry previous = get(address);
+        if (previous != null && previous.hash == entry.hash) {
+            return previous;
+        }
+        mEntries.put(address, entry);
+        write(entry);
+        Log.i(TAG, "Cached " + entry.services.size() + " services of " + address);
+        return entry;
+    }
+
+    /**
+     * Forgets a device's layout, for instance after it said its services changed.
+     */
+    public synchronized void invalidate(String address) {
+        mEntries.put(address, null);
+        final File file = getFile(address);
+        if (file.exists() && !file.delete()) {
+            Log.w(TAG, "Unable to delete " + file);
+        }
+    }
+
+    private File getFile(String address) {
+        return new File(mDirectory, address.replace(":", "") + SUFFIX);
+    }
+
+    private Entry read(String address) {
+        final File file = getFile(address);
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Unknown format");
+            }
+            final long hash = in.readLong();
+            final int serviceCount = readCount(in);
+            final List<Service> services = new ArrayList<>(serviceCount);
+            for (int i = 0; i < serviceCount; i++) {
+                final UUID uuid = new UUID(in.readLong(), in.readLong());
+                final int instanceId = in.readInt();
+                final int type = in.readInt();
+                final int characteristicCount = readCount(in);
+                final List<Characteristic> characteristics =
+                        new ArrayList<>(characteristicCount);
+                for (int j = 0; j < characteristicCount; j++) {
+                    characteristics.add(new Characteristic(new UUID(in.readLong(),
+                            in.readLong()), in.readInt(), in.readInt()));
+                }
+                services.add(new Service(uuid, instanceId, type, characteristics));
+            }
+            final Entry entry = new Entry(address, services);
+            if (entry.hash != hash) {
+                throw new IOException("Hash mismatch");
+            }
+            return entry;
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            Log.w(TAG, "Discarding cached services of " + address, e);
+            file.delete();
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private static int readCount(DataInputStream in) throws IOException {
+        final int count = in.readInt();
+        if (count < 0 || count > MAX_COUNT) {
+            throw new IOException("Bad count " + count);
+        }
+        return count;
+    }
+
+    private void write(Entry entry) {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            Log.w(TAG, "Unable to create " + mDirectory);
+            return;
+        }
+        // Written aside and renamed, so a crash never leaves half a file behind
+        final File file = getFile(entry.address);
+        final File temp = new File(mDirectory, file.getName() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(entry.hash);
+            out.writeInt(entry.services.size());
+            for (Service service : entry.services) {
+                out.writeLong(service.uuid.getMostSignificantBits());
+                out.writeLong(service.uuid.getLeastSignificantBits());
+                out.writeInt(service.instanceId);
+                out.writeInt(service.type);
+                out.writeInt(service.characteristics.size());
+                for (Characteristic characteristic : service.characteristics) {
+                    out.writeLong(characteristic.uuid.getMostSignificantBits());
+                    out.writeLong(characteristic.uuid.getLeastSignificantBits());
+                    out.writeInt(characteristic.instanceId);
+                    out.writeInt(characteristic.properties);
+                }
+            }
+            out.close();
+            out = null;
+            if (!temp.renameTo(file)) {
+                throw new IOException("Unable to rename " + temp);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to cache services of " + entry.address, e);
+            temp.delete();
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // Nothing more to do
+            }
+        }
+    }
+
+    private static long hash(List<Service> services) {
+        long hash = FNV_OFFSET;
+        for (Service service : services) {
+            hash = mix(hash, service.uuid.getMostSignificantBits());
+            hash = mix(hash, service.uuid.getLeastSignificantBits());
+            hash = mix(hash, service.instanceId);
+            hash = mix(hash, service.type);
+            for (Characteristic characteristic : service.characteristics) {
+                hash = mix(hash, characteristic.uuid.getMostSignificantBits());
+                hash = mix(hash, characteristic.uuid.getLeastSignificantBits());
+                hash = mix(hash, characteristic.instanceId);
+                hash = mix(hash, characteristic.properties);
+            }
+            // Marks where one service ends, so characteristics cannot move between them
+            hash = mix(hash, -1);
+        }
+        return hash;
+    }
+
+    private static long mix(long hash, long value) {
+        for (int i = 0; i < 8; i++) {
+            hash ^= value & 0xff;
+            hash *= FNV_PRIME;
+            value >>>= 8;
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,646 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+import android.util.Log;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The connection to one device, kept by a {@link GattConnectionManager}.
+ *
+ * <p>Each session has its own {@link GattOperationQueue}, so a slow device only holds up
+ * its own requests. Once services are discovered the session asks for its preferred MTU
+ * and connection priority. If the connection drops without {@link #disconnect()} being
+ * called, the session reconnects as its {@link ReconnectPolicy} allows.</p>
+ *
+ * <p>With a {@link GattServiceCache}, every discovery is recorded in it. The session also
+ * subscribes to the device's Service Changed indications, and when one arrives it drops
+ * the cached entry and discovers services again.</p>
+ */
+public class GattSession {
+    private final static String TAG = GattSession.class.getSimpleName();
+
+    // Connection states
+    public static final int STATE_DISCONNECTED = 0;
+    public static final int STATE_CONNECTING = 1; // also while waiting to reconnect
+    public static final int STATE_CONNECTED = 2;
+
+    /**
+     * The ATT MTU every connection starts with.
+     */
+    public static final int DEFAULT_MTU = 23;
+
+    /**
+     * The largest ATT MTU Android will ask for.
+     */
+    public static final int MAX_MTU = 517;
+
+    private static final UUID UUID_SERVICE_CHANGED =
+            UUID.fromString(SampleGattAttributes.SERVICE_CHANGED);
+
+    /**
+     * Receives a session's events, on the thread that reported them.
+     */
+    public interface Listener {
+        void onStateChanged(GattSession session, int oldState, int newState);
+
+        void onServicesDiscovered(GattSession session);
+
+        /**
+         * A value was read or notified. The characteristic holds it until the next one.
+         */
+        void onValue(GattSession session, BluetoothGattCharacteristic characteristic,
+                     boolean notification);
+    }
+
+    private final String mAddress;
+    private final GattLink.Factory mFactory;
+    private final Scheduler mScheduler;
+    private final Listener mListener;
+    private final GattOperationQueue mQueue;
+    private final ThroughputMeter mThroughput;
+    private final ThroughputProfile mProfile;
+
+    // Transfers in progress, and the downloads among them by characteristic
+    private final ConcurrentHashMap<CharacteristicTransfer, Boolean> mTransfers =
+            new ConcurrentHashMap<CharacteristicTransfer, Boolean>();
+    private final ConcurrentHashMap<UUID, CharacteristicTransfer.Download> mDownloads =
+            new ConcurrentHashMap<UUID, CharacteristicTransfer.Download>();
+
+    private final int mPreferredMtu;
+    private final ReconnectPolicy mReconnectPolicy;
+    private final GattServiceCache mServiceCache;
+
+    // Guarded by this
+    private GattLink mLink;
+    private int mState = STATE_DISCONNECTED;
+    private boolean mServicesDiscovered;
+    private int mReconnectAttempts;
+    private int mMtu = DEFAULT_MTU;
+    private int mConnectionPriority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+
+    // Forwards the queue's requests to whichever link is current.
+    private final GattTarget mTarget = new GattTarget() {
+        @Override
+        public boolean readCharacteristic(BluetoothGattCharacteristic characteristic) {
+            final GattLink link = getLink();
+            return link != null && link.readCharacteristic(characteristic);
+        }
+
+        @Override
+        public boolean writeCharacteristic(BluetoothGattCharacteristic characteristic) {
+            final GattLink link = getLink();
+            return link != null && link.writeCharacteristic(characteristic);
+        }
+
+        @Override
+        public boolean readDescriptor(BluetoothGattDescriptor descriptor) {
+            final GattLink link = getLink();
+            return link != null && link.readDescriptor(descriptor);
+        }
+
+        @Override
+        public boolean writeDescriptor(BluetoothGattDescriptor descriptor) {
+            final GattLink link = getLink();
+            return link != null && link.writeDescriptor(descriptor);
+        }
+
+        @Override
+        public boolean setCharacteristicNotification(BluetoothGattCharacteristic characteristic,
+                                                     boolean enable) {
+            final GattLink link = getLink();
+            return link != null && link.setCharacteristicNotification(characteristic, enable);
+        }
+
+        @Override
+        public boolean requestMtu(int mtu) {
+            final GattLink link = getLink();
+            return link != null && link.requestMtu(mtu);
+        }
+    };
+
+    private final Runnable mReconnect = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (GattSession.this) {
+                if (mState != STATE_CONNECTING || mLink != null) {
+                    return;
+                }
+            }
+            Log.i(TAG, "Reconnecting to " + mAddress + ", attempt " + mReconnectAttempts);
+            open();
+        }
+    };
+
+    /**
+     * @param address         The device.
+     * @param factory         Opens the connection, and opens it again to reconnect.
+     * @param scheduler       Runs timeouts and reconnects, and times throughput.
+     * @param preferredMtu    MTU to ask for once connected, or {@link #DEFAULT_MTU} to keep it.
+     * @param reconnectPolicy What to do when the connection is lost.
+     * @param serviceCache    Records discovered services, or null.
+     * @param listener        Receives the session's events.
+     */
+    public GattSession(String address, GattLink.Factory factory, Scheduler scheduler,
+                       int preferredMtu, ReconnectPolicy reconnectPolicy,
+                       GattServiceCache serviceCache, Listener listener) {
+        mAddress = address;
+        mFactory = factory;
+        mScheduler = scheduler;
+        mPreferredMtu = preferredMtu;
+        mReconnectPolicy = reconnectPolicy;
+        mServiceCache = serviceCache;
+        mListener = listener;
+        mQueue = new GattOperationQueue(mTarget, scheduler);
+        mThroughput = new ThroughputMeter(scheduler);
+        mProfile = new ThroughputProfile(this, scheduler);
+    }
+
+    /**
+     * Connects, unless already connected or connecting.
+     *
+     * @return false if the device cannot be connected to.
+     */
+    public boolean connect() {
+        synchronized (this) {
+            if (mState != STATE_DISCONNECTED) {
+                return true;
+            }
+            mReconnectAttempts = 0;
+        }
+        return open();
+    }
+
+    /**
+     * Disconnects without reconnecting. Queued operations are cancelled.
+     */
+    public void disconnect() {
+        final GattLink link;
+        synchronized (this) {
+            link = mLink;
+            if (link == null) {
+                // Possibly waiting to reconnect
+                mScheduler.removeCallbacks(mReconnect);
+            }
+            mReconnectAttempts = -1; // no reconnecting until connect() is called
+        }
+        if (link != null) {
+            link.disconnect();
+        } else {
+            setState(STATE_DISCONNECTED);
+        }
+        mQueue.clear();
+    }
+
+    /**
+     * Releases the connection. The session is disconnected and reports nothing further.
+     */
+    public void close() {
+        final GattLink link;
+        synchronized (this) {
+            link = mLink;
+            mLink = null;
+            mReconnectAttempts = -1;
+            mServicesDiscovered = false;
+            mState = STATE_DISCONNECTED;
+        }
+        mScheduler.removeCallbacks(mReconnect);
+        mProfile.onDisconnected();
+        cancelTransfers();
+        mQueue.clear();
+        if (link != null) {
+            link.close();
+        }
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    public synchronized int getState() {
+        return mState;
+    }
+
+    public synchronized boolean isServicesDiscovered() {
+        return mServicesDiscovered;
+    }
+
+    /**
+     * Returns the ATT MTU in use; values carry up to three bytes less.
+     */
+    public synchronized int getMtu() {
+        return mMtu;
+    }
+
+    public synchronized int getConnectionPriority() {
+        return mConnectionPriority;
+    }
+
+    public GattOperationQueue getQueue() {
+        return mQueue;
+    }
+
+    public ThroughputMeter getThroughput() {
+        return mThroughput;
+    }
+
+    /**
+     * Returns what switches the connection priority with the amount of traffic.
+     */
+    public ThroughputProfile getThroughputProfile() {
+        return mProfile;
+    }
+
+    /**
+     * Returns the services found on the device, or null before discovery completes.
+     */
+    public List<BluetoothGattService> getServices() {
+        final GattLink link = getLink();
+        return link != null && isServicesDiscovered() ? link.getServices() : null;
+    }
+
+    /**
+     * Queues a request on this device.
+     */
+    public void enqueue(GattOperation operation) {
+        if (operation.getPriority() == GattOperation.PRIORITY_BULK) {
+            mProfile.onBulkQueued();
+        }
+        mQueue.enqueue(operation);
+    }
+
+    /**
+     * Enables or disables notification on a characteristic. The Client Characteristic
+     * Configuration descriptor is written ahead of any queued reads.
+     */
+    public void setCharacteristicNotification(BluetoothGattCharacteristic characteristic,
+                                              boolean enabled) {
+        setCharacteristicNotification(characteristic, enabled, null);
+    }
+
+    /**
+     * Like {@link #setCharacteristicNotification(BluetoothGattCharacteristic, boolean)}, but
+     * reports how writing the descriptor went. If the characteristic has no descriptor, the
+     * callback is called straight away, with a null operation and
+     * {@link GattOperation#STATUS_NOT_STARTED} if the local stack refused the change.
+     */
+    public void setCharacteristicNotification(BluetoothGattCharacteristic characteristic,
+                                              boolean enabled, GattOperation.Callback callback) {
+        final GattOperation operation =
+                GattOperation.setNotification(characteristic, enabled, callback);
+        if (operation != null) {
+            mQueue.enqueue(operation);
+            return;
+        }
+        // Nothing to write to the remote device, so there is no need to wait in line.
+        final boolean set = mTarget.setCharacteristicNotification(characteristic, enabled);
+        if (callback != null) {
+            callback.onComplete(null,
+                    set ? BluetoothGatt.GATT_SUCCESS : GattOperation.STATUS_NOT_STARTED, null);
+        }
+    }
+
+    /**
+     * Writes a payload of any length to a characteristic, in chunks that fit the MTU.
+     *
+     * @param input     The payload; it is read on binder and scheduler threads as chunks are
+     *                  sent, and not closed.
+     * @param length    The number of bytes to send from input.
+     * @param writeType {@code BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE} for speed,
+     *                  or {@code WRITE_TYPE_DEFAULT} to have every chunk acknowledged.
+     */
+    public CharacteristicTransfer write(BluetoothGattCharacteristic characteristic,
+                                        InputStream input, long length, int writeType,
+                                        CharacteristicTransfer.Listener listener) {
+        final CharacteristicTransfer transfer = new CharacteristicTransfer.Upload(this,
+                characteristic, new PayloadChunker(input, length), writeType, mScheduler,
+                listener);
+        mTransfers.put(transfer, Boolean.TRUE);
+        transfer.start();
+        return transfer;
+    }
+
+    /**
+     * Receives a payload of any length notified by a characteristic. Notifications are
+     * enabled for the transfer and disabled after it; values that are part of it are not
+     * passed to the listener. The transfer fails if notifications cannot be enabled, or with
+     * {@link GattOperation#STATUS_TIMEOUT} if the device goes quiet before the payload ends.
+     *
+     * @param output Receives the payload on a binder thread; it is not closed.
+     * @throws IllegalStateException if the characteristic is already being read this way.
+     */
+    public CharacteristicTransfer read(BluetoothGattCharacteristic characteristic,
+                                       OutputStream output,
+                                       CharacteristicTransfer.Listener listener) {
+        final CharacteristicTransfer.Download transfer = new CharacteristicTransfer.Download(
+                this, characteristic, new PayloadReassembler(output), mScheduler, listener);
+        if (mDownloads.putIfAbsent(characteristic.getUuid(), transfer) != null) {
+            throw new IllegalStateException("Already reading " + characteristic.getUuid());
+        }
+        mTransfers.put(transfer, Boolean.TRUE);
+        transfer.start();
+        return transfer;
+    }
+
+    /**
+     * Asks for one of the {@code BluetoothGatt.CONNECTION_PRIORITY_} values.
+     *
+     * @return false if not connected or the request was refused.
+     */
+    public boolean requestConnectionPriority(int priority) {
+        final GattLink link = getLink();
+        if (link == null || getState() != STATE_CONNECTED) {
+            return false;
+        }
+        if (!link.requestConnectionPriority(priority)) {
+            return false;
+        }
+        synchronized (this) {
+            mConnectionPriority = priority;
+        }
+        return true;
+    }
+
+    /**
+     * Called by the link when it connects or disconnects.
+     */
+    public void onConnectionStateChange(GattLink link, int status, int newState) {
+        if (newState == BluetoothProfile.STATE_CONNECTED) {
+            synchronized (this) {
+                if (link != mLink) {
+                    return;
+                }
+                mReconnectAttempts = 0;
+                mMtu = DEFAULT_MTU;
+                mConnectionPriority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+            }
+            Log.i(TAG, "Connected to " + mAddress);
+            setState(STATE_CONNECTED);
+            Log.i(TAG, "Attempting to start service discovery:" + link.discoverServices());
+        } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+            final long delay;
+            synchronized (this) {
+                if (link != mLink) {
+                    return;
+                }
+                // A link is not reused once it drops; reconnecting opens a new one
+                mLink = null;
+                mServicesDiscovered = false;
+                delay = mReconnectAttempts < 0 ? -1
+                        : mReconnectPolicy.getDelayMillis(++mReconnectAttempts);
+            }
+            link.close();
+            Log.i(TAG, "Disconnected, status " + status + ". " + this + " " + mQueue);
+            mProfile.onDisconnected();
+            cancelTransfers();
+            mQueue.clear();
+            if (delay < 0) {
+                setState(STATE_DISCONNECTED);
+            } else {
+                setState(STATE_CONNECTING);
+                mScheduler.postDelayed(mReconnect, delay);
+            }
+        }
+    }
+
+    /**
+     * Called by the link when service discovery completes.
+     */
+    public void onServicesDiscovered(GattLink link, int status) {
+        synchronized (this) {
+            if (link != mLink) {
+                return;
+            }
+            mServicesDiscovered = status == BluetoothGatt.GATT_SUCCESS;
+        }
+        if (status != BluetoothGatt.GATT_SUCCESS) {
+            Log.w(TAG, "onServicesDiscovered received: " + status);
+            return;
+        }
+        final List<BluetoothGattService> services = link.getServices();
+        if (mServiceCache != null && services != null) {
+            mServiceCache.put(mAddress, services);
+            watchServiceChanged(services);
+        }
+        if (mPreferredMtu > DEFAULT_MTU) {
+            mQueue.enqueue(GattOperation.requestMtu(mPreferredMtu, null));
+        }
+        mListener.onServicesDiscovered(this);
+    }
+
+    /**
+     * Called by the link when the MTU has been agreed.
+     */
+    public void onMtuChanged(GattLink link, int mtu, int status) {
+        synchronized (this) {
+            if (link != mLink) {
+                return;
+            }
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                mMtu = mtu;
+            }
+        }
+        Log.i(TAG, mAddress + " MTU " + mtu + ", status " + status);
+        mQueue.onComplete(GattOperation.TYPE_REQUEST_MTU, null, status, null);
+    }
+
+    /**
+     * Called by the link when a characteristic read completes.
+     */
+    public void onCharacteristicRead(GattLink link, BluetoothGattCharacteristic characteristic,
+                                     int status) {
+        if (link != getLink()) {
+            return;
+        }
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            received(characteristic);
+            mListener.onValue(this, characteristic, false);
+        }
+        mQueue.onComplete(GattOperation.TYPE_READ_CHARACTERISTIC, characteristic.getUuid(),
+                status, characteristic.getValue());
+    }
+
+    /**
+     * Called by the link when a characteristic write completes.
+     */
+    public void onCharacteristicWrite(GattLink link, BluetoothGattCharacteristic characteristic,
+                                      int status) {
+        if (link != getLink()) {
+            return;
+        }
+        final byte[] value = characteristic.getValue();
+        if (status == BluetoothGatt.GATT_SUCCESS && value != null) {
+            mThroughput.onSent(value.length);
+            mProfile.onTransfer(value.length);
+        }
+        mQueue.onComplete(GattOperation.TYPE_WRITE_CHARACTERISTIC, characteristic.getUuid(),
+                status, null);
+    }
+
+    /**
+     * Called by the link when a descriptor read completes.
+     */
+    public void onDescriptorRead(GattLink link, BluetoothGattDescriptor descriptor, int status) {
+        if (link != getLink()) {
+            return;
+        }
+        mQueue.onComplete(GattOperation.TYPE_READ_DESCRIPTOR, descriptor.getUuid(), status,
+                descriptor.getValue());
+    }
+
+    /**
+     * Called by the link when a descriptor write completes.
+     */
+    public void onDescriptorWrite(GattLink link, BluetoothGattDescriptor descriptor,
+                                  int status) {
+        if (link != getLink()) {
+            return;
+        }
+        mQueue.onComplete(GattOperation.TYPE_WRITE_DESCRIPTOR, descriptor.getUuid(), status,
+                null);
+    }
+
+    /**
+     * Called by the link for every notification or indication.
+     */
+    public void onCharacteristicChanged(GattLink link,
+                                        BluetoothGattCharacteristic characteristic) {
+        if (link != getLink()) {
+            return;
+        }
+        if (mServiceCache != null && UUID_SERVICE_CHANGED.equals(characteristic.getUuid())) {
+            onServiceChanged(link);
+            return;
+        }
+        received(characteristic);
+        final CharacteristicTransfer.Download download =
+                mDownloads.get(characteristic.getUuid());
+        if (download != null) {
+            download.onValue(characteristic.getValue());
+            return;
+        }
+        mListener.onValue(this, characteristic, true);
+    }
+
+    @Override
+    public String toString() {
+        final int priority = getConnectionPriority();
+        return "GattSession{" + mAddress + ", state=" + getState() + ", mtu=" + getMtu()
+                + ", priority=" + priority + " ("
+                + ThroughputProfile.describeInterval(priority) + "), " + mThroughput + "}";
+    }
+
+    void onTransferFinished(CharacteristicTransfer transfer) {
+        mTransfers.remove(transfer);
+        final UUID uuid = transfer.getCharacteristic().getUuid();
+        if (mDownloads.remove(uuid, transfer)) {
+            if (getLink() != null && getState() == STATE_CONNECTED) {
+                setCharacteristicNotification(transfer.getCharacteristic(), false);
+            }
+        }
+    }
+
+    // Subscribes to Service Changed indications, if the device has them. Devices usually
+    // only send them to bonded clients, since others are expected to rediscover anyway.
+    private void watchServiceChanged(List<BluetoothGattService> services) {
+        for (BluetoothGattService service : services) {
+            final BluetoothGattCharacteristic characteristic =
+                    service.getCharacteristic(UUID_SERVICE_CHANGED);
+            if (characteristic != null) {
+                setCharacteristicNotification(characteristic, true);
+                return;
+            }
+        }
+    }
+
+    // The device's services are no longer what was cached or discovered, so forget both
+    // and discover them again.
+    private void onServiceChanged(GattLink link) {
+        Log.i(TAG, "Services of " + mAddress + " changed");
+        synchronized (this) {
+            mServicesDiscovered = false;
+        }
+        mServiceCache.invalidate(mAddress);
+        Log.i(TAG, "Attempting to start service discovery:" + link.discoverServices());
+    }
+
+    // Fails every transfer in progress, once the connection they were using is gone.
+    private void cancelTransfers() {
+        for (CharacteristicTransfer transfer
+                : new ArrayList<CharacteristicTransfer>(mTransfers.keySet())) {
+            transfer.cancel();
+        }
+    }
+
+    private synchronized GattLink getLink() {
+        return mLink;
+    }
+
+    private boolean open() {
+        final GattLink link = mFactory.create(mAddress, this);
+        if (link == null) {
+            Log.w(TAG, "Device " + mAddress + " not found.  Unable to connect.");
+            setState(STATE_DISCONNECTED);
+            return false;
+        }
+        // Set before connecting, since the link may report events before connect() returns
+        synchronized (this) {
+            mLink = link;
+        }
+        setState(STATE_CONNECTING);
+        if (!link.connect()) {
+            synchronized (this) {
+                if (mLink == link) {
+                    mLink = null;
+                }
+            }
+            link.close();
+            setState(STATE_DISCONNECTED);
+            return false;
+        }
+        return true;
+    }
+
+    private void received(BluetoothGattCharacteristic characteristic) {
+        final byte[] value = characteristic.getValue();
+        final int length = value != null ? value.length : 0;
+        mThroughput.onReceived(length);
+        mProfile.onTransfer(length);
+    }
+
+    private void setState(int state) {
+        final int oldState;
+        synchronized (this) {
+            oldState = mState;
+            if (oldState == state) {
+                return;
+            }
+            mState = state;
+        }
+        mListener.onStateChanged(this, oldState, state);
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+
+/**
+ * The {@code BluetoothGatt} calls made by a {@link GattOperationQueue}. The service
+ * forwards them to the real connection; tests can record them instead.
+ */
+public interface GattTarget {
+    boolean readCharacteristic(BluetoothGattCharacteristic characteristic);
+
+    boolean writeCharacteristic(BluetoothGattCharacteristic characteristic);
+
+    boolean readDescriptor(BluetoothGattDescriptor descriptor);
+
+    boolean writeDescriptor(BluetoothGattDescriptor descriptor);
+
+    boolean setCharacteristicNotification(BluetoothGattCharacteristic characteristic,
+                                          boolean enable);
+
+    boolean requestMtu(int mtu);
+}
@@ -0,0 +1,345 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bluetoothlegatt;
+
+import android.annotation.TargetApi;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.os.Build;
+import android.os.ParcelUuid;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Scans for advertisements with {@code BluetoothLeScanner}, using hardware filters and
+ * batched delivery where the controller supports them, and falls back to
+ * {@code BluetoothAdapter.startLeScan} before Lollipop.
+ *
+ * <p>Filters are matched by the controller, so advertisements that do not match never
+ * wake the app. With a report delay the controller also holds matching results and hands
+ * them over in batches. For every scan mode the engine keeps {@link Stats}: how often the
+ * app was called back and a rough estimate of the charge the scan cost, to help pick
+ * settings for a deployment.</p>
+ */
+public class LeScanEngine {
+    private final static String TAG = LeScanEngine.class.getSimpleName();
+
+    // Scan modes; the same values as the ScanSettings.SCAN_MODE_ constants
+    public static final int MODE_LOW_POWER = 0;
+    public static final int MODE_BALANCED = 1;
+    public static final int MODE_LOW_LATENCY = 2;
+    private static final int MODE_COUNT = 3;
+
+    // Share of time the radio listens in each mode. These are the scan window and interval
+    // the Android stack uses: 512 of 5120ms, 1024 of 4096ms and all the time.
+    private static final float[] DUTY_CYCLE = {0.1f, 0.25f, 1.0f};
+
+    // Rough costs behind the estimate: the controller's receive current, and the charge of
+    // waking the app processor for one callback. Real figures vary by chipset, so the
+    // estimate is for comparing settings rather than predicting battery life.
+    private static final float RX_CURRENT_MA = 10f;
+    private static final float WAKEUP_CHARGE_MAS = 0.5f; // milliamp-seconds
+
+    /**
+     * Receives every advertisement that passes the filters, on a binder thread.
+     */
+    public interface Listener {
+        void onAdvertisement(BluetoothDevice device, int rssi);
+    }
+
+    /**
+     * What scanning in one mode has cost so far.
+     */
+    public static final class Stats {
+        long mScanMillis;
+        long mCallbacks;
+        long mResults;
+
+        /**
+         * Returns the time spent scanning in this mode.
+         */
+        public long getScanMillis() {
+            return mScanMillis;
+        }
+
+        /**
+         * Returns the number of times the app was called back; a batch counts once.
+         */
+        public long getCallbacks() {
+            return mCallbacks;
+        }
+
+        public long getResults() {
+            return mResults;
+        }
+
+        public float getCallbacksPerSecond() {
+            return mScanMillis == 0 ? 0 : mCallbacks * 1000f / mScanMillis;
+        }
+
+        public float getResultsPerSecond() {
+            return mScanMillis == 0 ? 0 : mResults * 1000f / mScanMillis;
+        }
+    }
+
+    private final BluetoothAdapter mAdapter;
+    private final Listener mListener;
+
+    private int mMode = MODE_LOW_LATENCY;
+    private long mReportDelayMillis;
+    private final List<UUID> mServiceUuids = new ArrayList<>();
+    private final List<String> mAddresses = new ArrayList<>();
+
+    private final Stats[] mStats = new Stats[MODE_COUNT];
+    private boolean mScanning;
+    private int mScanningMode;
+    private long mScanStartedAt;
+
+    // Lollipop and later
+    private ScanCallback mScanCallback;
+
+    // Before Lollipop, filtering by address is done here rather than by the controller
+    private final BluetoothAdapter.LeScanCallback mLeScanCallback =
+            new BluetoothAdapter.LeScanCallback() {
+        @Override
+        public void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecord) {
+            synchronized (LeScanEngine.this) {
+                if (!mAddresses.isEmpty() && !mAddresses.contains(device.getAddress())) {
+                    return;
+                }
+                countCallback(1);
+            }
+            mListener.onAdvertisement(device, rssi);
+        }
+    };
+
+    public LeScanEngine(BluetoothAdapter adapter, Listener listener) {
+        mAdapter = adapter;
+        mListener = listener;
+        for (int i = 0; i < MODE_COUNT; i++) {
+            mStats[i] = new Stats();
+        }
+    }
+
+    /**
+     * Sets the scan mode for the next {@link #start()}. Before Lollipop there is only one.
+     */
+    public synchronized void setMode(int mode) {
+        if (mode < 0 || mode >= MODE_COUNT) {
+            throw new IllegalArgumentException("mode " + mode);
+        }
+        mMode = mode;
+    }
+
+    /**
+     * Asks the controller to hold results and deliver them in batches this often, from the
+     * next {@link #start()}. Ignored where the controller cannot batch.
+     *
+     * @param delayMillis The delay, or 0 to deliver every result at once.
+     */
+    public synchronized void setReportDelay(long delayMillis) {
+        mReportDelayMillis = delayMillis;
+    }
+
+    /**
+     * Only reports devices advertising the given service, from the next {@link #start()}.
+     * Several services match any of them.
+     */
+    public synchronized void addServiceFilter(UUID uuid) {
+        mServiceUuids.add(uuid);
+    }
+
+    /**
+     * Only reports the given device, from the next {@link #start()}. Several addresses match
+     * any of them.
+     */
+    public synchronized void addAddressFilter(String address) {
+        mAddresses.add(address);
+    }
+
+    public synchronized void clearFilters() {
+        mServiceUuids.clear();
+        mAddresses.clear();
+    }
+
+    /**
+     * Starts scanning with the current settings.
+     *
+     * @return false if the scan could not be started.
+     */
+    public synchronized boolean start() {
+        if (mScanning) {
+            return true;
+        }
+        final boolean started;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            started = startScanner();
+        } else if (!mServiceUuids.isEmpty()) {
+            started = mAdapter.startLeScan(mServiceUuids.toArray(new UUID[mServiceUuids.size()]),
+                    mLeScanCallback);
+        } else {
+            started = mAdapter.startLeScan(mLeScanCallback);
+        }
+        if (started) {
+            mScanning = true;
+            mScanningMode = mMode;
+            mScanStartedAt = SystemClock.elapsedRealtime();
+        }
+        return started;
+    }
+
+    /**
+     * Stops scanning. Results still held by the controller are delivered first.
+     */
+    public synchronized void stop() {
+        if (!mScanning) {
+            return;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            stopScanner();
+        } else {
+            mAdapter.stopLeScan(mLeScanCallback);
+        }
+        mStats[mScanningMode].mScanMillis += SystemClock.elapsedRealtime() - mScanStartedAt;
+        mScanning = false;
+        Log.i(TAG, "Scan stopped. " + this);
+    }
+
+    public synchronized boolean isScanning() {
+        return mScanning;
+    }
+
+    /**
+     * Returns the figures for one scan mode. They include the scan in progress only once it
+     * stops.
+     */
+    public synchronized Stats getStats(int mode) {
+        final Stats copy = new Stats();
+        copy.mScanMillis = mStats[mode].mScanMillis;
+        copy.mCallbacks = mStats[mode].mCallbacks;
+        copy.mResults = mStats[mode].mResults;
+        return copy;
+    }
+
+    /**
+     * Estimates the charge scanning in one mode has cost, in milliamp-hours: the radio
+     * listening for its share of the time, plus waking the app for every callback.
+     */
+    public synchronized float getEstimatedChargeMah(int mode) {
+        final Stats stats = mStats[mode];
+        final float radio = RX_CURRENT_MA * DUTY_CYCLE[mode] * stats.mScanMillis / 1000f;
+        final float wakeups = WAKEUP_CHARGE_MAS * stats.mCallbacks;
+        return (radio + wakeups) / 3600f;
+    }
+
+    @Override
+    public synchronized String toString() {
+        final StringBuilder builder = new StringBuilder("LeScanEngine{");
+        for (int mode = 0; mode < MODE_COUNT; mode++) {
+            final Stats stats = mStats[mode];
+            if (stats.mScanMillis == 0) {
+                continue;
+            }
+            builder.append("mode ").append(mode).append(": ")
+                    .append(stats.mScanMillis).append("ms, ")
+                    .append(stats.getCallbacksPerSecond()).append(" callbacks/s, ")
+                    .append(stats.getResultsPerSecond()).append(" results/s, ~")
+                    .append(getEstimatedChargeMah(mode)).append("mAh; ");
+        }
+        return builder.append('}').toString();
+    }
+
+    private void countCallback(int results) {
+        if (mScanning) {
+            mStats[mScanningMode].mCallbacks++;
+            mStats[mScanningMode].mResults += results;
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private boolean startScanner() {
+        final BluetoothLeScanner scanner = mAdapter.getBluetoothLeScanner();
+        if (scanner == null) {
+            // Bluetooth is off
+            return false;
+        }
+        final List<ScanFilter> filters = new ArrayList<>();
+        for (UUID uuid : mServiceUuids) {
+            filters.add(new ScanFilter.Builder().setServiceUuid(new ParcelUuid(uuid)).build());
+        }
+        for (String address : mAddresses) {
+            filters.add(new ScanFilter.Builder().setDeviceAddress(address).build());
+        }
+        final ScanSettings.Builder settings = new ScanSettings.Builder().setScanMode(mMode);
+        if (mReportDelayMillis > 0 && mAdapter.isOffloadedScanBatchingSupported()) {
+            settings.setReportDelay(mReportDelayMillis);
+        }
+        mScanCallback = new ScanCallback() {
+            @Override
+            public void onScanResult(int callbackType, ScanResult result) {
+                synchronized (LeScanEngine.this) {
+                    countCallback(1);
+                }
+                mListener.onAdvertisement(result.getDevice(), result.getRssi());
+            }
+
+            @Override
+            public void onBatchScanResults(List<ScanResult> results) {
+                synchronized (LeScanEngine.this) {
+                    countCallback(results.size());
+                }
+                for (ScanResult result : results) {
+                    mListener.onAdvertisement(result.getDevice(), result.getRssi());
+                }
+            }
+
+            @Override
+            public void onScanFailed(int errorCode) {
+                Log.w(TAG, "Scan failed: " + errorCode);
+                synchronized (LeScanEngine.this) {
+                    if (mScanCallback == this) {
+                        mStats[mScanningMode].mScanMillis +=
+                                SystemClock.elapsedRealtime() - mScanStartedAt;
+                        mScanning = false;
+                        mScanCallback = null;
+                    }
+                }
+            }
+        };
+        // An empty filter list matches everything
+        scanner.startScan(filters, settings.build(), mScanCallback);
+        return true;
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private void stopScanner() {
+        final BluetoothLeScanner scanner = mAdapter.getBluetoothLeScanner();
+        if (scanner != null && mScanCallback != null) {
+            scanner.flushPendingScanResults(mScanCallback);
+            scanner.stopScan(mScanCallback);
+        }
+        mScanCallback = null;
+    }
+}
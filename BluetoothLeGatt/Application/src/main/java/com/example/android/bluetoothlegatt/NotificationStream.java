@@ -0,0 +1,401 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.os.SystemClock;
+import android.view.Choreographer;
+
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands characteristic values to observers on the main thread, at most once per frame.
+ *
+ * <p>Values are published on binder threads, often far faster than the screen refreshes.
+ * Each subscription buffers them until the next frame. A {@link #MODE_LATEST} subscription
+ * keeps only the newest value of each characteristic of each device, and counts the ones it
+ * replaced as coalesced. A {@link #MODE_BATCH} subscription keeps every value. Both hold a
+ * fixed number of values and count any older ones pushed out as dropped.</p>
+ *
+ * <p>Buffers are allocated when subscribing, so publishing and delivering values does not
+ * allocate.</p>
+ */
+public class NotificationStream {
+    private final static String TAG = NotificationStream.class.getSimpleName();
+
+    // Subscription modes
+    public static final int MODE_LATEST = 0; // the newest value per device and characteristic
+    public static final int MODE_BATCH = 1;  // every value, in order, up to the capacity
+
+    /**
+     * Devices and characteristics a {@link #MODE_LATEST} subscription made with
+     * {@link #subscribe(UUID, Observer)} holds a value for at once.
+     */
+    public static final int DEFAULT_LATEST_CAPACITY = 16;
+
+    /**
+     * Receives values for one subscription.
+     */
+    public interface Observer {
+        /**
+         * Called on the main thread with the values received since the last call. The batch
+         * and its values are reused, so copy out anything needed later.
+         */
+        void onValues(Batch batch);
+    }
+
+    /**
+     * Values delivered together, oldest first.
+     */
+    public static final class Batch {
+        private final CharacteristicValue[] mValues;
+        private int mStart;
+        private int mSize;
+
+        Batch(int capacity) {
+            mValues = new CharacteristicValue[capacity];
+            for (int i = 0; i < capacity; i++) {
+                mValues[i] = new CharacteristicValue();
+            }
+        }
+
+        public int size() {
+            return mSize;
+        }
+
+        public CharacteristicValue get(int index) {
+            if (index < 0 || index >= mSize) {
+                throw new IndexOutOfBoundsException(index + " of " + mSize);
+            }
+            return mValues[(mStart + index) % mValues.length];
+        }
+
+        /**
+         * Returns the newest value, or null if the batch is empty.
+         */
+        public CharacteristicValue getLatest() {
+            return mSize == 0 ? null : get(mSize - 1);
+        }
+
+        // Returns the position of the value from the same device and characteristic, or -1.
+        int indexOf(CharacteristicValue value) {
+            for (int i = 0; i < mSize; i++) {
+                final CharacteristicValue held = get(i);
+                if (equal(held.getUuid(), value.getUuid())
+                        && equal(held.getAddress(), value.getAddress())) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        // Replaces the value at a position, which keeps its place in the batch.
+        void set(int index, CharacteristicValue value) {
+            get(index).copyFrom(value);
+        }
+
+        // Adds a value, pushing out the oldest if full. Returns true if one was pushed out.
+        boolean add(CharacteristicValue value) {
+            boolean full = mSize == mValues.length;
+            if (full) {
+                mStart = (mStart + 1) % mValues.length;
+                mSize--;
+            }
+            mValues[(mStart + mSize) % mValues.length].copyFrom(value);
+            mSize++;
+            return full;
+        }
+
+        void clear() {
+            mStart = 0;
+            mSize = 0;
+        }
+    }
+
+    /**
+     * One observer's interest in a characteristic, returned by {@link #subscribe}.
+     */
+    public final class Subscription {
+        final UUID mUuid;
+        final int mMode;
+        final long mWindowNanos;
+        final Observer mObserver;
+        // Filled on binder threads and swapped with mDelivering at delivery, both under mLock
+        private Batch mPending;
+        private Batch mDelivering;
+        private long mLastDeliveredNanos;
+        private volatile boolean mCancelled;
+
+        Subscription(UUID uuid, int mode, int capacity, long windowMillis, Observer observer) {
+            mUuid = uuid;
+            mMode = mode;
+            mWindowNanos = windowMillis * 1000000L;
+            mObserver = observer;
+            mPending = new Batch(capacity);
+            mDelivering = new Batch(capacity);
+        }
+
+        /**
+         * Stops delivery. Safe to call from the observer itself.
+         */
+        public void cancel() {
+            unsubscribe(this);
+        }
+    }
+
+    private final Object mLock = new Object();
+    private final Choreographer mChoreographer;
+    private final ConcurrentHashMap<UUID, Subscription[]> mSubscriptions =
+            new ConcurrentHashMap<UUID, Subscription[]>();
+    private volatile Subscription[] mAnySubscriptions = new Subscription[0];
+    private Subscription[] mAll = new Subscription[0];
+    private boolean mFrameScheduled;
+
+    private final AtomicLong mPublishedCount = new AtomicLong();
+    private final AtomicLong mDeliveredCount = new AtomicLong();
+    private final AtomicLong mCoalescedCount = new AtomicLong();
+    private final AtomicLong mDroppedCount = new AtomicLong();
+
+    private final Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            deliver();
+        }
+    };
+
+    /**
+     * Must be created on the main thread, which is where observers are called.
+     */
+    public NotificationStream() {
+        mChoreographer = Choreographer.getInstance();
+    }
+
+    /**
+     * Subscribes to the newest value of a characteristic of each device, delivered at most
+     * once per frame.
+     *
+     * @param uuid     The characteristic, or null for every characteristic.
+     * @param observer Called on the main thread.
+     */
+    public Subscription subscribe(UUID uuid, Observer observer) {
+        return subscribe(uuid, MODE_LATEST, DEFAULT_LATEST_CAPACITY, 0, observer);
+    }
+
+    /**
+     * Subscribes to the values of a characteristic.
+     *
+     * @param uuid         The characteristic, or null for every characteristic.
+     * @param mode         {@link #MODE_LATEST} or {@link #MODE_BATCH}.
+     * @param capacity     Most values held between deliveries. In {@link #MODE_LATEST} that
+     *                     is one for each device and characteristic, in the order each first
+     *                     had a value.
+     * @param windowMillis Least time between deliveries; 0 to deliver on every frame.
+     * @param observer     Called on the main thread.
+     */
+    public Subscription subscribe(UUID uuid, int mode, int capacity, long windowMillis,
+                                  Observer observer) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity " + capacity);
+        }
+        final Subscription subscription =
+                new Subscription(uuid, mode, capacity, windowMillis, observer);
+        synchronized (mLock) {
+            if (uuid == null) {
+                mAnySubscriptions = append(mAnySubscriptions, subscription);
+            } else {
+                final Subscription[] current = mSubscriptions.get(uuid);
+                mSubscriptions.put(uuid, append(current != null ? current
+                        : new Subscription[0], subscription));
+            }
+            mAll = append(mAll, subscription);
+        }
+        return subscription;
+    }
+
+    /**
+     * Stops delivery to a subscription. Values it had not received yet are discarded.
+     */
+    public void unsubscribe(Subscription subscription) {
+        synchronized (mLock) {
+            subscription.mCancelled = true;
+            if (subscription.mUuid == null) {
+                mAnySubscriptions = remove(mAnySubscriptions, subscription);
+            } else {
+                final Subscription[] current = mSubscriptions.get(subscription.mUuid);
+                if (current != null) {
+                    final Subscription[] remaining = remove(current, subscription);
+                    if (remaining.length == 0) {
+                        mSubscriptions.remove(subscription.mUuid);
+                    } else {
+                        mSubscriptions.put(subscription.mUuid, remaining);
+                    }
+                }
+            }
+            mAll = remove(mAll, subscription);
+        }
+    }
+
+    /**
+     * Queues a value for every subscription interested in it. Called on a binder thread.
+     *
+     * @return false if nothing is subscribed to the value.
+     */
+    public boolean publish(CharacteristicValue value) {
+        final Subscription[] any = mAnySubscriptions;
+        final Subscription[] matching = mSubscriptions.get(value.getUuid());
+        if (any.length == 0 && matching == null) {
+            return false;
+        }
+        mPublishedCount.incrementAndGet();
+        boolean schedule;
+        synchronized (mLock) {
+            for (Subscription subscription : any) {
+                add(subscription, value);
+            }
+            if (matching != null) {
+                for (Subscription subscription : matching) {
+                    add(subscription, value);
+                }
+            }
+            schedule = !mFrameScheduled;
+            mFrameScheduled = true;
+        }
+        if (schedule) {
+            // Choreographer accepts callbacks from any thread and runs them on its own
+            mChoreographer.postFrameCallback(mFrameCallback);
+        }
+        return true;
+    }
+
+    private void add(Subscription subscription, CharacteristicValue value) {
+        final Batch pending = subscription.mPending;
+        if (subscription.mMode == MODE_LATEST) {
+            final int index = pending.indexOf(value);
+            if (index >= 0) {
+                pending.set(index, value);
+                mCoalescedCount.incrementAndGet();
+                return;
+            }
+        }
+        if (pending.add(value)) {
+            mDroppedCount.incrementAndGet();
+        }
+    }
+
+    // Runs on the main thread once per frame while values are pending.
+    private void deliver() {
+        final long now = SystemClock.elapsedRealtimeNanos();
+        final Subscription[] all;
+        synchronized (mLock) {
+            mFrameScheduled = false;
+            all = mAll;
+        }
+        long nextWindowNanos = Long.MAX_VALUE;
+        for (Subscription subscription : all) {
+            final Batch batch;
+            synchronized (mLock) {
+                if (subscription.mCancelled || subscription.mPending.size() == 0) {
+                    continue;
+                }
+                final long wait =
+                        subscription.mLastDeliveredNanos + subscription.mWindowNanos - now;
+                if (wait > 0) {
+                    nextWindowNanos = Math.min(nextWindowNanos, wait);
+                    continue;
+                }
+                batch = subscription.mPending;
+                subscription.mPending = subscription.mDelivering;
+                subscription.mDelivering = batch;
+                subscription.mLastDeliveredNanos = now;
+            }
+            mDeliveredCount.addAndGet(batch.size());
+            subscription.mObserver.onValues(batch);
+            // Published values only ever go into mPending, so this is safe without the lock
+            batch.clear();
+        }
+        if (nextWindowNanos != Long.MAX_VALUE) {
+            synchronized (mLock) {
+                if (mFrameScheduled) {
+                    return;
+                }
+                mFrameScheduled = true;
+            }
+            mChoreographer.postFrameCallbackDelayed(mFrameCallback, nextWindowNanos / 1000000L);
+        }
+    }
+
+    /**
+     * Returns the number of values published that at least one subscription wanted.
+     */
+    public long getPublishedCount() {
+        return mPublishedCount.get();
+    }
+
+    /**
+     * Returns the number of values handed to observers.
+     */
+    public long getDeliveredCount() {
+        return mDeliveredCount.get();
+    }
+
+    /**
+     * Returns the number of values a {@link #MODE_LATEST} subscription replaced with a newer
+     * one, from the same device and characteristic, before delivering it.
+     */
+    public long getCoalescedCount() {
+        return mCoalescedCount.get();
+    }
+
+    /**
+     * Returns the number of values a subscription discarded because it was full.
+     */
+    public long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return TAG + "{published=" + getPublishedCount()
+                + ", delivered=" + getDeliveredCount()
+                + ", coalesced=" + getCoalescedCount()
+                + ", dropped=" + getDroppedCount() + "}";
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private static Subscription[] append(Subscription[] array, Subscription subscription) {
+        final Subscription[] result = new Subscription[array.length + 1];
+        System.arraycopy(array, 0, result, 0, array.length);
+        result[array.length] = subscription;
+        return result;
+    }
+
+    private static Subscription[] remove(Subscription[] array, Subscription subscription) {
+        for (int i = 0; i < array.length; i++) {
+            if (array[i] == subscription) {
+                final Subscription[] result = new Subscription[array.length - 1];
+                System.arraycopy(array, 0, result, 0, i);
+                System.arraycopy(array, i + 1, result, i, array.length - i - 1);
+                return result;
+            }
+        }
+        return array;
+    }
+}
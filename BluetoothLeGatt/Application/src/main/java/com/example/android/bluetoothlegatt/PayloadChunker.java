@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bluetoothlegatt;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Splits a payload into values that each fit in one ATT packet.
+ *
+ * <p>A payload longer than one packet is framed so the receiver knows where it ends: the
+ * first value starts with the payload length as a 4-byte little-endian integer, and the
+ * payload follows across as many values as it takes. {@link PayloadReassembler} undoes
+ * this.</p>
+ *
+ * <p>This has no Android dependencies, so it can be used on a JVM.</p>
+ */
+public class PayloadChunker {
+
+    /**
+     * Length of the header in front of the first value.
+     */
+    public static final int HEADER_LENGTH = 4;
+
+    /**
+     * Bytes of every ATT packet taken up by the opcode and handle, leaving MTU - 3 for the
+     * value.
+     */
+    public static final int ATT_OVERHEAD = 3;
+
+    private final InputStream mInput;
+    private final long mLength;
+    private long mSent;
+    private boolean mHeaderSent;
+
+    /**
+     * @param input  The payload; it is read as chunks are taken and not closed here.
+     * @param length The number of bytes to send from input.
+     */
+    public PayloadChunker(InputStream input, long length) {
+        if (length < 0 || length > 0xFFFFFFFFL) {
+            throw new IllegalArgumentException("length " + length);
+        }
+        mInput = input;
+        mLength = length;
+    }
+
+    /**
+     * Returns the next value to write, or null when everything has been taken.
+     *
+     * @param maxLength The longest value allowed, usually the MTU less
+     *                  {@link #ATT_OVERHEAD}.
+     * @throws EOFException if input ends before the given length.
+     */
+    public byte[] next(int maxLength) throws IOException {
+        if (maxLength <= HEADER_LENGTH) {
+            throw new IllegalArgumentException("maxLength " + maxLength);
+        }
+        if (mHeaderSent && mSent == mLength) {
+            return null;
+        }
+        final int header = mHeaderSent ? 0 : HEADER_LENGTH;
+        final int payload = (int) Math.min(maxLength - header, mLength - mSent);
+        final byte[] chunk = new byte[header + payload];
+        if (!mHeaderSent) {
+            chunk[0] = (byte) mLength;
+            chunk[1] = (byte) (mLength >>> 8);
+            chunk[2] = (byte) (mLength >>> 16);
+            chunk[3] = (byte) (mLength >>> 24);
+            mHeaderSent = true;
+        }
+        int offset = header;
+        while (offset < chunk.length) {
+            final int read = mInput.read(chunk, offset, chunk.length - offset);
+            if (read < 0) {
+                throw new EOFException("Payload ended after " + (mSent + offset - header)
+                        + " of " + mLength + " bytes");
+            }
+            offset += read;
+        }
+        mSent += payload;
+        return chunk;
+    }
+
+    /**
+     * Returns the number of payload bytes taken so far.
+     */
+    public long getSent() {
+        return mSent;
+    }
+
+    public long getLength() {
+        return mLength;
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bluetoothlegatt;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Puts a payload split by {@link PayloadChunker} back together from the values it arrives
+ * in, writing it to a stream as it goes.
+ *
+ * <p>This has no Android dependencies, so it can be used on a JVM.</p>
+ */
+public class PayloadReassembler {
+
+    private final OutputStream mOutput;
+    private final byte[] mHeader = new byte[PayloadChunker.HEADER_LENGTH];
+    private int mHeaderReceived;
+    private long mLength = -1;
+    private long mReceived;
+
+    /**
+     * @param output Receives the payload; it is not closed here.
+     */
+    public PayloadReassembler(OutputStream output) {
+        mOutput = output;
+    }
+
+    /**
+     * Takes the next value.
+     *
+     * @return true once the whole payload has been written.
+     * @throws IOException if writing fails or the value runs past the end of the payload.
+     */
+    public boolean append(byte[] value) throws IOException {
+        int offset = 0;
+        if (mLength < 0) {
+            // The header may itself be split if values are very short
+            final int take = Math.min(value.length, mHeader.length - mHeaderReceived);
+            System.arraycopy(value, 0, mHeader, mHeaderReceived, take);
+            mHeaderReceived += take;
+            offset = take;
+            if (mHeaderReceived < mHeader.length) {
+                return false;
+            }
+            mLength = (mHeader[0] & 0xFFL) | (mHeader[1] & 0xFFL) << 8
+                    | (mHeader[2] & 0xFFL) << 16 | (mHeader[3] & 0xFFL) << 24;
+        }
+        final int payload = value.length - offset;
+        if (mReceived + payload > mLength) {
+            throw new IOException("Received " + (mReceived + payload) + " bytes of a "
+                    + mLength + " byte payload");
+        }
+        if (payload > 0) {
+            mOutput.write(value, offset, payload);
+            mReceived += payload;
+        }
+        return mReceived == mLength;
+    }
+
+    public long getReceived() {
+        return mReceived;
+    }
+
+    /**
+     * Returns the payload length, or -1 until the header has arrived.
+     */
+    public long getLength() {
+        return mLength;
+    }
+
+    public boolean isComplete() {
+        return mLength >= 0 && mReceived == mLength;
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bluetoothlegatt;
+
+/**
+ * Decides whether, and how soon, a {@link GattSession} reconnects after losing a connection
+ * it did not close itself.
+ */
+public abstract class ReconnectPolicy {
+
+    /**
+     * Never reconnect.
+     */
+    public static final ReconnectPolicy NEVER = new ReconnectPolicy() {
+        @Override
+        public long getDelayMillis(int attempt) {
+            return -1;
+        }
+    };
+
+    /**
+     * @param attempt 1 for the first attempt after a connection was lost, counting up until
+     *                a connection succeeds.
+     * @return how long to wait before the attempt, or a negative value to give up.
+     */
+    public abstract long getDelayMillis(int attempt);
+
+    /**
+     * Returns a policy that doubles the delay after every failed attempt.
+     *
+     * @param initialMillis Delay before the first attempt.
+     * @param maxMillis     Longest delay.
+     * @param maxAttempts   Attempts before giving up, or 0 to keep trying.
+     */
+    public static ReconnectPolicy exponential(final long initialMillis, final long maxMillis,
+                                              final int maxAttempts) {
+        return new ReconnectPolicy() {
+            @Override
+            public long getDelayMillis(int attempt) {
+                if (maxAttempts > 0 && attempt > maxAttempts) {
+                    return -1;
+                }
+                // Shifting further than this could only overflow; the cap applies anyway
+                final int shift = Math.min(attempt - 1, 30);
+                return Math.min(initialMillis << shift, maxMillis);
+            }
+        };
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Collects advertisements off the main thread and publishes the devices seen at a fixed
+ * rate.
+ *
+ * <p>In a busy place hundreds of advertisements arrive every second. Each one only updates
+ * the entry for its address, found through a hash index, and smooths its RSSI. Every
+ * {@link #PUBLISH_INTERVAL_MILLIS} a background thread turns the entries into an immutable
+ * {@link Snapshot} and, if anything visible changed, hands it to the main thread together
+ * with what changed since the previous one.</p>
+ */
+public class ScanAggregator implements LeScanEngine.Listener {
+
+    /**
+     * How often snapshots are published.
+     */
+    public static final long PUBLISH_INTERVAL_MILLIS = 500;
+
+    /**
+     * Weight of a new reading in the smoothed RSSI.
+     */
+    private static final float RSSI_ALPHA = 0.25f;
+
+    /**
+     * Receives snapshots on the main thread.
+     */
+    public interface Listener {
+        void onSnapshot(Snapshot snapshot);
+    }
+
+    /**
+     * One device as of a snapshot.
+     */
+    public static final class Device {
+        public final BluetoothDevice device;
+        public final String address;
+        public final int rssi;          // smoothed, in dBm
+        public final long lastSeen;     // SystemClock.elapsedRealtime()
+        public final int advertisements;
+
+        Device(BluetoothDevice device, String address, int rssi, long lastSeen,
+               int advertisements) {
+            this.device = device;
+            this.address = address;
+            this.rssi = rssi;
+            this.lastSeen = lastSeen;
+            this.advertisements = advertisements;
+        }
+    }
+
+    /**
+     * The devices seen so far, in the order they were first seen, and what changed since
+     * the previous snapshot. Devices are never removed while scanning, so new ones are
+     * always at the end.
+     */
+    public static final class Snapshot {
+        private final List<Device> mDevices;
+        private final int mFirstInserted;
+        private final int[] mChanged;
+
+        Snapshot(List<Device> devices, int firstInserted, int[] changed) {
+            mDevices = devices;
+            mFirstInserted = firstInserted;
+            mChanged = changed;
+        }
+
+        public List<Device> getDevices() {
+            return mDevices;
+        }
+
+        /**
+         * Returns the position of the first device new in this snapshot, or the number of
+         * devices if there are none.
+         */
+        public int getFirstInserted() {
+            return mFirstInserted;
+        }
+
+        /**
+         * Returns the positions of earlier devices whose RSSI changed, in ascending order.
+         */
+        public int[] getChanged() {
+            return mChanged;
+        }
+    }
+
+    // The running state of one address; guarded by mLock.
+    private static final class Entry {
+        final BluetoothDevice device;
+        final int position;
+        float rssi;
+        long lastSeen;
+        int advertisements;
+        boolean dirty;
+
+        Entry(BluetoothDevice device, int position) {
+            this.device = device;
+            this.position = position;
+        }
+    }
+
+    private final Object mLock = new Object();
+    private final HashMap<String, Entry> mIndex = new HashMap<>();
+    private final ArrayList<Entry> mEntries = new ArrayList<>();
+    private boolean mDirty;
+    private int mGeneration; // counts calls to clear()
+    private long mAdvertisementCount;
+
+    // Only touched on the aggregator thread
+    private List<Device> mPublished = Collections.emptyList();
+    private int mPublishedGeneration;
+
+    private final Listener mListener;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    // Only touched on the main thread
+    private HandlerThread mThread;
+    private Handler mHandler;
+    private Runnable mPublish;
+
+    public ScanAggregator(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Starts publishing. Call on the main thread.
+     */
+    public void start() {
+        if (mThread != null) {
+            return;
+        }
+        mThread = new HandlerThread("ScanAggregator");
+        mThread.start();
+        // The runnable keeps its own handler, since stop() may run while it does
+        final Handler handler = new Handler(mThread.getLooper());
+        mPublish = new Runnable() {
+            @Override
+            public void run() {
+                publish();
+                handler.postDelayed(this, PUBLISH_INTERVAL_MILLIS);
+            }
+        };
+        handler.postDelayed(mPublish, PUBLISH_INTERVAL_MILLIS);
+        mHandler = handler;
+    }
+
+    /**
+     * Stops publishing. Call on the main thread; the listener is not called after this,
+     * even with a snapshot that was already on its way.
+     */
+    public void stop() {
+        if (mThread == null) {
+            return;
+        }
+        mHandler.removeCallbacks(mPublish);
+        mThread.quitSafely();
+        mThread = null;
+        mHandler = null;
+        mPublish = null;
+    }
+
+    /**
+     * Takes one advertisement. Safe to call from any thread, and cheap enough to call for
+     * every one.
+     */
+    @Override
+    public void onAdvertisement(BluetoothDevice device, int rssi) {
+        final long now = SystemClock.elapsedRealtime();
+        final String address = device.getAddress();
+        synchronized (mLock) {
+            mAdvertisementCount++;
+            Entry entry = mIndex.get(address);
+            if (entry == null) {
+                entry = new Entry(device, mEntries.size());
+                entry.rssi = rssi;
+                mIndex.put(address, entry);
+                mEntries.add(entry);
+            } else {
+                entry.rssi += RSSI_ALPHA * (rssi - entry.rssi);
+            }
+            entry.lastSeen = now;
+            entry.advertisements++;
+            entry.dirty = true;
+            mDirty = true;
+        }
+    }
+
+    /**
+     * Forgets every device. The next snapshot is empty.
+     */
+    public void clear() {
+        synchronized (mLock) {
+            mIndex.clear();
+            mEntries.clear();
+            mGeneration++;
+            mDirty = true;
+        }
+    }
+
+    /**
+     * Returns the number of advertisements taken since this was created.
+     */
+    public long getAdvertisementCount() {
+        synchronized (mLock) {
+            return mAdvertisementCount;
+        }
+    }
+
+    // Runs on the aggregator thread.
+    private void publish() {
+        List<Device> previous = mPublished;
+        final ArrayList<Device> devices;
+        synchronized (mLock) {
+            if (!mDirty) {
+                return;
+            }
+            mDirty = false;
+            if (mGeneration != mPublishedGeneration) {
+                // Cleared since the last snapshot; everything is new
+                mPublishedGeneration = mGeneration;
+                previous = Collections.emptyList();
+            }
+            devices = new ArrayList<>(mEntries.size());
+            for (Entry entry : mEntries) {
+                if (!entry.dirty && entry.position < previous.size()) {
+                    devices.add(previous.get(entry.position));
+                    continue;
+                }
+                entry.dirty = false;
+                devices.add(new Device(entry.device, entry.device.getAddress(),
+                        Math.round(entry.rssi), entry.lastSeen, entry.advertisements));
+            }
+        }
+
+        final boolean cleared = previous != mPublished;
+        final int firstInserted = previous.size();
+        int count = 0;
+        final int[] positions = new int[firstInserted];
+        for (int i = 0; i < firstInserted; i++) {
+            // Only an RSSI that rounds differently is worth redrawing
+            if (devices.get(i).rssi != previous.get(i).rssi) {
+                positions[count++] = i;
+            }
+        }
+        final int[] changed = new int[count];
+        System.arraycopy(positions, 0, changed, 0, count);
+        mPublished = devices;
+        if (!cleared && firstInserted == devices.size() && count == 0) {
+            return;
+        }
+
+        final Snapshot snapshot =
+                new Snapshot(Collections.unmodifiableList(devices), firstInserted, changed);
+        final Thread thread = Thread.currentThread();
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                // Dropped if stop() ran since, so a list cleared then stays clear
+                if (mThread == thread) {
+                    mListener.onSnapshot(snapshot);
+                }
+            }
+        });
+    }
+}
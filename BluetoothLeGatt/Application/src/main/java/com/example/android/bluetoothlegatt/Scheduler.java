@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+/**
+ * Runs delayed tasks and tells the time for the GATT classes, so that timeouts, reconnects
+ * and rates can be driven by a fake scheduler off the device. The app uses
+ * {@link HandlerScheduler}.
+ */
+public interface Scheduler {
+
+    /**
+     * Return monotonic time in milliseconds, as {@code SystemClock.elapsedRealtime()} does.
+     */
+    long elapsedRealtime();
+
+    /**
+     * Run a task once, after the given delay.
+     */
+    void postDelayed(Runnable task, long delayMillis);
+
+    /**
+     * Drop every pending run of a task.
+     */
+    void removeCallbacks(Runnable task);
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bluetoothlegatt;
+
+/**
+ * Counts the bytes a connection sends and receives, and their rate over the last second.
+ */
+public class ThroughputMeter {
+
+    private static final long BUCKET_MILLIS = 1000;
+
+    private final Scheduler mClock;
+
+    private long mBytesSent;
+    private long mBytesReceived;
+    private long mPacketsSent;
+    private long mPacketsReceived;
+
+    // The current bucket fills up while the previous one gives the rate
+    private long mBucketStart;
+    private long mBucketSent;
+    private long mBucketReceived;
+    private long mSendRate;
+    private long mReceiveRate;
+
+    /**
+     * @param clock Times the rates; only its clock is used.
+     */
+    public ThroughputMeter(Scheduler clock) {
+        mClock = clock;
+        mBucketStart = clock.elapsedRealtime();
+    }
+
+    public synchronized void onSent(int bytes) {
+        roll(mClock.elapsedRealtime());
+        mBytesSent += bytes;
+        mPacketsSent++;
+        mBucketSent += bytes;
+    }
+
+    public synchronized void onReceived(int bytes) {
+        roll(mClock.elapsedRealtime());
+        mBytesReceived += bytes;
+        mPacketsReceived++;
+        mBucketReceived += bytes;
+    }
+
+    public synchronized long getBytesSent() {
+        return mBytesSent;
+    }
+
+    public synchronized long getBytesReceived() {
+        return mBytesReceived;
+    }
+
+    public synchronized long getPacketsSent() {
+        return mPacketsSent;
+    }
+
+    public synchronized long getPacketsReceived() {
+        return mPacketsReceived;
+    }
+
+    /**
+     * Returns the bytes sent per second, measured over the last full second.
+     */
+    public synchronized long getSendRate() {
+        roll(mClock.elapsedRealtime());
+        return mSendRate;
+    }
+
+    /**
+     * Returns the bytes received per second, measured over the last full second.
+     */
+    public synchronized long getReceiveRate() {
+        roll(mClock.elapsedRealtime());
+        return mReceiveRate;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "sent=" + mBytesSent + "B (" + getSendRate() + "B/s), received="
+                + mBytesReceived + "B (" + getReceiveRate() + "B/s)";
+    }
+
+    private void roll(long now) {
+        final long elapsed = now - mBucketStart;
+        if (elapsed < BUCKET_MILLIS) {
+            return;
+        }
+        // A bucket left idle stretches over the idle time, which brings its rate down to 0
+        mSendRate = mBucketSent * 1000 / elapsed;
+        mReceiveRate = mBucketReceived * 1000 / elapsed;
+        mBucketStart = now;
+        mBucketSent = 0;
+        mBucketReceived = 0;
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothGatt;
+import android.util.Log;
+
+/**
+ * Switches a {@link GattSession} to a high connection priority while it moves a lot of data
+ * and back to balanced once it goes quiet.
+ *
+ * <p>A high priority shortens the connection interval to about 11.25-15ms, which lets
+ * several packets through per interval but costs power on both ends. A session is
+ * boosted when a {@link GattOperation#PRIORITY_BULK} operation is queued or when more than
+ * {@link #BURST_BYTES} go either way within {@link #IDLE_MILLIS}. It drops back after
+ * {@link #IDLE_MILLIS} without either.</p>
+ */
+public class ThroughputProfile {
+    private final static String TAG = ThroughputProfile.class.getSimpleName();
+
+    /**
+     * Quiet time after which a boosted session drops back to balanced.
+     */
+    public static final long IDLE_MILLIS = 5000;
+
+    /**
+     * Bytes within one idle period that count as a bulk transfer.
+     */
+    public static final int BURST_BYTES = 4 * 1024;
+
+    private final GattSession mSession;
+    private final Scheduler mScheduler;
+
+    // Guarded by this
+    private boolean mEnabled = true;
+    private boolean mBoosted;
+    private long mWindowStart;
+    private int mWindowBytes;
+    private long mLastBulkAt;
+
+    private final Runnable mIdleCheck = new Runnable() {
+        @Override
+        public void run() {
+            final long remaining;
+            synchronized (ThroughputProfile.this) {
+                if (!mBoosted) {
+                    return;
+                }
+                remaining = mLastBulkAt + IDLE_MILLIS - mScheduler.elapsedRealtime();
+                if (remaining <= 0) {
+                    mBoosted = false;
+                }
+            }
+            if (remaining > 0) {
+                mScheduler.postDelayed(this, remaining);
+            } else {
+                Log.d(TAG, mSession.getAddress() + " idle, back to balanced priority");
+                mSession.requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_BALANCED);
+            }
+        }
+    };
+
+    ThroughputProfile(GattSession session, Scheduler scheduler) {
+        mSession = session;
+        mScheduler = scheduler;
+    }
+
+    /**
+     * Turns automatic switching on or off. Turning it off drops a boosted session back to
+     * balanced.
+     */
+    public void setEnabled(boolean enabled) {
+        synchronized (this) {
+            mEnabled = enabled;
+        }
+        if (!enabled) {
+            onDisconnected();
+            mSession.requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_BALANCED);
+        }
+    }
+
+    public synchronized boolean isBoosted() {
+        return mBoosted;
+    }
+
+    /**
+     * Returns the connection interval the Android stack aims for at one of the
+     * {@code BluetoothGatt.CONNECTION_PRIORITY_} values. The interval the remote device
+     * accepted is not reported to apps.
+     */
+    public static String describeInterval(int priority) {
+        switch (priority) {
+            case BluetoothGatt.CONNECTION_PRIORITY_HIGH:
+                return "11.25-15ms";
+            case BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER:
+                return "100-125ms";
+            default:
+                return "30-50ms";
+        }
+    }
+
+    void onBulkQueued() {
+        boost(mScheduler.elapsedRealtime());
+    }
+
+    void onTransfer(int bytes) {
+        final long now = mScheduler.elapsedRealtime();
+        synchronized (this) {
+            if (now - mWindowStart >= IDLE_MILLIS) {
+                mWindowStart = now;
+                mWindowBytes = 0;
+            }
+            mWindowBytes += bytes;
+            if (mWindowBytes < BURST_BYTES) {
+                return;
+            }
+        }
+        boost(now);
+    }
+
+    void onDisconnected() {
+        synchronized (this) {
+            mBoosted = false;
+            mWindowBytes = 0;
+        }
+        mScheduler.removeCallbacks(mIdleCheck);
+    }
+
+    private void boost(long now) {
+        synchronized (this) {
+            mLastBulkAt = now;
+            if (!mEnabled || mBoosted) {
+                return;
+            }
+            mBoosted = true;
+        }
+        if (!mSession.requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH)) {
+            synchronized (this) {
+                mBoosted = false;
+            }
+            return;
+        }
+        Log.d(TAG, mSession.getAddress() + " busy, high priority");
+        mScheduler.postDelayed(mIdleCheck, IDLE_MILLIS);
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Downloads from a {@link SimulatedGattLink}, including ones where the device goes quiet or
+ * notifications cannot be enabled.
+ */
+public class CharacteristicTransferTest {
+
+    private static final String ADDRESS = "00:11:22:33:44:01";
+
+    // Long enough for any one exchange with the simulated device
+    private static final long SETTLE_MILLIS = 100;
+
+    private FakeScheduler mScheduler;
+    private SimulatedGattLink.Device mDevice;
+    private GattConnectionManager mManager;
+    private final TestCharacteristic mCharacteristic = new TestCharacteristic();
+
+    // How each transfer ended, as "complete" or the failure status
+    private final List<String> mOutcomes = new ArrayList<>();
+
+    private final CharacteristicTransfer.Listener mTransferListener =
+            new CharacteristicTransfer.Listener() {
+                @Override
+                public void onProgress(CharacteristicTransfer transfer, long transferred,
+                                       long total) {
+                }
+
+                @Override
+                public void onComplete(CharacteristicTransfer transfer) {
+                    mOutcomes.add("complete");
+                }
+
+                @Override
+                public void onFailed(CharacteristicTransfer transfer, int status) {
+                    mOutcomes.add(String.valueOf(status));
+                }
+            };
+
+    @Before
+    public void setUp() {
+        mScheduler = new FakeScheduler();
+        final SimulatedGattLink.BackEnd backEnd = new SimulatedGattLink.BackEnd(mScheduler);
+        mDevice = backEnd.addDevice(ADDRESS);
+        mManager = new GattConnectionManager(backEnd, mScheduler, 1,
+                new GattSession.Listener() {
+                    @Override
+                    public void onStateChanged(GattSession session, int oldState,
+                                               int newState) {
+                    }
+
+                    @Override
+                    public void onServicesDiscovered(GattSession session) {
+                    }
+
+                    @Override
+                    public void onValue(GattSession session,
+                                        BluetoothGattCharacteristic characteristic,
+                                        boolean notification) {
+                    }
+                });
+    }
+
+    @Test
+    public void downloadsNotifiedValues() {
+        final GattSession session = connect();
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        session.read(mCharacteristic, output, mTransferListener);
+
+        mDevice.getLink().notify(mCharacteristic, new byte[] {3, 0, 0, 0, 1});
+        mScheduler.advance(CharacteristicTransfer.DOWNLOAD_TIMEOUT_MILLIS - 1);
+        mDevice.getLink().notify(mCharacteristic, new byte[] {2, 3});
+
+        assertEquals(1, mOutcomes.size());
+        assertEquals("complete", mOutcomes.get(0));
+        assertArrayEquals(new byte[] {1, 2, 3}, output.toByteArray());
+        // Nothing is left to time out
+        mScheduler.advance(CharacteristicTransfer.DOWNLOAD_TIMEOUT_MILLIS);
+        assertEquals(1, mOutcomes.size());
+    }
+
+    @Test
+    public void timesOutWhenTheDeviceGoesQuiet() {
+        final GattSession session = connect();
+        session.read(mCharacteristic, new ByteArrayOutputStream(), mTransferListener);
+
+        // Each value restarts the timeout
+        mScheduler.advance(CharacteristicTransfer.DOWNLOAD_TIMEOUT_MILLIS - 1);
+        mDevice.getLink().notify(mCharacteristic, new byte[] {10, 0, 0, 0, 1});
+        mScheduler.advance(CharacteristicTransfer.DOWNLOAD_TIMEOUT_MILLIS - 1);
+        assertEquals(0, mOutcomes.size());
+        mScheduler.advance(1);
+
+        assertEquals(1, mOutcomes.size());
+        assertEquals(String.valueOf(GattOperation.STATUS_TIMEOUT), mOutcomes.get(0));
+        // The characteristic can be read again
+        assertNotNull(session.read(mCharacteristic, new ByteArrayOutputStream(),
+                mTransferListener));
+    }
+
+    @Test
+    public void failsWhenNotificationsCannotBeEnabled() {
+        // Not connected yet, so the stack refuses
+        final GattSession session = mManager.connect(ADDRESS);
+        session.read(mCharacteristic, new ByteArrayOutputStream(), mTransferListener);
+
+        assertEquals(1, mOutcomes.size());
+        assertEquals(String.valueOf(GattOperation.STATUS_NOT_STARTED), mOutcomes.get(0));
+        mScheduler.advance(SETTLE_MILLIS);
+        assertNotNull(session.read(mCharacteristic, new ByteArrayOutputStream(),
+                mTransferListener));
+    }
+
+    private GattSession connect() {
+        final GattSession session = mManager.connect(ADDRESS);
+        mScheduler.advance(SETTLE_MILLIS);
+        assertEquals(GattSession.STATE_CONNECTED, session.getState());
+        return session;
+    }
+}
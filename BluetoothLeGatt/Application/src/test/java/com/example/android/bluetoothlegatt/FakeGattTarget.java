@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A {@link GattTarget} that records the requests made to it, and refuses those on the
+ * attributes it is told to, like {@code BluetoothGatt} does when it is busy.
+ */
+public class FakeGattTarget implements GattTarget {
+
+    /**
+     * The attribute of every accepted request, in order: a characteristic, a descriptor, or
+     * the MTU asked for.
+     */
+    public final List<Object> requests = new ArrayList<>();
+
+    /**
+     * The {@code GattOperation.TYPE_} of every accepted request, in order.
+     */
+    public final List<Integer> types = new ArrayList<>();
+
+    private final Set<Object> mRefused = new HashSet<>();
+
+    /**
+     * Refuse every request on an attribute, or for an MTU given as an Integer.
+     */
+    public void refuse(Object attribute) {
+        mRefused.add(attribute);
+    }
+
+    /**
+     * Return the attribute of the latest accepted request.
+     */
+    public Object last() {
+        return requests.get(requests.size() - 1);
+    }
+
+    /**
+     * Return the type of the latest accepted request.
+     */
+    public int lastType() {
+        return types.get(types.size() - 1);
+    }
+
+    @Override
+    public boolean readCharacteristic(BluetoothGattCharacteristic characteristic) {
+        return record(GattOperation.TYPE_READ_CHARACTERISTIC, characteristic);
+    }
+
+    @Override
+    public boolean writeCharacteristic(BluetoothGattCharacteristic characteristic) {
+        return record(GattOperation.TYPE_WRITE_CHARACTERISTIC, characteristic);
+    }
+
+    @Override
+    public boolean readDescriptor(BluetoothGattDescriptor descriptor) {
+        return record(GattOperation.TYPE_READ_DESCRIPTOR, descriptor);
+    }
+
+    @Override
+    public boolean writeDescriptor(BluetoothGattDescriptor descriptor) {
+        return record(GattOperation.TYPE_WRITE_DESCRIPTOR, descriptor);
+    }
+
+    @Override
+    public boolean setCharacteristicNotification(BluetoothGattCharacteristic characteristic,
+                                                 boolean enable) {
+        return !mRefused.contains(characteristic);
+    }
+
+    @Override
+    public boolean requestMtu(int mtu) {
+        return record(GattOperation.TYPE_REQUEST_MTU, mtu);
+    }
+
+    private boolean record(int type, Object attribute) {
+        if (mRefused.contains(attribute)) {
+            return false;
+        }
+        types.add(type);
+        requests.add(attribute);
+        return true;
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A {@link Scheduler} whose time only moves when a test calls {@link #advance(long)}, running
+ * the tasks that fall due on the test's thread.
+ */
+public class FakeScheduler implements Scheduler {
+
+    private static class Task {
+        final Runnable runnable;
+        final long runAt;
+
+        Task(Runnable runnable, long runAt) {
+            this.runnable = runnable;
+            this.runAt = runAt;
+        }
+    }
+
+    private final List<Task> mTasks = new ArrayList<>();
+    private long mNow = 1000;
+
+    @Override
+    public long elapsedRealtime() {
+        return mNow;
+    }
+
+    @Override
+    public void postDelayed(Runnable task, long delayMillis) {
+        mTasks.add(new Task(task, mNow + delayMillis));
+    }
+
+    @Override
+    public void removeCallbacks(Runnable task) {
+        for (Iterator<Task> it = mTasks.iterator(); it.hasNext(); ) {
+            if (it.next().runnable == task) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Move time forward, running every task due by then in the order they fall due. Tasks
+     * posted by those tasks run too if they fall due in time.
+     */
+    public void advance(long millis) {
+        final long until = mNow + millis;
+        while (true) {
+            Task next = null;
+            for (Task task : mTasks) {
+                if (task.runAt <= until && (next == null || task.runAt < next.runAt)) {
+                    next = task;
+                }
+            }
+            if (next == null) {
+                break;
+            }
+            mTasks.remove(next);
+            mNow = next.runAt;
+            next.runnable.run();
+        }
+        mNow = until;
+    }
+
+    /**
+     * Return the number of tasks waiting to run.
+     */
+    public int getPendingCount() {
+        return mTasks.size();
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives {@link GattConnectionManager} and its sessions through {@link SimulatedGattLink}s.
+ */
+public class GattConnectionManagerTest {
+
+    private static final String ADDRESS_A = "00:11:22:33:44:01";
+    private static final String ADDRESS_B = "00:11:22:33:44:02";
+    private static final String ADDRESS_C = "00:11:22:33:44:03";
+
+    // Long enough for any one exchange with a simulated device
+    private static final long SETTLE_MILLIS = 100;
+
+    private FakeScheduler mScheduler;
+    private SimulatedGattLink.BackEnd mBackEnd;
+    private GattConnectionManager mManager;
+
+    // Every state change and discovery reported, as "address state" or "address discovered"
+    private final List<String> mEvents = new ArrayList<>();
+
+    private final GattSession.Listener mListener = new GattSession.Listener() {
+        @Override
+        public void onStateChanged(GattSession session, int oldState, int newState) {
+            mEvents.add(session.getAddress() + " " + newState);
+        }
+
+        @Override
+        public void onServicesDiscovered(GattSession session) {
+            mEvents.add(session.getAddress() + " discovered");
+        }
+
+        @Override
+        public void onValue(GattSession session, BluetoothGattCharacteristic characteristic,
+                            boolean notification) {
+        }
+    };
+
+    @Before
+    public void setUp() {
+        mScheduler = new FakeScheduler();
+        mBackEnd = new SimulatedGattLink.BackEnd(mScheduler);
+        mBackEnd.addDevice(ADDRESS_A);
+        mBackEnd.addDevice(ADDRESS_B);
+        mBackEnd.addDevice(ADDRESS_C);
+        mManager = new GattConnectionManager(mBackEnd, mScheduler, 2, mListener);
+        mManager.setReconnectPolicy(ReconnectPolicy.exponential(1000, 4000, 0));
+    }
+
+    @Test
+    public void connectsDiscoversAndRaisesMtu() {
+        final GattSession session = mManager.connect(ADDRESS_A);
+        assertNotNull(session);
+        assertEquals(GattSession.STATE_CONNECTING, session.getState());
+
+        mScheduler.advance(SETTLE_MILLIS);
+
+        assertEquals(GattSession.STATE_CONNECTED, session.getState());
+        assertTrue(session.isServicesDiscovered());
+        // Asked for the most Android allows, agreed to what the device allows
+        assertEquals(247, session.getMtu());
+        assertEquals(ADDRESS_A + " " + GattSession.STATE_CONNECTING, mEvents.get(0));
+        assertEquals(ADDRESS_A + " " + GattSession.STATE_CONNECTED, mEvents.get(1));
+        assertEquals(ADDRESS_A + " discovered", mEvents.get(2));
+    }
+
+    @Test
+    public void keepsOneSessionPerDeviceUpToTheLimit() {
+        final GattSession a = mManager.connect(ADDRESS_A);
+        assertNotNull(mManager.connect(ADDRESS_B));
+        assertNull(mManager.connect(ADDRESS_C));
+        assertNull(mManager.connect("00:00:00:00:00:00"));
+        assertSame(a, mManager.connect(ADDRESS_A));
+        assertEquals(2, mManager.size());
+        mScheduler.advance(SETTLE_MILLIS);
+
+        // Closing one frees its place
+        mManager.close(ADDRESS_A);
+        assertNull(mManager.getSession(ADDRESS_A));
+        assertNotNull(mManager.connect(ADDRESS_C));
+        mScheduler.advance(SETTLE_MILLIS);
+        assertEquals(GattSession.STATE_CONNECTED, mManager.getSession(ADDRESS_C).getState());
+    }
+
+    @Test
+    public void reconnectsAfterLinkLoss() {
+        final SimulatedGattLink.Device device = mBackEnd.addDevice(ADDRESS_A);
+        final GattSession session = mManager.connect(ADDRESS_A);
+        mScheduler.advance(SETTLE_MILLIS);
+        final SimulatedGattLink first = device.getLink();
+
+        first.drop();
+
+        assertTrue(first.isClosed());
+        assertEquals(GattSession.STATE_CONNECTING, session.getState());
+        assertFalse(session.isServicesDiscovered());
+        mScheduler.advance(999);
+        assertEquals(1, device.links.size());
+        mScheduler.advance(1 + SETTLE_MILLIS);
+        assertEquals(2, device.links.size());
+        assertEquals(GattSession.STATE_CONNECTED, session.getState());
+        assertEquals(247, session.getMtu());
+    }
+
+    @Test
+    public void backsOffAndGivesUpOnAnUnreachableDevice() {
+        mManager.setReconnectPolicy(ReconnectPolicy.exponential(1000, 4000, 3));
+        final SimulatedGattLink.Device device = mBackEnd.addDevice(ADDRESS_A);
+        device.reachable = false;
+        final GattSession session = mManager.connect(ADDRESS_A);
+
+        // The first attempt fails, then three more 1, 2 and 4 seconds apart
+        mScheduler.advance(SETTLE_MILLIS);
+        assertEquals(1, device.links.size());
+        mScheduler.advance(1000);
+        assertEquals(2, device.links.size());
+        mScheduler.advance(2000);
+        assertEquals(3, device.links.size());
+        mScheduler.advance(4000);
+        assertEquals(4, device.links.size());
+        assertEquals(GattSession.STATE_DISCONNECTED, session.getState());
+        mScheduler.advance(60000);
+        assertEquals(4, device.links.size());
+    }
+
+    @Test
+    public void doesNotReconnectAfterDisconnect() {
+        final SimulatedGattLink.Device device = mBackEnd.addDevice(ADDRESS_A);
+        final GattSession session = mManager.connect(ADDRESS_A);
+        mScheduler.advance(SETTLE_MILLIS);
+
+        mManager.disconnect(ADDRESS_A);
+        mScheduler.advance(60000);
+
+        assertEquals(GattSession.STATE_DISCONNECTED, session.getState());
+        assertEquals(1, device.links.size());
+        assertFalse(device.getLink().isConnected());
+
+        // Until asked to connect again
+        assertSame(session, mManager.connect(ADDRESS_A));
+        mScheduler.advance(SETTLE_MILLIS);
+        assertEquals(GattSession.STATE_CONNECTED, session.getState());
+    }
+
+    @Test
+    public void countsThroughputAcrossDevices() {
+        final SimulatedGattLink.Device a = mBackEnd.addDevice(ADDRESS_A);
+        final SimulatedGattLink.Device b = mBackEnd.addDevice(ADDRESS_B);
+        final GattSession sessionA = mManager.connect(ADDRESS_A);
+        mManager.connect(ADDRESS_B);
+        mScheduler.advance(SETTLE_MILLIS);
+        final TestCharacteristic characteristic = new TestCharacteristic();
+
+        for (int i = 0; i < 3; i++) {
+            a.getLink().notify(characteristic, new byte[100]);
+        }
+        b.getLink().notify(characteristic, new byte[50]);
+        sessionA.enqueue(GattOperation.writeCharacteristic(characteristic, new byte[20],
+                GattOperation.PRIORITY_NORMAL, null));
+        mScheduler.advance(SETTLE_MILLIS);
+
+        assertEquals(1, a.written.size());
+        assertEquals(350, mManager.getBytesReceived());
+        assertEquals(20, mManager.getBytesSent());
+        // A second after the sessions started, the rate covers everything so far
+        mScheduler.advance(1000 - 2 * SETTLE_MILLIS);
+        assertEquals(350, mManager.getReceiveRate());
+        assertEquals(20, mManager.getSendRate());
+    }
+
+    @Test
+    public void boostsPriorityForBulkTrafficUntilIdle() {
+        final SimulatedGattLink.Device device = mBackEnd.addDevice(ADDRESS_A);
+        final GattSession session = mManager.connect(ADDRESS_A);
+        mScheduler.advance(SETTLE_MILLIS);
+
+        device.getLink().notify(new TestCharacteristic(),
+                new byte[ThroughputProfile.BURST_BYTES]);
+
+        assertEquals(BluetoothGatt.CONNECTION_PRIORITY_HIGH, session.getConnectionPriority());
+        assertEquals(BluetoothGatt.CONNECTION_PRIORITY_HIGH,
+                device.getLink().getConnectionPriority());
+        mScheduler.advance(ThroughputProfile.IDLE_MILLIS);
+        assertEquals(BluetoothGatt.CONNECTION_PRIORITY_BALANCED,
+                session.getConnectionPriority());
+    }
+}
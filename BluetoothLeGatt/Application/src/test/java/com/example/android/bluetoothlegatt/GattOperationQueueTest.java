@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class GattOperationQueueTest {
+
+    private FakeScheduler mScheduler;
+    private FakeGattTarget mTarget;
+    private GattOperationQueue mQueue;
+
+    // What each operation completed with, in order
+    private final List<GattOperation> mCompleted = new ArrayList<>();
+    private final List<Integer> mStatuses = new ArrayList<>();
+
+    private final GattOperation.Callback mCallback = new GattOperation.Callback() {
+        @Override
+        public void onComplete(GattOperation operation, int status, byte[] value) {
+            mCompleted.add(operation);
+            mStatuses.add(status);
+        }
+    };
+
+    @Before
+    public void setUp() {
+        mScheduler = new FakeScheduler();
+        mTarget = new FakeGattTarget();
+        mQueue = new GattOperationQueue(mTarget, mScheduler);
+    }
+
+    @Test
+    public void runsByPriorityThenInQueueOrder() {
+        final BluetoothGattCharacteristic a = characteristic();
+        final BluetoothGattCharacteristic b = characteristic();
+        final BluetoothGattCharacteristic c = characteristic();
+        final BluetoothGattCharacteristic d = characteristic();
+
+        mQueue.enqueue(read(a, GattOperation.PRIORITY_NORMAL));
+        mQueue.enqueue(read(b, GattOperation.PRIORITY_BULK));
+        mQueue.enqueue(read(c, GattOperation.PRIORITY_NORMAL));
+        mQueue.enqueue(GattOperation.requestMtu(185, mCallback));
+        mQueue.enqueue(read(d, GattOperation.PRIORITY_NORMAL));
+
+        // Only the first one is sent until it completes
+        assertEquals(1, mTarget.requests.size());
+        assertEquals(4, mQueue.getDepth());
+        for (int i = 0; i < 5; i++) {
+            assertTrue(completeLast(BluetoothGatt.GATT_SUCCESS));
+        }
+
+        assertEquals(5, mTarget.requests.size());
+        assertEquals(a, mTarget.requests.get(0));
+        assertEquals(185, mTarget.requests.get(1));
+        assertEquals(c, mTarget.requests.get(2));
+        assertEquals(d, mTarget.requests.get(3));
+        assertEquals(b, mTarget.requests.get(4));
+        assertEquals(5, mQueue.getCompletedCount());
+        assertEquals(0, mQueue.getDepth());
+        assertEquals(0, mScheduler.getPendingCount());
+    }
+
+    @Test
+    public void timesOutAndStartsTheNext() {
+        final BluetoothGattCharacteristic a = characteristic();
+        final BluetoothGattCharacteristic b = characteristic();
+        final GattOperation first = read(a, GattOperation.PRIORITY_NORMAL).setTimeout(1000);
+        mQueue.enqueue(first);
+        mQueue.enqueue(read(b, GattOperation.PRIORITY_NORMAL));
+
+        mScheduler.advance(999);
+        assertTrue(mCompleted.isEmpty());
+        assertEquals(1, mTarget.requests.size());
+
+        mScheduler.advance(1);
+        assertEquals(1, mCompleted.size());
+        assertEquals(first, mCompleted.get(0));
+        assertEquals(GattOperation.STATUS_TIMEOUT, (int) mStatuses.get(0));
+        assertEquals(1, mQueue.getTimeoutCount());
+        assertEquals(b, mTarget.last());
+    }
+
+    @Test
+    public void refusedOperationFailsAndTheNextStarts() {
+        final BluetoothGattCharacteristic a = characteristic();
+        final BluetoothGattCharacteristic b = characteristic();
+        mTarget.refuse(a);
+        mQueue.enqueue(GattOperation.requestMtu(247, mCallback));
+        final GattOperation refused = read(a, GattOperation.PRIORITY_NORMAL);
+        mQueue.enqueue(refused);
+        mQueue.enqueue(read(b, GattOperation.PRIORITY_NORMAL));
+
+        assertTrue(completeLast(BluetoothGatt.GATT_SUCCESS));
+
+        assertEquals(2, mCompleted.size());
+        assertEquals(refused, mCompleted.get(1));
+        assertEquals(GattOperation.STATUS_NOT_STARTED, (int) mStatuses.get(1));
+        assertEquals(b, mTarget.last());
+        // Only the timeout of the one in flight is left
+        assertEquals(1, mScheduler.getPendingCount());
+    }
+
+    @Test
+    public void ignoresStaleCompletion() {
+        final BluetoothGattCharacteristic a = characteristic();
+        mQueue.enqueue(read(a, GattOperation.PRIORITY_NORMAL).setTimeout(1000));
+        mQueue.enqueue(GattOperation.requestMtu(247, mCallback));
+        mScheduler.advance(1000);
+        assertEquals(GattOperation.TYPE_REQUEST_MTU, mTarget.lastType());
+
+        // The read that timed out completes late; the MTU request is still waiting
+        assertFalse(mQueue.onComplete(GattOperation.TYPE_READ_CHARACTERISTIC, a.getUuid(),
+                BluetoothGatt.GATT_SUCCESS, new byte[] {1}));
+        assertEquals(1, mCompleted.size());
+        assertEquals(GattOperation.STATUS_TIMEOUT, (int) mStatuses.get(0));
+
+        assertTrue(mQueue.onComplete(GattOperation.TYPE_REQUEST_MTU, null,
+                BluetoothGatt.GATT_SUCCESS, null));
+        assertEquals(2, mCompleted.size());
+        assertEquals(BluetoothGatt.GATT_SUCCESS, (int) mStatuses.get(1));
+
+        // Nothing in flight any more
+        assertFalse(mQueue.onComplete(GattOperation.TYPE_REQUEST_MTU, null,
+                BluetoothGatt.GATT_SUCCESS, null));
+    }
+
+    @Test
+    public void ignoresCompletionForAnotherCharacteristic() {
+        final BluetoothGattCharacteristic a = characteristic();
+        final BluetoothGattCharacteristic b = characteristic();
+        mQueue.enqueue(read(a, GattOperation.PRIORITY_NORMAL));
+        mQueue.enqueue(read(b, GattOperation.PRIORITY_NORMAL));
+
+        // A read of the same type completes, but for the characteristic still waiting
+        assertFalse(mQueue.onComplete(GattOperation.TYPE_READ_CHARACTERISTIC, b.getUuid(),
+                BluetoothGatt.GATT_SUCCESS, new byte[] {1}));
+        assertTrue(mCompleted.isEmpty());
+        assertEquals(a, mTarget.last());
+
+        assertTrue(mQueue.onComplete(GattOperation.TYPE_READ_CHARACTERISTIC, a.getUuid(),
+                BluetoothGatt.GATT_SUCCESS, new byte[] {2}));
+        assertEquals(1, mCompleted.size());
+        assertEquals(a.getUuid(), mCompleted.get(0).getUuid());
+        assertEquals(b, mTarget.last());
+    }
+
+    @Test
+    public void clearCancelsEverything() {
+        mQueue.enqueue(read(characteristic(), GattOperation.PRIORITY_NORMAL));
+        mQueue.enqueue(read(characteristic(), GattOperation.PRIORITY_NORMAL));
+
+        mQueue.clear();
+
+        assertEquals(2, mCompleted.size());
+        assertEquals(GattOperation.STATUS_CANCELLED, (int) mStatuses.get(0));
+        assertEquals(GattOperation.STATUS_CANCELLED, (int) mStatuses.get(1));
+        assertEquals(0, mScheduler.getPendingCount());
+    }
+
+    @Test
+    public void timesWaitingAndRunning() {
+        mQueue.enqueue(read(characteristic(), GattOperation.PRIORITY_NORMAL));
+        mQueue.enqueue(read(characteristic(), GattOperation.PRIORITY_NORMAL));
+        mScheduler.advance(40);
+        assertTrue(completeLast(BluetoothGatt.GATT_SUCCESS));
+        mScheduler.advance(20);
+        assertTrue(completeLast(BluetoothGatt.GATT_SUCCESS));
+
+        assertEquals(30, mQueue.getAverageRunMillis());
+        assertEquals(20, mQueue.getAverageWaitMillis());
+        assertEquals(40, mQueue.getMaxRunMillis());
+    }
+
+    // Keeps its UUID, so completions are matched by UUID and not only by type
+    private static BluetoothGattCharacteristic characteristic() {
+        return new TestCharacteristic();
+    }
+
+    private GattOperation read(BluetoothGattCharacteristic characteristic, int priority) {
+        return GattOperation.readCharacteristic(characteristic, priority, mCallback);
+    }
+
+    // Report the completion of the latest request, as the BluetoothGattCallback would
+    private boolean completeLast(int status) {
+        final Object attribute = mTarget.last();
+        final UUID uuid = attribute instanceof BluetoothGattCharacteristic
+                ? ((BluetoothGattCharacteristic) attribute).getUuid() : null;
+        return mQueue.onComplete(mTarget.lastType(), uuid, status, null);
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Reads corrupt {@link GattServiceCache} files, which are discarded rather than trusted.
+ */
+public class GattServiceCacheTest {
+
+    private static final String ADDRESS = "00:11:22:33:44:01";
+
+    private File mDirectory;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = File.createTempFile("gatt", "");
+        mDirectory.delete();
+        mDirectory.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : mDirectory.listFiles()) {
+            file.delete();
+        }
+        mDirectory.delete();
+    }
+
+    @Test
+    public void discardsANegativeServiceCount() throws IOException {
+        final File file = writeFile(-1, 0);
+
+        assertNull(new GattServiceCache(mDirectory).get(ADDRESS));
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void discardsAHugeServiceCount() throws IOException {
+        final File file = writeFile(Integer.MAX_VALUE, 0);
+
+        assertNull(new GattServiceCache(mDirectory).get(ADDRESS));
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void discardsAHugeCharacteristicCount() throws IOException {
+        final File file = writeFile(1, Integer.MAX_VALUE);
+
+        assertNull(new GattServiceCache(mDirectory).get(ADDRESS));
+        assertFalse(file.exists());
+    }
+
+    // Writes a file in the cache's format that claims the given counts, with the first
+    // service's characteristic count after it if there is one.
+    private File writeFile(int serviceCount, int characteristicCount) throws IOException {
+        final File file = new File(mDirectory, ADDRESS.replace(":", "") + ".gatt");
+        final DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+        try {
+            out.writeInt(0x47415454);
+            out.writeInt(1);
+            out.writeLong(0);
+            out.writeInt(serviceCount);
+            out.writeLong(0);
+            out.writeLong(0);
+            out.writeInt(0);
+            out.writeInt(0);
+            out.writeInt(characteristicCount);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Round trips payloads through {@link PayloadChunker} and {@link PayloadReassembler}.
+ */
+public class PayloadChunkerTest {
+
+    // The smallest value the chunker accepts: the header and one payload byte
+    private static final int SHORTEST_VALUE = PayloadChunker.HEADER_LENGTH + 1;
+
+    @Test
+    public void sendsAnEmptyPayloadAsAHeader() throws IOException {
+        final List<byte[]> values = chunk(new byte[0], 20);
+
+        assertEquals(1, values.size());
+        assertArrayEquals(new byte[] {0, 0, 0, 0}, values.get(0));
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final PayloadReassembler reassembler = new PayloadReassembler(output);
+        assertTrue(reassembler.append(values.get(0)));
+        assertTrue(reassembler.isComplete());
+        assertEquals(0, reassembler.getLength());
+        assertEquals(0, output.size());
+    }
+
+    @Test
+    public void roundTripsAcrossManyValues() throws IOException {
+        final byte[] payload = payload(1000);
+        final List<byte[]> values = chunk(payload, 244);
+
+        // 240 bytes in the first value, then 244 in each of the rest
+        assertEquals(5, values.size());
+        assertEquals(244, values.get(0).length);
+        assertEquals(1000 - 240 - 3 * 244, values.get(4).length);
+        assertArrayEquals(payload, reassemble(values));
+    }
+
+    @Test
+    public void roundTripsAtTheShortestValue() throws IOException {
+        final byte[] payload = payload(300);
+
+        assertArrayEquals(payload, reassemble(chunk(payload, SHORTEST_VALUE)));
+    }
+
+    @Test
+    public void reassemblesAHeaderSplitAcrossShortValues() throws IOException {
+        final byte[] payload = payload(3);
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final PayloadReassembler reassembler = new PayloadReassembler(output);
+
+        // The length, 3, one byte at a time, then the payload with the last header byte
+        assertFalse(reassembler.append(new byte[] {3}));
+        assertEquals(-1, reassembler.getLength());
+        assertFalse(reassembler.append(new byte[] {0}));
+        assertFalse(reassembler.append(new byte[] {0}));
+        assertEquals(-1, reassembler.getLength());
+        assertFalse(reassembler.append(new byte[] {0, payload[0]}));
+        assertEquals(3, reassembler.getLength());
+        assertEquals(1, reassembler.getReceived());
+        assertTrue(reassembler.append(new byte[] {payload[1], payload[2]}));
+        assertArrayEquals(payload, output.toByteArray());
+    }
+
+    @Test
+    public void readsTheLengthLittleEndian() throws IOException {
+        final PayloadChunker chunker = new PayloadChunker(
+                new ByteArrayInputStream(new byte[0x030201]), 0x030201);
+        final byte[] first = chunker.next(20);
+
+        assertArrayEquals(new byte[] {1, 2, 3, 0}, Arrays.copyOf(first, 4));
+        final PayloadReassembler reassembler =
+                new PayloadReassembler(new ByteArrayOutputStream());
+        reassembler.append(first);
+        assertEquals(0x030201, reassembler.getLength());
+    }
+
+    @Test
+    public void failsWhenInputEndsBeforeTheDeclaredLength() throws IOException {
+        final PayloadChunker chunker =
+                new PayloadChunker(new ByteArrayInputStream(payload(30)), 50);
+
+        // The header and 20 bytes, then 10 of the next 20
+        assertEquals(24, chunker.next(24).length);
+        try {
+            chunker.next(24);
+            fail("Read past the end of the input");
+        } catch (EOFException expected) {
+        }
+    }
+
+    @Test
+    public void rejectsAValueRunningPastThePayload() throws IOException {
+        final List<byte[]> values = chunk(payload(10), 8);
+        final byte[] last = values.get(values.size() - 1);
+        values.set(values.size() - 1, Arrays.copyOf(last, last.length + 1));
+        final PayloadReassembler reassembler =
+                new PayloadReassembler(new ByteArrayOutputStream());
+
+        assertFalse(reassembler.append(values.get(0)));
+        try {
+            reassembler.append(values.get(1));
+            fail("Accepted 11 bytes of a 10 byte payload");
+        } catch (IOException expected) {
+        }
+        assertFalse(reassembler.isComplete());
+    }
+
+    @Test
+    public void rejectsValuesTooShortForTheHeader() throws IOException {
+        final PayloadChunker chunker = new PayloadChunker(new ByteArrayInputStream(payload(1)), 1);
+        try {
+            chunker.next(PayloadChunker.HEADER_LENGTH);
+            fail("Accepted a value with no room for the payload");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private static byte[] payload(int length) {
+        final byte[] payload = new byte[length];
+        for (int i = 0; i < length; i++) {
+            payload[i] = (byte) (i * 31 + 7);
+        }
+        return payload;
+    }
+
+    private static List<byte[]> chunk(byte[] payload, int maxLength) throws IOException {
+        final PayloadChunker chunker =
+                new PayloadChunker(new ByteArrayInputStream(payload), payload.length);
+        final List<byte[]> values = new ArrayList<>();
+        byte[] value;
+        while ((value = chunker.next(maxLength)) != null) {
+            assertTrue(value.length <= maxLength);
+            values.add(value);
+        }
+        assertEquals(payload.length, chunker.getSent());
+        assertNull(chunker.next(maxLength));
+        return values;
+    }
+
+    private static byte[] reassemble(List<byte[]> values) throws IOException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final PayloadReassembler reassembler = new PayloadReassembler(output);
+        for (int i = 0; i < values.size(); i++) {
+            assertEquals(i == values.size() - 1, reassembler.append(values.get(i)));
+        }
+        return output.toByteArray();
+    }
+}
@@ -0,0 +1,316 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@link GattLink} to a simulated device, so sessions and the connection manager run on a
+ * JVM. Every request is answered after the device's latency, through the same
+ * {@link Scheduler} the sessions use, so a {@link FakeScheduler} decides when things happen.
+ */
+public class SimulatedGattLink implements GattLink {
+
+    // Statuses the Android stack reports that BluetoothGatt has no constant for
+    static final int STATUS_CONNECTION_TIMEOUT = 8;
+    static final int STATUS_ERROR = 133;
+
+    /**
+     * A remote device. Its settings apply to links opened after they are changed.
+     */
+    public static class Device {
+        public final String address;
+        public long latencyMillis = 10;
+        public int maxMtu = 247;
+        public boolean reachable = true;
+        public List<BluetoothGattService> services = Collections.emptyList();
+
+        /**
+         * Every link opened to this device, oldest first.
+         */
+        public final List<SimulatedGattLink> links = new ArrayList<>();
+
+        /**
+         * The chunks written to the device, in order.
+         */
+        public final List<byte[]> written = new ArrayList<>();
+
+        Device(String address) {
+            this.address = address;
+        }
+
+        /**
+         * Return the newest link, or null if none was opened.
+         */
+        public SimulatedGattLink getLink() {
+            return links.isEmpty() ? null : links.get(links.size() - 1);
+        }
+    }
+
+    /**
+     * Opens links to the devices added to it; other addresses are not found.
+     */
+    public static class BackEnd implements GattLink.Factory {
+        private final Scheduler mScheduler;
+        private final Map<String, Device> mDevices = new HashMap<>();
+
+        public BackEnd(Scheduler scheduler) {
+            mScheduler = scheduler;
+        }
+
+        public Device addDevice(String address) {
+            final Device device = new Device(address);
+            mDevices.put(address, device);
+            return device;
+        }
+
+        @Override
+        public GattLink create(String address, GattSession session) {
+            final Device device = mDevices.get(address);
+            if (device == null) {
+                return null;
+            }
+            final SimulatedGattLink link = new SimulatedGattLink(device, session, mScheduler);
+            device.links.add(link);
+            return link;
+        }
+    }
+
+    private final Device mDevice;
+    private final GattSession mSession;
+    private final Scheduler mScheduler;
+    private boolean mStarted;
+    private boolean mDisconnecting;
+    private boolean mConnected;
+    private boolean mClosed;
+    private int mConnectionPriority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+
+    SimulatedGattLink(Device device, GattSession session, Scheduler scheduler) {
+        mDevice = device;
+        mSession = session;
+        mScheduler = scheduler;
+    }
+
+    public boolean isConnected() {
+        return mConnected;
+    }
+
+    public boolean isClosed() {
+        return mClosed;
+    }
+
+    public int getConnectionPriority() {
+        return mConnectionPriority;
+    }
+
+    /**
+     * Lose the connection, as when the device goes out of range.
+     */
+    public void drop() {
+        if (!mConnected || mClosed) {
+            return;
+        }
+        mConnected = false;
+        mSession.onConnectionStateChange(this, STATUS_CONNECTION_TIMEOUT,
+                BluetoothProfile.STATE_DISCONNECTED);
+    }
+
+    /**
+     * Have the device notify a new value of a characteristic, straight away.
+     */
+    public void notify(BluetoothGattCharacteristic characteristic, byte[] value) {
+        if (!mConnected || mClosed) {
+            return;
+        }
+        characteristic.setValue(value);
+        mSession.onCharacteristicChanged(this, characteristic);
+    }
+
+    @Override
+    public boolean connect() {
+        if (mClosed || mStarted) {
+            return false;
+        }
+        mStarted = true;
+        final boolean reachable = mDevice.reachable;
+        later(new Runnable() {
+            @Override
+            public void run() {
+                mConnected = reachable;
+                mSession.onConnectionStateChange(SimulatedGattLink.this,
+                        reachable ? BluetoothGatt.GATT_SUCCESS : STATUS_ERROR,
+                        reachable ? BluetoothProfile.STATE_CONNECTED
+                                : BluetoothProfile.STATE_DISCONNECTED);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public void disconnect() {
+        if (!mStarted || mDisconnecting) {
+            return;
+        }
+        mDisconnecting = true;
+        later(new Runnable() {
+            @Override
+            public void run() {
+                mConnected = false;
+                mSession.onConnectionStateChange(SimulatedGattLink.this,
+                        BluetoothGatt.GATT_SUCCESS, BluetoothProfile.STATE_DISCONNECTED);
+            }
+        });
+    }
+
+    @Override
+    public void close() {
+        mClosed = true;
+        mConnected = false;
+    }
+
+    @Override
+    public boolean discoverServices() {
+        if (!mConnected) {
+            return false;
+        }
+        later(new Runnable() {
+            @Override
+            public void run() {
+                mSession.onServicesDiscovered(SimulatedGattLink.this, BluetoothGatt.GATT_SUCCESS);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public List<BluetoothGattService> getServices() {
+        return mDevice.services;
+    }
+
+    @Override
+    public boolean requestConnectionPriority(int priority) {
+        if (!mConnected) {
+            return false;
+        }
+        mConnectionPriority = priority;
+        return true;
+    }
+
+    @Override
+    public boolean readCharacteristic(final BluetoothGattCharacteristic characteristic) {
+        if (!mConnected) {
+            return false;
+        }
+        later(new Runnable() {
+            @Override
+            public void run() {
+                mSession.onCharacteristicRead(SimulatedGattLink.this, characteristic,
+                        BluetoothGatt.GATT_SUCCESS);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public boolean writeCharacteristic(final BluetoothGattCharacteristic characteristic) {
+        if (!mConnected) {
+            return false;
+        }
+        mDevice.written.add(characteristic.getValue());
+        later(new Runnable() {
+            @Override
+            public void run() {
+                mSession.onCharacteristicWrite(SimulatedGattLink.this, characteristic,
+                        BluetoothGatt.GATT_SUCCESS);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public boolean readDescriptor(final BluetoothGattDescriptor descriptor) {
+        if (!mConnected) {
+            return false;
+        }
+        later(new Runnable() {
+            @Override
+            public void run() {
+                mSession.onDescriptorRead(SimulatedGattLink.this, descriptor,
+                        BluetoothGatt.GATT_SUCCESS);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public boolean writeDescriptor(final BluetoothGattDescriptor descriptor) {
+        if (!mConnected) {
+            return false;
+        }
+        later(new Runnable() {
+            @Override
+            public void run() {
+                mSession.onDescriptorWrite(SimulatedGattLink.this, descriptor,
+                        BluetoothGatt.GATT_SUCCESS);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public boolean setCharacteristicNotification(BluetoothGattCharacteristic characteristic,
+                                                 boolean enable) {
+        return mConnected;
+    }
+
+    @Override
+    public boolean requestMtu(final int mtu) {
+        if (!mConnected) {
+            return false;
+        }
+        later(new Runnable() {
+            @Override
+            public void run() {
+                mSession.onMtuChanged(SimulatedGattLink.this, Math.min(mtu, mDevice.maxMtu),
+                        BluetoothGatt.GATT_SUCCESS);
+            }
+        });
+        return true;
+    }
+
+    // Reports an event after the device's latency, unless the link is closed by then.
+    private void later(final Runnable event) {
+        mScheduler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                if (!mClosed) {
+                    event.run();
+                }
+            }
+        }, mDevice.latencyMillis);
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import java.util.UUID;
+
+/**
+ * A characteristic that keeps its UUID and value itself, since the framework's own
+ * accessors are stubbed out in local unit tests.
+ */
+public class TestCharacteristic extends BluetoothGattCharacteristic {
+
+    private final UUID mUuid;
+    private byte[] mValue;
+
+    public TestCharacteristic() {
+        this(UUID.randomUUID());
+    }
+
+    public TestCharacteristic(UUID uuid) {
+        super(uuid, PROPERTY_READ | PROPERTY_WRITE | PROPERTY_NOTIFY,
+                PERMISSION_READ | PERMISSION_WRITE);
+        mUuid = uuid;
+    }
+
+    @Override
+    public UUID getUuid() {
+        return mUuid;
+    }
+
+    @Override
+    public byte[] getValue() {
+        return mValue;
+    }
+
+    @Override
+    public boolean setValue(byte[] value) {
+        mValue = value;
+        return true;
+    }
+}